@@ -0,0 +1,48 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.json;
+
+import javax.annotation.Nullable;
+
+/**
+ * Formats strings for the JSON the tools write by hand, so that they need no JSON library.
+ */
+public final class JsonStrings {
+
+  /**
+   * Returns the given {@code value} as a JSON string, escaping quotes, backslashes and control
+   * characters.
+   *
+   * @param value The string to format.
+   * @return The JSON string; {@code null} if the {@code value} is {@code null}.
+   */
+  public static String quote(@Nullable String value) {
+    if (value == null) {
+      return "null";
+    }
+    StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    return json.append('"').toString();
+  }
+
+  private JsonStrings() {
+    // utility
+  }
+}
@@ -0,0 +1,22 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.junit.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotate that the test methods of a test class can be run in parallel with each other. This
+ * implies {@link TestParallel}. See usage note in {@link org.pantsbuild.tools.junit.ConsoleRunner}.
+ * The {@link TestSerial} annotation takes precedence over this annotation if a class has both
+ * (including via inheritance).
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+@Target(ElementType.TYPE)
+public @interface TestParallelMethods {
+}
@@ -0,0 +1,33 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.junit.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotate that a test class uses a resource shared with other test classes, like a port range or
+ * a database, that only a limited number of test classes may use at once. Test classes using the
+ * same resource group still run in parallel with all other test classes, but at most
+ * {@link #permits()} of them run at once. Should test classes declare different permits for the
+ * same group, the least applies. Use {@link TestResourceGroups} for a test class using more than
+ * one resource group.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+@Target(ElementType.TYPE)
+public @interface TestResourceGroup {
+  /**
+   * The name of the resource group.
+   */
+  String value();
+
+  /**
+   * The number of test classes in the resource group that may run at once.
+   */
+  int permits() default 1;
+}
@@ -0,0 +1,24 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.junit.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotate that a test class uses several resource groups; see {@link TestResourceGroup}. A test
+ * class only runs once it can have all of its resource groups at the same time.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+@Target(ElementType.TYPE)
+public @interface TestResourceGroups {
+  /**
+   * The resource groups the test class uses.
+   */
+  TestResourceGroup[] value();
+}
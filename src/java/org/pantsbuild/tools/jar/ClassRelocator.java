@@ -0,0 +1,228 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.jar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+import org.pantsbuild.tools.jar.JarBuilder.Relocation;
+
+/**
+ * Rewrites the package names of classes and resources according to a list of
+ * {@link Relocation relocations}.
+ * <p>
+ * Class files are rewritten by editing the {@code CONSTANT_Utf8} entries of their constant pool
+ * in place; since no constants are added or removed, all constant pool indexes stay valid and the
+ * remainder of the class file is copied verbatim.  Rewritten constants are class names, type
+ * descriptors and signatures, plus string literals that name a relocated class or resource.
+ */
+final class ClassRelocator {
+
+  private static final int MAGIC = 0xCAFEBABE;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_FLOAT = 4;
+  private static final int CONSTANT_LONG = 5;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+  private static final int CONSTANT_METHOD_HANDLE = 15;
+  private static final int CONSTANT_METHOD_TYPE = 16;
+  private static final int CONSTANT_DYNAMIC = 17;
+  private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+  private static final int CONSTANT_MODULE = 19;
+  private static final int CONSTANT_PACKAGE = 20;
+
+  /**
+   * Returns {@code true} if the entry at the given jar path is a class file whose contents are
+   * subject to relocation.
+   */
+  static boolean isClass(String jarPath) {
+    return jarPath.endsWith(".class");
+  }
+
+  private final List<Relocation> relocations;
+
+  ClassRelocator(Iterable<Relocation> relocations) {
+    this.relocations = ImmutableList.copyOf(relocations);
+  }
+
+  /**
+   * Returns the relocated path for the given jar entry path; the path itself if no relocation
+   * applies.
+   */
+  String relocatePath(String jarPath) {
+    for (Relocation relocation : relocations) {
+      if (jarPath.startsWith(relocation.fromPath)) {
+        return relocation.toPath + jarPath.substring(relocation.fromPath.length());
+      }
+    }
+    return jarPath;
+  }
+
+  private String relocateName(String name) {
+    for (Relocation relocation : relocations) {
+      if (name.startsWith(relocation.fromPath)) {
+        return relocation.toPath + name.substring(relocation.fromPath.length());
+      }
+      if (name.startsWith(relocation.fromPackage)) {
+        return relocation.toPackage + name.substring(relocation.fromPackage.length());
+      }
+    }
+    return name;
+  }
+
+  private String relocateDescriptor(String descriptor) {
+    String relocated = descriptor;
+    for (Relocation relocation : relocations) {
+      relocated = replaceTypeReferences(relocated, relocation);
+    }
+    return relocated;
+  }
+
+  private static String replaceTypeReferences(String value, Relocation relocation) {
+    String from = "L" + relocation.fromPath;
+    int index = value.indexOf(from);
+    if (index == -1) {
+      return value;
+    }
+    StringBuilder relocated = new StringBuilder(value.length() + 32);
+    int start = 0;
+    do {
+      // A type reference can not start in the middle of a path; this guards against rewriting a
+      // class like org/Lcom/example/Foo when relocating com.example.
+      if (index == 0 || value.charAt(index - 1) != '/') {
+        relocated.append(value, start, index).append('L').append(relocation.toPath);
+        start = index + from.length();
+      }
+      index = value.indexOf(from, index + 1);
+    } while (index != -1);
+    return relocated.append(value, start, value.length()).toString();
+  }
+
+  /**
+   * Rewrites the given class file per the relocations.
+   *
+   * @param classFile The bytes of the class file to rewrite.
+   * @return The rewritten class file; the given bytes themselves if they do not form a class file.
+   * @throws IOException If the class file is malformed.
+   */
+  byte[] relocateClass(byte[] classFile) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+    if (classFile.length < 10 || in.readInt() != MAGIC) {
+      return classFile;
+    }
+    int minorVersion = in.readUnsignedShort();
+    int majorVersion = in.readUnsignedShort();
+    int count = in.readUnsignedShort();
+
+    // Constants may refer to constants that appear later in the pool, so the whole pool is read
+    // before deciding how each CONSTANT_Utf8 should be rewritten.
+    int[] tags = new int[count];
+    Object[] values = new Object[count];
+    for (int i = 1; i < count; i++) {
+      int tag = in.readUnsignedByte();
+      tags[i] = tag;
+      switch (tag) {
+        case CONSTANT_UTF8:
+          values[i] = in.readUTF();
+          break;
+        case CONSTANT_CLASS:
+        case CONSTANT_STRING:
+        case CONSTANT_METHOD_TYPE:
+        case CONSTANT_MODULE:
+        case CONSTANT_PACKAGE:
+          values[i] = in.readUnsignedShort();
+          break;
+        case CONSTANT_METHOD_HANDLE:
+          values[i] = readBytes(in, 3);
+          break;
+        case CONSTANT_INTEGER:
+        case CONSTANT_FLOAT:
+        case CONSTANT_FIELDREF:
+        case CONSTANT_METHODREF:
+        case CONSTANT_INTERFACE_METHODREF:
+        case CONSTANT_NAME_AND_TYPE:
+        case CONSTANT_DYNAMIC:
+        case CONSTANT_INVOKE_DYNAMIC:
+          values[i] = readBytes(in, 4);
+          break;
+        case CONSTANT_LONG:
+        case CONSTANT_DOUBLE:
+          values[i] = readBytes(in, 8);
+          // 8 byte constants occupy two constant pool slots.
+          i++;
+          break;
+        default:
+          throw new IOException("Unrecognized constant pool tag " + tag + " at index " + i);
+      }
+    }
+
+    String[] relocated = new String[count];
+    for (int i = 1; i < count; i++) {
+      if (tags[i] == CONSTANT_UTF8) {
+        relocated[i] = relocateDescriptor((String) values[i]);
+      }
+    }
+    for (int i = 1; i < count; i++) {
+      int tag = tags[i];
+      if (tag == CONSTANT_CLASS || tag == CONSTANT_STRING || tag == CONSTANT_PACKAGE) {
+        int utf8Index = (Integer) values[i];
+        String value = (String) values[utf8Index];
+        if (tag == CONSTANT_CLASS && value.startsWith("[")) {
+          continue; // Array class names are descriptors.
+        } else if (tag == CONSTANT_PACKAGE) {
+          value = value + "/";
+          String name = relocateName(value);
+          relocated[utf8Index] = name.substring(0, name.length() - 1);
+        } else {
+          relocated[utf8Index] = relocateName(value);
+        }
+      }
+    }
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(classFile.length + 256);
+    DataOutputStream out = new DataOutputStream(buffer);
+    out.writeInt(MAGIC);
+    out.writeShort(minorVersion);
+    out.writeShort(majorVersion);
+    out.writeShort(count);
+    for (int i = 1; i < count; i++) {
+      int tag = tags[i];
+      if (tag == 0) {
+        continue; // The unusable 2nd slot of a long or double.
+      }
+      out.writeByte(tag);
+      Object value = values[i];
+      if (tag == CONSTANT_UTF8) {
+        out.writeUTF(relocated[i]);
+      } else if (value instanceof Integer) {
+        out.writeShort((Integer) value);
+      } else {
+        out.write((byte[]) value);
+      }
+    }
+    int poolEnd = classFile.length - in.available();
+    out.write(classFile, poolEnd, classFile.length - poolEnd);
+    out.flush();
+    return buffer.toByteArray();
+  }
+
+  private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,346 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.jar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
+
+/**
+ * A persistent index of the entries contained in the jars of a classpath.
+ * <p>
+ * Each jar's entries are recorded along with the jar's size and modification time so that the
+ * index can be {@link #refresh refreshed} incrementally, re-reading only those jars that have
+ * changed since they were last indexed.  Duplicate detection and entry lookups are then answered
+ * from the index without opening any jars.
+ */
+public final class ClasspathIndex {
+
+  private static final Logger LOG = Logger.getLogger(ClasspathIndex.class.getName());
+
+  private static final int MAGIC = 0x4a494458; // JIDX
+  private static final int VERSION = 1;
+
+  /**
+   * The location of an entry within a jar on the classpath.
+   */
+  public static final class Location {
+    private final File jar;
+    private final long crc;
+    private final long size;
+
+    Location(File jar, long crc, long size) {
+      this.jar = jar;
+      this.crc = crc;
+      this.size = size;
+    }
+
+    /**
+     * Returns the jar containing the entry.
+     */
+    public File getJar() {
+      return jar;
+    }
+
+    /**
+     * Returns the CRC-32 of the entry's uncompressed contents.
+     */
+    public long getCrc() {
+      return crc;
+    }
+
+    /**
+     * Returns the uncompressed size of the entry.
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * Returns {@code true} if this entry has the same contents as the {@code other} entry, as far
+     * as can be determined from their CRCs and sizes.
+     */
+    public boolean sameContents(Location other) {
+      return crc == other.crc && size == other.size;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("jar", jar)
+          .add("crc", Long.toHexString(crc))
+          .add("size", size)
+          .toString();
+    }
+  }
+
+  private static final class IndexedEntry {
+    private final String name;
+    private final long crc;
+    private final long size;
+
+    IndexedEntry(String name, long crc, long size) {
+      this.name = name;
+      this.crc = crc;
+      this.size = size;
+    }
+  }
+
+  private static final class IndexedJar {
+    private final File path;
+    private final long size;
+    private final long lastModified;
+    private final List<IndexedEntry> entries;
+
+    IndexedJar(File path, long size, long lastModified, List<IndexedEntry> entries) {
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.entries = entries;
+    }
+
+    boolean isCurrent(File jar) {
+      return size == jar.length() && lastModified == jar.lastModified();
+    }
+  }
+
+  /**
+   * Loads the index stored at {@code indexFile}.  If there is no index stored there yet, or the
+   * stored index is truncated or in an unrecognized format, an empty index is returned.
+   *
+   * @param indexFile The file the index is stored in.
+   * @return The loaded index.
+   * @throws IOException If there is a problem reading the index.
+   */
+  public static ClasspathIndex load(File indexFile) throws IOException {
+    ClasspathIndex index = new ClasspathIndex(indexFile);
+    if (indexFile.isFile() && indexFile.length() > 0) {
+      Closer closer = Closer.create();
+      try {
+        DataInputStream in = closer.register(
+            new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile))));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          LOG.warning("Ignoring classpath index in an unrecognized format at " + indexFile);
+        } else {
+          index.read(in);
+        }
+      } catch (EOFException e) {
+        LOG.warning("Ignoring truncated classpath index at " + indexFile);
+        index.jars.clear();
+      } catch (IOException e) {
+        throw closer.rethrow(e);
+      } finally {
+        closer.close();
+      }
+    }
+    return index;
+  }
+
+  private final File indexFile;
+  private final Map<File, IndexedJar> jars = Maps.newLinkedHashMap();
+  private boolean dirty;
+
+  private ClasspathIndex(File indexFile) {
+    this.indexFile = Preconditions.checkNotNull(indexFile);
+  }
+
+  private void read(DataInputStream in) throws IOException {
+    int jarCount = in.readInt();
+    for (int i = 0; i < jarCount; i++) {
+      File path = new File(in.readUTF());
+      long size = in.readLong();
+      long lastModified = in.readLong();
+      int entryCount = in.readInt();
+      List<IndexedEntry> entries = Lists.newArrayListWithCapacity(entryCount);
+      for (int j = 0; j < entryCount; j++) {
+        entries.add(new IndexedEntry(in.readUTF(), in.readInt() & 0xFFFFFFFFL, in.readLong()));
+      }
+      jars.put(path, new IndexedJar(path, size, lastModified, entries));
+    }
+  }
+
+  /**
+   * Brings the index up to date with the given {@code classpath}, re-indexing only those jars
+   * whose size or modification time has changed since they were last indexed.  Jars that no
+   * longer exist are dropped from the index.
+   *
+   * @param classpath The jars to index.
+   * @return The number of jars that were (re-)indexed.
+   * @throws IOException If there is a problem reading one of the jars.
+   */
+  public int refresh(Iterable<File> classpath) throws IOException {
+    int indexed = 0;
+    for (File jar : classpath) {
+      File key = jar.getAbsoluteFile();
+      IndexedJar existing = jars.get(key);
+      if (existing == null || !existing.isCurrent(jar)) {
+        jars.put(key, index(key));
+        indexed++;
+      }
+    }
+    for (File jar : ImmutableList.copyOf(jars.keySet())) {
+      if (!jar.exists()) {
+        jars.remove(jar);
+        dirty = true;
+      }
+    }
+    if (indexed > 0) {
+      dirty = true;
+    }
+    return indexed;
+  }
+
+  private static IndexedJar index(File jar) throws IOException {
+    LOG.log(Level.FINE, "Indexing {0}", jar);
+    // Capture the jar's stats before reading it so a concurrent modification is caught next time.
+    long size = jar.length();
+    long lastModified = jar.lastModified();
+    final List<IndexedEntry> entries = Lists.newArrayList();
+    try {
+      JarBuilder.enumerateJarEntries(jar, new JarBuilder.JarEntryVisitor() {
+        @Override public void visit(JarEntry entry) {
+          if (!entry.isDirectory() && !JarFile.MANIFEST_NAME.equals(entry.getName())) {
+            entries.add(new IndexedEntry(entry.getName(), entry.getCrc(), entry.getSize()));
+          }
+        }
+      });
+    } catch (IOException e) {
+      throw new JarBuilder.IndexingException(jar, e);
+    }
+    return new IndexedJar(jar, size, lastModified, entries);
+  }
+
+  /**
+   * Stores the index if it has changed since it was loaded.
+   *
+   * @throws IOException If there is a problem writing the index.
+   */
+  public void store() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    File parent = indexFile.getAbsoluteFile().getParentFile();
+    Files.createParentDirs(indexFile.getAbsoluteFile());
+    File tmp = File.createTempFile(indexFile.getName(), ".tmp", parent);
+    try {
+      Closer closer = Closer.create();
+      try {
+        DataOutputStream out = closer.register(
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(jars.size());
+        for (IndexedJar jar : jars.values()) {
+          out.writeUTF(jar.path.getPath());
+          out.writeLong(jar.size);
+          out.writeLong(jar.lastModified);
+          out.writeInt(jar.entries.size());
+          for (IndexedEntry entry : jar.entries) {
+            out.writeUTF(entry.name);
+            out.writeInt((int) entry.crc);
+            out.writeLong(entry.size);
+          }
+        }
+      } catch (IOException e) {
+        throw closer.rethrow(e);
+      } finally {
+        closer.close();
+      }
+      indexFile.delete();
+      Files.move(tmp, indexFile);
+      dirty = false;
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Returns the locations of all entries that appear in more than one jar of the given
+   * {@code classpath}.  The jars must have been {@link #refresh refreshed} into the index.
+   *
+   * @param classpath The jars to check for duplicate entries.
+   * @param skipPath Selects entry paths to exclude from the check.
+   * @return A mapping from duplicated entry name to its locations in classpath order.
+   */
+  public ListMultimap<String, Location> duplicates(
+      Iterable<File> classpath,
+      Predicate<CharSequence> skipPath) {
+
+    final ListMultimap<String, Location> locations = locations(classpath, skipPath);
+    return Multimaps.filterKeys(locations, new Predicate<String>() {
+      @Override public boolean apply(String name) {
+        return locations.get(name).size() > 1;
+      }
+    });
+  }
+
+  /**
+   * Returns the locations of the given entry amongst the jars of the given {@code classpath} in
+   * classpath order.  The jars must have been {@link #refresh refreshed} into the index.
+   *
+   * @param classpath The jars to search.
+   * @param entryName The path of the entry to find, for example {@code com/example/Foo.class}.
+   * @return The locations of the entry; empty if no jar contains it.
+   */
+  public List<Location> locate(Iterable<File> classpath, String entryName) {
+    ImmutableList.Builder<Location> found = ImmutableList.builder();
+    for (IndexedJar jar : indexedJars(classpath)) {
+      for (IndexedEntry entry : jar.entries) {
+        if (entry.name.equals(entryName)) {
+          found.add(new Location(jar.path, entry.crc, entry.size));
+        }
+      }
+    }
+    return found.build();
+  }
+
+  private ListMultimap<String, Location> locations(
+      Iterable<File> classpath,
+      Predicate<CharSequence> skipPath) {
+
+    ListMultimap<String, Location> locations = LinkedListMultimap.create();
+    for (IndexedJar jar : indexedJars(classpath)) {
+      for (IndexedEntry entry : jar.entries) {
+        if (!skipPath.apply(entry.name)) {
+          locations.put(entry.name, new Location(jar.path, entry.crc, entry.size));
+        }
+      }
+    }
+    return locations;
+  }
+
+  private List<IndexedJar> indexedJars(Iterable<File> classpath) {
+    List<IndexedJar> indexed = Lists.newArrayList();
+    for (File jar : classpath) {
+      IndexedJar indexedJar = jars.get(jar.getAbsoluteFile());
+      Preconditions.checkState(indexedJar != null, "The jar %s has not been indexed.", jar);
+      indexed.add(indexedJar);
+    }
+    return indexed;
+  }
+}
@@ -0,0 +1,197 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.pantsbuild.json.JsonStrings;
+import org.pantsbuild.tools.jar.JarBuilder.DuplicateAction;
+
+/**
+ * Streams a JSON report describing the jar a {@link JarBuilder} would write.
+ * <p>
+ * Conflicts are reported as they are found; skipped paths, per-source contributions and the
+ * projected jar size follow once all entries have been seen.  The projected size is an estimate:
+ * entries copied from input jars are counted at their compressed size, all other entries are
+ * counted at their uncompressed size, and zip headers are accounted for.
+ */
+final class JarAnalysis {
+
+  // Zip record sizes excluding the variable length entry name; see the zip APPNOTE.
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int DATA_DESCRIPTOR_SIZE = 16;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+  private static final class Contribution {
+    private int entries;
+    private long size;
+  }
+
+  private final Writer out;
+  private final boolean compress;
+  private final List<String> skipped = Lists.newArrayList();
+  private final Map<String, Contribution> contributions = Maps.newLinkedHashMap();
+  private final Set<String> directories = Sets.newHashSet();
+  private boolean firstConflict = true;
+  private boolean fails;
+  private int entries;
+  private long size;
+  private long projectedSize = END_OF_CENTRAL_DIRECTORY_SIZE;
+
+  /**
+   * Starts a report on the jar to be written at {@code target}.
+   *
+   * @param target The jar being analyzed.
+   * @param compress Whether the jar would be written with compressed entries.
+   * @param out The destination to stream the report to.
+   * @throws IOException If there is a problem writing to {@code out}.
+   */
+  JarAnalysis(File target, boolean compress, Writer out) throws IOException {
+    this.out = Preconditions.checkNotNull(out);
+    this.compress = compress;
+
+    out.write("{\"target\":");
+    out.write(JsonStrings.quote(target.getPath()));
+    out.write(",\"compress\":");
+    out.write(Boolean.toString(compress));
+    out.write(",\"conflicts\":[");
+  }
+
+  /**
+   * Reports entries that all map to the same jar path.
+   *
+   * @param path The duplicated jar path.
+   * @param action The action the duplicate handler would take.
+   * @param sources The entries in the order they were added, identified by their sources.
+   * @throws IOException If there is a problem writing the report.
+   */
+  void conflict(String path, DuplicateAction action, Iterable<String> sources) throws IOException {
+    if (!firstConflict) {
+      out.write(',');
+    }
+    firstConflict = false;
+    out.write("\n{\"path\":");
+    out.write(JsonStrings.quote(path));
+    out.write(",\"action\":");
+    out.write(JsonStrings.quote(action.name()));
+    out.write(",\"sources\":[");
+    boolean first = true;
+    for (String source : sources) {
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      out.write(JsonStrings.quote(source));
+    }
+    out.write("]}");
+    if (action == DuplicateAction.THROW) {
+      fails = true;
+    }
+  }
+
+  /**
+   * Records that the given path would be excluded from the jar by a skip pattern.
+   */
+  void skip(String path) {
+    skipped.add(path);
+  }
+
+  /**
+   * Records a contribution to the jar entry at {@code path}.  An entry formed from several
+   * contributions, as with {@link DuplicateAction#CONCAT}, is only counted once per call to this
+   * method with {@code newEntry} set.
+   *
+   * @param path The jar path of the entry.
+   * @param source The name of the source contributing to the entry.
+   * @param newEntry {@code false} if this is an additional contribution to the previous entry.
+   * @param entrySize The uncompressed size of the contribution.
+   * @param storedSize The number of bytes the contribution would occupy in the jar.
+   */
+  void write(String path, String source, boolean newEntry, long entrySize, long storedSize) {
+    Contribution contribution = contributions.get(source);
+    if (contribution == null) {
+      contribution = new Contribution();
+      contributions.put(source, contribution);
+    }
+    contribution.size += entrySize;
+    size += entrySize;
+    projectedSize += storedSize;
+
+    if (newEntry) {
+      contribution.entries++;
+      entries++;
+      projectedSize += headersSize(path, compress);
+      for (int slash = path.indexOf('/'); slash != -1; slash = path.indexOf('/', slash + 1)) {
+        String directory = path.substring(0, slash + 1);
+        if (directories.add(directory)) {
+          // Directory entries are always deflated, which costs 2 bytes for no data.
+          projectedSize += headersSize(directory, true) + 2;
+        }
+      }
+    }
+  }
+
+  private static long headersSize(String path, boolean deflated) {
+    int nameSize = path.getBytes(Charsets.UTF_8).length;
+    return LOCAL_HEADER_SIZE + CENTRAL_HEADER_SIZE + (2 * nameSize)
+        + (deflated ? DATA_DESCRIPTOR_SIZE : 0);
+  }
+
+  /**
+   * Completes the report and flushes it.
+   *
+   * @return {@code true} if writing the jar would succeed; {@code false} if a conflict would be
+   *     rejected.
+   * @throws IOException If there is a problem writing the report.
+   */
+  boolean finish() throws IOException {
+    out.write("],\"skipped\":[");
+    boolean first = true;
+    for (String path : skipped) {
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      out.write(JsonStrings.quote(path));
+    }
+    out.write("],\"sources\":[");
+    first = true;
+    for (Map.Entry<String, Contribution> entry : contributions.entrySet()) {
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      out.write("\n{\"name\":");
+      out.write(JsonStrings.quote(entry.getKey()));
+      out.write(",\"entries\":");
+      out.write(Integer.toString(entry.getValue().entries));
+      out.write(",\"size\":");
+      out.write(Long.toString(entry.getValue().size));
+      out.write('}');
+    }
+    out.write("],\"entries\":");
+    out.write(Integer.toString(entries));
+    out.write(",\"size\":");
+    out.write(Long.toString(size));
+    out.write(",\"projectedSize\":");
+    out.write(Long.toString(projectedSize));
+    out.write(",\"fails\":");
+    out.write(Boolean.toString(fails));
+    out.write("}\n");
+    out.flush();
+    return !fails;
+  }
+}
@@ -11,14 +11,23 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes.Name;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -40,6 +49,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
@@ -52,6 +62,7 @@ import com.google.common.io.ByteProcessor;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Closer;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * A utility than can create or update jar archives with special handling of duplicate entries.
@@ -257,6 +268,55 @@ public class JarBuilder implements Closeable {
     }
   }
 
+  /**
+   * Encapsulates a rule for relocating the classes and resources of a package, and those of its
+   * sub-packages, to a new package.
+   */
+  public static class Relocation {
+
+    /**
+     * Creates a relocation that moves the given package and its sub-packages under a new package
+     * name.
+     *
+     * @param fromPackage The name of the package to relocate, for example {@code com.google}.
+     * @param toPackage The name to relocate the package to, for example {@code shaded.com.google}.
+     * @return The package relocation.
+     */
+    public static Relocation packagePrefix(String fromPackage, String toPackage) {
+      return new Relocation(fromPackage, toPackage);
+    }
+
+    private static String checkPackageName(String packageName) {
+      Preconditions.checkArgument(!isEmpty(packageName), "A package name must be specified.");
+      Preconditions.checkArgument(
+          !packageName.startsWith(".") && !packageName.endsWith(".") && !packageName.contains("/"),
+          "Invalid package name: %s", packageName);
+      return packageName;
+    }
+
+    // Prefixes used to match the package in class names and paths respectively; both end in a
+    // separator so that relocating com.example leaves com.examples alone.
+    final String fromPackage;
+    final String toPackage;
+    final String fromPath;
+    final String toPath;
+
+    private Relocation(String fromPackage, String toPackage) {
+      this.fromPackage = checkPackageName(fromPackage) + ".";
+      this.toPackage = checkPackageName(toPackage) + ".";
+      this.fromPath = this.fromPackage.replace('.', '/');
+      this.toPath = this.toPackage.replace('.', '/');
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("from", fromPackage)
+          .add("to", toPackage)
+          .toString();
+    }
+  }
+
   /**
    * Identifies a source for jar entries.
    */
@@ -523,6 +583,7 @@ public class JarBuilder implements Closeable {
   private static class JarSupplier implements InputSupplier<JarFile>, Closeable {
     private final Closer closer;
     private final InputSupplier<JarFile> supplier;
+    @Nullable private JarFile jarFile;
 
     JarSupplier(final File file) {
       closer = Closer.create();
@@ -542,13 +603,19 @@ public class JarBuilder implements Closeable {
       };
     }
 
+    // The jar is opened once and shared since entries may be read from many threads when
+    // relocating classes.  It is opened afresh if read again once closed.
     @Override
-    public JarFile getInput() throws IOException {
-      return supplier.getInput();
+    public synchronized JarFile getInput() throws IOException {
+      if (jarFile == null) {
+        jarFile = supplier.getInput();
+      }
+      return jarFile;
     }
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
+      jarFile = null;
       closer.close();
     }
   }
@@ -569,6 +636,10 @@ public class JarBuilder implements Closeable {
   private final List<EntryIndexer> additions = Lists.newLinkedList();
 
   @Nullable private ByteSource manifest;
+  private boolean recordDigests;
+  private boolean recordEntryDigests;
+  @Nullable private ClassRelocator relocator;
+  private boolean ignoreExistingTarget;
 
   /**
    * Creates a JarBuilder that will write scheduled jar additions to {@code target} upon
@@ -721,7 +792,7 @@ public class JarBuilder implements Closeable {
       public void execute(final Multimap<String, ReadableEntry> entries)
           throws IndexingException {
 
-        final InputSupplier<JarFile> jarSupplier = closer.register(new JarSupplier(file));
+        final InputSupplier<JarFile> jarSupplier = register(new JarSupplier(file));
         final Source jarSource = jarSource(file);
         try {
           enumerateJarEntries(file, new JarEntryVisitor() {
@@ -744,6 +815,11 @@ public class JarBuilder implements Closeable {
     return this;
   }
 
+  // Additions may be indexed in parallel by analyze.
+  private synchronized <C extends Closeable> C register(C closeable) {
+    return closer.register(closeable);
+  }
+
   private static void add(
       Multimap<String, ReadableEntry> entries,
       NamedByteSource contents,
@@ -837,6 +913,59 @@ public class JarBuilder implements Closeable {
     return this;
   }
 
+  /**
+   * Requests that a {@value JarDigests#ALGORITHM} digest of the jar be computed while it is
+   * written out by {@link #write} and recorded in a sidecar file at {@link #digestsFile}.
+   *
+   * @param includeEntries Pass {@code true} to also record a content digest for each jar entry.
+   * @return This builder for chaining.
+   */
+  public JarBuilder recordDigests(boolean includeEntries) {
+    recordDigests = true;
+    recordEntryDigests = includeEntries;
+    return this;
+  }
+
+  /**
+   * Requests that the classes and resources of the jar be relocated per the given
+   * {@code relocations} as they are written out by {@link #write}.  Entry paths are rewritten and
+   * every class file has the class names, descriptors and string literals in its constant pool
+   * rewritten, so that the relocated classes and the classes that use them stay consistent.
+   * <p>
+   * Relocations are applied in preference order, only the 1st matching relocation is applied to
+   * any given name.  Since class files must be decompressed to be rewritten, they are rewritten in
+   * parallel across entries.
+   *
+   * @param relocations The relocations to apply in preference order.
+   * @return This builder for chaining.
+   */
+  public JarBuilder relocate(Iterable<Relocation> relocations) {
+    relocator = Iterables.isEmpty(relocations) ? null : new ClassRelocator(relocations);
+    return this;
+  }
+
+  /**
+   * Ignores the entries of a pre-existing target jar, as if the target were about to be replaced
+   * rather than updated.
+   *
+   * @return This builder for chaining.
+   */
+  JarBuilder ignoreExistingTarget() {
+    ignoreExistingTarget = true;
+    return this;
+  }
+
+  /**
+   * Returns the path of the digest sidecar file written alongside the given {@code jar} when
+   * {@link #recordDigests digest recording} is requested.
+   *
+   * @param jar The path of a jar written by a JarBuilder.
+   * @return The path of the sidecar file, which may not exist.
+   */
+  public static File digestsFile(File jar) {
+    return JarDigests.sidecarFor(jar);
+  }
+
   /**
    * Creates a jar at the configured target path applying the scheduled additions and skipping any
    * duplicate entries found.  Entries will not be compressed.
@@ -891,6 +1020,13 @@ public class JarBuilder implements Closeable {
         }
       };
 
+  /**
+   * Returns a predicate that selects jar paths matched anywhere by any of the given patterns.
+   */
+  static Predicate<CharSequence> pathSelector(Iterable<Pattern> patterns) {
+    return Predicates.or(Iterables.transform(ImmutableList.copyOf(patterns), AS_PATH_SELECTOR));
+  }
+
   /**
    * Creates a jar at the configured target path applying the scheduled additions per the given
    * {@code duplicateHandler}.
@@ -912,25 +1048,31 @@ public class JarBuilder implements Closeable {
       throws DuplicateEntryException, IOException {
 
     Preconditions.checkNotNull(duplicateHandler);
-    Predicate<CharSequence> skipPath =
-        Predicates.or(Iterables.transform(ImmutableList.copyOf(skipPatterns), AS_PATH_SELECTOR));
+    Predicate<CharSequence> skipPath = pathSelector(skipPatterns);
 
     final Iterable<ReadableEntry> entries = getEntries(skipPath, duplicateHandler);
 
+    @Nullable JarDigests digests = recordDigests ? new JarDigests(recordEntryDigests) : null;
     File tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
     try {
       try {
-        JarWriter writer = jarWriter(tmp, compress);
+        JarWriter writer = jarWriter(tmp, compress, digests);
         writer.write(JarFile.MANIFEST_NAME, manifest == null ? DEFAULT_MANIFEST : manifest);
         List<ReadableJarEntry> jarEntries = Lists.newArrayList();
+        List<ReadableEntry> classEntries = Lists.newArrayList();
         for (ReadableEntry entry : entries) {
-          if (entry instanceof ReadableJarEntry) {
+          if (relocator != null && ClassRelocator.isClass(entry.getJarPath())) {
+            classEntries.add(entry);
+          } else if (entry instanceof ReadableJarEntry) {
             jarEntries.add((ReadableJarEntry) entry);
           } else {
             writer.write(entry.getJarPath(), entry.contents);
           }
         }
         copyJarFiles(writer, jarEntries);
+        if (relocator != null) {
+          writeRelocatedClasses(writer, relocator, classEntries);
+        }
 
         // Close all open files, the moveFile below might need to copy instead of just rename.
         closer.close();
@@ -938,6 +1080,14 @@ public class JarBuilder implements Closeable {
         // Rename the file (or copy if it can't be renamed)
         target.delete();
         Files.move(tmp, target);
+
+        File sidecar = digestsFile(target);
+        sidecar.delete();
+        if (digests != null) {
+          // The jar has been moved out of tmp, so re-use it to stage the sidecar.
+          digests.writeTo(tmp);
+          Files.move(tmp, sidecar);
+        }
       } catch (IOException e) {
         throw closer.rethrow(e);
       } finally {
@@ -985,6 +1135,58 @@ public class JarBuilder implements Closeable {
     }
   }
 
+  /**
+   * Rewrites class files on a pool of threads, writing the results to the target jar in order as
+   * they complete.  Only a bounded window of entries is rewritten ahead of the writer to bound
+   * memory use.
+   */
+  private static void writeRelocatedClasses(
+      JarWriter writer,
+      final ClassRelocator relocator,
+      List<ReadableEntry> entries)
+      throws IOException {
+
+    int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), entries.size()));
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jar-relocator-%d").build());
+    try {
+      int window = threads * 4;
+      Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>(window);
+      Iterator<ReadableEntry> toSubmit = entries.iterator();
+      for (ReadableEntry entry : entries) {
+        while (pending.size() < window && toSubmit.hasNext()) {
+          final ByteSource contents = toSubmit.next().contents;
+          pending.add(executor.submit(new Callable<byte[]>() {
+            @Override public byte[] call() throws IOException {
+              return relocator.relocateClass(contents.read());
+            }
+          }));
+        }
+        byte[] relocated = awaitRelocation(entry, pending.remove());
+        writer.write(entry.getJarPath(), ByteSource.wrap(relocated));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static byte[] awaitRelocation(ReadableEntry entry, Future<byte[]> relocation)
+      throws IOException {
+
+    try {
+      return relocation.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JarCreationException("Interrupted relocating " + describe(entry));
+    } catch (ExecutionException e) {
+      throw new JarBuilderException("Problem relocating " + describe(entry), e.getCause());
+    }
+  }
+
+  private static String describe(Entry entry) {
+    return entry.getSource().identify(entry.getName());
+  }
+
   private Iterable<ReadableEntry> getEntries(
       final Predicate<CharSequence> skipPath,
       final DuplicateHandler duplicateHandler)
@@ -999,7 +1201,133 @@ public class JarBuilder implements Closeable {
             return processEntries(skipPath, duplicateHandler, jarPath, entries).asSet();
           }
         };
-    return FluentIterable.from(getAdditions().asMap().entrySet()).transformAndConcat(mergeEntries);
+    return FluentIterable.from(getIndexedAdditions(false).asMap().entrySet())
+        .transformAndConcat(mergeEntries);
+  }
+
+  private Multimap<String, ReadableEntry> getIndexedAdditions(boolean parallel)
+      throws JarBuilderException {
+
+    Multimap<String, ReadableEntry> additions = getAdditions(parallel);
+    return relocator == null ? additions : relocatePaths(relocator, additions);
+  }
+
+  private static final Function<ReadableEntry, String> IDENTIFY =
+      new Function<ReadableEntry, String>() {
+        @Override public String apply(ReadableEntry entry) {
+          return describe(entry);
+        }
+      };
+
+  /**
+   * Analyzes the jar that {@link #write(boolean, DuplicateHandler, Iterable)} would create without
+   * writing any entries, streaming a JSON report to {@code report}.  The report lists the
+   * duplicate entries found along with the action the {@code duplicateHandler} would take for
+   * each, the entries excluded by {@code skipPatterns}, the number of entries and bytes each source
+   * would contribute and the projected size of the jar.
+   * <p>
+   * Unlike {@code write}, a {@link DuplicateAction#THROW} action does not throw; it is reported
+   * and reflected in the return value instead.  Additions are indexed in parallel and the
+   * {@link Listener} is not notified.
+   *
+   * @param compress Pass {@code true} to project the size of a jar with compressed entries.
+   * @param duplicateHandler A handler for dealing with duplicate entries.
+   * @param skipPatterns An optional sequence of patterns that match entry paths that should be
+   *     excluded.
+   * @param report The destination to stream the JSON report to.
+   * @return {@code true} if writing the jar would succeed.
+   * @throws IOException if there was a problem indexing the additions or writing the report.
+   */
+  public boolean analyze(
+      boolean compress,
+      DuplicateHandler duplicateHandler,
+      Iterable<Pattern> skipPatterns,
+      Writer report)
+      throws IOException {
+
+    Preconditions.checkNotNull(duplicateHandler);
+    Predicate<CharSequence> skipPath = pathSelector(skipPatterns);
+
+    Multimap<String, ReadableEntry> additions = getIndexedAdditions(true);
+
+    JarAnalysis analysis = new JarAnalysis(target, compress, report);
+    long manifestSize = (manifest == null ? DEFAULT_MANIFEST : manifest).size();
+    analysis.write(JarFile.MANIFEST_NAME, "<manifest>", true, manifestSize, manifestSize);
+    for (Map.Entry<String, Collection<ReadableEntry>> item : additions.asMap().entrySet()) {
+      String jarPath = item.getKey();
+      Collection<ReadableEntry> itemEntries = item.getValue();
+      if (skipPath.apply(jarPath)) {
+        analysis.skip(jarPath);
+        continue;
+      }
+      if (itemEntries.size() < 2) {
+        analyze(analysis, true, Iterables.getOnlyElement(itemEntries), true);
+        continue;
+      }
+
+      DuplicateAction action = duplicateHandler.actionFor(jarPath);
+      analysis.conflict(jarPath, action, Iterables.transform(itemEntries, IDENTIFY));
+      switch (action) {
+        case SKIP:
+          analyze(analysis, true, Iterables.get(itemEntries, 0), true);
+          break;
+        case REPLACE:
+          analyze(analysis, true, Iterables.getLast(itemEntries), true);
+          break;
+        case CONCAT:
+          boolean first = true;
+          for (ReadableEntry entry : itemEntries) {
+            // The concatenation is written from memory so it can not be copied verbatim.
+            analyze(analysis, false, entry, first);
+            first = false;
+          }
+          break;
+        case THROW:
+          break;
+        default:
+          throw new IllegalArgumentException("Unrecognized DuplicateAction " + action);
+      }
+    }
+    return analysis.finish();
+  }
+
+  private void analyze(
+      JarAnalysis analysis,
+      boolean copyable,
+      ReadableEntry entry,
+      boolean newEntry)
+      throws IOException {
+
+    long size;
+    long storedSize;
+    if (copyable && entry instanceof ReadableJarEntry
+        && !(relocator != null && ClassRelocator.isClass(entry.getJarPath()))) {
+      // Entries copied verbatim from jars keep their stored form, compressed or not.
+      JarEntry jarEntry = ((ReadableJarEntry) entry).getJarEntry();
+      size = jarEntry.getSize();
+      storedSize = jarEntry.getCompressedSize();
+    } else {
+      size = entry.contents.size();
+      storedSize = size;
+    }
+    analysis.write(entry.getJarPath(), entry.getSource().name(), newEntry, size, storedSize);
+  }
+
+  private static Multimap<String, ReadableEntry> relocatePaths(
+      ClassRelocator relocator,
+      Multimap<String, ReadableEntry> entries) {
+
+    Multimap<String, ReadableEntry> relocated = LinkedListMultimap.create();
+    for (ReadableEntry entry : entries.values()) {
+      String jarPath = relocator.relocatePath(entry.getJarPath());
+      if (jarPath.equals(entry.getJarPath())) {
+        relocated.put(jarPath, entry);
+      } else {
+        // The entry can no longer be copied verbatim from its jar since its path changes.
+        relocated.put(jarPath, new ReadableEntry(entry.contents, jarPath));
+      }
+    }
+    return relocated;
   }
 
   private Optional<ReadableEntry> processEntries(
@@ -1051,9 +1379,11 @@ public class JarBuilder implements Closeable {
     }
   }
 
-  private Multimap<String, ReadableEntry> getAdditions() throws JarBuilderException {
+  private Multimap<String, ReadableEntry> getAdditions(boolean parallel)
+      throws JarBuilderException {
+
     final Multimap<String, ReadableEntry> entries = LinkedListMultimap.create();
-    if (target.exists() && target.length() > 0) {
+    if (!ignoreExistingTarget && target.exists() && target.length() > 0) {
       final InputSupplier<JarFile> jarSupplier = closer.register(new JarSupplier(target));
       try {
         enumerateJarEntries(target, new JarEntryVisitor() {
@@ -1077,17 +1407,71 @@ public class JarBuilder implements Closeable {
         throw new IndexingException(target, e);
       }
     }
-    for (EntryIndexer addition : additions) {
-      addition.execute(entries);
+    if (parallel && additions.size() > 1) {
+      for (Multimap<String, ReadableEntry> indexed : indexInParallel()) {
+        entries.putAll(indexed);
+      }
+    } else {
+      for (EntryIndexer addition : additions) {
+        addition.execute(entries);
+      }
     }
     return entries;
   }
 
-  private interface JarEntryVisitor {
+  /**
+   * Executes each of the scheduled additions into its own index on a pool of threads.
+   *
+   * @return The indexes in the order the additions were scheduled.
+   */
+  private List<Multimap<String, ReadableEntry>> indexInParallel() throws JarBuilderException {
+    int threads = Math.min(Runtime.getRuntime().availableProcessors(), additions.size());
+    ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jar-indexer-%d").build());
+    try {
+      List<Future<Multimap<String, ReadableEntry>>> indexing = Lists.newArrayList();
+      for (final EntryIndexer addition : additions) {
+        indexing.add(executor.submit(new Callable<Multimap<String, ReadableEntry>>() {
+          @Override public Multimap<String, ReadableEntry> call() throws JarBuilderException {
+            Multimap<String, ReadableEntry> entries = LinkedListMultimap.create();
+            addition.execute(entries);
+            return entries;
+          }
+        }));
+      }
+      List<Multimap<String, ReadableEntry>> indexed = Lists.newArrayList();
+      for (Future<Multimap<String, ReadableEntry>> index : indexing) {
+        try {
+          indexed.add(index.get());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new JarBuilderException("Interrupted indexing jar additions", e);
+        } catch (ExecutionException e) {
+          Throwables.propagateIfInstanceOf(e.getCause(), JarBuilderException.class);
+          throw Throwables.propagate(e.getCause());
+        }
+      }
+      return indexed;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Visits the entries of a jar as they are enumerated by {@link #enumerateJarEntries}.
+   */
+  interface JarEntryVisitor {
     void visit(JarEntry item) throws IOException;
   }
 
-  private void enumerateJarEntries(File jarFile, JarEntryVisitor visitor)
+  /**
+   * Enumerates the entries of the given jar file in its central directory order.
+   *
+   * @param jarFile The jar to enumerate the entries of.
+   * @param visitor The visitor to pass each entry to.
+   * @throws IOException If there is a problem reading the jar or the visitor throws.
+   */
+  static void enumerateJarEntries(File jarFile, JarEntryVisitor visitor)
       throws IOException {
 
     Closer jarFileCloser = Closer.create();
@@ -1151,21 +1535,32 @@ public class JarBuilder implements Closeable {
     private final Set<List<String>> directories = Sets.newHashSet();
     private final JarOutputStream out;
     private final EntryFactory entryFactory;
+    @Nullable private final JarDigests digests;
 
-    private JarWriter(JarOutputStream out, boolean compress) {
+    private JarWriter(JarOutputStream out, boolean compress, @Nullable JarDigests digests) {
       this.out = out;
       this.entryFactory = new EntryFactory(compress);
+      this.digests = digests;
     }
 
     public void write(String path, ByteSource contents) throws IOException {
       ensureParentDir(path);
       out.putNextEntry(entryFactory.createEntry(path, contents));
-      contents.copyTo(out);
+      if (digests != null) {
+        digests.copyEntry(path, contents, out);
+      } else {
+        contents.copyTo(out);
+      }
     }
 
     public void copy(String path, JarFile jarIn, JarEntry srcJarEntry) throws IOException {
       ensureParentDir(path);
       JarEntryCopier.copyEntry(out, path, jarIn, srcJarEntry);
+      if (digests != null && digests.recordsEntries()) {
+        // The entry bytes were copied verbatim, possibly still compressed, so its content digest
+        // must come from the source entry.
+        digests.recordEntry(path, entrySupplier(jarIn, srcJarEntry));
+      }
     }
 
     private void ensureParentDir(String path) throws IOException {
@@ -1185,15 +1580,20 @@ public class JarBuilder implements Closeable {
     }
   }
 
-  private JarWriter jarWriter(File path, boolean compress) throws IOException {
-    FileOutputStream out = closer.register(new FileOutputStream(path));
+  private JarWriter jarWriter(File path, boolean compress, @Nullable JarDigests digests)
+      throws IOException {
+
+    OutputStream out = closer.register(new FileOutputStream(path));
+    if (digests != null) {
+      out = digests.tee(out);
+    }
     final JarOutputStream jar = closer.register(new JarOutputStream(out));
     closer.register(new Closeable() {
       @Override public void close() throws IOException {
         jar.closeEntry();
       }
     });
-    return new JarWriter(jar, compress);
+    return new JarWriter(jar, compress, digests);
   }
 
   private static ByteSource entrySupplier(final InputSupplier<JarFile> jar, final JarEntry entry) {
@@ -1204,6 +1604,14 @@ public class JarBuilder implements Closeable {
     };
   }
 
+  private static ByteSource entrySupplier(final JarFile jar, final JarEntry entry) {
+    return new ByteSource() {
+      @Override public InputStream openStream() throws IOException {
+        return jar.getInputStream(entry);
+      }
+    };
+  }
+
   @VisibleForTesting
   static Iterable<String> relpathComponents(File fullPath, File relativeTo) {
     List<String> base = components(relativeTo);
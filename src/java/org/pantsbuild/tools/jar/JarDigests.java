@@ -0,0 +1,186 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.jar;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Closer;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+
+import org.pantsbuild.json.JsonStrings;
+
+/**
+ * Records content digests of a jar, and optionally of its individual entries, as the jar is being
+ * written so that no second pass over the finished jar is needed to fingerprint it.
+ * <p>
+ * The digests are stored in a JSON sidecar file next to the jar; see {@link #sidecarFor(File)}.
+ */
+final class JarDigests {
+
+  /**
+   * The name of the digest algorithm used for both the jar and its entries.
+   */
+  static final String ALGORITHM = "SHA-256";
+
+  private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+
+  /**
+   * Returns the path of the digest sidecar file for the given {@code jar}.
+   *
+   * @param jar The jar file the sidecar describes.
+   * @return The sidecar file, which may not exist.
+   */
+  static File sidecarFor(File jar) {
+    return new File(jar.getPath() + ".digests");
+  }
+
+  /**
+   * Digests all bytes written through it without closing the underlying stream on
+   * {@link #close()}.
+   */
+  private static final class EntryDigester extends FilterOutputStream {
+    private final Hasher hasher = HASH_FUNCTION.newHasher();
+
+    EntryDigester(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      hasher.putByte((byte) b);
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+      hasher.putBytes(bytes, off, len);
+      out.write(bytes, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      // The underlying stream is the jar being written; it must stay open for subsequent entries.
+      flush();
+    }
+
+    HashCode hash() {
+      return hasher.hash();
+    }
+  }
+
+  @Nullable private final Map<String, HashCode> entryDigests;
+  private HashingOutputStream jarDigester;
+  private CountingOutputStream jarCounter;
+
+  /**
+   * @param recordEntries Pass {@code true} to record a content digest for each jar entry written
+   *     in addition to the digest of the jar as a whole.
+   */
+  JarDigests(boolean recordEntries) {
+    this.entryDigests = recordEntries ? Maps.<String, HashCode>newLinkedHashMap() : null;
+  }
+
+  /**
+   * Returns {@code true} if per-entry digests are being recorded.
+   */
+  boolean recordsEntries() {
+    return entryDigests != null;
+  }
+
+  /**
+   * Interposes on the raw output stream of the jar being written so that its digest and size are
+   * computed as the bytes stream out.
+   *
+   * @param out The raw jar output stream.
+   * @return A stream that should be used in place of {@code out}.
+   */
+  OutputStream tee(OutputStream out) {
+    Preconditions.checkState(jarDigester == null, "A jar output stream is already being digested.");
+    jarCounter = new CountingOutputStream(out);
+    jarDigester = new HashingOutputStream(HASH_FUNCTION, jarCounter);
+    return jarDigester;
+  }
+
+  /**
+   * Copies the given {@code contents} to {@code out}, recording the content digest of the entry at
+   * {@code path} along the way if per-entry digests are enabled.
+   */
+  void copyEntry(String path, ByteSource contents, OutputStream out) throws IOException {
+    if (entryDigests == null) {
+      contents.copyTo(out);
+    } else {
+      EntryDigester digester = new EntryDigester(out);
+      contents.copyTo(digester);
+      entryDigests.put(path, digester.hash());
+    }
+  }
+
+  /**
+   * Records the digest of an entry whose bytes were copied verbatim from another jar and so did
+   * not pass through {@link #copyEntry} in uncompressed form.
+   */
+  void recordEntry(String path, ByteSource contents) throws IOException {
+    if (entryDigests != null) {
+      entryDigests.put(path, contents.hash(HASH_FUNCTION));
+    }
+  }
+
+  /**
+   * Writes the recorded digests out to the given sidecar file.  Should only be called after the
+   * jar output stream passed through {@link #tee} has been closed.
+   *
+   * @param sidecar The file to write the digests to.
+   * @throws IOException If there is a problem writing the sidecar.
+   */
+  void writeTo(File sidecar) throws IOException {
+    Preconditions.checkState(jarDigester != null, "No jar output stream was digested.");
+
+    Closer closer = Closer.create();
+    try {
+      Writer out = closer.register(Files.newWriter(sidecar, Charsets.UTF_8));
+      out.write("{\"algorithm\":");
+      out.write(JsonStrings.quote(ALGORITHM));
+      out.write(",\"size\":");
+      out.write(Long.toString(jarCounter.getCount()));
+      out.write(",\"digest\":");
+      out.write(JsonStrings.quote(jarDigester.hash().toString()));
+      if (entryDigests != null) {
+        out.write(",\"entries\":{");
+        boolean first = true;
+        for (Map.Entry<String, HashCode> entry : entryDigests.entrySet()) {
+          if (!first) {
+            out.write(',');
+          }
+          first = false;
+          out.write(JsonStrings.quote(entry.getKey()));
+          out.write(':');
+          out.write(JsonStrings.quote(entry.getValue().toString()));
+        }
+        out.write('}');
+      }
+      out.write("}\n");
+    } catch (IOException e) {
+      throw closer.rethrow(e);
+    } finally {
+      closer.close();
+    }
+  }
+}
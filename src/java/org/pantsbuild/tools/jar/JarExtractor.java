@@ -0,0 +1,391 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Extracts the entries of one or more jars into a directory, inflating entries in parallel.
+ * <p>
+ * Each jar is memory mapped and its central directory is read directly so that entry data can be
+ * read positionally from the mapping by many threads at once without any shared stream state.
+ * Only the subset of the zip format produced by jar tooling is supported: zip64 archives, archives
+ * larger than 2GB and encrypted entries are rejected.
+ */
+public final class JarExtractor {
+
+  private static final Logger LOG = Logger.getLogger(JarExtractor.class.getName());
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+  private static final int EOCD_MIN_SIZE = 22;
+  private static final int CEN_SIGNATURE = 0x02014b50;
+  private static final int CEN_HEADER_SIZE = 46;
+  private static final int LOC_SIGNATURE = 0x04034b50;
+  private static final int LOC_HEADER_SIZE = 30;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+  private static final Splitter JAR_PATH_SPLITTER = Splitter.on('/').omitEmptyStrings();
+
+  /**
+   * An entry read from a jar's central directory.
+   */
+  private static final class CentralEntry {
+    private final String name;
+    private final int method;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final long localHeaderOffset;
+
+    CentralEntry(
+        String name,
+        int method,
+        long crc,
+        long compressedSize,
+        long size,
+        long localHeaderOffset) {
+
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    boolean isDirectory() {
+      return name.endsWith("/");
+    }
+  }
+
+  private final File targetDir;
+  private final int parallelism;
+
+  /**
+   * Creates an extractor that writes extracted entries under {@code targetDir}.
+   *
+   * @param targetDir The directory to extract entries into; created if it does not exist.
+   * @param parallelism The number of threads to inflate entries with, must be positive.
+   */
+  public JarExtractor(File targetDir, int parallelism) {
+    Preconditions.checkArgument(parallelism > 0, "Parallelism must be positive, given: %s",
+        parallelism);
+    this.targetDir = Preconditions.checkNotNull(targetDir);
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Extracts all entries from the given {@code jars} whose paths are selected by the given
+   * patterns.  When more than one jar contains an entry at the same path, the entry from the jar
+   * listed first is extracted and the others are skipped.
+   *
+   * @param jars The jars to extract.
+   * @param includePatterns Patterns matching entry paths to extract; if empty all entries are
+   *     eligible.
+   * @param skipPatterns Patterns matching entry paths that should not be extracted; these take
+   *     precedence over {@code includePatterns}.
+   * @return The number of file entries extracted.
+   * @throws IOException If there is a problem reading a jar or writing an extracted entry.
+   */
+  public int extract(
+      Iterable<File> jars,
+      Iterable<Pattern> includePatterns,
+      Iterable<Pattern> skipPatterns)
+      throws IOException {
+
+    Predicate<CharSequence> include = ImmutableList.copyOf(includePatterns).isEmpty()
+        ? Predicates.<CharSequence>alwaysTrue()
+        : JarBuilder.pathSelector(includePatterns);
+    Predicate<CharSequence> skip = JarBuilder.pathSelector(skipPatterns);
+
+    if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+      throw new IOException("Failed to create extraction directory " + targetDir);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jar-extractor-%d").build());
+    Closer closer = Closer.create();
+    try {
+      Set<String> extracted = Sets.newHashSet();
+      Set<File> directories = Sets.newHashSet();
+      List<Future<Void>> tasks = Lists.newArrayList();
+      for (File jar : jars) {
+        MappedByteBuffer mapping = map(closer, jar);
+        for (CentralEntry entry : readCentralDirectory(jar, mapping)) {
+          if (!include.apply(entry.name) || skip.apply(entry.name)) {
+            LOG.log(Level.FINE, "Skipping {0}!{1}", new Object[] {jar, entry.name});
+          } else if (entry.isDirectory()) {
+            createDirectory(directories, resolve(jar, entry));
+          } else if (!extracted.add(entry.name)) {
+            LOG.log(Level.FINE, "Skipping duplicate {0}!{1}", new Object[] {jar, entry.name});
+          } else {
+            File file = resolve(jar, entry);
+            createDirectory(directories, file.getParentFile());
+            tasks.add(executor.submit(extraction(jar, mapping, entry, file)));
+          }
+        }
+      }
+      awaitAll(tasks);
+      return tasks.size();
+    } catch (IOException e) {
+      throw closer.rethrow(e);
+    } finally {
+      executor.shutdownNow();
+      closer.close();
+    }
+  }
+
+  private static void awaitAll(List<Future<Void>> tasks) throws IOException {
+    try {
+      for (Future<Void> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted extracting jars", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException("Unexpected problem extracting jars", e.getCause());
+    } finally {
+      for (Future<Void> task : tasks) {
+        task.cancel(true);
+      }
+    }
+  }
+
+  private static MappedByteBuffer map(Closer closer, File jar) throws IOException {
+    RandomAccessFile file = closer.register(new RandomAccessFile(jar, "r"));
+    FileChannel channel = file.getChannel();
+    long size = channel.size();
+    if (size > Integer.MAX_VALUE) {
+      throw new ZipException("Jars larger than 2GB are not supported: " + jar);
+    }
+    MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    mapping.order(ByteOrder.LITTLE_ENDIAN);
+    return mapping;
+  }
+
+  private static List<CentralEntry> readCentralDirectory(File jar, ByteBuffer mapping)
+      throws ZipException {
+
+    int eocd = findEndOfCentralDirectory(jar, mapping);
+    int count = mapping.getShort(eocd + 10) & 0xFFFF;
+    long offset = mapping.getInt(eocd + 16) & ZIP64_MAGIC;
+    if (count == 0xFFFF || offset == ZIP64_MAGIC) {
+      throw new ZipException("Zip64 jars are not supported: " + jar);
+    }
+
+    List<CentralEntry> entries = Lists.newArrayListWithCapacity(count);
+    int pos = (int) offset;
+    for (int i = 0; i < count; i++) {
+      if (pos + CEN_HEADER_SIZE > mapping.limit() || mapping.getInt(pos) != CEN_SIGNATURE) {
+        throw new ZipException("Invalid central directory header in " + jar + " at " + pos);
+      }
+      int flags = mapping.getShort(pos + 8) & 0xFFFF;
+      int method = mapping.getShort(pos + 10) & 0xFFFF;
+      long crc = mapping.getInt(pos + 16) & ZIP64_MAGIC;
+      long compressedSize = mapping.getInt(pos + 20) & ZIP64_MAGIC;
+      long size = mapping.getInt(pos + 24) & ZIP64_MAGIC;
+      int nameLength = mapping.getShort(pos + 28) & 0xFFFF;
+      int extraLength = mapping.getShort(pos + 30) & 0xFFFF;
+      int commentLength = mapping.getShort(pos + 32) & 0xFFFF;
+      long localHeaderOffset = mapping.getInt(pos + 42) & ZIP64_MAGIC;
+
+      byte[] nameBytes = new byte[nameLength];
+      ByteBuffer name = mapping.duplicate();
+      name.position(pos + CEN_HEADER_SIZE);
+      name.get(nameBytes);
+      String entryName = new String(nameBytes, Charsets.UTF_8);
+
+      if ((flags & 1) != 0) {
+        throw new ZipException("Encrypted entries are not supported: " + jar + "!" + entryName);
+      }
+      if (compressedSize == ZIP64_MAGIC || size == ZIP64_MAGIC
+          || localHeaderOffset == ZIP64_MAGIC) {
+        throw new ZipException("Zip64 entries are not supported: " + jar + "!" + entryName);
+      }
+      if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+        throw new ZipException(
+            "Unsupported compression method " + method + " for " + jar + "!" + entryName);
+      }
+      entries.add(
+          new CentralEntry(entryName, method, crc, compressedSize, size, localHeaderOffset));
+      pos += CEN_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+
+  private static int findEndOfCentralDirectory(File jar, ByteBuffer mapping) throws ZipException {
+    // The end of central directory record is followed only by a variable length comment of up to
+    // 64k, so scan backwards for its signature.
+    int minPos = Math.max(0, mapping.limit() - EOCD_MIN_SIZE - 0xFFFF);
+    for (int pos = mapping.limit() - EOCD_MIN_SIZE; pos >= minPos; pos--) {
+      if (mapping.getInt(pos) == EOCD_SIGNATURE) {
+        return pos;
+      }
+    }
+    throw new ZipException("Not a jar, no end of central directory record found: " + jar);
+  }
+
+  private File resolve(File jar, CentralEntry entry) throws ZipException {
+    if (entry.name.startsWith("/")
+        || ImmutableList.copyOf(JAR_PATH_SPLITTER.split(entry.name)).contains("..")) {
+      throw new ZipException(
+          "Refusing to extract entry outside of " + targetDir + ": " + jar + "!" + entry.name);
+    }
+    return new File(targetDir, entry.name);
+  }
+
+  private static void createDirectory(Set<File> created, File dir) throws IOException {
+    if (created.add(dir) && !dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create directory " + dir);
+    }
+  }
+
+  private static Callable<Void> extraction(
+      final File jar,
+      final ByteBuffer mapping,
+      final CentralEntry entry,
+      final File file) {
+
+    return new Callable<Void>() {
+      @Override public Void call() throws IOException {
+        // Each task reads through its own view of the shared mapping.
+        extract(jar, mapping.duplicate(), entry, file);
+        return null;
+      }
+    };
+  }
+
+  private static void extract(File jar, ByteBuffer mapping, CentralEntry entry, File file)
+      throws IOException {
+
+    mapping.order(ByteOrder.LITTLE_ENDIAN);
+    int header = (int) entry.localHeaderOffset;
+    if (header + LOC_HEADER_SIZE > mapping.limit() || mapping.getInt(header) != LOC_SIGNATURE) {
+      throw new ZipException("Invalid local header for " + jar + "!" + entry.name);
+    }
+    int dataOffset = header + LOC_HEADER_SIZE
+        + (mapping.getShort(header + 26) & 0xFFFF)
+        + (mapping.getShort(header + 28) & 0xFFFF);
+    if (dataOffset + entry.compressedSize > mapping.limit()) {
+      throw new ZipException("Truncated entry data for " + jar + "!" + entry.name);
+    }
+    mapping.position(dataOffset);
+    mapping.limit((int) (dataOffset + entry.compressedSize));
+
+    CRC32 crc = new CRC32();
+    Closer closer = Closer.create();
+    try {
+      RandomAccessFile out = closer.register(new RandomAccessFile(file, "rw"));
+      // Pre-size the file so the file system can allocate it in one go.
+      out.setLength(entry.size);
+      long written = entry.method == ZipEntry.STORED
+          ? copy(mapping, out, crc)
+          : inflate(jar, entry, mapping, out, crc);
+      if (written != entry.size || crc.getValue() != entry.crc) {
+        throw new ZipException("Corrupt entry " + jar + "!" + entry.name + ": expected "
+            + entry.size + " bytes with crc " + entry.crc + ", extracted " + written
+            + " bytes with crc " + crc.getValue());
+      }
+    } catch (IOException e) {
+      throw closer.rethrow(e);
+    } finally {
+      closer.close();
+    }
+  }
+
+  private static long copy(ByteBuffer data, RandomAccessFile out, CRC32 crc) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long written = 0;
+    while (data.hasRemaining()) {
+      int count = Math.min(buffer.length, data.remaining());
+      data.get(buffer, 0, count);
+      crc.update(buffer, 0, count);
+      out.write(buffer, 0, count);
+      written += count;
+    }
+    return written;
+  }
+
+  private static long inflate(
+      File jar,
+      CentralEntry entry,
+      ByteBuffer data,
+      RandomAccessFile out,
+      CRC32 crc)
+      throws IOException {
+
+    byte[] input = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, entry.compressedSize))];
+    byte[] output = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, entry.size))];
+    Inflater inflater = new Inflater(true /* nowrap */);
+    try {
+      boolean paddedInput = false;
+      long written = 0;
+      while (!inflater.finished()) {
+        if (inflater.needsInput()) {
+          if (data.hasRemaining()) {
+            int count = Math.min(input.length, data.remaining());
+            data.get(input, 0, count);
+            inflater.setInput(input, 0, count);
+          } else if (!paddedInput) {
+            // A nowrap inflater may need a trailing dummy byte to recognize the end of the stream.
+            paddedInput = true;
+            inflater.setInput(new byte[1]);
+          } else {
+            throw new ZipException("Unexpected end of entry data for " + jar + "!" + entry.name);
+          }
+        }
+        int count = inflater.inflate(output);
+        if (count == 0 && inflater.needsDictionary()) {
+          throw new ZipException("Unsupported preset dictionary in " + jar + "!" + entry.name);
+        }
+        crc.update(output, 0, count);
+        out.write(output, 0, count);
+        written += count;
+      }
+      return written;
+    } catch (DataFormatException e) {
+      throw new ZipException("Invalid deflate data for " + jar + "!" + entry.name + ": "
+          + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -6,7 +6,10 @@ package org.pantsbuild.tools.jar;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.List;
+import java.util.Map;
 import java.util.jar.Attributes.Name;
 import java.util.jar.Manifest;
 import java.util.logging.ConsoleHandler;
@@ -19,6 +22,7 @@ import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
@@ -29,7 +33,9 @@ import com.google.common.base.Strings;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.Closer;
 
 import org.kohsuke.args4j.Argument;
@@ -47,6 +53,7 @@ import org.pantsbuild.tools.jar.JarBuilder.DuplicateHandler;
 import org.pantsbuild.tools.jar.JarBuilder.DuplicatePolicy;
 import org.pantsbuild.tools.jar.JarBuilder.Entry;
 import org.pantsbuild.tools.jar.JarBuilder.Listener;
+import org.pantsbuild.tools.jar.JarBuilder.Relocation;
 import org.pantsbuild.tools.jar.JarBuilder.Source;
 
 public final class Main {
@@ -73,6 +80,26 @@ public final class Main {
       }
     }
 
+    public static class RelocationParser extends CollectionOptionHandler<Relocation> {
+      private static final Splitter FROM_TO_SPLITTER =
+          Splitter.on('=').trimResults().omitEmptyStrings();
+
+      public RelocationParser(
+          CmdLineParser parser,
+          OptionDef option,
+          Setter<? super Relocation> setter) {
+        super(parser, option, setter, "RELOCATION", new ItemParser<Relocation>() {
+          @Override public Relocation parse(String item) {
+            List<String> components = ImmutableList.copyOf(FROM_TO_SPLITTER.split(item));
+            Preconditions.checkArgument(components.size() == 2,
+                "Failed to parse package relocation pair %s", item);
+
+            return Relocation.packagePrefix(components.get(0), components.get(1));
+          }
+        });
+      }
+    }
+
     static class FileSource {
       private static final Splitter JAR_PATH_SPLITTER = Splitter.on('/');
 
@@ -199,6 +226,16 @@ public final class Main {
     @Option(name = "-compress", usage = "Compress jar entries.")
     private boolean compress;
 
+    @Option(name = "-digests",
+        usage = "Record a SHA-256 digest of the target jar in a TARGET_JAR.digests sidecar file as "
+            + "the jar is written.")
+    private boolean digests;
+
+    @Option(name = "-entry-digests",
+        usage = "Also record a SHA-256 digest of the contents of each jar entry in the digests "
+            + "sidecar file. Implies -digests.")
+    private boolean entryDigests;
+
     public static class FilesOptionHandler extends ArgfileOptionHandler<FileSource> {
       public FilesOptionHandler(
           CmdLineParser parser,
@@ -242,6 +279,31 @@ public final class Main {
     @Option(name = "-skip", usage = "A list of regular expressions identifying entries to skip.")
     private List<Pattern> skip = Lists.newArrayList();
 
+    @Option(name = "-extract",
+        usage = "Extract the entries of the -jars into the TARGET directory instead of writing a "
+            + "jar. Entries are inflated in parallel and when several jars contain the same entry "
+            + "the one from the jar listed first wins. Entries can be filtered with -include and "
+            + "-skip.")
+    private boolean extract;
+
+    @Option(name = "-include",
+        usage = "A list of regular expressions identifying the entries to extract; all entries are "
+            + "extracted if none are given. Only used with -extract.")
+    private List<Pattern> include = Lists.newArrayList();
+
+    private int extractThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "-extract-threads",
+        usage = "The number of threads to extract entries with. Defaults to the number of "
+            + "available processors. Only used with -extract.")
+    void setExtractThreads(int extractThreads) {
+      if (extractThreads <= 0) {
+        throw new InvalidCmdLineArgumentException(
+            "-extract-threads", extractThreads, "Must be positive.");
+      }
+      this.extractThreads = extractThreads;
+    }
+
     private static final String ACTIONS = "SKIP|REPLACE|CONCAT|THROW";
 
     @Option(name = "-default_action",
@@ -257,7 +319,41 @@ public final class Main {
         handler = DuplicatePolicyParser.class)
     private List<DuplicatePolicy> policies = Lists.newArrayList();
 
-    @Argument(metaVar = "TARGET_JAR", usage = "The target jar file path to write.", required = true)
+    @Option(name = "-relocate",
+        usage = "A list of package relocations to apply to the classes and resources written to "
+            + "the jar. Relocations are specified as [package]=[package], for example: "
+            + "com.google.common=shaded.com.google.common would move guava classes under the "
+            + "shaded package and rewrite all references to them.",
+        handler = RelocationParser.class)
+    private List<Relocation> relocations = Lists.newArrayList();
+
+    @Option(name = "-dry-run",
+        usage = "Do not write the target jar; instead print a JSON report of the duplicate "
+            + "entries and the actions that would be taken for them, the entries that would be "
+            + "skipped, the contributions of each source and the projected size of the jar. Exits "
+            + "non-zero if writing the jar would fail.")
+    private boolean dryRun;
+
+    @Option(name = "-index",
+        usage = "Maintain a persistent index of the entries of the -jars in the TARGET file "
+            + "instead of writing a jar. Only jars whose size or modification time changed since "
+            + "they were last indexed are re-read. Use -duplicates and -which to query the index.")
+    private boolean index;
+
+    @Option(name = "-duplicates",
+        usage = "Report entries that appear in more than one of the -jars, ignoring entries "
+            + "matching -skip. Only used with -index.")
+    private boolean duplicates;
+
+    @Option(name = "-which",
+        usage = "A fully qualified class name or entry path to locate amongst the -jars. Only used "
+            + "with -index.")
+    private List<String> which = Lists.newArrayList();
+
+    @Argument(metaVar = "TARGET",
+        usage = "The target jar file path to write, the directory to extract into if -extract is "
+            + "specified or the index file to maintain if -index is specified.",
+        required = true)
     private File targetJar;
   }
 
@@ -338,10 +434,22 @@ public final class Main {
   }
 
   private void run() throws ExitException {
+    if (options.extract && options.index) {
+      throw new ExitException(1, "Can specify -extract or -index but not both.");
+    }
+    if (options.extract) {
+      extract();
+      return;
+    }
+    if (options.index) {
+      index();
+      return;
+    }
     if (options.mainClass != null && options.manifest != null) {
       throw new ExitException(1, "Can specify main or manifest but not both.");
     }
-    if (!options.update && options.targetJar.exists() && !options.targetJar.delete()) {
+    if (!options.dryRun && !options.update && options.targetJar.exists()
+        && !options.targetJar.delete()) {
       throw new ExitException(1, "Failed to delete file at requested target path %s",
           options.targetJar);
     }
@@ -379,8 +487,20 @@ public final class Main {
       jarBuilder.addJar(jar);
     }
 
+    if (options.digests || options.entryDigests) {
+      jarBuilder.recordDigests(options.entryDigests);
+    }
+
+    if (!options.relocations.isEmpty()) {
+      jarBuilder.relocate(options.relocations);
+    }
+
     DuplicateHandler duplicateHandler =
         new DuplicateHandler(options.defaultAction, options.policies);
+    if (options.dryRun) {
+      analyze(jarBuilder, duplicateHandler, targetJar);
+      return;
+    }
     try {
       jarBuilder.write(options.compress, duplicateHandler, options.skip);
     } catch (DuplicateEntryException e) {
@@ -390,6 +510,117 @@ public final class Main {
     }
   }
 
+  private void analyze(JarBuilder jarBuilder, DuplicateHandler duplicateHandler, File targetJar)
+      throws ExitException {
+
+    if (!options.update) {
+      // The target would be deleted before writing, so its current entries must not be analyzed.
+      jarBuilder.ignoreExistingTarget();
+    }
+    boolean succeeds;
+    try {
+      Writer report = new OutputStreamWriter(System.out, Charsets.UTF_8);
+      succeeds = jarBuilder.analyze(options.compress, duplicateHandler, options.skip, report);
+    } catch (IOException e) {
+      throw new ExitException(1, "Unexpected problem analyzing target jar %s: %s", targetJar, e);
+    }
+    if (!succeeds) {
+      throw new ExitException(1, "Writing target jar %s would fail.", targetJar);
+    }
+  }
+
+  private void extract() throws ExitException {
+    if (!options.files.isEmpty() || options.manifest != null || options.mainClass != null
+        || options.classPath != null) {
+      throw new ExitException(1,
+          "Only -jars, -include and -skip can be specified when using -extract.");
+    }
+    if (options.targetJar.exists() && !options.targetJar.isDirectory()) {
+      throw new ExitException(1, "The extraction target %s is not a directory.",
+          options.targetJar);
+    }
+
+    JarExtractor extractor = new JarExtractor(options.targetJar, options.extractThreads);
+    try {
+      int count = extractor.extract(options.jars, options.include, options.skip);
+      LOG.fine(String.format("Extracted %d entries to %s", count, options.targetJar));
+    } catch (IOException e) {
+      throw new ExitException(1, "Unexpected problem extracting jars to %s: %s",
+          options.targetJar, e);
+    }
+  }
+
+  private void index() throws ExitException {
+    if (!options.files.isEmpty() || options.manifest != null || options.mainClass != null
+        || options.classPath != null) {
+      throw new ExitException(1,
+          "Only -jars, -skip, -duplicates and -which can be specified when using -index.");
+    }
+
+    ClasspathIndex classpathIndex;
+    try {
+      classpathIndex = ClasspathIndex.load(options.targetJar);
+      int indexed = classpathIndex.refresh(options.jars);
+      LOG.fine(String.format("Indexed %d of %d jars", indexed, options.jars.size()));
+      classpathIndex.store();
+    } catch (IOException e) {
+      throw new ExitException(1, "Unexpected problem maintaining index %s: %s",
+          options.targetJar, e);
+    }
+
+    if (options.duplicates) {
+      reportDuplicates(classpathIndex.duplicates(options.jars,
+          JarBuilder.pathSelector(options.skip)));
+    }
+    for (String name : options.which) {
+      String entryName = ENTRY_NAME.apply(name);
+      List<ClasspathIndex.Location> locations = classpathIndex.locate(options.jars, entryName);
+      if (locations.isEmpty()) {
+        System.out.printf("%s: not found\n", entryName);
+      }
+      for (ClasspathIndex.Location location : locations) {
+        System.out.printf("%s: %s\n", entryName, location.getJar());
+      }
+    }
+  }
+
+  private static final Function<String, String> ENTRY_NAME = new Function<String, String>() {
+    @Override public String apply(String name) {
+      // Translate fully qualified class names to their entry paths, leaving other paths alone.
+      if (name.indexOf('/') == -1 && !name.endsWith(".class")) {
+        return name.replace('.', '/') + ".class";
+      }
+      return name;
+    }
+  };
+
+  private static void reportDuplicates(ListMultimap<String, ClasspathIndex.Location> duplicates) {
+    // Group the duplicate entries by the set of jars they are found in, like detect_duplicates.
+    Map<List<File>, List<String>> entriesByJars = Maps.newLinkedHashMap();
+    for (String entryName : duplicates.keySet()) {
+      List<ClasspathIndex.Location> locations = duplicates.get(entryName);
+      List<File> jars = Lists.newArrayList();
+      boolean differs = false;
+      for (ClasspathIndex.Location location : locations) {
+        jars.add(location.getJar());
+        differs |= !location.sameContents(locations.get(0));
+      }
+      List<String> entries = entriesByJars.get(jars);
+      if (entries == null) {
+        entries = Lists.newArrayList();
+        entriesByJars.put(jars, entries);
+      }
+      entries.add(differs ? entryName + " (contents differ)" : entryName);
+    }
+    for (Map.Entry<List<File>, List<String>> entry : entriesByJars.entrySet()) {
+      System.out.printf("Duplicate classes and/or resources detected in: %s\n",
+          Joiner.on(", ").join(entry.getKey()));
+      for (String entryName : entry.getValue()) {
+        System.out.printf("    %s\n", entryName);
+      }
+    }
+  }
+
   private static final Splitter CLASS_PATH_SPLITTER =
       Splitter.on(File.pathSeparatorChar).omitEmptyStrings();
 
@@ -3,9 +3,16 @@
 
 package org.pantsbuild.tools.junit;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.Sets;
+
 import org.junit.runner.Description;
 import org.junit.runner.Result;
+import org.junit.runner.Runner;
 import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunNotifier;
 
 /**
  * A listener that can be manually aborted while still retaining normal test suite finishing
@@ -14,6 +21,10 @@ import org.junit.runner.notification.Failure;
 abstract class AbortableListener extends ForwardingListener {
   private final Result result = new Result();
   private final boolean failFast;
+  private final Set<Throwable> abortReasons =
+      Sets.newSetFromMap(new ConcurrentHashMap<Throwable, Boolean>());
+  private volatile RunNotifier notifier;
+  private volatile boolean finished;
   private Description started;
 
   /**
@@ -37,7 +48,7 @@ abstract class AbortableListener extends ForwardingListener {
     // Allow any listeners to handle the failure in the normal way first.
     super.testFailure(failure);
 
-    if (failFast) {
+    if ((failFast && isFinal(failure)) || abortReasons.remove(failure.getException())) {
       finish();
 
       // Allow the subclass to actually stop the test run.
@@ -59,14 +70,104 @@ abstract class AbortableListener extends ForwardingListener {
     finish();
   }
 
+  /**
+   * Fails the given test and aborts the test run as for a failure under {@code failFast}.
+   * <p>
+   * May be called from any thread: the failure is delivered through the notifier of the run, like
+   * any other, so that it is serialized with the events of the tests still running.
+   *
+   * @param test The test to fail.
+   * @param reason The reason the test failed.
+   */
+  void abort(Description test, Throwable reason) {
+    RunNotifier runNotifier = notifier;
+    if (runNotifier != null) {
+      abortReasons.add(reason);
+      runNotifier.fireTestFailure(new Failure(test, reason));
+    }
+  }
+
+  /**
+   * Wraps the runner of a test run, so that the run can be {@link #stop() stopped} and tests
+   * {@link #abort(Description, Throwable) aborted} through the notifier it runs with.
+   *
+   * @param runner The runner of the test run this listener is registered for.
+   * @return A runner running the same tests.
+   */
+  Runner stoppable(final Runner runner) {
+    return new Runner() {
+      @Override
+      public Description getDescription() {
+        return runner.getDescription();
+      }
+
+      @Override
+      public void run(RunNotifier runNotifier) {
+        notifier = runNotifier;
+        runner.run(runNotifier);
+      }
+    };
+  }
+
+  /**
+   * Stops the test run at the next test to start, which fails the run with a
+   * {@link org.junit.runner.notification.StoppedByUserException}.
+   *
+   * @return {@code false} if no run is in progress to stop.
+   */
+  boolean stop() {
+    RunNotifier runNotifier = notifier;
+    if (runNotifier == null) {
+      return false;
+    }
+    runNotifier.pleaseStop();
+    return true;
+  }
+
+  /**
+   * Returns the number of failures seen, including those of an aborted run.
+   */
+  int getFailureCount() {
+    return result.getFailureCount();
+  }
+
+  @Override
+  public void testRunFinished(Result runResult) throws Exception {
+    // The underlying listeners were told the run finished when it was aborted.
+    if (!finished) {
+      super.testRunFinished(runResult);
+    }
+  }
+
   private void finish() throws Exception {
+    aborting();
+
     // Simulate the junit test run lifecycle end.
     testRunFinished(result);
+    finished = true;
+  }
+
+  /**
+   * Returns {@code false} if the given failure may yet turn out not to fail its test, so that the
+   * run should not be aborted for it even under {@code failFast}.
+   *
+   * @param failure A failure that has just been handled by the underlying listeners.
+   */
+  protected boolean isFinal(Failure failure) {
+    return true;
+  }
+
+  /**
+   * Called when the test run is aborting, before the underlying listeners are told that it has
+   * finished.
+   */
+  protected void aborting() {
   }
 
   /**
-   * Called on the first test failure.  Its expected that subclasses will halt the test run in some
-   * way.
+   * Called on the first test failure, or on a test {@link #abort(Description, Throwable) aborted}
+   * explicitly.  Its expected that subclasses will halt the test run in some way, for example by
+   * calling {@link #stop()}.
    *
    * @param failureResult The test result for the failing suite up to and including the first
    *     failure
@@ -3,34 +3,34 @@
 
 package org.pantsbuild.tools.junit;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.FilterWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
 
-import javax.xml.bind.JAXB;
-import javax.xml.bind.annotation.XmlAttribute;
-import javax.xml.bind.annotation.XmlElement;
-import javax.xml.bind.annotation.XmlElementRef;
-import javax.xml.bind.annotation.XmlElementWrapper;
-import javax.xml.bind.annotation.XmlRootElement;
-import javax.xml.bind.annotation.XmlValue;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import com.google.common.base.Charsets;
-import com.google.common.base.Function;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.Closer;
 
 import org.junit.runner.Description;
 import org.junit.runner.Result;
@@ -39,258 +39,85 @@ import org.junit.runner.notification.RunListener;
 
 /**
  * A run listener that creates ant junit xml report compatible output describing a junit run.
+ * <p>
+ * The report for a test class is streamed out as soon as all of its tests have finished, along
+ * with its captured output, after which nothing more is held for it.  Test classes that do not
+ * finish, for example because the run was aborted, are reported once the run finishes.
  */
 class AntJunitXmlReportListener extends RunListener {
 
-  /**
-   * A JAXB bean describing a test case exception.  These may indicate either an assertion failure
-   * or an uncaught test exception.
-   */
-  @XmlRootElement
-  static class Exception {
-    private final String message;
-    private final String type;
-    private final String stacktrace;
-
-    Exception() {
-      // for JAXB
-      message = null;
-      type = null;
-      stacktrace = null;
-    }
-
-    Exception(Failure failure) {
-      message = failure.getMessage();
-      type = failure.getException().getClass().getName();
-      stacktrace = failure.getTrace();
-    }
-
-    @XmlAttribute
-    public String getMessage() {
-      return message;
-    }
+  private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
 
-    @XmlAttribute
-    public String getType() {
-      return type;
-    }
-
-    @XmlValue
-    public String getStacktrace() {
-      return stacktrace;
-    }
-  }
+  private static final int TEXT_BUFFER_SIZE = 8 * 1024;
 
   /**
-   * A JAXB bean describing an individual test method.
+   * Describes an individual test method.
    */
-  @XmlRootElement(name = "testcase")
   static class TestCase {
-    private final String classname;
-    private final String name;
+    private final Description description;
     private String time;
-    private Exception failure;
-    private Exception error;
+    private Failure failure;
+    private Failure error;
     private long startNs;
 
-    TestCase() {
-      // for JAXB
-      classname = null;
-      name = null;
-    }
-
     TestCase(Description test) {
-      classname = test.getClassName();
-      name = test.getMethodName();
-    }
-
-    @XmlAttribute
-    public String getClassname() {
-      return classname;
-    }
-
-    @XmlAttribute
-    public String getName() {
-      return name;
-    }
-
-    @XmlAttribute
-    public String getTime() {
-      return time;
-    }
-
-    @XmlElement
-    public Exception getFailure() {
-      return failure;
+      description = test;
     }
 
-    public void setFailure(Exception failure) {
+    public void setFailure(Failure failure) {
       this.failure = failure;
     }
 
-    @XmlElement
-    public Exception getError() {
-      return error;
-    }
-
-    public void setError(Exception error) {
+    public void setError(Failure error) {
       this.error = error;
     }
 
-    public void started() {
-      startNs = System.nanoTime();
+    public void started(long nanoTime) {
+      startNs = nanoTime;
     }
 
-    public void finished() {
-      time = convertTimeSpanNs(System.nanoTime() - startNs);
+    public void finished(long nanoTime) {
+      time = convertTimeSpanNs(nanoTime - startNs);
     }
   }
 
   /**
-   * A JAXB bean describing an individual system property.
+   * Describes a test class.
    */
-  @XmlRootElement(name = "property")
-  static class Property {
-    private final String name;
-    private final String value;
-
-    Property() {
-      // for JAXB
-      name = null;
-      value = null;
-    }
-
-    Property(String name, String value) {
-      this.name = name;
-      this.value = value;
-    }
-
-    @XmlAttribute
-    public String getName() {
-      return name;
-    }
-
-    @XmlAttribute
-    public String getValue() {
-      return value;
-    }
-  }
-
-  /**
-   * A JAXB bean describing a test class.
-   */
-  @XmlRootElement(name = "testsuite")
   static class TestSuite {
     private final String name;
+    private final List<TestCase> testCases = Lists.newArrayList();
 
     private int errors;
     private int failures;
-    private String hostname;
     private int tests;
     private String time;
     private String timestamp;
-    private final List<Property> properties = ImmutableList.copyOf(
-        Iterables.transform(System.getProperties().entrySet(),
-            new Function<Entry<Object, Object>, Property>() {
-              @Override public Property apply(Entry<Object, Object> entry) {
-                return new Property(entry.getKey().toString(), entry.getValue().toString());
-              }
-            }));
-    private final List<TestCase> testCases = Lists.newArrayList();
-    private String out;
-    private String err;
 
+    private boolean started;
     private long startNs;
 
-    TestSuite() {
-      // for JAXB
-      name = null;
-    }
-
     TestSuite(Description test) {
       name = test.getClassName();
-      try {
-        hostname = InetAddress.getLocalHost().getHostName();
-      } catch (UnknownHostException e) {
-        hostname = "localhost";
-      }
     }
 
-    @XmlAttribute
-    public int getErrors() {
-      return errors;
-    }
-
-    @XmlAttribute
-    public int getFailures() {
-      return failures;
-    }
-
-    @XmlAttribute
-    public String getHostname() {
-      return hostname;
-    }
-
-    @XmlAttribute
-    public String getName() {
-      return name;
-    }
-
-    @XmlAttribute
-    public int getTests() {
-      return tests;
-    }
-
-    @XmlAttribute
-    public String getTime() {
-      return time;
-    }
-
-    @XmlAttribute
-    public String getTimestamp() {
-      return timestamp;
-    }
-
-    @XmlElementRef
-    @XmlElementWrapper(name = "properties")
-    public List<Property> getProperties() {
-      return properties;
-    }
-
-    @XmlElementRef
-    public List<TestCase> getTestCases() {
-      return testCases;
-    }
-
-    @XmlElement(name = "system-out")
-    public String getOut() {
-      return out;
-    }
-
-    public void setOut(String out) {
-      this.out = out;
-    }
-
-    @XmlElement(name = "system-err")
-    public String getErr() {
-      return err;
-    }
-
-    public void setErr(String err) {
-      this.err = err;
-    }
-
-    public void started() {
-      if (startNs == 0) {
+    public void started(long nanoTime) {
+      if (!started) {
+        started = true;
         timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date());
-        startNs = System.nanoTime();
+        startNs = nanoTime;
       }
     }
 
-    public void finished() {
+    /**
+     * Returns {@code true} once all the test cases of the suite have finished.
+     */
+    public boolean finished(long nanoTime) {
       if (++tests == testCases.size()) {
-        time = convertTimeSpanNs(System.nanoTime() - startNs);
+        time = convertTimeSpanNs(nanoTime - startNs);
+        return true;
       }
+      return false;
     }
 
     public void incrementFailures() {
@@ -302,23 +129,64 @@ class AntJunitXmlReportListener extends RunListener {
     }
 
     public boolean wasStarted() {
-      return startNs > 0;
+      return started;
     }
   }
 
-  private final Map<Class<?>, TestSuite> suites = Maps.newHashMap();
+  private final Map<Class<?>, TestSuite> suites = Maps.newLinkedHashMap();
   private final Map<Description, TestCase> cases = Maps.newHashMap();
 
   private final File outdir;
   private final StreamSource streamSource;
+  private final ResourceUsageListener resourceUsage;
+  private final Ticker ticker;
+
+  // Shared by the reports of all test classes in the run.
+  private String hostname;
+  private SortedMap<String, String> properties;
 
   AntJunitXmlReportListener(File outdir, StreamSource streamSource) {
+    this(outdir, streamSource, null);
+  }
+
+  /**
+   * Creates a listener that also reports the resources used by each test as measured by
+   * {@code resourceUsage}, which may be {@code null}.  The measurements of a test are expected
+   * to be complete by the time this listener sees it finish.
+   */
+  AntJunitXmlReportListener(File outdir, StreamSource streamSource,
+      ResourceUsageListener resourceUsage) {
+    this(outdir, streamSource, resourceUsage, AsyncListener.EVENT_TICKER);
+  }
+
+  /**
+   * Creates a listener that times tests with {@code ticker}, which should read when the event
+   * being handled happened rather than when it is handled.
+   */
+  AntJunitXmlReportListener(File outdir, StreamSource streamSource,
+      ResourceUsageListener resourceUsage, Ticker ticker) {
     this.outdir = outdir;
     this.streamSource = streamSource;
+    this.resourceUsage = resourceUsage;
+    this.ticker = ticker;
   }
 
   @Override
-  public void testRunStarted(Description description) throws java.lang.Exception {
+  public void testRunStarted(Description description) throws Exception {
+    try {
+      hostname = InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      hostname = "localhost";
+    }
+    ImmutableSortedMap.Builder<String, String> builder = ImmutableSortedMap.naturalOrder();
+    for (String name : System.getProperties().stringPropertyNames()) {
+      String value = System.getProperty(name);
+      if (value != null) {
+        builder.put(name, value);
+      }
+    }
+    properties = builder.build();
+
     createSuites(description.getChildren());
   }
 
@@ -340,103 +208,230 @@ class AntJunitXmlReportListener extends RunListener {
   }
 
   @Override
-  public void testStarted(Description description) throws java.lang.Exception {
-    suites.get(description.getTestClass()).started();
-    cases.get(description).started();
+  public void testStarted(Description description) throws Exception {
+    long nanoTime = ticker.read();
+    suites.get(description.getTestClass()).started(nanoTime);
+    cases.get(description).started(nanoTime);
   }
 
   @Override
-  public void testFailure(Failure failure) throws java.lang.Exception {
-    Exception exception = new Exception(failure);
-
+  public void testFailure(Failure failure) throws Exception {
     Description description = failure.getDescription();
     TestSuite suite = suites.get(description.getTestClass());
     TestCase testCase = cases.get(description);
     if (Util.isAssertionFailure(failure)) {
-      testCase.setFailure(exception);
+      testCase.setFailure(failure);
       suite.incrementFailures();
     } else {
-      testCase.setError(exception);
+      testCase.setError(failure);
       suite.incrementErrors();
     }
   }
 
   @Override
-  public void testFinished(Description description) throws java.lang.Exception {
-    cases.get(description).finished();
-    suites.get(description.getTestClass()).finished();
+  public void testFinished(Description description) throws Exception {
+    long nanoTime = ticker.read();
+    TestCase testCase = cases.get(description);
+    testCase.finished(nanoTime);
+
+    Class<?> testClass = description.getTestClass();
+    TestSuite suite = suites.get(testClass);
+    if (suite.finished(nanoTime)) {
+      suites.remove(testClass);
+      for (TestCase finished : suite.testCases) {
+        cases.remove(finished.description);
+      }
+      writeSuite(testClass, suite);
+    }
   }
 
   @Override
-  public void testRunFinished(Result result) throws java.lang.Exception {
-    for (Entry<Class<?>, TestSuite> entry : suites.entrySet()) {
-      Class<?> testClass = entry.getKey();
-      TestSuite suite = entry.getValue();
+  public void testRunFinished(Result result) throws Exception {
+    for (Map.Entry<Class<?>, TestSuite> entry : ImmutableList.copyOf(suites.entrySet())) {
+      writeSuite(entry.getKey(), entry.getValue());
+    }
+    suites.clear();
+    cases.clear();
+  }
 
-      if (suite.wasStarted()) {
-        suite.setOut(new String(streamSource.readOut(testClass), Charsets.UTF_8));
-        suite.setErr(new String(streamSource.readErr(testClass), Charsets.UTF_8));
+  private void writeSuite(Class<?> testClass, TestSuite suite)
+      throws IOException, XMLStreamException {
+
+    if (!suite.wasStarted()) {
+      return;
+    }
+    Closer closer = Closer.create();
+    try {
+      OutputStream out = closer.register(new BufferedOutputStream(
+          new FileOutputStream(new File(outdir, String.format("TEST-%s.xml", suite.name)))));
+      XMLStreamWriter xml = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, Charsets.UTF_8.name());
+      xml.writeStartDocument(Charsets.UTF_8.name(), "1.0");
+      newline(xml, 0);
+
+      xml.writeStartElement("testsuite");
+      xml.writeAttribute("errors", Integer.toString(suite.errors));
+      xml.writeAttribute("failures", Integer.toString(suite.failures));
+      xml.writeAttribute("hostname", hostname);
+      xml.writeAttribute("name", suite.name);
+      xml.writeAttribute("tests", Integer.toString(suite.tests));
+      writeOptionalAttribute(xml, "time", suite.time);
+      xml.writeAttribute("timestamp", suite.timestamp);
+
+      newline(xml, 1);
+      xml.writeStartElement("properties");
+      for (Map.Entry<String, String> property : properties.entrySet()) {
+        newline(xml, 2);
+        xml.writeEmptyElement("property");
+        xml.writeAttribute("name", sanitize(property.getKey()));
+        xml.writeAttribute("value", sanitize(property.getValue()));
+      }
+      newline(xml, 1);
+      xml.writeEndElement();
+
+      for (TestCase testCase : suite.testCases) {
+        newline(xml, 1);
+        if (testCase.failure == null && testCase.error == null) {
+          xml.writeEmptyElement("testcase");
+          writeTestCaseAttributes(xml, testCase);
+        } else {
+          xml.writeStartElement("testcase");
+          writeTestCaseAttributes(xml, testCase);
+          if (testCase.failure != null) {
+            writeFailure(xml, "failure", testCase.failure);
+          }
+          if (testCase.error != null) {
+            writeFailure(xml, "error", testCase.error);
+          }
+          newline(xml, 1);
+          xml.writeEndElement();
+        }
+      }
 
-        Writer xmlOut = new FileWriter(new File(outdir, String.format("TEST-%s.xml", suite.name)));
+      newline(xml, 1);
+      xml.writeStartElement("system-out");
+      writeText(xml, closer.register(streamSource.openOut(testClass)));
+      xml.writeEndElement();
+      newline(xml, 1);
+      xml.writeStartElement("system-err");
+      writeText(xml, closer.register(streamSource.openErr(testClass)));
+      xml.writeEndElement();
+
+      newline(xml, 0);
+      xml.writeEndElement();
+      xml.writeEndDocument();
+      xml.close();
+    } catch (Throwable e) {
+      throw closer.rethrow(e, XMLStreamException.class);
+    } finally {
+      closer.close();
+    }
+  }
 
-        // Only output valid XML1.0 characters - JAXB does not handle this.
-        JAXB.marshal(suite, new XmlWriter(xmlOut) {
-          @Override protected void handleInvalid(int c) throws IOException {
-            out.write(' ');
-          }
-        });
+  private void writeTestCaseAttributes(XMLStreamWriter xml, TestCase testCase)
+      throws XMLStreamException {
+
+    xml.writeAttribute("classname", testCase.description.getClassName());
+    xml.writeAttribute("name", testCase.description.getMethodName());
+    writeOptionalAttribute(xml, "time", testCase.time);
+    ResourceUsageListener.Usage usage =
+        resourceUsage == null ? null : resourceUsage.get(testCase.description);
+    if (usage != null) {
+      if (usage.getCpuTimeNs() >= 0) {
+        xml.writeAttribute("cpu-time", convertTimeSpanNs(usage.getCpuTimeNs()));
       }
+      if (usage.getAllocatedBytes() >= 0) {
+        xml.writeAttribute("allocated-bytes", Long.toString(usage.getAllocatedBytes()));
+      }
+      xml.writeAttribute("gc-time",
+          convertTimeSpanNs(TimeUnit.MILLISECONDS.toNanos(usage.getGcTimeMs())));
     }
   }
 
-  private abstract static class XmlWriter extends FilterWriter {
-    protected XmlWriter(Writer out) {
-      super(out);
+  private static void writeFailure(XMLStreamWriter xml, String element, Failure failure)
+      throws XMLStreamException {
+
+    newline(xml, 2);
+    xml.writeStartElement(element);
+    writeOptionalAttribute(xml, "message", sanitize(failure.getMessage()));
+    xml.writeAttribute("type", failure.getException().getClass().getName());
+    xml.writeCharacters(sanitize(failure.getTrace()));
+    xml.writeEndElement();
+  }
+
+  private static void writeOptionalAttribute(XMLStreamWriter xml, String name, String value)
+      throws XMLStreamException {
+
+    if (value != null) {
+      xml.writeAttribute(name, value);
     }
+  }
 
-    @Override
-    public void write(char[] cbuf, int off, int len) throws IOException {
-      for (int i = off; i < len; i++) {
-        write(cbuf[i]);
-      }
+  private static void newline(XMLStreamWriter xml, int depth) throws XMLStreamException {
+    xml.writeCharacters("\n");
+    for (int i = 0; i < depth; i++) {
+      xml.writeCharacters("    ");
     }
+  }
 
-    @Override
-    public void write(String str, int off, int len) throws IOException {
-      for (int i = off; i < len; i++) {
-        write(str.charAt(i));
+  /**
+   * Copies UTF-8 encoded text from {@code in} into the current element in bulk, replacing
+   * characters that are not valid in XML 1.0 along the way.
+   */
+  private static void writeText(XMLStreamWriter xml, InputStream in)
+      throws IOException, XMLStreamException {
+
+    Reader reader = new InputStreamReader(in, Charsets.UTF_8);
+    char[] buffer = new char[TEXT_BUFFER_SIZE];
+    int carried = 0;
+    int read;
+    while ((read = reader.read(buffer, carried, buffer.length - carried)) != -1) {
+      int length = carried + read;
+      // Hold back a trailing high surrogate until the low surrogate completing it is read.
+      carried = Character.isHighSurrogate(buffer[length - 1]) ? 1 : 0;
+      length -= carried;
+      replaceInvalid(buffer, 0, length);
+      xml.writeCharacters(buffer, 0, length);
+      if (carried > 0) {
+        buffer[0] = buffer[length];
       }
     }
+    if (carried > 0) {
+      // The output ended with an unpaired high surrogate.
+      xml.writeCharacters(" ");
+    }
+  }
 
-    @Override
-    public void write(int c) throws IOException {
-      // Only output valid XML1.0 characters by default.
-      // See the spec here: http://www.w3.org/TR/2000/REC-xml-20001006#NT-Char
-
-      // This is a complex boolean expression but it follows the spec referenced above exactly and
-      // so it seems to provide clarity.
-      // SUPPRESS CHECKSTYLE RegexpSinglelineJava
-      if (c == 0x9
-          || c == 0xA
-          || c == 0xD
-          || ((0x20 <= c) && (c <= 0xD7FF))
-          || ((0xE000 <= c) && (c <= 0xFFFD))
-          || ((0x10000 <= c) && (c <= 0x10FFFF))) {
-
-        out.write(c);
-      } else {
-        handleInvalid(c);
-      }
+  private static String sanitize(String text) {
+    if (text == null) {
+      return null;
     }
+    char[] chars = text.toCharArray();
+    return replaceInvalid(chars, 0, chars.length) ? new String(chars) : text;
+  }
 
-    /**
-     * Subclasses can handle invalid XML 1.0 characters as appropriate.
-     *
-     * @param c The invalid character.
-     * @throws IOException If there is a problem using this stream while handling the invalid
-     *     character.
-     */
-    protected abstract void handleInvalid(int c) throws IOException;
+  /**
+   * Replaces the characters in the given range that are not valid XML 1.0 characters with
+   * spaces.  See the spec here: http://www.w3.org/TR/2000/REC-xml-20001006#NT-Char
+   *
+   * @return {@code true} if any characters were replaced.
+   */
+  private static boolean replaceInvalid(char[] chars, int offset, int length) {
+    boolean replaced = false;
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      char c = chars[i];
+      if ((0x20 <= c && c < Character.MIN_SURROGATE) || c == 0x9 || c == 0xA || c == 0xD) {
+        continue;
+      }
+      if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+        // A pair encoding a supplementary character in the range 0x10000 to 0x10FFFF.
+        i++;
+      } else if (c <= Character.MAX_SURROGATE || c > 0xFFFD) {
+        chars[i] = ' ';
+        replaced = true;
+      }
+    }
+    return replaced;
   }
 
   private static String convertTimeSpanNs(long timespanNs) {
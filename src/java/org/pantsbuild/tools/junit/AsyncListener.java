@@ -0,0 +1,271 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * A run listener that forwards all events to a sequence of registered listeners on a dispatch
+ * thread of its own, so that slow listeners such as those writing reports do not hold up the test
+ * threads.
+ * <p>
+ * Test threads publish events to a ring buffer without taking locks, waiting only if it is full.
+ * The dispatch thread forwards the events to the registered listeners one at a time in the order
+ * they were published, so the listeners need not be thread safe.  The end of a test run is only
+ * signalled once all events of the run have been forwarded; any exception thrown by a listener
+ * during the run is rethrown then.  Listeners timing tests should use {@link #EVENT_TICKER}, since
+ * events are forwarded some time after they happened.
+ * <p>
+ * Listeners that must run on the test threads, like those routing test output, should not be
+ * registered here.
+ */
+final class AsyncListener extends RunListener implements ListenerRegistry {
+
+  static final int DEFAULT_CAPACITY = 1024;
+
+  /**
+   * Reads the {@link System#nanoTime()} of when the event being handled happened.  This is the
+   * current time, except on the dispatch thread of an {@code AsyncListener}.
+   */
+  static final Ticker EVENT_TICKER = new Ticker() {
+    @Override public long read() {
+      Thread current = Thread.currentThread();
+      return current instanceof DispatchThread
+          ? ((DispatchThread) current).eventNanoTime
+          : System.nanoTime();
+    }
+  };
+
+  private static final long WAIT_NS = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final long IDLE_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private enum Kind {
+    RUN_STARTED,
+    RUN_FINISHED,
+    STARTED,
+    FINISHED,
+    FAILURE,
+    ASSUMPTION_FAILURE,
+    IGNORED
+  }
+
+  /**
+   * A reusable entry of the ring buffer.
+   */
+  private static final class Slot {
+    private Kind kind;
+    private Object payload;
+    private long nanoTime;
+  }
+
+  /**
+   * The dispatch thread, which knows when the event it is forwarding happened.
+   */
+  private static final class DispatchThread extends Thread {
+    private final Runnable dispatch;
+    private long eventNanoTime;
+
+    DispatchThread(Runnable dispatch) {
+      super("junit-listener-dispatch");
+      this.dispatch = dispatch;
+    }
+
+    @Override public void run() {
+      dispatch.run();
+    }
+  }
+
+  /**
+   * Creates a listener and starts its dispatch thread.
+   *
+   * @param capacity The number of events that may be waiting to be forwarded at once; must be a
+   *     power of two.
+   */
+  static AsyncListener start(int capacity) {
+    AsyncListener listener = new AsyncListener(capacity);
+    listener.dispatcher.start();
+    return listener;
+  }
+
+  private final ForwardingListener listeners = new ForwardingListener();
+
+  private final Slot[] slots;
+  private final int mask;
+  // The sequence number of the event last published to each slot.
+  private final AtomicLongArray published;
+  private final AtomicLong lastClaimed = new AtomicLong(-1);
+  private final AtomicLong lastDispatched = new AtomicLong(-1);
+  private final AtomicReference<Throwable> listenerFailure = new AtomicReference<Throwable>();
+
+  private final DispatchThread dispatcher;
+  private volatile boolean dispatcherWaiting;
+  private volatile boolean closed;
+
+  private AsyncListener(int capacity) {
+    Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+        "Capacity must be a power of two, given %s", capacity);
+    slots = new Slot[capacity];
+    published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+      published.set(i, -1);
+    }
+    mask = capacity - 1;
+
+    dispatcher = new DispatchThread(new Runnable() {
+      @Override public void run() {
+        dispatch();
+      }
+    });
+    dispatcher.setDaemon(true);
+  }
+
+  @Override
+  public void addListener(RunListener listener) {
+    listeners.addListener(listener);
+  }
+
+  /**
+   * Stops the dispatch thread once all published events have been forwarded.
+   */
+  void close() {
+    closed = true;
+    LockSupport.unpark(dispatcher);
+  }
+
+  @Override
+  public void testRunStarted(Description description) {
+    publish(Kind.RUN_STARTED, description);
+  }
+
+  @Override
+  public void testRunFinished(Result result) throws Exception {
+    long sequence = publish(Kind.RUN_FINISHED, result);
+    while (lastDispatched.get() < sequence) {
+      LockSupport.parkNanos(this, WAIT_NS);
+    }
+    Throwable failure = listenerFailure.getAndSet(null);
+    if (failure != null) {
+      Throwables.propagateIfPossible(failure, Exception.class);
+      throw new RuntimeException(failure);
+    }
+  }
+
+  @Override
+  public void testStarted(Description description) {
+    publish(Kind.STARTED, description);
+  }
+
+  @Override
+  public void testIgnored(Description description) {
+    publish(Kind.IGNORED, description);
+  }
+
+  @Override
+  public void testFailure(Failure failure) {
+    publish(Kind.FAILURE, failure);
+  }
+
+  @Override
+  public void testFinished(Description description) {
+    publish(Kind.FINISHED, description);
+  }
+
+  @Override
+  public void testAssumptionFailure(Failure failure) {
+    publish(Kind.ASSUMPTION_FAILURE, failure);
+  }
+
+  private long publish(Kind kind, Object payload) {
+    long sequence = lastClaimed.incrementAndGet();
+    // Should the buffer be full, wait for the event last in this slot to be forwarded.
+    while (sequence - slots.length > lastDispatched.get()) {
+      LockSupport.parkNanos(this, WAIT_NS);
+    }
+    int index = (int) (sequence & mask);
+    Slot slot = slots[index];
+    slot.kind = kind;
+    slot.payload = payload;
+    slot.nanoTime = System.nanoTime();
+    published.set(index, sequence);
+    if (dispatcherWaiting) {
+      LockSupport.unpark(dispatcher);
+    }
+    return sequence;
+  }
+
+  private void dispatch() {
+    long sequence = 0;
+    while (true) {
+      int index = (int) (sequence & mask);
+      if (published.get(index) != sequence) {
+        if (closed) {
+          return;
+        }
+        dispatcherWaiting = true;
+        // Check again now that publishers will wake us up.
+        if (published.get(index) != sequence) {
+          LockSupport.parkNanos(this, IDLE_WAIT_NS);
+        }
+        dispatcherWaiting = false;
+        continue;
+      }
+
+      Slot slot = slots[index];
+      Kind kind = slot.kind;
+      Object payload = slot.payload;
+      slot.payload = null;
+      dispatcher.eventNanoTime = slot.nanoTime;
+      try {
+        fire(kind, payload);
+      // Listener failures are handed to the test thread at the end of the run.
+      // SUPPRESS CHECKSTYLE RegexpSinglelineJava
+      } catch (Throwable t) {
+        listenerFailure.compareAndSet(null, t);
+      }
+      lastDispatched.set(sequence++);
+    }
+  }
+
+  private void fire(Kind kind, Object payload) throws Exception {
+    switch (kind) {
+      case RUN_STARTED:
+        listeners.testRunStarted((Description) payload);
+        break;
+      case RUN_FINISHED:
+        listeners.testRunFinished((Result) payload);
+        break;
+      case STARTED:
+        listeners.testStarted((Description) payload);
+        break;
+      case FINISHED:
+        listeners.testFinished((Description) payload);
+        break;
+      case FAILURE:
+        listeners.testFailure((Failure) payload);
+        break;
+      case ASSUMPTION_FAILURE:
+        listeners.testAssumptionFailure((Failure) payload);
+        break;
+      case IGNORED:
+        listeners.testIgnored((Description) payload);
+        break;
+      default:
+        throw new IllegalStateException("Unexpected event " + kind);
+    }
+  }
+}
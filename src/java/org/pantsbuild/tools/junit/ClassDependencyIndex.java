@@ -0,0 +1,194 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
+
+/**
+ * Records the application classes each test class loaded, so that after a change only the test
+ * classes that may be affected need to be run.
+ * <p>
+ * The index is stored in a plain text file.  The first section lists one loaded class per line in
+ * the form {@code [sha1 of class file] [class name]}; the lines are numbered from 0.  After an
+ * empty line, the second section has one line per test class in the form
+ * {@code [test class] [number] [number] ...} referring to the classes of the first section.  A
+ * class loaded by many test classes is thus only stored once for as long as its class file is
+ * unchanged.
+ */
+final class ClassDependencyIndex {
+
+  private static final Splitter SPACE_SPLITTER = Splitter.on(' ').omitEmptyStrings();
+  private static final Splitter CHANGE_SPLITTER =
+      Splitter.onPattern("[,\\s]").trimResults().omitEmptyStrings();
+
+  /**
+   * Parses a list of changed classes.  Each entry is either a class name, meaning the class has
+   * changed, or {@code [class name]=[sha1 of class file]}, giving the current digest of the class.
+   * Entries are separated by commas or whitespace; an {@code @} prefixed list names a file to read
+   * the entries from.
+   *
+   * @param changes The list of changes.
+   * @return The changed classes mapped to their current digests, or to the empty string if the
+   *     digest is not known.
+   * @throws IOException If there is a problem reading a list file.
+   */
+  static Map<String, String> parseChanges(String changes) throws IOException {
+    String entries = changes.startsWith("@")
+        ? Files.toString(new File(changes.substring(1)), Charsets.UTF_8)
+        : changes;
+    Map<String, String> changed = Maps.newHashMap();
+    for (String entry : CHANGE_SPLITTER.split(entries)) {
+      int equals = entry.indexOf('=');
+      if (equals == -1) {
+        changed.put(entry, "");
+      } else {
+        changed.put(entry.substring(0, equals), entry.substring(equals + 1));
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Loads the index stored at {@code file}, if any.
+   *
+   * @param file The file the index is stored in.
+   * @return The loaded index; empty if there was none stored yet.
+   * @throws IOException If there is a problem reading the index.
+   */
+  static ClassDependencyIndex load(File file) throws IOException {
+    ClassDependencyIndex index = new ClassDependencyIndex(file);
+    if (file.isFile()) {
+      List<String[]> loadedClasses = Lists.newArrayList();
+      boolean inTests = false;
+      for (String line : Files.readLines(file, Charsets.UTF_8)) {
+        if (line.isEmpty()) {
+          inTests = true;
+        } else if (!inTests) {
+          int space = line.indexOf(' ');
+          loadedClasses.add(new String[] {line.substring(space + 1), line.substring(0, space)});
+        } else {
+          List<String> fields = Lists.newArrayList(SPACE_SPLITTER.split(line));
+          Map<String, String> dependencies = Maps.newHashMap();
+          for (String number : fields.subList(1, fields.size())) {
+            String[] loadedClass = loadedClasses.get(Integer.parseInt(number));
+            dependencies.put(loadedClass[0], loadedClass[1]);
+          }
+          index.dependencies.put(fields.get(0), dependencies);
+        }
+      }
+    }
+    return index;
+  }
+
+  private final File file;
+  private final Map<String, Map<String, String>> dependencies = Maps.newHashMap();
+
+  private ClassDependencyIndex(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Records the classes a test class loaded, replacing any previous record for it.
+   *
+   * @param testClass The name of the test class.
+   * @param loadedClasses The names of the loaded classes mapped to the sha1 of their class files.
+   */
+  void record(String testClass, Map<String, String> loadedClasses) {
+    dependencies.put(testClass, Maps.newHashMap(loadedClasses));
+  }
+
+  /**
+   * Returns the recorded classes loaded by the given test class; {@code null} if not recorded.
+   */
+  Map<String, String> getDependencies(String testClass) {
+    return dependencies.get(testClass);
+  }
+
+  /**
+   * Returns {@code true} if the given test class may be affected by the given changes.  Test
+   * classes that have not been recorded are always considered affected.
+   *
+   * @param testClass The name of the test class.
+   * @param changes The changes as returned by {@link #parseChanges(String)}.
+   */
+  boolean isAffected(String testClass, Map<String, String> changes) {
+    Map<String, String> loadedClasses = dependencies.get(testClass);
+    if (loadedClasses == null) {
+      return true;
+    }
+    for (Map.Entry<String, String> change : changes.entrySet()) {
+      String digest = loadedClasses.get(change.getKey());
+      if (digest != null && (change.getValue().isEmpty() || !change.getValue().equals(digest))) {
+        return true;
+      }
+      if (change.getValue().isEmpty()) {
+        // A changed outer class likely means changed nested classes.
+        String nestedPrefix = change.getKey() + "$";
+        for (String loadedClass : loadedClasses.keySet()) {
+          if (loadedClass.startsWith(nestedPrefix)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stores the index back to the file it was loaded from.
+   *
+   * @throws IOException If there is a problem writing the index.
+   */
+  void store() throws IOException {
+    // Number the distinct loaded classes in a stable order.
+    SortedMap<String, Integer> numbers = Maps.newTreeMap();
+    for (Map<String, String> loadedClasses : dependencies.values()) {
+      for (Map.Entry<String, String> loadedClass : loadedClasses.entrySet()) {
+        numbers.put(loadedClass.getValue() + " " + loadedClass.getKey(), 0);
+      }
+    }
+    int number = 0;
+    for (Map.Entry<String, Integer> entry : numbers.entrySet()) {
+      entry.setValue(number++);
+    }
+
+    Files.createParentDirs(file);
+    File tmp = new File(file.getPath() + ".tmp");
+    Closer closer = Closer.create();
+    try {
+      Writer out = closer.register(Files.newWriter(tmp, Charsets.UTF_8));
+      for (String loadedClass : numbers.keySet()) {
+        out.write(loadedClass + "\n");
+      }
+      out.write("\n");
+      for (Map.Entry<String, Map<String, String>> entry
+          : ImmutableSortedMap.copyOf(dependencies).entrySet()) {
+        out.write(entry.getKey());
+        for (Map.Entry<String, String> loadedClass : entry.getValue().entrySet()) {
+          out.write(" " + numbers.get(loadedClass.getValue() + " " + loadedClass.getKey()));
+        }
+        out.write("\n");
+      }
+    } catch (IOException e) {
+      throw closer.rethrow(e);
+    } finally {
+      closer.close();
+    }
+    file.delete();
+    Files.move(tmp, file);
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Caches class loaders for test classpaths, so that successive runs against an unchanged classpath
+ * reuse already loaded and JIT compiled classes.
+ * <p>
+ * Each class loader loads the test classpath followed by the classpath of this runner, including
+ * junit, in isolation from the JVM classpath.  This way junit and the runner see the test classes
+ * as they would when run directly.
+ * <p>
+ * Class loaders are keyed by a fingerprint of the paths, sizes and modification times of the
+ * files on the classpath, directories included recursively.  A class loader is dropped as soon as
+ * its classpath is seen with a different fingerprint, and the least recently used one is dropped
+ * once more than {@link #MAX_CLASS_LOADERS} are cached.  Dropped class loaders are closed, so that
+ * they do not hold on to the jars of the classpath; runs must not overlap for this reason.
+ */
+final class ClassLoaderCache {
+
+  static final int MAX_CLASS_LOADERS = 4;
+
+  private static final Splitter CLASSPATH_SPLITTER =
+      Splitter.on(File.pathSeparatorChar).omitEmptyStrings();
+
+  private static final class CachedClassLoader {
+    private final String fingerprint;
+    private final ClassLoader classLoader;
+
+    CachedClassLoader(String fingerprint, ClassLoader classLoader) {
+      this.fingerprint = fingerprint;
+      this.classLoader = classLoader;
+    }
+  }
+
+  /**
+   * Returns a cache whose class loaders load the runner from the JVM classpath.
+   */
+  static ClassLoaderCache forJvmClasspath() {
+    List<File> runnerClasspath = Lists.newArrayList();
+    for (String entry : CLASSPATH_SPLITTER.split(System.getProperty("java.class.path"))) {
+      runnerClasspath.add(new File(entry));
+    }
+    return new ClassLoaderCache(runnerClasspath);
+  }
+
+  private final List<File> runnerClasspath;
+  private final Map<String, CachedClassLoader> classLoaders =
+      new LinkedHashMap<String, CachedClassLoader>(16, 0.75f, /* accessOrder */ true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedClassLoader> eldest) {
+          if (size() > MAX_CLASS_LOADERS) {
+            close(eldest.getValue().classLoader);
+            return true;
+          }
+          return false;
+        }
+      };
+
+  /**
+   * @param runnerClasspath The classpath to load junit and this runner from.
+   */
+  ClassLoaderCache(List<File> runnerClasspath) {
+    this.runnerClasspath = ImmutableList.copyOf(runnerClasspath);
+  }
+
+  /**
+   * Returns a class loader for the given classpath, creating a new one if the classpath has not
+   * been seen before or has changed since.
+   *
+   * @param classpath The classpath entries separated by the platform path separator.
+   * @return A class loader for the classpath.
+   */
+  synchronized ClassLoader get(String classpath) {
+    List<File> entries = Lists.newArrayList();
+    for (String entry : CLASSPATH_SPLITTER.split(classpath)) {
+      entries.add(new File(entry));
+    }
+    String fingerprint = fingerprint(entries);
+    CachedClassLoader cached = classLoaders.get(classpath);
+    if (cached == null || !cached.fingerprint.equals(fingerprint)) {
+      if (cached != null) {
+        close(cached.classLoader);
+      }
+      // Delegate to the extension class loader, skipping the JVM classpath.
+      ClassLoader classLoader = new URLClassLoader(
+          toUrls(Iterables.concat(entries, runnerClasspath)),
+          ClassLoader.getSystemClassLoader().getParent());
+      cached = new CachedClassLoader(fingerprint, classLoader);
+      classLoaders.put(classpath, cached);
+    }
+    return cached.classLoader;
+  }
+
+  private static void close(ClassLoader classLoader) {
+    // URLClassLoader is only Closeable on Java 7 and later.
+    if (classLoader instanceof Closeable) {
+      try {
+        ((Closeable) classLoader).close();
+      } catch (IOException e) {
+        // The cache is done with the class loader either way.
+      }
+    }
+  }
+
+  private static URL[] toUrls(Iterable<File> entries) {
+    List<URL> urls = Lists.newArrayList();
+    for (File entry : entries) {
+      try {
+        urls.add(entry.toURI().toURL());
+      } catch (MalformedURLException e) {
+        throw new IllegalArgumentException("Invalid classpath entry " + entry, e);
+      }
+    }
+    return urls.toArray(new URL[urls.size()]);
+  }
+
+  private static String fingerprint(List<File> entries) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (File entry : entries) {
+      hasher.putString(entry.getAbsolutePath(), Charsets.UTF_8).putByte((byte) 0);
+      if (entry.isDirectory()) {
+        List<String> files = Lists.newArrayList();
+        String root = entry.getPath();
+        for (File file : Files.fileTreeTraverser().preOrderTraversal(entry)) {
+          if (file.isFile()) {
+            files.add(file.getPath().substring(root.length()) + " " + stat(file));
+          }
+        }
+        Collections.sort(files);
+        for (String file : files) {
+          hasher.putString(file, Charsets.UTF_8).putByte((byte) 0);
+        }
+      } else {
+        hasher.putString(stat(entry), Charsets.UTF_8).putByte((byte) 0);
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  private static String stat(File file) {
+    return file.length() + " " + file.lastModified();
+  }
+}
@@ -0,0 +1,191 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.junit.runner.Description;
+
+/**
+ * A pool of class loaders that each load their own copy of the test classes and their
+ * dependencies, so that test classes loaded by different class loaders do not share static state.
+ * <p>
+ * The class loaders load the classpath apart from the shared entries, those of junit and this
+ * runner, before delegating to their parent.  Classes of the JDK are always loaded by the JDK, and
+ * classes of the shared entries always by the parent, so that junit and the runner's listeners
+ * see the test classes as usual.
+ * <p>
+ * Loading all test classes in class loaders of their own would load their dependencies once per
+ * test class.  Instead test classes are spread over at most as many class loaders as test classes
+ * run at once, and {@link ConcurrentRunnerScheduler} runs the test classes of an
+ * {@link IsolatedClassLoader} one at a time.  Test classes thus only share static state with test
+ * classes that ran before them, as they would when run in serial.  Test classes run with their
+ * class loader as the context class loader, see {@link #enterContext(Description)}.
+ */
+final class ClassLoaderPool {
+
+  /**
+   * A class loader of a {@link ClassLoaderPool}.
+   */
+  static final class IsolatedClassLoader extends URLClassLoader {
+    private final String name;
+    private final ClassLoader jdk = ClassLoader.getSystemClassLoader().getParent();
+
+    private IsolatedClassLoader(String name, URL[] urls, ClassLoader parent) {
+      super(urls, parent);
+      this.name = name;
+    }
+
+    /**
+     * Returns a name identifying this class loader within the run, which serves as the name of the
+     * resource group its test classes share.
+     */
+    String groupName() {
+      return name;
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve)
+        throws ClassNotFoundException {
+      Class<?> clazz = findLoadedClass(name);
+      if (clazz == null) {
+        try {
+          clazz = jdk.loadClass(name);
+        } catch (ClassNotFoundException e) {
+          try {
+            clazz = findClass(name);
+          } catch (ClassNotFoundException notIsolated) {
+            clazz = getParent().loadClass(name);
+          }
+        }
+      }
+      if (resolve) {
+        resolveClass(clazz);
+      }
+      return clazz;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private final URL[] isolatedClasspath;
+  private final ClassLoader parent;
+  private final int size;
+  private final List<IsolatedClassLoader> classLoaders = Lists.newArrayList();
+  private final Map<String, Class<?>> loadedClasses = Maps.newHashMap();
+
+  /**
+   * @param classpath The classpath of the tests, junit and this runner.
+   * @param shared The entries of {@code classpath} to load from {@code parent} only.
+   * @param parent The class loader of junit and this runner.
+   * @param size The most class loaders to spread test classes over; must be positive.
+   */
+  ClassLoaderPool(URL[] classpath, Iterable<URL> shared, ClassLoader parent, int size) {
+    Preconditions.checkArgument(size > 0, "Size must be positive, given %s", size);
+    Set<URL> sharedEntries = ImmutableSet.copyOf(shared);
+    List<URL> isolated = Lists.newArrayList();
+    for (URL entry : classpath) {
+      if (!sharedEntries.contains(entry)) {
+        isolated.add(entry);
+      }
+    }
+    this.isolatedClasspath = isolated.toArray(new URL[isolated.size()]);
+    this.parent = Preconditions.checkNotNull(parent);
+    this.size = size;
+  }
+
+  /**
+   * Loads the named test class without initializing it, in the next class loader of the pool.  A
+   * test class is only loaded once however often it is asked for.
+   *
+   * @param name The binary name of the test class.
+   * @return The test class.
+   * @throws ClassNotFoundException If the class is not on the classpath.
+   */
+  synchronized Class<?> loadClass(String name) throws ClassNotFoundException {
+    Class<?> clazz = loadedClasses.get(name);
+    if (clazz == null) {
+      clazz = Class.forName(name, /* initialize = */ false, nextClassLoader());
+      loadedClasses.put(name, clazz);
+    }
+    return clazz;
+  }
+
+  /**
+   * Makes the class loader of the given test class the context class loader of the current thread
+   * if the test class was loaded by a pool, so that the test finds its own copy of classes and
+   * resources through it.
+   *
+   * @param description The description of the test class about to run.
+   * @return The context class loader to restore once the test class is done.
+   */
+  static ClassLoader enterContext(Description description) {
+    Thread currentThread = Thread.currentThread();
+    ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+    IsolatedClassLoader classLoader = findClassLoader(description);
+    if (classLoader != null) {
+      currentThread.setContextClassLoader(classLoader);
+    }
+    return contextClassLoader;
+  }
+
+  // Runners like that of junit 3 tests describe the test class by name only, which junit resolves
+  // with its own class loader, so look for the isolated class among the tests too.
+  private static IsolatedClassLoader findClassLoader(Description description) {
+    Class<?> testClass = description.getTestClass();
+    if (testClass != null && testClass.getClassLoader() instanceof IsolatedClassLoader) {
+      return (IsolatedClassLoader) testClass.getClassLoader();
+    }
+    for (Description child : description.getChildren()) {
+      IsolatedClassLoader classLoader = findClassLoader(child);
+      if (classLoader != null) {
+        return classLoader;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Closes the class loaders of the pool, releasing the jars they opened.  Must only be called once
+   * the test classes they loaded are done.
+   */
+  synchronized void close() {
+    for (IsolatedClassLoader classLoader : classLoaders) {
+      // URLClassLoader is only Closeable on Java 7 and later.
+      if (classLoader instanceof Closeable) {
+        try {
+          ((Closeable) classLoader).close();
+        } catch (IOException e) {
+          // The run is done with the class loader either way.
+        }
+      }
+    }
+    classLoaders.clear();
+    loadedClasses.clear();
+  }
+
+  // Hands out the class loaders in turn, creating them as needed.
+  private IsolatedClassLoader nextClassLoader() {
+    int index = loadedClasses.size() % size;
+    if (index == classLoaders.size()) {
+      classLoaders.add(new IsolatedClassLoader(
+          "isolated-class-loader-" + index, isolatedClasspath, parent));
+    }
+    return classLoaders.get(index);
+  }
+}
@@ -45,6 +45,14 @@ public class CompositeRequest extends ParentRunner<Request> {
     return child.getRunner().getDescription();
   }
 
+  /**
+   * Called with the runner of each child request before it is run; does nothing by default.
+   *
+   * @param runner The runner about to be run.
+   */
+  protected void configureRunner(Runner runner) {
+  }
+
   @Override
   protected void runChild(Request child, RunNotifier notifier) {
     // This mirrors the implementation of ParentRunner.run
@@ -63,7 +71,14 @@ public class CompositeRequest extends ParentRunner<Request> {
         }
       }
       if (!exemptThisRunner) {
-        runner.run(notifier);
+        configureRunner(runner);
+        ClassLoader contextClassLoader =
+            ClassLoaderPool.enterContext(runner.getDescription());
+        try {
+          runner.run(notifier);
+        } finally {
+          Thread.currentThread().setContextClassLoader(contextClassLoader);
+        }
       }
     } catch (AssumptionViolatedException e) {
       eachNotifier.fireTestIgnored();
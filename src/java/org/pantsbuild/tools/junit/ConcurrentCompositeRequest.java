@@ -4,9 +4,12 @@
 package org.pantsbuild.tools.junit;
 
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 import org.junit.runner.Request;
+import org.junit.runner.Runner;
 import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.ParentRunner;
 import org.junit.runners.model.InitializationError;
 import org.junit.runners.model.Statement;
 
@@ -19,11 +22,39 @@ public class ConcurrentCompositeRequest extends CompositeRequest {
 
   public ConcurrentCompositeRequest(List<Request> requests, boolean defaultParallel, int numThreads)
       throws InitializationError {
+    this(requests, defaultParallel, false, numThreads);
+  }
+
+  public ConcurrentCompositeRequest(List<Request> requests, boolean defaultParallel,
+      boolean parallelMethods, int numThreads) throws InitializationError {
+    this(requests, defaultParallel, parallelMethods, numThreads, TimingHistory.none());
+  }
+
+  ConcurrentCompositeRequest(List<Request> requests, boolean defaultParallel,
+      boolean parallelMethods, int numThreads, TimingHistory timingHistory)
+      throws InitializationError {
+    this(requests, defaultParallel, parallelMethods, numThreads, timingHistory, null);
+  }
+
+  ConcurrentCompositeRequest(List<Request> requests, boolean defaultParallel,
+      boolean parallelMethods, int numThreads, TimingHistory timingHistory,
+      ThreadFactory threadFactory) throws InitializationError {
     super(requests);
-    this.runnerScheduler = new ConcurrentRunnerScheduler(defaultParallel, numThreads);
+    this.runnerScheduler = new ConcurrentRunnerScheduler(
+        defaultParallel, parallelMethods, numThreads, timingHistory, threadFactory);
     setScheduler(runnerScheduler);
   }
 
+  @Override
+  protected void configureRunner(Runner runner) {
+    if (runner instanceof ParentRunner) {
+      Class<?> testClass = runner.getDescription().getTestClass();
+      if (testClass != null && runnerScheduler.shouldRunMethodsParallel(testClass)) {
+        ((ParentRunner<?>) runner).setScheduler(runnerScheduler.newMethodScheduler());
+      }
+    }
+  }
+
   @Override
   protected Statement childrenInvoker(final RunNotifier notifier) {
     return new Statement() {
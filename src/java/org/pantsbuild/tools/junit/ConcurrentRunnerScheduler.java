@@ -3,36 +3,112 @@
 
 package org.pantsbuild.tools.junit;
 
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.google.common.base.Function;
 import com.google.common.base.Throwables;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.junit.runners.model.RunnerScheduler;
 
 import org.pantsbuild.junit.annotations.TestParallel;
+import org.pantsbuild.junit.annotations.TestParallelMethods;
+import org.pantsbuild.junit.annotations.TestResourceGroup;
+import org.pantsbuild.junit.annotations.TestResourceGroups;
 import org.pantsbuild.junit.annotations.TestSerial;
 
 public class ConcurrentRunnerScheduler implements RunnerScheduler {
+
+  /**
+   * Marks tasks that help run the methods of a test class that is already running.
+   */
+  private interface MethodHelper extends Runnable {
+  }
+
+  /**
+   * A work queue that hands out method helpers ahead of test classes, most recent first, so that
+   * idle threads help finish the test classes already in flight before starting new ones.
+   */
+  private static final class MethodsFirstQueue extends LinkedBlockingDeque<Runnable> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public boolean offer(Runnable task) {
+      return task instanceof MethodHelper ? offerFirst(task) : offerLast(task);
+    }
+  }
+
+  /**
+   * A test class statement scheduled to run in one of the lanes.
+   */
+  private static final class ClassTask {
+    private static final Function<ClassTask, String> GET_NAME = new Function<ClassTask, String>() {
+      @Override public String apply(ClassTask task) {
+        return task.name;
+      }
+    };
+
+    private final Runnable statement;
+    private final String name;
+    private final Set<String> resourceGroups;
+
+    ClassTask(Runnable statement, String name, Set<String> resourceGroups) {
+      this.statement = statement;
+      this.name = name;
+      this.resourceGroups = resourceGroups;
+    }
+  }
+
+  private final ThreadPoolExecutor executor;
   private final CompletionService<Void> completionService;
   private final Queue<Future<Void>> concurrentTasks;
+  private final List<ClassTask> parallelTasks;
   private final Queue<Runnable> serialTasks;
+  // Parallel classes waiting for their resource groups, in the order they are to be started.
+  private final List<ClassTask> waitingTasks;
+  private final Map<String, Integer> resourceGroupPermits;
+  private final Multiset<String> resourceGroupsInUse;
   private final boolean defaultParallel;
+  private final boolean parallelMethods;
+  private final int numThreads;
+  private final TimingHistory timingHistory;
 
   /**
-   * A concurrent scheduler to run junit tests in parallel if possible, followed by tests that can
-   * only be run in serial.
+   * A concurrent scheduler to run junit tests in parallel if possible, alongside a lane of tests
+   * that can only be run in serial.
    *
    * Test classes annotated with {@link TestSerial} will be run in serial.
    * Test classes annotated with {@link TestParallel} will be run in parallel.
    * Test classes without neither annotation will be run in parallel if defaultParallel is set.
+   * Test classes annotated with {@link TestResourceGroup} or {@link TestResourceGroups}, in either
+   * lane, wait for their resource groups to have permits free before they start.
+   * Test classes loaded by the same {@link ClassLoaderPool.IsolatedClassLoader} are run one at a
+   * time.
    *
    * Call {@link org.junit.runners.ParentRunner#setScheduler} to use this scheduler.
    *
@@ -40,15 +116,91 @@ public class ConcurrentRunnerScheduler implements RunnerScheduler {
    * @param numThreads       number of parallel threads to use, must be positive.
    */
   public ConcurrentRunnerScheduler(boolean defaultParallel, int numThreads) {
+    this(defaultParallel, false, numThreads);
+  }
+
+  /**
+   * A concurrent scheduler that can additionally run the test methods of parallel test classes
+   * in parallel.
+   *
+   * Test classes annotated with {@link TestParallelMethods} will have their methods run in
+   * parallel, as will all test classes run in parallel if parallelMethods is set. Methods run on
+   * the same threads as test classes; see {@link #newMethodScheduler()}.
+   *
+   * @param defaultParallel  whether to unannotated classes in parallel
+   * @param parallelMethods  whether to run the methods of all parallel classes in parallel
+   * @param numThreads       number of parallel threads to use, must be positive.
+   */
+  public ConcurrentRunnerScheduler(boolean defaultParallel, boolean parallelMethods,
+      int numThreads) {
+    this(defaultParallel, parallelMethods, numThreads, TimingHistory.none());
+  }
+
+  /**
+   * A concurrent scheduler that starts the parallel test classes longest expected first, per
+   * the durations recorded in the given timing history. The durations of all classes run are
+   * recorded back into the history.
+   */
+  ConcurrentRunnerScheduler(boolean defaultParallel, boolean parallelMethods, int numThreads,
+      TimingHistory timingHistory) {
+    this(defaultParallel, parallelMethods, numThreads, timingHistory, null);
+  }
+
+  /**
+   * A concurrent scheduler running the parallel test classes and their methods on threads from
+   * the given factory, such as one from {@link #newVirtualThreadFactory()}.
+   *
+   * @param threadFactory The factory of the threads to run tests on; {@code null} for daemon
+   *     platform threads.
+   */
+  ConcurrentRunnerScheduler(boolean defaultParallel, boolean parallelMethods, int numThreads,
+      TimingHistory timingHistory, ThreadFactory threadFactory) {
     this.defaultParallel = defaultParallel;
-    ThreadFactory threadFactory = new ThreadFactoryBuilder()
-        .setDaemon(true)
-        .setNameFormat("concurrent-junit-runner-%d")
-        .build();
-    completionService = new ExecutorCompletionService<Void>(
-        Executors.newFixedThreadPool(numThreads, threadFactory));
-    concurrentTasks = new LinkedList<Future<Void>>();
+    this.parallelMethods = parallelMethods;
+    this.numThreads = numThreads;
+    this.timingHistory = timingHistory;
+    if (threadFactory == null) {
+      threadFactory = new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("concurrent-junit-runner-%d")
+          .build();
+    }
+    // Even virtual threads are pooled, so that numThreads caps the tests running at once and idle
+    // threads still help finish the test classes in flight first.
+    executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+        new MethodsFirstQueue(), threadFactory);
+    completionService = new ExecutorCompletionService<Void>(executor);
+    concurrentTasks = new ConcurrentLinkedQueue<Future<Void>>();
+    parallelTasks = Lists.newArrayList();
     serialTasks = new LinkedList<Runnable>();
+    waitingTasks = Lists.newLinkedList();
+    resourceGroupPermits = Maps.newHashMap();
+    resourceGroupsInUse = HashMultiset.create();
+  }
+
+  /**
+   * Returns a factory of virtual threads, which suit tests spending most of their time waiting;
+   * {@code null} if this JVM does not support virtual threads.
+   * <p>
+   * Virtual threads are created reflectively, since they are only available from Java 21.
+   */
+  static ThreadFactory newVirtualThreadFactory() {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, "concurrent-junit-runner-virtual-", 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      return null;
+    } catch (InvocationTargetException e) {
+      // Virtual threads are a preview feature before Java 21, unsupported unless enabled.
+      return null;
+    }
   }
 
   @Override
@@ -61,29 +213,253 @@ public class ConcurrentRunnerScheduler implements RunnerScheduler {
    * in serial or parallel.
    */
   public void schedule(Runnable childStatement, Class<?> clazz) {
+    ClassTask task = new ClassTask(
+        timed(childStatement, clazz.getName()), clazz.getName(), resourceGroups(clazz));
     if (shouldRunParallel(clazz)) {
-      concurrentTasks.offer(completionService.submit(childStatement, null));
+      parallelTasks.add(task);
+    } else if (task.resourceGroups.isEmpty()) {
+      serialTasks.offer(task.statement);
     } else {
-      serialTasks.offer(childStatement);
+      serialTasks.offer(awaitingResourceGroups(task));
+    }
+  }
+
+  // Returns the resource groups the class uses, noting the number of permits of each.
+  private synchronized Set<String> resourceGroups(Class<?> clazz) {
+    List<TestResourceGroup> declared = Lists.newArrayList();
+    if (clazz.isAnnotationPresent(TestResourceGroup.class)) {
+      declared.add(clazz.getAnnotation(TestResourceGroup.class));
+    }
+    if (clazz.isAnnotationPresent(TestResourceGroups.class)) {
+      declared.addAll(Arrays.asList(clazz.getAnnotation(TestResourceGroups.class).value()));
+    }
+    Set<String> groups = Sets.newHashSet();
+    for (TestResourceGroup group : declared) {
+      Integer permits = resourceGroupPermits.get(group.value());
+      resourceGroupPermits.put(group.value(), Math.max(1,
+          permits == null ? group.permits() : Math.min(permits, group.permits())));
+      groups.add(group.value());
     }
+    // The classes of an isolated class loader share its static state, like a resource.
+    ClassLoader classLoader = clazz.getClassLoader();
+    if (classLoader instanceof ClassLoaderPool.IsolatedClassLoader) {
+      String name = ((ClassLoaderPool.IsolatedClassLoader) classLoader).groupName();
+      resourceGroupPermits.put(name, 1);
+      groups.add(name);
+    }
+    return groups;
+  }
+
+  private synchronized boolean tryAcquireResourceGroups(ClassTask task) {
+    for (String group : task.resourceGroups) {
+      if (resourceGroupsInUse.count(group) >= resourceGroupPermits.get(group)) {
+        return false;
+      }
+    }
+    resourceGroupsInUse.addAll(task.resourceGroups);
+    return true;
+  }
+
+  private void releaseResourceGroups(ClassTask task) {
+    synchronized (this) {
+      Multisets.removeOccurrences(resourceGroupsInUse, task.resourceGroups);
+      notifyAll();
+    }
+    startWaitingTasks();
+  }
+
+  // Starts the waiting parallel classes whose resource groups have become available.
+  private synchronized void startWaitingTasks() {
+    Iterator<ClassTask> waiting = waitingTasks.iterator();
+    while (waiting.hasNext()) {
+      ClassTask task = waiting.next();
+      if (tryAcquireResourceGroups(task)) {
+        waiting.remove();
+        concurrentTasks.offer(completionService.submit(releasingResourceGroups(task), null));
+      }
+    }
+  }
+
+  private Runnable releasingResourceGroups(final ClassTask task) {
+    return new Runnable() {
+      @Override public void run() {
+        try {
+          task.statement.run();
+        } finally {
+          releaseResourceGroups(task);
+        }
+      }
+    };
+  }
+
+  // Blocks the serial lane until the resource groups of the class are available.
+  private Runnable awaitingResourceGroups(final ClassTask task) {
+    final Runnable run = releasingResourceGroups(task);
+    return new Runnable() {
+      @Override public void run() {
+        synchronized (ConcurrentRunnerScheduler.this) {
+          while (!tryAcquireResourceGroups(task)) {
+            try {
+              ConcurrentRunnerScheduler.this.wait();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        }
+        run.run();
+      }
+    };
+  }
+
+  private Runnable timed(final Runnable statement, final String name) {
+    return new Runnable() {
+      @Override public void run() {
+        long start = System.nanoTime();
+        statement.run();
+        timingHistory.record(name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+    };
   }
 
   private boolean shouldRunParallel(Class<?> clazz) {
     return !clazz.isAnnotationPresent(TestSerial.class)
-        && (clazz.isAnnotationPresent(TestParallel.class) || this.defaultParallel);
+        && (clazz.isAnnotationPresent(TestParallel.class)
+            || clazz.isAnnotationPresent(TestParallelMethods.class)
+            || this.defaultParallel);
+  }
+
+  /**
+   * Returns {@code true} if the test methods of clazz should be run in parallel with each other.
+   */
+  public boolean shouldRunMethodsParallel(Class<?> clazz) {
+    return shouldRunParallel(clazz)
+        && (clazz.isAnnotationPresent(TestParallelMethods.class) || this.parallelMethods);
+  }
+
+  /**
+   * Creates a scheduler for the test methods of a single test class.
+   *
+   * Call {@link org.junit.runners.ParentRunner#setScheduler} on the test class runner to use it.
+   * The thread running the test class runs its methods along with any idle threads of this
+   * scheduler's pool, so method scheduling can never starve waiting for a thread. Since
+   * {@link RunnerScheduler#finished()} only returns once all the methods are done,
+   * {@literal @}BeforeClass and {@literal @}AfterClass methods still run before and after all of
+   * them respectively.
+   */
+  public RunnerScheduler newMethodScheduler() {
+    return new RunnerScheduler() {
+      private final Queue<Runnable> methods = new ConcurrentLinkedQueue<Runnable>();
+
+      @Override
+      public void schedule(Runnable childStatement) {
+        methods.offer(childStatement);
+      }
+
+      @Override
+      public void finished() {
+        // Helpers run the methods with the context class loader the test class runs with.
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        Runnable runMethods = new Runnable() {
+          @Override public void run() {
+            Thread currentThread = Thread.currentThread();
+            ClassLoader helperClassLoader = currentThread.getContextClassLoader();
+            currentThread.setContextClassLoader(contextClassLoader);
+            try {
+              for (Runnable method = methods.poll(); method != null; method = methods.poll()) {
+                method.run();
+              }
+            } finally {
+              currentThread.setContextClassLoader(helperClassLoader);
+            }
+          }
+        };
+
+        List<HelperTask> helpers = Lists.newArrayList();
+        int numHelpers = Math.min(numThreads - 1, methods.size() - 1);
+        for (int i = 0; i < numHelpers; i++) {
+          HelperTask helper = new HelperTask(runMethods);
+          helpers.add(helper);
+          executor.execute(helper);
+        }
+        runMethods.run();
+        try {
+          for (HelperTask helper : helpers) {
+            helper.awaitIfStarted();
+          }
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+  }
+
+  private static final class HelperTask implements MethodHelper {
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final Runnable work;
+    private volatile Throwable failure;
+
+    HelperTask(Runnable work) {
+      this.work = work;
+    }
+
+    @Override
+    public void run() {
+      if (claimed.compareAndSet(false, true)) {
+        try {
+          work.run();
+        // This should not normally happen since junit statements trap and record errors and
+        // failures, but the failure must not be lost on a pool thread.
+        // SUPPRESS CHECKSTYLE RegexpSinglelineJava
+        } catch (Throwable t) {
+          failure = t;
+        } finally {
+          done.countDown();
+        }
+      }
+    }
+
+    /**
+     * Waits for this helper to finish if it has started, otherwise prevents it from starting.
+     */
+    void awaitIfStarted() throws InterruptedException {
+      if (!claimed.compareAndSet(false, true)) {
+        done.await();
+        if (failure != null) {
+          throw Throwables.propagate(failure);
+        }
+      }
+    }
   }
 
   @Override
   public void finished() {
     try {
-      // Wait for all concurrent tasks to finish.
-      while (!concurrentTasks.isEmpty()) {
-        concurrentTasks.poll().get();
+      // Start the parallel classes longest expected first so that long classes do not end up
+      // running alone at the end of the run; the sort is stable so ties keep their order.
+      Collections.sort(parallelTasks, timingHistory.longestFirst(ClassTask.GET_NAME));
+      for (ClassTask task : parallelTasks) {
+        if (task.resourceGroups.isEmpty()) {
+          concurrentTasks.offer(completionService.submit(task.statement, null));
+        } else {
+          synchronized (this) {
+            waitingTasks.add(task);
+          }
+        }
       }
-      // Then run all serial tasks in serial.
+      parallelTasks.clear();
+      startWaitingTasks();
+
+      // Drain the serial lane in order on this thread while the parallel classes run.
       for (Runnable task : serialTasks) {
         task.run();
       }
+
+      // Then wait for all concurrent tasks to finish.  Classes waiting for resource groups are
+      // started by the classes holding them as they finish, so they are in the queue by then.
+      while (!concurrentTasks.isEmpty()) {
+        concurrentTasks.poll().get();
+      }
     } catch (InterruptedException e) {
       throw new RuntimeException(e);
     } catch (ExecutionException e) {
@@ -91,9 +467,15 @@ public class ConcurrentRunnerScheduler implements RunnerScheduler {
       throw Throwables.propagate(e.getCause());
     } finally {
       // In case of error, cancel all in-flight concurrent tasks
+      synchronized (this) {
+        waitingTasks.clear();
+      }
       while (!concurrentTasks.isEmpty()) {
         concurrentTasks.poll().cancel(true);
       }
+      // The scheduler runs a single request, so let its threads die rather than keep them, and
+      // through them the test classes they ran, alive for the rest of the JVM.
+      executor.shutdown();
     }
   }
 }
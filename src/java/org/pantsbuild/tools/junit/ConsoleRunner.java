@@ -3,27 +3,39 @@
 
 package org.pantsbuild.tools.junit;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
@@ -41,6 +53,10 @@ import org.junit.runner.Result;
 import org.junit.runner.RunWith;
 import org.junit.runner.Runner;
 import org.junit.runner.manipulation.Filter;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runner.notification.StoppedByUserException;
 import org.junit.runners.model.InitializationError;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
@@ -49,6 +65,8 @@ import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
 import org.pantsbuild.args4j.InvalidCmdLineArgumentException;
+import org.pantsbuild.json.JsonStrings;
+import org.pantsbuild.junit.annotations.TestSerial;
 import org.pantsbuild.tools.junit.withretry.AllDefaultPossibilitiesBuilderWithRetry;
 
 /**
@@ -66,12 +84,17 @@ public class ConsoleRunner {
   private static boolean callSystemExitOnFinish = true;
   /** Intended to be used in unit testing this class */
   private static int exitStatus;
+  /** Shortened for unit testing via {@link #setInterruptGraceMs} */
+  private static long interruptGraceMs = HangWatchdog.INTERRUPT_GRACE_MS;
 
   /**
-   * A stream that allows its underlying output to be swapped.
+   * A stream that allows its underlying output to be swapped, and to be routed elsewhere for
+   * individual threads.
    */
   static class SwappableStream<T extends OutputStream> extends FilterOutputStream {
     private final T original;
+    private final InheritableThreadLocal<OutputStream> routes =
+        new InheritableThreadLocal<OutputStream>();
 
     SwappableStream(T out) {
       super(out);
@@ -84,6 +107,45 @@ public class ConsoleRunner {
       return old;
     }
 
+    /**
+     * Routes the output of the current thread, and of threads it starts from now on, to
+     * {@code out} rather than the underlying output.
+     *
+     * @param out The stream to route to, or {@code null} to stop routing.
+     */
+    void route(OutputStream out) {
+      if (out == null) {
+        routes.remove();
+      } else {
+        routes.set(out);
+      }
+    }
+
+    private OutputStream target() {
+      OutputStream routed = routes.get();
+      if (routed instanceof CaptureBuffer && ((CaptureBuffer) routed).isClosed()) {
+        // The capture ended with its test class, output from now on is not the class's.
+        routes.remove();
+        routed = null;
+      }
+      return routed == null ? out : routed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      target().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      target().flush();
+    }
+
     /**
      * Returns the original stream this swappable stream was created with.
      */
@@ -93,66 +155,140 @@ public class ConsoleRunner {
   }
 
   /**
-   * Captures a tests stderr and stdout streams, restoring the previous streams on {@link #close()}.
+   * Buffers captured output in memory, spilling it to a file once it grows beyond a limit.  Quiet
+   * tests thus only write their file when closed, and noisy tests do not use unbounded memory.
+   * The file is always written, empty if nothing was captured, since tools expect it to exist.
    */
-  static class StreamCapture {
-    private final File out;
-    private OutputStream outstream;
+  static class CaptureBuffer extends OutputStream {
+    static final int SPILL_THRESHOLD = 64 * 1024;
 
-    private final File err;
-    private OutputStream errstream;
-
-    private int useCount;
+    private final File file;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private OutputStream spilled;
     private boolean closed;
 
-    StreamCapture(File out, File err) throws IOException {
-      this.out = out;
-      this.err = err;
+    CaptureBuffer(File file) {
+      this.file = file;
     }
 
-    void incrementUseCount() {
-      this.useCount++;
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
     }
 
-    void open() throws FileNotFoundException {
-      if (outstream == null) {
-        outstream = new FileOutputStream(out);
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        // Output racing the end of its test class is dropped.
+        return;
       }
-      if (errstream == null) {
-        errstream = new FileOutputStream(err);
+      if (spilled == null && buffer.size() + len > SPILL_THRESHOLD) {
+        Files.createParentDirs(file);
+        spilled = new FileOutputStream(file);
+        buffer.writeTo(spilled);
+        buffer = null;
       }
-      SWAPPABLE_OUT.swap(outstream);
-      SWAPPABLE_ERR.swap(errstream);
+      (spilled == null ? buffer : spilled).write(b, off, len);
     }
 
-    void close() throws IOException {
-      if (--useCount <= 0 && !closed) {
-        if (outstream != null) {
-          Closeables.close(outstream, /* swallowIOException */ true);
-        }
-        if (errstream != null) {
-          Closeables.close(errstream, /* swallowIOException */ true);
-        }
-        closed = true;
+    /**
+     * Stops capturing, writing out any output still held in memory to the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      if (closed) {
+        return;
       }
+      closed = true;
+      if (spilled != null) {
+        Closeables.close(spilled, /* swallowIOException */ true);
+      } else {
+        Files.createParentDirs(file);
+        Files.write(buffer.toByteArray(), file);
+        spilled = buffer;
+      }
+      buffer = null;
     }
 
-    void dispose() throws IOException {
-      useCount = 0;
-      close();
+    synchronized boolean isClosed() {
+      return closed;
     }
 
-    byte[] readOut() throws IOException {
-      return read(out);
+    /**
+     * Returns all output captured.  Must only be called once closed.
+     */
+    synchronized byte[] read() throws IOException {
+      Preconditions.checkState(closed, "Capture must be closed by all users before it can be read");
+      return spilled == null ? new byte[0] : Files.toByteArray(file);
     }
 
-    byte[] readErr() throws IOException {
-      return read(err);
+    /**
+     * Opens all output captured for reading.  Must only be called once closed.
+     */
+    synchronized InputStream open() throws IOException {
+      Preconditions.checkState(closed, "Capture must be closed by all users before it can be read");
+      return spilled == null ? new ByteArrayInputStream(new byte[0]) : new FileInputStream(file);
     }
+  }
 
-    private byte[] read(File file) throws IOException {
-      Preconditions.checkState(closed, "Capture must be closed by all users before it can be read");
-      return Files.toByteArray(file);
+  /**
+   * Captures a test class' stderr and stdout streams, routing the output of the threads running
+   * its tests to {@link CaptureBuffer}s until {@link #close() closed}.
+   */
+  static class StreamCapture {
+    private final CaptureBuffer outstream;
+    private final CaptureBuffer errstream;
+
+    private int useCount;
+
+    StreamCapture(File out, File err) {
+      this.outstream = new CaptureBuffer(out);
+      this.errstream = new CaptureBuffer(err);
+    }
+
+    synchronized void incrementUseCount() {
+      this.useCount++;
+    }
+
+    /**
+     * Routes the output of the current thread, and of the threads it starts, to this capture.
+     */
+    void open() {
+      SWAPPABLE_OUT.route(outstream);
+      SWAPPABLE_ERR.route(errstream);
+    }
+
+    /**
+     * Captures output written elsewhere, for example in a worker JVM.
+     */
+    void write(boolean toErr, byte[] output) throws IOException {
+      (toErr ? errstream : outstream).write(output);
+    }
+
+    /**
+     * Releases a use of this capture, closing it once no tests use it anymore.  The output of the
+     * current thread is then no longer routed here.
+     */
+    synchronized void close() throws IOException {
+      if (--useCount <= 0) {
+        outstream.close();
+        errstream.close();
+        SWAPPABLE_OUT.route(null);
+        SWAPPABLE_ERR.route(null);
+      }
+    }
+
+    synchronized void dispose() throws IOException {
+      useCount = 0;
+      close();
+    }
+
+    InputStream openOut() throws IOException {
+      return outstream.open();
+    }
+
+    InputStream openErr() throws IOException {
+      return errstream.open();
     }
   }
 
@@ -175,20 +311,15 @@ public class ConsoleRunner {
       super.testRunStarted(description);
     }
 
-    private void registerTests(Iterable<Description> tests) throws IOException {
+    private void registerTests(Iterable<Description> tests) {
       for (Description test : tests) {
         registerTests(test.getChildren());
         if (Util.isRunnable(test)) {
           StreamCapture capture = captures.get(test.getTestClass());
           if (capture == null) {
             String prefix = test.getClassName();
-
-            File out = new File(outdir, prefix + ".out.txt");
-            Files.createParentDirs(out);
-
-            File err = new File(outdir, prefix + ".err.txt");
-            Files.createParentDirs(err);
-            capture = new StreamCapture(out, err);
+            capture = new StreamCapture(
+                new File(outdir, prefix + ".out.txt"), new File(outdir, prefix + ".err.txt"));
             captures.put(test.getTestClass(), capture);
           }
           capture.incrementUseCount();
@@ -201,6 +332,8 @@ public class ConsoleRunner {
       for (StreamCapture capture : captures.values()) {
         capture.dispose();
       }
+      SWAPPABLE_OUT.route(null);
+      SWAPPABLE_ERR.route(null);
       super.testRunFinished(result);
     }
 
@@ -216,14 +349,24 @@ public class ConsoleRunner {
       super.testFinished(description);
     }
 
+    /**
+     * Captures output of the given test class that was written elsewhere.
+     */
+    void write(Class<?> testClass, boolean toErr, byte[] output) throws IOException {
+      StreamCapture capture = captures.get(testClass);
+      if (capture != null) {
+        capture.write(toErr, output);
+      }
+    }
+
     @Override
-    public byte[] readOut(Class<?> testClass) throws IOException {
-      return captures.get(testClass).readOut();
+    public InputStream openOut(Class<?> testClass) throws IOException {
+      return captures.get(testClass).openOut();
     }
 
     @Override
-    public byte[] readErr(Class<?> testClass) throws IOException {
-      return captures.get(testClass).readErr();
+    public InputStream openErr(Class<?> testClass) throws IOException {
+      return captures.get(testClass).openErr();
     }
   }
 
@@ -234,34 +377,80 @@ public class ConsoleRunner {
   private final boolean xmlReport;
   private final File outdir;
   private final boolean perTestTimer;
+  private final boolean asyncListeners;
   private final boolean defaultParallel;
+  private final boolean parallelMethods;
   private final int parallelThreads;
+  private final int workerProcesses;
   private final int testShard;
   private final int numTestShards;
+  private final File balanceTestShards;
   private final int numRetries;
+  private final File timingHistoryFile;
+  private final long slowTestThresholdMs;
+  private final long testTimeoutMs;
+  private final long classTimeoutMs;
+  private final boolean flightRecordings;
+  private final long flightRecordingThresholdMs;
+  private final boolean resourceUsage;
+  private final File eventStreamFile;
+  private final File flakyHistoryFile;
+  private final int virtualThreads;
+  private final boolean isolateClasses;
+  private ClassLoaderPool classLoaderPool;
 
   ConsoleRunner(
       boolean failFast,
       boolean suppressOutput,
       boolean xmlReport,
       boolean perTestTimer,
+      boolean asyncListeners,
       File outdir,
       boolean defaultParallel,
+      boolean parallelMethods,
       int parallelThreads,
+      int workerProcesses,
       int testShard,
       int numTestShards,
-      int numRetries) {
+      File balanceTestShards,
+      int numRetries,
+      File timingHistoryFile,
+      long slowTestThresholdMs,
+      long testTimeoutMs,
+      long classTimeoutMs,
+      boolean flightRecordings,
+      long flightRecordingThresholdMs,
+      boolean resourceUsage,
+      File eventStreamFile,
+      File flakyHistoryFile,
+      int virtualThreads,
+      boolean isolateClasses) {
 
     this.failFast = failFast;
     this.suppressOutput = suppressOutput;
     this.xmlReport = xmlReport;
     this.perTestTimer = perTestTimer;
+    this.asyncListeners = asyncListeners;
     this.outdir = outdir;
     this.defaultParallel = defaultParallel;
+    this.parallelMethods = parallelMethods;
     this.parallelThreads = parallelThreads;
+    this.workerProcesses = workerProcesses;
     this.testShard = testShard;
     this.numTestShards = numTestShards;
+    this.balanceTestShards = balanceTestShards;
     this.numRetries = numRetries;
+    this.timingHistoryFile = timingHistoryFile;
+    this.slowTestThresholdMs = slowTestThresholdMs;
+    this.testTimeoutMs = testTimeoutMs;
+    this.classTimeoutMs = classTimeoutMs;
+    this.flightRecordings = flightRecordings;
+    this.flightRecordingThresholdMs = flightRecordingThresholdMs;
+    this.resourceUsage = resourceUsage;
+    this.eventStreamFile = eventStreamFile;
+    this.flakyHistoryFile = flakyHistoryFile;
+    this.virtualThreads = virtualThreads;
+    this.isolateClasses = isolateClasses;
   }
 
   void run(Iterable<String> tests) {
@@ -272,38 +461,119 @@ public class ConsoleRunner {
 
     List<Request> requests = parseRequests(out, err, tests);
 
+    TimingHistory timingHistory = loadTimingHistory(timingHistoryFile, err);
+
     if (numTestShards > 0) {
-      requests = setFilterForTestShard(requests);
+      requests = setFilterForTestShard(requests,
+          balanceTestShards != null ? loadTimingHistory(balanceTestShards, err) : null);
     }
 
-    JUnitCore core = new JUnitCore();
+    FlakyTestHistory flakyHistory = loadFlakyHistory(err);
+    final DeferredRetryListener deferredRetries = deferRetries()
+        ? new DeferredRetryListener(flakyHistory, numRetries, err)
+        : null;
+
     final AbortableListener abortableListener = new AbortableListener(failFast) {
       @Override protected void abort(Result failureResult) {
-        exit(failureResult.getFailureCount());
+        // Without exiting, the run can only be stopped; the tests in flight still finish.
+        if (callSystemExitOnFinish || !stop()) {
+          exit(failureResult.getFailureCount());
+        }
+      }
+
+      @Override protected boolean isFinal(Failure failure) {
+        return deferredRetries == null || !deferredRetries.isDeferred(failure);
+      }
+
+      @Override protected void aborting() {
+        if (deferredRetries != null) {
+          deferredRetries.abandon();
+        }
+      }
+    };
+    JUnitCore core = new JUnitCore() {
+      @Override public Result run(Runner runner) {
+        return super.run(abortableListener.stoppable(runner));
       }
     };
     core.addListener(abortableListener);
 
-    if (xmlReport || suppressOutput) {
+    if (xmlReport || suppressOutput || flightRecordings || resourceUsage) {
       if (!outdir.exists()) {
         if (!outdir.mkdirs()) {
           throw new IllegalStateException("Failed to create output directory: " + outdir);
         }
       }
-      StreamCapturingListener streamCapturingListener = new StreamCapturingListener(outdir);
-      abortableListener.addListener(streamCapturingListener);
+    }
+    EventStreamListener eventStreamListener = null;
+    if (eventStreamFile != null) {
+      // On the test threads, so that events are stamped with the time and thread they happen on.
+      eventStreamListener = EventStreamListener.start(eventStreamFile, err);
+      abortableListener.addListener(eventStreamListener);
+    }
+
+    StreamCapturingListener streamCapturingListener = null;
+    if (xmlReport || suppressOutput) {
+      streamCapturingListener = new StreamCapturingListener(outdir);
+    }
+    if (flightRecordings && workerProcesses == 0) {
+      abortableListener.addListener(
+          new FlightRecorderListener(outdir, flightRecordingThresholdMs, err));
+    }
+
+    HangWatchdog hangWatchdog = null;
+    if (workerProcesses == 0
+        && (slowTestThresholdMs > 0 || testTimeoutMs > 0 || classTimeoutMs > 0)) {
+      // Ahead of the output capture, so that stack samples are captured with the test output.
+      hangWatchdog = new HangWatchdog(slowTestThresholdMs, testTimeoutMs, classTimeoutMs,
+          interruptGraceMs, outputSink(streamCapturingListener, out, err), abortableListener);
+      abortableListener.addListener(hangWatchdog);
+    }
+
+    ResourceUsageListener resourceUsageListener = null;
+    if (resourceUsage && workerProcesses == 0) {
+      // Measures on the test threads, ahead of the reports using the measurements.
+      resourceUsageListener = new ResourceUsageListener();
+      abortableListener.addListener(resourceUsageListener);
+    }
+
+    // Tests retried at the end of the run only finish then, which the listeners reporting on the
+    // outcome of tests wait for.
+    ListenerRegistry outcomeListeners = abortableListener;
+    if (deferredRetries != null) {
+      abortableListener.addListener(deferredRetries);
+      outcomeListeners = deferredRetries;
+    }
+
+    // Listeners that only report on the run may be moved off the test threads.
+    AsyncListener asyncListener = null;
+    ListenerRegistry reportListeners = outcomeListeners;
+    if (asyncListeners) {
+      asyncListener = AsyncListener.start(AsyncListener.DEFAULT_CAPACITY);
+      reportListeners = asyncListener;
+    }
+
+    if (streamCapturingListener != null) {
+      outcomeListeners.addListener(streamCapturingListener);
 
       if (xmlReport) {
         AntJunitXmlReportListener xmlReportListener =
-            new AntJunitXmlReportListener(outdir, streamCapturingListener);
-        abortableListener.addListener(xmlReportListener);
+            new AntJunitXmlReportListener(outdir, streamCapturingListener, resourceUsageListener);
+        reportListeners.addListener(xmlReportListener);
       }
     }
+    if (timingHistoryFile != null) {
+      reportListeners.addListener(new TimingListener(timingHistory));
+    }
 
     if (perTestTimer) {
-      abortableListener.addListener(new PerClassConsoleListener(out));
+      reportListeners.addListener(new PerClassConsoleListener(out));
     } else {
-      abortableListener.addListener(new ConsoleListener(out));
+      reportListeners.addListener(new ConsoleListener(out));
+    }
+    if (asyncListener != null) {
+      // After the output capture, so that output is captured before it is reported on.
+      outcomeListeners.addListener(asyncListener);
     }
 
     Thread abnormalExitHook = new Thread() {
@@ -321,12 +591,31 @@ public class ConsoleRunner {
     abnormalExitHook.setDaemon(true);
     Runtime.getRuntime().addShutdownHook(abnormalExitHook);
 
+    ThreadFactory virtualThreadFactory = null;
+    if (virtualThreads > 0 && workerProcesses == 0) {
+      virtualThreadFactory = ConcurrentRunnerScheduler.newVirtualThreadFactory();
+      if (virtualThreadFactory == null) {
+        err.println("Virtual threads are not supported by this JVM, ignoring -virtual-threads");
+      }
+    }
+
     int failures = 0;
     try {
-      if (this.parallelThreads > 1) {
-        ConcurrentCompositeRequest request = new ConcurrentCompositeRequest(
-            requests, this.defaultParallel, this.parallelThreads);
+      if (this.workerProcesses > 0) {
+        failures = runInWorkers(
+            requests, abortableListener, streamCapturingListener, out, err, timingHistory);
+      } else if (virtualThreadFactory != null) {
+        ConcurrentCompositeRequest request = new ConcurrentCompositeRequest(requests,
+            this.defaultParallel, this.parallelMethods, this.virtualThreads, timingHistory,
+            virtualThreadFactory);
         failures = core.run(request).getFailureCount();
+      } else if (this.parallelThreads > 1) {
+        ConcurrentCompositeRequest request = new ConcurrentCompositeRequest(requests,
+            this.defaultParallel, this.parallelMethods, this.parallelThreads, timingHistory);
+        failures = core.run(request).getFailureCount();
+      } else if (classLoaderPool != null) {
+        // Runs each class with its own class loader as the context class loader.
+        failures = core.run(new CompositeRequest(requests)).getFailureCount();
       } else {
         for (Request request : requests) {
           Result result = core.run(request);
@@ -335,12 +624,353 @@ public class ConsoleRunner {
       }
     } catch (InitializationError initializationError) {
       failures = 1;
+    } catch (StoppedByUserException e) {
+      failures = Math.max(1, abortableListener.getFailureCount());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failures = 1;
+    } finally {
+      Runtime.getRuntime().removeShutdownHook(abnormalExitHook);
+      if (asyncListener != null) {
+        asyncListener.close();
+      }
+      if (hangWatchdog != null) {
+        hangWatchdog.close();
+      }
+      if (classLoaderPool != null) {
+        classLoaderPool.close();
+      }
+    }
+
+    if (eventStreamListener != null) {
+      try {
+        eventStreamListener.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
     }
 
-    Runtime.getRuntime().removeShutdownHook(abnormalExitHook);
+    if (deferredRetries != null) {
+      failures -= deferredRetries.getRecoveredCount();
+    }
+
+    if (resourceUsageListener != null) {
+      try {
+        resourceUsageListener.writeSummary(outdir, out);
+      } catch (IOException e) {
+        err.printf("Failed to write the resource usage summary to %s: %s\n", outdir, e);
+      }
+    }
+    try {
+      timingHistory.store();
+    } catch (IOException e) {
+      err.printf("Failed to store timing history to %s: %s\n", timingHistoryFile, e);
+    }
+    try {
+      flakyHistory.store();
+    } catch (IOException e) {
+      err.printf("Failed to store flaky test history to %s: %s\n", flakyHistoryFile, e);
+    }
     exit(failures);
   }
 
+  private int runInWorkers(List<Request> requests, RunListener listener,
+      StreamCapturingListener streamCapturingListener,
+      PrintStream out, PrintStream err, TimingHistory timingHistory)
+      throws InterruptedException {
+
+    Description suite = Description.createSuiteDescription("Worker JVMs");
+    Map<Class<?>, List<Description>> testsByClass = Maps.newLinkedHashMap();
+    for (Request request : requests) {
+      Description description = request.getRunner().getDescription();
+      suite.addChild(description);
+      List<Description> tests = Lists.newArrayList();
+      collectTests(description, tests);
+      if (!tests.isEmpty()) {
+        Class<?> testClass = description.getTestClass();
+        if (!testsByClass.containsKey(testClass)) {
+          testsByClass.put(testClass, Lists.<Description>newArrayList());
+        }
+        testsByClass.get(testClass).addAll(tests);
+      }
+    }
+    List<Worker.Item> items = Lists.newArrayList();
+    for (Map.Entry<Class<?>, List<Description>> entry : testsByClass.entrySet()) {
+      items.add(new Worker.Item(entry.getKey(), entry.getValue()));
+    }
+    Collections.sort(items, timingHistory.longestFirst(new Function<Worker.Item, String>() {
+      @Override public String apply(Worker.Item item) {
+        return item.testClass.getName();
+      }
+    }));
+
+    WorkerPool.OutputSink outputSink = outputSink(streamCapturingListener, out, err);
+
+    // Mirrors JUnitCore.run, firing the test events as the workers send them back.
+    Result result = new Result();
+    RunNotifier notifier = new RunNotifier();
+    notifier.addFirstListener(result.createListener());
+    notifier.addListener(listener);
+    notifier.fireTestRunStarted(suite);
+    List<String> workerCommand = WorkerPool.workerCommand(numRetries, isolatedClasspath());
+    new WorkerPool(workerProcesses, workerCommand, err, classTimeoutMs)
+        .run(items, notifier, outputSink, timingHistory);
+    notifier.fireTestRunFinished(result);
+    return result.getFailureCount();
+  }
+
+  // Sends test output to its capture if output is captured, else to the console.
+  private static WorkerPool.OutputSink outputSink(
+      final StreamCapturingListener streamCapturingListener,
+      final PrintStream out, final PrintStream err) {
+
+    return new WorkerPool.OutputSink() {
+      @Override
+      public void write(Class<?> testClass, boolean stderr, byte[] output) throws IOException {
+        if (streamCapturingListener != null) {
+          streamCapturingListener.write(testClass, stderr, output);
+        } else {
+          (stderr ? err : out).write(output);
+        }
+      }
+    };
+  }
+
+  // The classpath we were loaded from if run isolated from the JVM classpath.
+  private static List<File> isolatedClasspath() {
+    List<File> classpath = Lists.newArrayList();
+    if (ConsoleRunner.class.getClassLoader() != ClassLoader.getSystemClassLoader()) {
+      for (URL url : ownClasspath()) {
+        classpath.add(new File(URI.create(url.toString())));
+      }
+    }
+    return classpath;
+  }
+
+  private static URL[] ownClasspath() {
+    ClassLoader classLoader = ConsoleRunner.class.getClassLoader();
+    if (classLoader != ClassLoader.getSystemClassLoader()
+        && classLoader instanceof URLClassLoader) {
+      return ((URLClassLoader) classLoader).getURLs();
+    }
+    List<URL> classpath = Lists.newArrayList();
+    for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      if (!entry.isEmpty()) {
+        try {
+          classpath.add(new File(entry).toURI().toURL());
+        } catch (MalformedURLException e) {
+          throw new IllegalStateException("Invalid classpath entry " + entry, e);
+        }
+      }
+    }
+    return classpath.toArray(new URL[classpath.size()]);
+  }
+
+  // The classpath entries of junit, this runner, the annotations it reads and the libraries it
+  // uses, which the tests must share with the runner.
+  private static List<URL> runnerClasspath() {
+    Set<URL> runnerClasspath = Sets.newLinkedHashSet();
+    for (Class<?> runnerClass : Arrays.asList(ConsoleRunner.class, JUnitCore.class,
+        org.hamcrest.Matcher.class, CmdLineParser.class, Preconditions.class, JsonStrings.class,
+        TestSerial.class)) {
+      runnerClasspath.add(runnerClass.getProtectionDomain().getCodeSource().getLocation());
+    }
+    return Lists.newArrayList(runnerClasspath);
+  }
+
+  private static List<String> selectAffected(
+      List<String> tests, ClassDependencyIndex index, Map<String, String> changes) {
+    List<String> affected = Lists.newArrayList();
+    for (String test : tests) {
+      Matcher matcher = METHOD_PARSER.matcher(test);
+      if (index.isAffected(matcher.matches() ? matcher.group(1) : test, changes)) {
+        affected.add(test);
+      }
+    }
+    return affected;
+  }
+
+  /**
+   * Runs each test class in its own {@link RecordingClassLoader}, recording the classes it loaded
+   * apart from those of the runner, its libraries and junit in the given index, if any.  Test
+   * classes with a result in the given cache, if any, are not run; their cached output and reports
+   * are replayed instead.  The results of test classes that pass are stored in the cache.
+   *
+   * @return The exit status of the run.
+   */
+  private static int runEachClassIsolated(String[] args, String[] testArgs, List<String> tests,
+      ClassDependencyIndex index, TestResultCache cache, File outdir, boolean failFast) {
+
+    // Run each test class with the same arguments apart from the tests, the discovery of tests,
+    // the recording options and the result cache.
+    Set<String> testArgSet = Sets.newHashSet(testArgs);
+    List<String> commonArgs = Lists.newArrayList();
+    // The options affecting the outcome of the tests, which results are cached by.
+    List<String> keyArgs = Lists.newArrayList();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-changed-classes")
+          || args[i].equals("-result-cache")
+          || args[i].equals("-result-cache-max-mb")) {
+        i++;
+      } else if (!args[i].equals("-record-class-deps")
+          && !args[i].equals("-discover")
+          && !testArgSet.contains(args[i])) {
+        commonArgs.add(args[i]);
+        if (args[i].equals("-outdir") && i + 1 < args.length) {
+          commonArgs.add(args[++i]);
+        } else {
+          keyArgs.add(args[i]);
+        }
+      }
+    }
+    Map<String, List<String>> testsByClass = Maps.newLinkedHashMap();
+    for (String test : tests) {
+      Matcher matcher = METHOD_PARSER.matcher(test);
+      String testClass = matcher.matches() ? matcher.group(1) : test;
+      if (!testsByClass.containsKey(testClass)) {
+        testsByClass.put(testClass, Lists.<String>newArrayList());
+      }
+      testsByClass.get(testClass).add(test);
+    }
+
+    URL[] classpath = ownClasspath();
+    List<URL> runnerClasspath = runnerClasspath();
+    int failures = 0;
+    for (Map.Entry<String, List<String>> entry : testsByClass.entrySet()) {
+      String testClass = entry.getKey();
+      String key = null;
+      List<File> reports = null;
+      if (cache != null) {
+        key = TestResultCache.key(entry.getValue(), keyArgs);
+        reports = Arrays.asList(new File(outdir, "TEST-" + testClass + ".xml"),
+            new File(outdir, testClass + ".out.txt"), new File(outdir, testClass + ".err.txt"));
+        try {
+          byte[] output = cache.replay(key, outdir);
+          if (output != null) {
+            System.out.printf("%s is unchanged since it passed, replaying its cached result\n",
+                testClass);
+            System.out.write(output);
+            System.out.flush();
+            continue;
+          }
+        } catch (IOException e) {
+          System.err.printf("Failed to replay the cached result of %s, running it: %s\n",
+              testClass, e);
+        }
+        // Reports left from earlier runs must not be cached as those of this run.
+        for (File report : reports) {
+          report.delete();
+        }
+      }
+
+      RecordingClassLoader classLoader = new RecordingClassLoader(
+          classpath, runnerClasspath, ClassLoader.getSystemClassLoader().getParent());
+      List<String> classArgs = Lists.newArrayList(commonArgs);
+      classArgs.addAll(entry.getValue());
+      PrintStream console = System.out;
+      ByteArrayOutputStream output = null;
+      if (cache != null) {
+        output = new ByteArrayOutputStream();
+        console = new PrintStream(new TeeOutputStream(System.out, output), true);
+      }
+      int status;
+      try {
+        status =
+            runIsolated(classLoader, classArgs.toArray(new String[classArgs.size()]), console);
+      } finally {
+        // URLClassLoader is only Closeable on Java 7 and later.
+        if (classLoader instanceof Closeable) {
+          try {
+            ((Closeable) classLoader).close();
+          } catch (IOException e) {
+            // What it loaded is recorded either way.
+          }
+        }
+      }
+      console.flush();
+      if (index != null) {
+        index.record(testClass, classLoader.getLoadedClasses());
+      }
+      if (cache != null) {
+        try {
+          if (status == 0) {
+            cache.store(key, classLoader.getLoadedResources(), output.toByteArray(), reports);
+          } else {
+            cache.invalidate(key);
+          }
+        } catch (IOException e) {
+          System.err.printf("Failed to cache the result of %s: %s\n", testClass, e);
+        }
+      }
+      failures += status;
+      if (failFast && status != 0) {
+        break;
+      }
+    }
+    if (index != null) {
+      try {
+        index.store();
+      } catch (IOException e) {
+        System.err.printf("Failed to store the class dependency index: %s\n", e);
+      }
+    }
+    if (cache != null) {
+      cache.evict();
+    }
+    return failures;
+  }
+
+  /**
+   * Writes to two streams at once.
+   */
+  private static class TeeOutputStream extends FilterOutputStream {
+    private final OutputStream copy;
+
+    TeeOutputStream(OutputStream out, OutputStream copy) {
+      super(out);
+      this.copy = copy;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      copy.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      copy.write(b, off, len);
+    }
+  }
+
+  // Flaky tests are retried at the end of the run if there is a history to find them in.
+  private boolean deferRetries() {
+    return flakyHistoryFile != null && workerProcesses == 0;
+  }
+
+  private FlakyTestHistory loadFlakyHistory(PrintStream err) {
+    if (flakyHistoryFile != null) {
+      try {
+        return FlakyTestHistory.load(flakyHistoryFile);
+      } catch (IOException e) {
+        err.printf("Failed to load flaky test history from %s: %s\n", flakyHistoryFile, e);
+      }
+    }
+    return FlakyTestHistory.none();
+  }
+
+  private static TimingHistory loadTimingHistory(File file, PrintStream err) {
+    if (file != null) {
+      try {
+        return TimingHistory.load(file);
+      } catch (IOException e) {
+        err.printf("Failed to load timing history from %s: %s\n", file, e);
+      }
+    }
+    return TimingHistory.none();
+  }
+
   private List<Request> parseRequests(PrintStream out, PrintStream err, Iterable<String> specs) {
     /**
      * Datatype representing an individual test method.
@@ -353,6 +983,12 @@ public class ConsoleRunner {
         this.name = name;
       }
     }
+    if (isolateClasses && workerProcesses == 0) {
+      // Spread over as many class loaders as classes are run at once.
+      int size = Math.max(1, virtualThreads > 0 ? virtualThreads : parallelThreads);
+      classLoaderPool = new ClassLoaderPool(
+          ownClasspath(), runnerClasspath(), ConsoleRunner.class.getClassLoader(), size);
+    }
     Set<TestMethod> testMethods = Sets.newLinkedHashSet();
     Set<Class<?>> classes = Sets.newLinkedHashSet();
     for (String spec : specs) {
@@ -387,11 +1023,14 @@ public class ConsoleRunner {
       }
     }
     List<Request> requests = Lists.newArrayList();
+    // Deferred retries are left to the DeferredRetryListener.
+    int immediateRetries = deferRetries() ? 0 : numRetries;
 
     if (!classes.isEmpty()) {
-      if (this.perTestTimer || this.parallelThreads > 1) {
+      if (this.perTestTimer || this.parallelThreads > 1 || this.virtualThreads > 0
+          || this.workerProcesses > 0 || classLoaderPool != null) {
         for (Class<?> clazz : classes) {
-          requests.add(new AnnotatedClassRequest(clazz, numRetries, err));
+          requests.add(new AnnotatedClassRequest(clazz, immediateRetries, err));
         }
       } else {
         // The code below does what the original call
@@ -399,7 +1038,7 @@ public class ConsoleRunner {
         // does, except that it instantiates our own builder, needed to support retries
         try {
           AllDefaultPossibilitiesBuilderWithRetry builder =
-              new AllDefaultPossibilitiesBuilderWithRetry(numRetries, err);
+              new AllDefaultPossibilitiesBuilderWithRetry(immediateRetries, err);
           Runner suite = new Computer().getSuite(
               builder, classes.toArray(new Class<?>[classes.size()]));
           requests.add(Request.runner(suite));
@@ -410,7 +1049,7 @@ public class ConsoleRunner {
       }
     }
     for (TestMethod testMethod : testMethods) {
-      requests.add(new AnnotatedClassRequest(testMethod.clazz, numRetries, err)
+      requests.add(new AnnotatedClassRequest(testMethod.clazz, immediateRetries, err)
           .filterWith(Description.createTestDescription(testMethod.clazz, testMethod.name)));
     }
     return requests;
@@ -419,6 +1058,9 @@ public class ConsoleRunner {
   // Loads classes without initializing them.  We just need the type, annotations and method
   // signatures, none of which requires initialization.
   private Class<?> loadClass(String name) throws ClassNotFoundException {
+    if (classLoaderPool != null) {
+      return classLoaderPool.loadClass(name);
+    }
     return Class.forName(name, /* initialize = */ false, getClass().getClassLoader());
   }
 
@@ -426,8 +1068,11 @@ public class ConsoleRunner {
    * Using JUnit4 test filtering mechanism, replaces the provided list of requests with
    * the one where each request has a filter attached. The filters are used to run only
    * one test shard, i.e. every Mth test out of N (testShard and numTestShards fields).
+   * If a timing history is given, tests with recorded durations are instead assigned to
+   * shards by {@link ShardBalancer}.
    */
-  private List<Request> setFilterForTestShard(List<Request> requests) {
+  private List<Request> setFilterForTestShard(List<Request> requests,
+      final TimingHistory balanceBy) {
     // The filter below can be called multiple times for the same test, at least
     // when parallelThreads is true. To maintain the stable "run - not run" test status,
     // we determine it once, when the test is seen for the first time (always in serial
@@ -435,6 +1080,7 @@ public class ConsoleRunner {
     class TestFilter extends Filter {
       private int testIdx;
       private HashMap<String, Boolean> testToRunStatus = new HashMap<String, Boolean>();
+      private Map<String, Integer> testToShard = new HashMap<String, Integer>();
 
       @Override
       public boolean shouldRun(Description desc) {
@@ -449,7 +1095,8 @@ public class ConsoleRunner {
           if (shouldRun != null) {
             return shouldRun;
           } else {
-            shouldRun = testIdx % numTestShards == testShard;
+            Integer shard = testToShard.get(descString);
+            shouldRun = (shard != null ? shard : testIdx % numTestShards) == testShard;
             testIdx++;
             testToRunStatus.put(descString, shouldRun);
             return shouldRun;
@@ -472,6 +1119,13 @@ public class ConsoleRunner {
 
     TestFilter testFilter = new TestFilter();
     AlphabeticComparator alphaComp = new AlphabeticComparator();
+    if (balanceBy != null) {
+      List<String> testNames = Lists.newArrayList();
+      for (Request request : requests) {
+        collectTestNames(request.sortWith(alphaComp).getRunner().getDescription(), testNames);
+      }
+      testFilter.testToShard = ShardBalancer.assign(testNames, balanceBy, numTestShards);
+    }
     ArrayList<Request> filteredRequests = new ArrayList<Request>(requests.size());
     for (Request request: requests) {
       filteredRequests.add(request.sortWith(alphaComp).filterWith(testFilter));
@@ -484,11 +1138,97 @@ public class ConsoleRunner {
     return filteredRequests;
   }
 
+  private static void collectTestNames(Description description, List<String> testNames) {
+    List<Description> tests = Lists.newArrayList();
+    collectTests(description, tests);
+    for (Description test : tests) {
+      testNames.add(test.getDisplayName());
+    }
+  }
+
+  private static void collectTests(Description description, List<Description> tests) {
+    if (description.isTest()) {
+      tests.add(description);
+    }
+    for (Description child : description.getChildren()) {
+      collectTests(child, tests);
+    }
+  }
+
   private void notFoundError(String spec, PrintStream out, Throwable t) {
     out.printf("FATAL: Error during test discovery for %s: %s\n", spec, t);
     throw new RuntimeException("Classloading error during test discovery for " + spec, t);
   }
 
+  /**
+   * Calls {@link #runIsolated(String[], PrintStream)} in the copy of this class loaded by
+   * {@code classLoader}.
+   *
+   * @param classLoader A class loader for the tests, junit and this runner.
+   * @param args The command line, as for {@link #main(String[])}.
+   * @param console The destination of the console output.
+   * @return The exit status of the run.
+   */
+  static int runIsolated(ClassLoader classLoader, String[] args, PrintStream console) {
+    try {
+      Method runIsolated = classLoader.loadClass(ConsoleRunner.class.getName())
+          .getDeclaredMethod("runIsolated", String[].class, PrintStream.class);
+      runIsolated.setAccessible(true);
+      return (Integer) runIsolated.invoke(null, args, console);
+    } catch (InvocationTargetException e) {
+      e.getCause().printStackTrace(console);
+    } catch (ClassNotFoundException e) {
+      e.printStackTrace(console);
+    } catch (NoSuchMethodException e) {
+      e.printStackTrace(console);
+    } catch (IllegalAccessException e) {
+      e.printStackTrace(console);
+    }
+    return 1;
+  }
+
+  /**
+   * Runs tests as directed by the command line {@code args}, directing all console output to
+   * {@code console} and returning rather than exiting.  This is called in a copy of this class
+   * loaded along with the test classes, as by a {@link RunnerDaemon} or to record the classes
+   * loaded by a test class.
+   *
+   * @param args The command line, as for {@link #main(String[])}.
+   * @param console The destination of the console output.
+   * @return The exit status of the run.
+   */
+  private static int runIsolated(String[] args, PrintStream console) {
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    OutputStream swappedOut = SWAPPABLE_OUT.swap(console);
+    OutputStream swappedErr = SWAPPABLE_ERR.swap(console);
+    System.setOut(console);
+    System.setErr(console);
+    Thread currentThread = Thread.currentThread();
+    ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+    currentThread.setContextClassLoader(ConsoleRunner.class.getClassLoader());
+    callSystemExitOnFinish = false;
+    exitStatus = 0;
+    try {
+      main(args);
+      return exitStatus;
+    // The run may fail in any way, it must not take the caller down.
+    // SUPPRESS CHECKSTYLE RegexpSinglelineJava
+    } catch (RuntimeException e) {
+      if (exitStatus == 0) {
+        e.printStackTrace(console);
+        return 1;
+      }
+      return exitStatus;
+    } finally {
+      currentThread.setContextClassLoader(contextClassLoader);
+      System.setOut(out);
+      System.setErr(err);
+      SWAPPABLE_OUT.swap(swappedOut);
+      SWAPPABLE_ERR.swap(swappedErr);
+    }
+  }
+
   /**
    * Launcher for JUnitConsoleRunner.
    */
@@ -516,10 +1256,21 @@ public class ConsoleRunner {
           usage = "Show progress and timer for each test class.")
       private boolean perTestTimer;
 
+      @Option(name = "-async-listeners",
+          usage = "Report on tests from a thread of its own, so that writing the console output "
+              + "and xml reports does not hold up the test threads.")
+      private boolean asyncListeners;
+
       @Option(name = "-default-parallel",
           usage = "Whether to run test classes without @TestParallel or @TestSerial in parallel.")
       private boolean defaultParallel;
 
+      @Option(name = "-parallel-methods",
+          usage = "Whether to also run the test methods of classes run in parallel in parallel. "
+              + "Classes annotated with @TestParallelMethods always have their methods run in "
+              + "parallel.")
+      private boolean parallelMethods;
+
       private int parallelThreads = 0;
 
       @Option(name = "-parallel-threads",
@@ -539,6 +1290,35 @@ public class ConsoleRunner {
         }
       }
 
+      private int virtualThreads;
+
+      @Option(name = "-virtual-threads",
+          usage = "Run the test classes and methods run in parallel on virtual threads instead, "
+              + "at most this many at once. For tests spending most of their time waiting. "
+              + "Requires Java 21 or later, and runs on -parallel-threads as usual otherwise. "
+              + "Stack samples, CPU time and allocations are not measured on virtual threads.")
+      public void setVirtualThreads(int virtualThreads) {
+        if (virtualThreads < 0) {
+          throw new InvalidCmdLineArgumentException(
+              "-virtual-threads", virtualThreads, "-virtual-threads cannot be negative");
+        }
+        this.virtualThreads = virtualThreads;
+      }
+
+      private int workerProcesses;
+
+      @Option(name = "-worker-processes",
+          usage = "Number of worker JVMs to run test classes in, one class at a time each. For "
+              + "tests that cannot share a JVM with other tests running concurrently. 0, the "
+              + "default, runs all tests in this JVM.")
+      public void setWorkerProcesses(int workerProcesses) {
+        if (workerProcesses < 0) {
+          throw new InvalidCmdLineArgumentException(
+              "-worker-processes", workerProcesses, "-worker-processes cannot be negative");
+        }
+        this.workerProcesses = workerProcesses;
+      }
+
       private int testShard;
       private int numTestShards;
 
@@ -563,6 +1343,20 @@ public class ConsoleRunner {
         }
       }
 
+      @Option(name = "-timing-history",
+          usage = "A file to keep the durations of test classes and tests in across runs. When "
+              + "running in parallel, test classes are started longest expected first. Runs "
+              + "sharing the file, like the shards of a test run, merge their durations into it.")
+      private File timingHistory;
+
+      @Option(name = "-balance-test-shards",
+          usage = "Assign tests to the -test-shard by their durations recorded in this file, so "
+              + "that all shards take about the same time. Tests without a recorded duration are "
+              + "assigned as usual. The file is only read, so it should be a copy of a "
+              + "-timing-history taken before any shard starts; all shards must use the same "
+              + "copy. It cannot be the -timing-history of the run itself.")
+      private File balanceTestShards;
+
       private int numRetries;
 
       @Option(name = "-num-retries",
@@ -575,10 +1369,112 @@ public class ConsoleRunner {
         this.numRetries = numRetries;
       }
 
+      @Option(name = "-class-deps-index",
+          usage = "A file to keep the classes loaded by each test class in, for "
+              + "-record-class-deps and -changed-classes.")
+      private File classDepsIndex;
+
+      @Option(name = "-record-class-deps",
+          usage = "Record the classes loaded by each test class in -class-deps-index. Each test "
+              + "class is run in a class loader of its own, which makes the run slower. Cannot be "
+              + "combined with -worker-processes.")
+      private boolean recordClassDeps;
+
+      @Option(name = "-changed-classes",
+          usage = "Only run the test classes that loaded any of these classes according to "
+              + "-class-deps-index, and those not recorded there. A comma separated list of "
+              + "class names, or of name=sha1 pairs giving the current sha1 of the class files. "
+              + "An @ prefixed value names a file with one entry per line.")
+      private String changedClasses;
+
+      @Option(name = "-result-cache",
+          usage = "A directory to cache the results of test classes that pass in. A test class is "
+              + "skipped, replaying its cached console output and reports, while none of the "
+              + "class files and resources it loaded when it passed have changed. Each test class "
+              + "is run in a class loader of its own, which makes the run slower. Cannot be "
+              + "combined with -worker-processes.")
+      private File resultCache;
+
+      private long resultCacheMaxMb = TestResultCache.DEFAULT_MAX_BYTES / (1024 * 1024);
+
+      @Option(name = "-result-cache-max-mb",
+          usage = "Evict the least recently used results once -result-cache takes more than this "
+              + "many megabytes, 256 by default.")
+      public void setResultCacheMaxMb(long resultCacheMaxMb) {
+        if (resultCacheMaxMb < 0) {
+          throw new InvalidCmdLineArgumentException("-result-cache-max-mb", resultCacheMaxMb,
+              "-result-cache-max-mb cannot be negative");
+        }
+        this.resultCacheMaxMb = resultCacheMaxMb;
+      }
+
+      @Option(name = "-daemon",
+          usage = "Instead of running tests, serve requests to run tests on a loopback port until "
+              + "killed. The port is printed to stdout. See RunnerDaemon for the protocol.")
+      private boolean daemon;
+
+      @Option(name = "-slow-test-threshold-ms",
+          usage = "Sample the stack of tests running longer than this every second, and write "
+              + "the samples to the stderr capture of the test class when the test finishes. "
+              + "0, the default, takes no samples. Not supported with -worker-processes.")
+      private long slowTestThresholdMs;
+
+      @Option(name = "-test-timeout-ms",
+          usage = "Interrupt tests running longer than this, writing a thread dump to the stderr "
+              + "capture of the test class, and abort the run if they do not stop. 0, the "
+              + "default, sets no timeout. Not supported with -worker-processes.")
+      private long testTimeoutMs;
+
+      @Option(name = "-class-timeout-ms",
+          usage = "Like -test-timeout-ms, but for all the tests of a test class together. With "
+              + "-worker-processes, the worker JVM running the class is killed instead, failing "
+              + "the tests of the class that have yet to finish.")
+      private long classTimeoutMs;
+
+      @Option(name = "-flight-recordings",
+          usage = "Keep a Java Flight Recorder recording of each test class in -outdir. Requires a "
+              + "JVM with flight recorder support. Not supported with -worker-processes.")
+      private boolean flightRecordings;
+
+      @Option(name = "-flight-recording-threshold-ms",
+          usage = "Discard the -flight-recordings of test classes that ran for less than this. 0, "
+              + "the default, keeps all recordings.")
+      private long flightRecordingThresholdMs;
+
+      @Option(name = "-resource-usage",
+          usage = "Measure the CPU time, allocated bytes and garbage collection time of each test. "
+              + "The measurements are added to the -xmlreport, and a summary listing the tests by "
+              + "CPU time is printed and written to -outdir. Not supported with -worker-processes.")
+      private boolean resourceUsage;
+
+      @Option(name = "-event-stream",
+          usage = "Write the events of the run to this file or named pipe as they happen, one JSON "
+              + "object per line.")
+      private File eventStream;
+
+      @Option(name = "-flaky-history",
+          usage = "A file to keep the outcomes of tests in across runs. If set, failing tests are "
+              + "retried, up to -num-retries times, once all other tests have finished, unless "
+              + "the history shows they do not flip between failing and passing. Not supported "
+              + "with -worker-processes.")
+      private File flakyHistory;
+
+      @Option(name = "-isolate-classes",
+          usage = "Load the test classes and their dependencies apart from junit in class loaders "
+              + "of their own, so that test classes run at once do not share static state. Test "
+              + "classes only share class loaders, one at a time, with classes run before them. "
+              + "Not supported with -worker-processes.")
+      private boolean isolateClasses;
+
+      @Option(name = "-discover",
+          usage = "Treat TESTS as classpath roots, directories or jars, and run the test classes "
+              + "found in them. The class files are scanned without loading the classes.")
+      private boolean discover;
+
       @Argument(usage = "Names of junit test classes or test methods to run.  Names prefixed "
                         + "with @ are considered arg file paths and these will be loaded and the "
-                        + "whitespace delimited arguments found inside added to the list",
-                required = true,
+                        + "whitespace delimited arguments found inside added to the list.  "
+                        + "Required unless -daemon is set.",
                 metaVar = "TESTS",
                 handler = StringArrayOptionHandler.class)
       private String[] tests = {};
@@ -596,17 +1492,53 @@ public class ConsoleRunner {
       exit(1);
     }
 
+    if (options.daemon) {
+      try {
+        RunnerDaemon.create(ClassLoaderCache.forJvmClasspath()).serve(System.out);
+      } catch (IOException e) {
+        System.err.printf("Failed to run the daemon: %s\n", e);
+        exit(1);
+      }
+      return;
+    }
+    if (options.tests.length == 0
+        || options.slowTestThresholdMs < 0
+        || options.testTimeoutMs < 0
+        || options.classTimeoutMs < 0
+        || options.flightRecordingThresholdMs < 0
+        || (options.balanceTestShards != null && options.timingHistory != null
+            && options.balanceTestShards.getAbsoluteFile()
+                .equals(options.timingHistory.getAbsoluteFile()))) {
+      parser.printUsage(System.err);
+      exit(1);
+    }
+
     ConsoleRunner runner =
         new ConsoleRunner(options.failFast,
             options.suppressOutput,
             options.xmlReport,
             options.perTestTimer,
+            options.asyncListeners,
             options.outdir,
             options.defaultParallel,
+            options.parallelMethods,
             options.parallelThreads,
+            options.workerProcesses,
             options.testShard,
             options.numTestShards,
-            options.numRetries);
+            options.balanceTestShards,
+            options.numRetries,
+            options.timingHistory,
+            options.slowTestThresholdMs,
+            options.testTimeoutMs,
+            options.classTimeoutMs,
+            options.flightRecordings,
+            options.flightRecordingThresholdMs,
+            options.resourceUsage,
+            options.eventStream,
+            options.flakyHistory,
+            options.virtualThreads,
+            options.isolateClasses);
 
     List<String> tests = Lists.newArrayList();
     for (String test : options.tests) {
@@ -623,6 +1555,67 @@ public class ConsoleRunner {
       }
     }
 
+    if (options.discover) {
+      List<File> roots = Lists.newArrayList();
+      for (String root : tests) {
+        if (!root.isEmpty()) {
+          roots.add(new File(root));
+        }
+      }
+      try {
+        tests = TestClassScanner.scan(roots, ConsoleRunner.class.getClassLoader(),
+            Runtime.getRuntime().availableProcessors());
+      } catch (IOException e) {
+        System.err.printf("Failed to discover test classes: %s\n", e);
+        exit(1);
+      }
+    }
+
+    TestResultCache resultCache = null;
+    if (options.resultCache != null) {
+      if (options.workerProcesses > 0) {
+        parser.printUsage(System.err);
+        exit(1);
+      }
+      resultCache = new TestResultCache(options.resultCache,
+          new URLClassLoader(ownClasspath(), ClassLoader.getSystemClassLoader().getParent()),
+          options.resultCacheMaxMb * 1024 * 1024);
+    }
+
+    if (options.recordClassDeps || options.changedClasses != null) {
+      if (options.classDepsIndex == null
+          || (options.recordClassDeps && options.workerProcesses > 0)) {
+        parser.printUsage(System.err);
+        exit(1);
+      }
+      ClassDependencyIndex index = null;
+      try {
+        index = ClassDependencyIndex.load(options.classDepsIndex);
+        if (options.changedClasses != null) {
+          tests = selectAffected(
+              tests, index, ClassDependencyIndex.parseChanges(options.changedClasses));
+        }
+      } catch (IOException e) {
+        System.err.printf("Failed to load the class dependency index: %s\n", e);
+        exit(1);
+      }
+      if (tests.isEmpty()) {
+        System.out.println("No tests affected by the changed classes.");
+        exit(0);
+        return;
+      }
+      if (options.recordClassDeps) {
+        exit(runEachClassIsolated(args, options.tests, tests, index, resultCache,
+            options.outdir, options.failFast));
+        return;
+      }
+    }
+    if (resultCache != null) {
+      exit(runEachClassIsolated(args, options.tests, tests, null, resultCache, options.outdir,
+          options.failFast));
+      return;
+    }
+
     runner.run(tests);
   }
 
@@ -686,6 +1679,10 @@ public class ConsoleRunner {
     callSystemExitOnFinish = v;
   }
 
+  static void setInterruptGraceMs(long v) {
+    interruptGraceMs = v;
+  }
+
   static int getExitStatus() {
     return exitStatus;
   }
@@ -0,0 +1,188 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.junit.runner.Description;
+import org.junit.runner.Request;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+
+/**
+ * A run listener that retries failing tests known to be flaky once all other tests of the run
+ * have finished, rather than right away, so that real failures do not hold up the run.
+ * <p>
+ * The failure of a test found flaky by the {@link FlakyTestHistory}, or not known to it at all, is
+ * held back from the listeners registered here, as is the end of the test.  Only tests the history
+ * knows to fail for real are not retried.  At the end of the run the held back tests
+ * are retried one at a time, each in a run of its own test class filtered down to the test, up to
+ * the given number of times.  A test passing on a retry is reported as a FLAKY pass, one failing
+ * all retries with its first failure.  The outcome of all tests is recorded in the history.
+ * <p>
+ * Listeners measuring tests on the threads running them must not be registered here, since tests
+ * held back appear to run until they are retried.  Each retry is forwarded to the listeners here
+ * as another start of its test, which routes the output of the retry to the capture of its test
+ * class.  The result forwarded with the end of the run counts each test once, by its final
+ * outcome.
+ */
+class DeferredRetryListener extends ForwardingListener {
+
+  private final FlakyTestHistory history;
+  private final int numRetries;
+  private final PrintStream err;
+
+  private final Map<Description, Failure> deferred = Maps.newLinkedHashMap();
+  private final Set<Description> failed = Sets.newHashSet();
+  private Result result;
+  private RunListener resultListener;
+  private int recovered;
+  private boolean aborting;
+
+  /**
+   * @param history The history to find flaky tests in and to record outcomes to.
+   * @param numRetries The most times to retry a flaky test.
+   * @param err The stream to report flaky tests on.
+   */
+  DeferredRetryListener(FlakyTestHistory history, int numRetries, PrintStream err) {
+    Preconditions.checkArgument(numRetries >= 0);
+    this.history = Preconditions.checkNotNull(history);
+    this.numRetries = numRetries;
+    this.err = Preconditions.checkNotNull(err);
+  }
+
+  /**
+   * Returns {@code true} if the failure will be retried at the end of the run rather than
+   * reported as is.
+   */
+  synchronized boolean isDeferred(Failure failure) {
+    return deferred.get(failure.getDescription()) == failure;
+  }
+
+  /**
+   * Returns the number of tests that failed at first but passed on a retry.
+   */
+  synchronized int getRecoveredCount() {
+    return recovered;
+  }
+
+  /**
+   * Reports the tests held back with their failures at the end of the run, rather than retrying
+   * them.  Called when the run is aborted.
+   */
+  synchronized void abandon() {
+    aborting = true;
+  }
+
+  @Override
+  public synchronized void testRunStarted(Description description) throws Exception {
+    result = new Result();
+    resultListener = result.createListener();
+    resultListener.testRunStarted(description);
+    super.testRunStarted(description);
+  }
+
+  @Override
+  public synchronized void testStarted(Description description) throws Exception {
+    resultListener.testStarted(description);
+    super.testStarted(description);
+  }
+
+  @Override
+  public synchronized void testFailure(Failure failure) throws Exception {
+    Description test = failure.getDescription();
+    if (numRetries > 0 && !aborting && test.getTestClass() != null && test.getMethodName() != null
+        && !deferred.containsKey(test) && isWorthRetrying(test.getDisplayName())) {
+      deferred.put(test, failure);
+      return;
+    }
+    failed.add(test);
+    resultListener.testFailure(failure);
+    super.testFailure(failure);
+  }
+
+  @Override
+  public synchronized void testAssumptionFailure(Failure failure) {
+    resultListener.testAssumptionFailure(failure);
+    super.testAssumptionFailure(failure);
+  }
+
+  @Override
+  public synchronized void testIgnored(Description description) throws Exception {
+    resultListener.testIgnored(description);
+    super.testIgnored(description);
+  }
+
+  @Override
+  public synchronized void testFinished(Description description) throws Exception {
+    if (!deferred.containsKey(description)) {
+      finish(description, failed.remove(description));
+    }
+  }
+
+  @Override
+  public synchronized void testRunFinished(Result ignored) throws Exception {
+    Map<Description, Failure> retries = ImmutableMap.copyOf(deferred);
+    deferred.clear();
+    for (Map.Entry<Description, Failure> entry : retries.entrySet()) {
+      Description test = entry.getKey();
+      int attempts = aborting ? 0 : retry(test);
+      if (attempts > 0) {
+        err.println("Test " + test.getDisplayName() + " is FLAKY; passed after "
+            + (attempts + 1) + " attempts");
+        history.recordFlaky(test.getDisplayName());
+        recovered++;
+        resultListener.testFinished(test);
+        super.testFinished(test);
+      } else {
+        resultListener.testFailure(entry.getValue());
+        super.testFailure(entry.getValue());
+        finish(test, true);
+      }
+    }
+    resultListener.testRunFinished(result);
+    super.testRunFinished(result);
+  }
+
+  // Tests without a history are retried as they would be without -flaky-history.
+  private boolean isWorthRetrying(String test) {
+    return history.isFlaky(test) || !history.isKnown(test);
+  }
+
+  // Returns the number of retries it took the test to pass; 0 if it did not.
+  private int retry(Description test) throws Exception {
+    for (int i = 1; i <= numRetries; i++) {
+      super.testStarted(test);
+      Result attempt = new Result();
+      RunNotifier notifier = new RunNotifier();
+      notifier.addListener(attempt.createListener());
+      Request.aClass(test.getTestClass()).filterWith(test).getRunner().run(notifier);
+      if (attempt.getRunCount() > 0 && attempt.wasSuccessful()) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  private void finish(Description test, boolean testFailed) throws Exception {
+    if (test.getMethodName() != null) {
+      if (testFailed) {
+        history.recordFailed(test.getDisplayName());
+      } else {
+        history.recordPassed(test.getDisplayName());
+      }
+    }
+    resultListener.testFinished(test);
+    super.testFinished(test);
+  }
+}
@@ -0,0 +1,216 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.pantsbuild.json.JsonStrings;
+
+/**
+ * A run listener that streams the events of the run to a file as they happen, one JSON object per
+ * line, so that the progress of a run can be followed while it is running.
+ * <p>
+ * Each event has an {@code event} type, a {@code nanos} timestamp counted from when the listener
+ * was created on a monotonic clock, and the name of the {@code thread} it happened on.  Test events
+ * identify the {@code test} by its {@code class} and {@code method}; failures add the
+ * {@code message} and {@code trace} of the failure.  The {@code run_started} event adds the wall
+ * clock time as {@code epoch_ms} and the number of {@code tests}, and the {@code run_finished}
+ * event adds the counts of the run.
+ * <p>
+ * The events are formatted on the threads they happen on and written by a thread of the listener's
+ * own, which also opens the file, so that neither a slow reader nor a named pipe without a reader
+ * holds up the tests.  Should writing fail, a warning is printed once and later events are
+ * dropped.  Likewise, at most {@link #MAX_QUEUED_EVENTS} events are kept waiting to be written;
+ * should the writer fall that far behind, a warning is printed once and events are dropped until
+ * it catches up.
+ */
+class EventStreamListener extends RunListener {
+
+  static final long CLOSE_TIMEOUT_MS = 10000;
+  static final int MAX_QUEUED_EVENTS = 10000;
+
+  // Marks the end of the stream in the queue.
+  private static final String END = new String("");
+
+  private final File file;
+  private final PrintStream err;
+  private final long originNs = System.nanoTime();
+  private final BlockingQueue<String> events;
+  private final Thread writer;
+  private final AtomicBoolean dropping = new AtomicBoolean();
+  private volatile boolean failed;
+
+  /**
+   * Creates a listener and starts its writer thread.
+   *
+   * @param file The file or named pipe to write the events to.
+   * @param err The stream to warn on should writing fail or fall behind.
+   */
+  static EventStreamListener start(File file, PrintStream err) {
+    EventStreamListener listener = new EventStreamListener(file, err, MAX_QUEUED_EVENTS);
+    listener.writer.start();
+    return listener;
+  }
+
+  /**
+   * Creates a listener without starting its writer thread.
+   *
+   * @param file The file or named pipe to write the events to.
+   * @param err The stream to warn on should writing fail or fall behind.
+   * @param maxQueuedEvents The most events to keep waiting to be written.
+   */
+  EventStreamListener(File file, PrintStream err, int maxQueuedEvents) {
+    this.file = Preconditions.checkNotNull(file);
+    this.err = Preconditions.checkNotNull(err);
+    events = new LinkedBlockingQueue<String>(maxQueuedEvents);
+    writer = new Thread("junit-event-stream") {
+      @Override public void run() {
+        write();
+      }
+    };
+    writer.setDaemon(true);
+  }
+
+  /**
+   * Ends the stream, waiting up to {@link #CLOSE_TIMEOUT_MS} milliseconds for the events published
+   * so far to be written.
+   */
+  void close() throws InterruptedException {
+    long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MS);
+    if (events.offer(END, CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNs - System.nanoTime());
+      if (remainingMs > 0) {
+        writer.join(remainingMs);
+      }
+    }
+  }
+
+  @Override
+  public void testRunStarted(Description description) {
+    publish(event("run_started")
+        .append(",\"epoch_ms\":").append(System.currentTimeMillis())
+        .append(",\"tests\":").append(description.testCount())
+        .append('}').toString());
+  }
+
+  @Override
+  public void testRunFinished(Result result) {
+    publish(event("run_finished")
+        .append(",\"run_count\":").append(result.getRunCount())
+        .append(",\"failure_count\":").append(result.getFailureCount())
+        .append(",\"ignore_count\":").append(result.getIgnoreCount())
+        .append(",\"run_time_ms\":").append(result.getRunTime())
+        .append('}').toString());
+  }
+
+  @Override
+  public void testStarted(Description description) {
+    publish(testEvent("test_started", description).append('}').toString());
+  }
+
+  @Override
+  public void testFinished(Description description) {
+    publish(testEvent("test_finished", description).append('}').toString());
+  }
+
+  @Override
+  public void testIgnored(Description description) {
+    publish(testEvent("test_ignored", description).append('}').toString());
+  }
+
+  @Override
+  public void testFailure(Failure failure) {
+    publish(failureEvent("test_failed", failure));
+  }
+
+  @Override
+  public void testAssumptionFailure(Failure failure) {
+    publish(failureEvent("assumption_failed", failure));
+  }
+
+  private void publish(String event) {
+    if (failed) {
+      return;
+    }
+    if (!events.offer(event) && dropping.compareAndSet(false, true)) {
+      err.printf("Test events are written to %s too slowly, dropping events\n", file);
+    }
+  }
+
+  private StringBuilder event(String type) {
+    return new StringBuilder("{\"event\":\"").append(type)
+        .append("\",\"nanos\":").append(System.nanoTime() - originNs)
+        .append(",\"thread\":").append(JsonStrings.quote(Thread.currentThread().getName()));
+  }
+
+  private StringBuilder testEvent(String type, Description description) {
+    return event(type)
+        .append(",\"test\":").append(JsonStrings.quote(description.getDisplayName()))
+        .append(",\"class\":").append(JsonStrings.quote(description.getClassName()))
+        .append(",\"method\":").append(JsonStrings.quote(description.getMethodName()));
+  }
+
+  private String failureEvent(String type, Failure failure) {
+    return testEvent(type, failure.getDescription())
+        .append(",\"message\":").append(JsonStrings.quote(failure.getMessage()))
+        .append(",\"trace\":").append(JsonStrings.quote(failure.getTrace()))
+        .append('}').toString();
+  }
+
+  private void write() {
+    Writer out = null;
+    List<String> batch = Lists.newArrayList();
+    try {
+      while (true) {
+        batch.add(events.take());
+        events.drainTo(batch);
+        if (out == null) {
+          out = new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8);
+        }
+        for (String event : batch) {
+          if (event == END) {
+            return;
+          }
+          out.write(event);
+          out.write('\n');
+        }
+        // Only flush once caught up, so that bursts of events are written together.
+        out.flush();
+        batch.clear();
+      }
+    } catch (IOException e) {
+      err.printf("Failed to write test events to %s, dropping further events: %s\n", file, e);
+      failed = true;
+      events.clear();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // Closing is best effort; a failure to write has been reported already.
+        }
+      }
+    }
+  }
+}
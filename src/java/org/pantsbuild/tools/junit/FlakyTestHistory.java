@@ -0,0 +1,177 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
+
+/**
+ * The outcomes of tests in previous runs, used to decide which failing tests are worth retrying.
+ * <p>
+ * Each test has a count of the evidence of it being flaky.  Passing on a retry adds
+ * {@link #FLAKY_THRESHOLD} to it, since the test then both failed and passed against the same code,
+ * and passing in a run after having failed in the run before adds 1, since the failure may just as
+ * well have been fixed.  A test is taken to be flaky once its count reaches
+ * {@link #FLAKY_THRESHOLD}, so it takes repeated flips between failing and passing across runs.
+ * The count decays by 1 for every {@link #DECAY_PASSES} runs in a row the test passes in, so tests
+ * that were fixed are eventually no longer retried.
+ * <p>
+ * Entries are keyed by test display name and stored in a plain text file with one
+ * {@code [count] [passes] [name]} line per test, where passes is the number of runs in a row the
+ * test passed in, 0 if it failed in the last run it was in.
+ */
+final class FlakyTestHistory {
+
+  static final int FLAKY_THRESHOLD = 2;
+  static final int DECAY_PASSES = 10;
+
+  private static final Splitter FIELD_SPLITTER = Splitter.on(' ').limit(3);
+
+  private static final class Entry {
+    private int count;
+    private int passes;
+
+    Entry(int count, int passes) {
+      this.count = count;
+      this.passes = passes;
+    }
+  }
+
+  /**
+   * Returns an empty history that is not persisted.
+   */
+  static FlakyTestHistory none() {
+    return new FlakyTestHistory(null);
+  }
+
+  /**
+   * Loads the history stored at {@code file}, if any.
+   *
+   * @param file The file the history is stored in.
+   * @return The loaded history; empty if there was none stored yet.
+   * @throws IOException If there is a problem reading the history.
+   */
+  static FlakyTestHistory load(File file) throws IOException {
+    FlakyTestHistory history = new FlakyTestHistory(file);
+    if (file.isFile()) {
+      for (String line : Files.readLines(file, Charsets.UTF_8)) {
+        List<String> fields = FIELD_SPLITTER.splitToList(line);
+        if (fields.size() == 3) {
+          try {
+            history.entries.put(fields.get(2),
+                new Entry(Integer.parseInt(fields.get(0)), Integer.parseInt(fields.get(1))));
+          } catch (NumberFormatException e) {
+            // Skip the malformed line; the test is retried as if it had no history.
+          }
+        }
+      }
+    }
+    return history;
+  }
+
+  private final File file;
+  private final Map<String, Entry> entries = Maps.newHashMap();
+
+  private FlakyTestHistory(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Returns {@code true} if the named test has been in a run recorded before.
+   */
+  synchronized boolean isKnown(String name) {
+    return entries.containsKey(name);
+  }
+
+  /**
+   * Returns {@code true} if the named test has been found flaky before.
+   */
+  synchronized boolean isFlaky(String name) {
+    Entry entry = entries.get(name);
+    return entry != null && entry.count >= FLAKY_THRESHOLD;
+  }
+
+  /**
+   * Records that the named test passed without retries.
+   */
+  synchronized void recordPassed(String name) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entries.put(name, new Entry(0, 1));
+    } else if (entry.passes == 0) {
+      // Passing after failing in the previous run hints at the test being flaky.
+      entry.count++;
+      entry.passes = 1;
+    } else {
+      entry.passes++;
+      if (entry.passes % DECAY_PASSES == 0 && entry.count > 0) {
+        entry.count--;
+      }
+    }
+  }
+
+  /**
+   * Records that the named test failed, retries included.
+   */
+  synchronized void recordFailed(String name) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entries.put(name, new Entry(0, 0));
+    } else {
+      entry.passes = 0;
+    }
+  }
+
+  /**
+   * Records that the named test passed on a retry.
+   */
+  synchronized void recordFlaky(String name) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entries.put(name, new Entry(FLAKY_THRESHOLD, 1));
+    } else {
+      entry.count += FLAKY_THRESHOLD;
+      entry.passes = 1;
+    }
+  }
+
+  /**
+   * Stores the history back to the file it was loaded from, if any.
+   *
+   * @throws IOException If there is a problem writing the history.
+   */
+  synchronized void store() throws IOException {
+    if (file == null) {
+      return;
+    }
+    SortedMap<String, Entry> sorted = ImmutableSortedMap.copyOf(entries);
+    Files.createParentDirs(file);
+    File tmp = new File(file.getPath() + ".tmp");
+    Closer closer = Closer.create();
+    try {
+      Writer out = closer.register(Files.newWriter(tmp, Charsets.UTF_8));
+      for (Map.Entry<String, Entry> entry : sorted.entrySet()) {
+        out.write(entry.getValue().count + " " + entry.getValue().passes + " " + entry.getKey()
+            + "\n");
+      }
+    } catch (IOException e) {
+      throw closer.rethrow(e);
+    } finally {
+      closer.close();
+    }
+    file.delete();
+    Files.move(tmp, file);
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * A run listener that keeps a Java Flight Recorder recording of each test class, from the start of
+ * its first test to the end of its last, as {@code [test class].jfr} in the output directory.
+ * Recordings of test classes that ran for less than a threshold are discarded.
+ * <p>
+ * Recordings are controlled through the diagnostic command MBean, so that the runner does not
+ * depend on the flight recorder API.  If the JVM does not support flight recordings, a warning is
+ * printed once and no recordings are made.  Note that a recording covers the whole JVM, so that
+ * the recordings of test classes run in parallel include each other's events.
+ */
+class FlightRecorderListener extends RunListener {
+
+  private static final String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+  private static final String[] SIGNATURE = {String[].class.getName()};
+
+  private final File outdir;
+  private final long thresholdNs;
+  private final PrintStream err;
+
+  private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+  private final Map<Class<?>, Integer> remainingTests = Maps.newHashMap();
+  private final Map<Class<?>, Long> recordingStarts = Maps.newHashMap();
+  private boolean enabled = true;
+
+  /**
+   * @param outdir The directory to write recordings to.
+   * @param thresholdMs The least time a test class must run for to keep its recording.
+   * @param err The stream to warn on should recordings fail.
+   */
+  FlightRecorderListener(File outdir, long thresholdMs, PrintStream err) {
+    this.outdir = outdir;
+    this.thresholdNs = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+    this.err = err;
+  }
+
+  @Override
+  public synchronized void testRunStarted(Description description) {
+    countTests(description);
+  }
+
+  private void countTests(Description description) {
+    for (Description child : description.getChildren()) {
+      countTests(child);
+    }
+    if (Util.isRunnable(description)) {
+      Integer count = remainingTests.get(description.getTestClass());
+      remainingTests.put(description.getTestClass(), count == null ? 1 : count + 1);
+    }
+  }
+
+  @Override
+  public synchronized void testStarted(Description description) {
+    Class<?> testClass = description.getTestClass();
+    if (enabled && !recordingStarts.containsKey(testClass)
+        && execute("jfrStart", "name=" + testClass.getName(), "settings=profile")) {
+      recordingStarts.put(testClass, System.nanoTime());
+    }
+  }
+
+  @Override
+  public synchronized void testFinished(Description description) {
+    Class<?> testClass = description.getTestClass();
+    Integer remaining = remainingTests.get(testClass);
+    if (remaining != null && remaining > 1) {
+      remainingTests.put(testClass, remaining - 1);
+    } else {
+      remainingTests.remove(testClass);
+      Long startNs = recordingStarts.remove(testClass);
+      if (startNs != null) {
+        stop(testClass, System.nanoTime() - startNs >= thresholdNs);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void testRunFinished(Result result) {
+    // Classes still recording did not finish, which makes their recordings of interest.
+    for (Class<?> testClass : ImmutableList.copyOf(recordingStarts.keySet())) {
+      stop(testClass, true);
+    }
+    recordingStarts.clear();
+  }
+
+  private void stop(Class<?> testClass, boolean keep) {
+    String name = "name=" + testClass.getName();
+    if (keep) {
+      File recording = new File(outdir, testClass.getName() + ".jfr");
+      execute("jfrStop", name, "filename=" + recording.getAbsolutePath());
+    } else {
+      execute("jfrStop", name);
+    }
+  }
+
+  private boolean execute(String command, String... args) {
+    try {
+      mBeanServer.invoke(
+          new ObjectName(DIAGNOSTIC_COMMAND), command, new Object[] {args}, SIGNATURE);
+      return true;
+    } catch (JMException e) {
+      if (enabled) {
+        err.printf("Failed to run %s, disabling flight recordings: %s\n", command, e);
+        enabled = false;
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,303 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * A run listener that watches over the tests in flight to find out where slow tests spend their
+ * time and to stop tests that hang.
+ * <p>
+ * Once a test has run longer than the slow test threshold, the stack of the thread running it is
+ * sampled every {@link #SAMPLE_INTERVAL_MS} milliseconds.  When the test finishes, the distinct
+ * stacks sampled are written to the test class's captured stderr, most frequent first, and so end
+ * up in the capture directory and the xml report.
+ * <p>
+ * A test running longer than the test timeout, or in a test class running longer than the class
+ * timeout, is timed out: the samples and a dump of all threads are written out, and the thread
+ * running the test is interrupted.  Should the test still not finish within
+ * {@link #INTERRUPT_GRACE_MS} milliseconds, the run is aborted with a failure for the test,
+ * delivered through the notifier of the run.
+ * <p>
+ * Must be registered ahead of the listener capturing output, so the samples of a test are written
+ * before its capture is closed.  Tests are expected to be started and finished on the thread
+ * running them.
+ */
+class HangWatchdog extends RunListener {
+
+  static final long SAMPLE_INTERVAL_MS = 1000;
+  static final long INTERRUPT_GRACE_MS = 10000;
+
+  private static final int MAX_STACK_DEPTH = 256;
+
+  /**
+   * Fails a test that did not finish within its timeout.
+   */
+  static class TimedOutException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    TimedOutException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * A test in flight.
+   */
+  private static final class Run {
+    private final Description test;
+    private final Thread thread;
+    private final long startNs;
+    private final Multiset<String> samples = HashMultiset.create();
+    private long interruptedNs;
+
+    Run(Description test, Thread thread, long startNs) {
+      this.test = test;
+      this.thread = thread;
+      this.startNs = startNs;
+    }
+  }
+
+  /**
+   * A test class in flight.
+   */
+  private static final class ClassRun {
+    private final long startNs;
+    private int remaining;
+
+    ClassRun(long startNs, int remaining) {
+      this.startNs = startNs;
+      this.remaining = remaining;
+    }
+  }
+
+  private final long slowTestThresholdNs;
+  private final long testTimeoutNs;
+  private final long classTimeoutNs;
+  private final long interruptGraceNs;
+  private final WorkerPool.OutputSink outputSink;
+  private final AbortableListener abortableListener;
+
+  private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+  private final ConcurrentMap<Description, Run> tests = Maps.newConcurrentMap();
+  private final Map<Class<?>, Integer> testCounts = Maps.newHashMap();
+  private final Map<Class<?>, ClassRun> classes = Maps.newHashMap();
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param slowTestThresholdMs How long a test runs before its stack is sampled; 0 to not sample.
+   * @param testTimeoutMs How long a test may run; 0 for no limit.
+   * @param classTimeoutMs How long the tests of a test class may run; 0 for no limit.
+   * @param outputSink The destination of the stack samples and thread dumps.
+   * @param abortableListener The listener to abort the run through.
+   */
+  HangWatchdog(long slowTestThresholdMs, long testTimeoutMs, long classTimeoutMs,
+      WorkerPool.OutputSink outputSink, AbortableListener abortableListener) {
+    this(slowTestThresholdMs, testTimeoutMs, classTimeoutMs, INTERRUPT_GRACE_MS, outputSink,
+        abortableListener);
+  }
+
+  /**
+   * @param interruptGraceMs How long a timed out test may take to finish once interrupted.
+   */
+  HangWatchdog(long slowTestThresholdMs, long testTimeoutMs, long classTimeoutMs,
+      long interruptGraceMs, WorkerPool.OutputSink outputSink,
+      AbortableListener abortableListener) {
+    Preconditions.checkArgument(slowTestThresholdMs >= 0 && testTimeoutMs >= 0
+        && classTimeoutMs >= 0 && interruptGraceMs >= 0);
+    this.slowTestThresholdNs = TimeUnit.MILLISECONDS.toNanos(slowTestThresholdMs);
+    this.testTimeoutNs = TimeUnit.MILLISECONDS.toNanos(testTimeoutMs);
+    this.classTimeoutNs = TimeUnit.MILLISECONDS.toNanos(classTimeoutMs);
+    this.interruptGraceNs = TimeUnit.MILLISECONDS.toNanos(interruptGraceMs);
+    this.outputSink = Preconditions.checkNotNull(outputSink);
+    this.abortableListener = Preconditions.checkNotNull(abortableListener);
+  }
+
+  /**
+   * Stops watching.
+   */
+  synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  @Override
+  public synchronized void testRunStarted(Description description) {
+    countTests(description);
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("junit-watchdog").build());
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override public void run() {
+          check();
+        }
+      }, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void countTests(Description description) {
+    for (Description child : description.getChildren()) {
+      countTests(child);
+    }
+    if (Util.isRunnable(description)) {
+      Integer count = testCounts.get(description.getTestClass());
+      testCounts.put(description.getTestClass(), count == null ? 1 : count + 1);
+    }
+  }
+
+  @Override
+  public void testStarted(Description description) {
+    long now = System.nanoTime();
+    tests.put(description, new Run(description, Thread.currentThread(), now));
+    synchronized (this) {
+      Class<?> testClass = description.getTestClass();
+      if (!classes.containsKey(testClass)) {
+        Integer count = testCounts.get(testClass);
+        classes.put(testClass, new ClassRun(now, count == null ? 1 : count));
+      }
+    }
+  }
+
+  @Override
+  public void testFinished(Description description) throws Exception {
+    Run run = tests.remove(description);
+    synchronized (this) {
+      ClassRun classRun = classes.get(description.getTestClass());
+      if (classRun != null && --classRun.remaining <= 0) {
+        classes.remove(description.getTestClass());
+      }
+    }
+    if (run != null) {
+      String samples;
+      synchronized (run) {
+        samples = formatSamples(run);
+      }
+      if (samples != null) {
+        write(description, samples);
+      }
+    }
+  }
+
+  private void check() {
+    long now = System.nanoTime();
+    for (Run run : tests.values()) {
+      long elapsedNs = now - run.startNs;
+      if (slowTestThresholdNs > 0 && elapsedNs >= slowTestThresholdNs) {
+        sample(run);
+      }
+      if (testTimeoutNs > 0 && elapsedNs >= testTimeoutNs) {
+        timedOut(run, now, String.format("Test %s timed out after %d ms",
+            run.test.getDisplayName(), TimeUnit.NANOSECONDS.toMillis(testTimeoutNs)));
+      } else if (classTimeoutNs > 0) {
+        ClassRun classRun;
+        synchronized (this) {
+          classRun = classes.get(run.test.getTestClass());
+        }
+        if (classRun != null && now - classRun.startNs >= classTimeoutNs) {
+          timedOut(run, now, String.format("Test class %s timed out after %d ms",
+              run.test.getClassName(), TimeUnit.NANOSECONDS.toMillis(classTimeoutNs)));
+        }
+      }
+    }
+  }
+
+  private void sample(Run run) {
+    ThreadInfo info = threadMXBean.getThreadInfo(run.thread.getId(), MAX_STACK_DEPTH);
+    if (info != null) {
+      String stack = "\tat " + Joiner.on("\n\tat ").join(info.getStackTrace());
+      synchronized (run) {
+        run.samples.add(stack);
+      }
+    }
+  }
+
+  private void timedOut(Run run, long now, String message) {
+    if (!tests.containsKey(run.test)) {
+      return;
+    }
+    if (run.interruptedNs == 0) {
+      run.interruptedNs = now;
+      StringBuilder report = new StringBuilder(message).append(", interrupting it.\n");
+      synchronized (run) {
+        String samples = formatSamples(run);
+        if (samples != null) {
+          report.append(samples);
+          run.samples.clear();
+        }
+      }
+      report.append(dumpThreads());
+      write(run.test, report.toString());
+      run.thread.interrupt();
+    } else if (now - run.interruptedNs >= interruptGraceNs) {
+      tests.remove(run.test);
+      abortableListener.abort(run.test, new TimedOutException(message));
+    }
+  }
+
+  private String formatSamples(Run run) {
+    if (run.samples.isEmpty()) {
+      return null;
+    }
+    StringBuilder report = new StringBuilder(String.format(
+        "%d stack samples of %s taken after it ran longer than %d ms:\n",
+        run.samples.size(), run.test.getDisplayName(),
+        TimeUnit.NANOSECONDS.toMillis(slowTestThresholdNs)));
+    for (Multiset.Entry<String> stack : Multisets.copyHighestCountFirst(run.samples).entrySet()) {
+      report.append(String.format("%d samples:\n%s\n", stack.getCount(), stack.getElement()));
+    }
+    return report.toString();
+  }
+
+  private String dumpThreads() {
+    StringBuilder dump = new StringBuilder("Thread dump:\n");
+    ThreadInfo[] threads = threadMXBean.dumpAllThreads(
+        threadMXBean.isObjectMonitorUsageSupported(), threadMXBean.isSynchronizerUsageSupported());
+    for (ThreadInfo info : threads) {
+      dump.append(String.format("\"%s\" id=%d %s", info.getThreadName(), info.getThreadId(),
+          info.getThreadState()));
+      if (info.getLockName() != null) {
+        dump.append(" on ").append(info.getLockName());
+      }
+      if (info.getLockOwnerName() != null) {
+        dump.append(" owned by \"").append(info.getLockOwnerName()).append('"');
+      }
+      dump.append('\n');
+      for (StackTraceElement frame : info.getStackTrace()) {
+        dump.append("\tat ").append(frame).append('\n');
+      }
+      dump.append('\n');
+    }
+    return dump.toString();
+  }
+
+  private void write(Description test, String report) {
+    try {
+      outputSink.write(test.getTestClass(), /* stderr */ true, report.getBytes(Charsets.UTF_8));
+    } catch (IOException e) {
+      // The report is best effort.
+    }
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+
+/**
+ * A class loader that records the classes it loads along with the sha1 of their class files, and
+ * likewise the resources it finds.
+ */
+final class RecordingClassLoader extends URLClassLoader {
+
+  private final List<String> ignoredPrefixes = Lists.newArrayList();
+  private final Map<String, String> loadedClasses = Maps.newHashMap();
+  private final Map<String, String> loadedResources = Maps.newHashMap();
+
+  /**
+   * @param urls The classpath to load from.
+   * @param ignored Entries of {@code urls} to not record loaded classes from, such as the runner.
+   * @param parent The parent class loader.
+   */
+  RecordingClassLoader(URL[] urls, Iterable<URL> ignored, ClassLoader parent) {
+    super(urls, parent);
+    for (URL entry : ignored) {
+      String url = entry.toString();
+      // Class file URLs from a directory extend it, those from a jar are jar: URLs into it.
+      ignoredPrefixes.add(url.endsWith("/") ? url : "jar:" + url + "!/");
+    }
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    Class<?> clazz = super.findClass(name);
+    String classFile = name.replace('.', '/') + ".class";
+    if (findResource(classFile) != null) {
+      synchronized (loadedClasses) {
+        String digest = loadedResources.get(classFile);
+        if (digest != null) {
+          loadedClasses.put(name, digest);
+        }
+      }
+    }
+    return clazz;
+  }
+
+  @Override
+  public URL findResource(String name) {
+    URL resource = super.findResource(name);
+    if (resource != null && !isIgnored(resource)) {
+      synchronized (loadedClasses) {
+        if (loadedResources.containsKey(name)) {
+          return resource;
+        }
+      }
+      String digest;
+      try {
+        digest = Hashing.sha1().hashBytes(Resources.toByteArray(resource)).toString();
+      } catch (IOException e) {
+        // An unknown digest never matches, so the resource is always considered changed.
+        digest = "";
+      }
+      synchronized (loadedClasses) {
+        loadedResources.put(name, digest);
+      }
+    }
+    return resource;
+  }
+
+  private boolean isIgnored(URL classFile) {
+    String url = classFile.toString();
+    for (String prefix : ignoredPrefixes) {
+      if (url.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the names of the classes loaded so far mapped to the sha1 of their class files.
+   */
+  Map<String, String> getLoadedClasses() {
+    synchronized (loadedClasses) {
+      return ImmutableMap.copyOf(loadedClasses);
+    }
+  }
+
+  /**
+   * Returns the paths of the class files and other resources found so far mapped to their sha1.
+   */
+  Map<String, String> getLoadedResources() {
+    synchronized (loadedClasses) {
+      return ImmutableMap.copyOf(loadedResources);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * A run listener that measures the resources each test uses: the CPU time and the bytes allocated
+ * by the thread running the test, and the time spent in garbage collection while the test ran.
+ * <p>
+ * The garbage collection time covers the whole JVM, so tests running in parallel share it.  Work
+ * done by threads a test starts is not attributed to the test.  Tests are expected to be started
+ * and finished on the thread running them, so this listener must not be run asynchronously.
+ */
+class ResourceUsageListener extends RunListener {
+
+  static final String SUMMARY_FILE = "resource-usage.tsv";
+  static final int SUMMARY_CONSOLE_LINES = 10;
+
+  /**
+   * The resources a test used.
+   */
+  static final class Usage {
+    private final Description test;
+    private final long wallTimeNs;
+    private final long cpuTimeNs;
+    private final long allocatedBytes;
+    private final long gcTimeMs;
+
+    Usage(Description test, long wallTimeNs, long cpuTimeNs, long allocatedBytes, long gcTimeMs) {
+      this.test = test;
+      this.wallTimeNs = wallTimeNs;
+      this.cpuTimeNs = cpuTimeNs;
+      this.allocatedBytes = allocatedBytes;
+      this.gcTimeMs = gcTimeMs;
+    }
+
+    /**
+     * Returns the CPU time of the thread running the test; -1 if not supported by the JVM.
+     */
+    long getCpuTimeNs() {
+      return cpuTimeNs;
+    }
+
+    /**
+     * Returns the bytes allocated by the thread running the test; -1 if not supported by the JVM.
+     */
+    long getAllocatedBytes() {
+      return allocatedBytes;
+    }
+
+    /**
+     * Returns the time the JVM spent in garbage collection while the test ran.
+     */
+    long getGcTimeMs() {
+      return gcTimeMs;
+    }
+  }
+
+  private static final Comparator<Usage> MOST_CPU_TIME_FIRST = new Comparator<Usage>() {
+    @Override public int compare(Usage a, Usage b) {
+      return a.cpuTimeNs == b.cpuTimeNs
+          ? Long.signum(b.wallTimeNs - a.wallTimeNs)
+          : Long.signum(b.cpuTimeNs - a.cpuTimeNs);
+    }
+  };
+
+  /**
+   * The measurements taken when a test started.
+   */
+  private static final class Start {
+    private final long wallTimeNs;
+    private final long cpuTimeNs;
+    private final long allocatedBytes;
+    private final long gcTimeMs;
+
+    Start(long wallTimeNs, long cpuTimeNs, long allocatedBytes, long gcTimeMs) {
+      this.wallTimeNs = wallTimeNs;
+      this.cpuTimeNs = cpuTimeNs;
+      this.allocatedBytes = allocatedBytes;
+      this.gcTimeMs = gcTimeMs;
+    }
+  }
+
+  private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+  private final List<GarbageCollectorMXBean> garbageCollectors =
+      ManagementFactory.getGarbageCollectorMXBeans();
+  private final ConcurrentMap<Description, Start> running = Maps.newConcurrentMap();
+  private final ConcurrentMap<Description, Usage> finished = Maps.newConcurrentMap();
+
+  @Override
+  public void testStarted(Description description) {
+    running.put(description,
+        new Start(System.nanoTime(), cpuTimeNs(), allocatedBytes(), gcTimeMs()));
+  }
+
+  @Override
+  public void testFinished(Description description) {
+    Start start = running.remove(description);
+    if (start != null) {
+      long cpuTimeNs = cpuTimeNs();
+      long allocatedBytes = allocatedBytes();
+      finished.put(description, new Usage(description,
+          System.nanoTime() - start.wallTimeNs,
+          cpuTimeNs < 0 ? -1 : cpuTimeNs - start.cpuTimeNs,
+          allocatedBytes < 0 ? -1 : allocatedBytes - start.allocatedBytes,
+          gcTimeMs() - start.gcTimeMs));
+    }
+  }
+
+  /**
+   * Returns the resources used by the given test; {@code null} if it has not finished.
+   */
+  Usage get(Description test) {
+    return finished.get(test);
+  }
+
+  /**
+   * Writes the resources used by all finished tests to {@link #SUMMARY_FILE} in {@code outdir} as
+   * tab separated values, and prints the tests that used the most CPU time.  Both list the tests
+   * by CPU time, most first.
+   *
+   * @param outdir The directory to write the summary file to.
+   * @param out The stream to print to.
+   * @throws IOException If there is a problem writing the summary file.
+   */
+  void writeSummary(File outdir, PrintStream out) throws IOException {
+    List<Usage> usages = Lists.newArrayList(finished.values());
+    if (usages.isEmpty()) {
+      return;
+    }
+    Collections.sort(usages, MOST_CPU_TIME_FIRST);
+
+    String header = "cpu_time\tallocated_bytes\tgc_time\twall_time\ttest";
+    Files.createParentDirs(new File(outdir, SUMMARY_FILE));
+    Closer closer = Closer.create();
+    try {
+      Writer writer = closer.register(
+          Files.newWriter(new File(outdir, SUMMARY_FILE), Charsets.UTF_8));
+      writer.write(header + "\n");
+      for (Usage usage : usages) {
+        writer.write(format(usage) + "\n");
+      }
+    } catch (Throwable e) {
+      throw closer.rethrow(e);
+    } finally {
+      closer.close();
+    }
+
+    out.printf("\nTests using the most CPU time (all in %s):\n%s\n",
+        new File(outdir, SUMMARY_FILE), header);
+    for (Usage usage : usages.subList(0, Math.min(SUMMARY_CONSOLE_LINES, usages.size()))) {
+      out.println(format(usage));
+    }
+  }
+
+  private static String format(Usage usage) {
+    return String.format("%s\t%s\t%s\t%s\t%s",
+        usage.cpuTimeNs < 0 ? "-" : formatSeconds(usage.cpuTimeNs),
+        usage.allocatedBytes < 0 ? "-" : Long.toString(usage.allocatedBytes),
+        formatSeconds(TimeUnit.MILLISECONDS.toNanos(usage.gcTimeMs)),
+        formatSeconds(usage.wallTimeNs),
+        usage.test.getDisplayName());
+  }
+
+  private static String formatSeconds(long nanos) {
+    return String.format("%f", nanos / (double) TimeUnit.SECONDS.toNanos(1));
+  }
+
+  private long cpuTimeNs() {
+    return threadMXBean.isCurrentThreadCpuTimeSupported()
+        ? threadMXBean.getCurrentThreadCpuTime()
+        : -1;
+  }
+
+  private long allocatedBytes() {
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threadMXBean;
+      if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+        return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  private long gcTimeMs() {
+    long total = 0;
+    for (GarbageCollectorMXBean garbageCollector : garbageCollectors) {
+      total += Math.max(0, garbageCollector.getCollectionTime());
+    }
+    return total;
+  }
+}
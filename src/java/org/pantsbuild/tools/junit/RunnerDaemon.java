@@ -0,0 +1,126 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Keeps a warm JVM around to run successive batches of tests, saving JVM startup and JIT warmup,
+ * and reloading the test classpath only when it changes.
+ * <p>
+ * The daemon accepts one connection per run on a loopback port and serves them one at a time.  A
+ * client sends, in UTF-8:
+ * <ol>
+ *   <li>a line with the test classpath, entries separated by the platform path separator,</li>
+ *   <li>one line per {@link ConsoleRunner} command line argument,</li>
+ *   <li>an empty line.</li>
+ * </ol>
+ * The console output of the run is streamed back as it is produced.  Once the run completes a
+ * final line with its exit status is sent, preceded by a line break, and the connection closed.
+ * Each run gets its own output captures and xml reports in the {@code -outdir} of its arguments.
+ * <p>
+ * Runs happen in class loaders from a {@link ClassLoaderCache}, so each run has its own copy of
+ * the runner and junit, while runs against the same unchanged classpath share loaded classes.
+ */
+final class RunnerDaemon {
+
+  /**
+   * Creates a daemon listening on an ephemeral loopback port.
+   *
+   * @param classLoaders The cache to get the class loaders for test classpaths from.
+   * @throws IOException If the port could not be opened.
+   */
+  static RunnerDaemon create(ClassLoaderCache classLoaders) throws IOException {
+    return new RunnerDaemon(
+        new ServerSocket(0, /* backlog */ 50, InetAddress.getByName(null)), classLoaders);
+  }
+
+  private final ServerSocket serverSocket;
+  private final ClassLoaderCache classLoaders;
+
+  private RunnerDaemon(ServerSocket serverSocket, ClassLoaderCache classLoaders) {
+    this.serverSocket = Preconditions.checkNotNull(serverSocket);
+    this.classLoaders = Preconditions.checkNotNull(classLoaders);
+  }
+
+  /**
+   * Returns the port the daemon listens on.
+   */
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Serves runs until {@link #close() closed}.
+   *
+   * @param announce The stream to print the port to once listening.
+   * @throws IOException If there is a problem accepting connections.
+   */
+  void serve(PrintStream announce) throws IOException {
+    announce.println(getPort());
+    announce.flush();
+    while (true) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (SocketException e) {
+        if (serverSocket.isClosed()) {
+          return;
+        }
+        throw e;
+      }
+      try {
+        handle(socket);
+      } catch (IOException e) {
+        // The client has gone away; carry on with the next.
+      } finally {
+        socket.close();
+      }
+    }
+  }
+
+  /**
+   * Stops serving once the current run, if any, completes.
+   *
+   * @throws IOException If there is a problem closing the port.
+   */
+  void close() throws IOException {
+    serverSocket.close();
+  }
+
+  private void handle(Socket socket) throws IOException {
+    BufferedReader in =
+        new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
+    String classpath = in.readLine();
+    if (classpath == null) {
+      return;
+    }
+    List<String> args = Lists.newArrayList();
+    for (String arg = in.readLine(); arg != null && !arg.isEmpty(); arg = in.readLine()) {
+      args.add(arg);
+    }
+
+    PrintStream console =
+        new PrintStream(socket.getOutputStream(), /* autoFlush */ true, Charsets.UTF_8.name());
+    int exitStatus = ConsoleRunner.runIsolated(
+        classLoaders.get(classpath), args.toArray(new String[args.size()]), console);
+    console.print("\n" + exitStatus + "\n");
+    console.flush();
+    if (console.checkError()) {
+      throw new IOException("Failed to send the results of the run");
+    }
+  }
+}
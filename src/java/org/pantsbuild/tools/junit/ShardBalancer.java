@@ -0,0 +1,66 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Assigns tests to shards so that each shard is expected to take the same wall time.
+ */
+final class ShardBalancer {
+
+  private ShardBalancer() {
+    // utility
+  }
+
+  /**
+   * Assigns each of the given tests to one of {@code numShards} shards.
+   * <p>
+   * Tests with a recorded duration are bin-packed longest first, each going to the shard with the
+   * least expected time so far.  Tests without a recorded duration are then dealt out round-robin
+   * in the given order.  The assignment only depends on the arguments, so every shard computes
+   * the same assignment when given the same tests and history.
+   *
+   * @param tests The display names of the tests to shard in a stable order.
+   * @param history The recorded durations of the tests.
+   * @param numShards The number of shards, must be positive.
+   * @return The shard index of each test.
+   */
+  static Map<String, Integer> assign(List<String> tests, TimingHistory history, int numShards) {
+    Preconditions.checkArgument(numShards > 0);
+
+    Map<String, Integer> assignment = Maps.newHashMap();
+    List<String> timed = Lists.newArrayList();
+    List<String> untimed = Lists.newArrayList();
+    for (String test : tests) {
+      (history.getMillis(test) == null ? untimed : timed).add(test);
+    }
+
+    Collections.sort(timed, history.longestFirst(Functions.<String>identity()));
+    long[] loads = new long[numShards];
+    for (String test : timed) {
+      int lightest = 0;
+      for (int shard = 1; shard < numShards; shard++) {
+        if (loads[shard] < loads[lightest]) {
+          lightest = shard;
+        }
+      }
+      loads[lightest] += history.getMillis(test);
+      assignment.put(test, lightest);
+    }
+
+    int testIdx = 0;
+    for (String test : untimed) {
+      assignment.put(test, testIdx++ % numShards);
+    }
+    return assignment;
+  }
+}
@@ -4,6 +4,7 @@
 package org.pantsbuild.tools.junit;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Provides contents of the output streams captured from a test class run.
@@ -11,20 +12,20 @@ import java.io.IOException;
 interface StreamSource {
 
   /**
-   * Returns the contents of STDOUT from a test class run.
+   * Opens the contents of STDOUT from a test class run for reading.
    *
    * @param testClass The test class to retrieve captured output for.
-   * @return The captured STDOUT stream.
+   * @return The captured STDOUT stream; the caller is responsible for closing it.
    * @throws IOException If there is a problem retrieving the output.
    */
-  byte[] readOut(Class<?> testClass) throws IOException;
+  InputStream openOut(Class<?> testClass) throws IOException;
 
   /**
-   * Returns the contents of STDERR from a test class run.
+   * Opens the contents of STDERR from a test class run for reading.
    *
    * @param testClass The test class to retrieve captured output for.
-   * @return The captured STDERR stream.
+   * @return The captured STDERR stream; the caller is responsible for closing it.
    * @throws IOException If there is a problem retrieving the output.
    */
-  byte[] readErr(Class<?> testClass) throws IOException;
+  InputStream openErr(Class<?> testClass) throws IOException;
 }
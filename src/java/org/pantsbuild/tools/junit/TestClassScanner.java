@@ -0,0 +1,428 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Finds the test classes in classpath roots by parsing their class files, without loading any of
+ * the classes.
+ * <p>
+ * A class is considered a test class under the same rules the runner applies to loaded classes:
+ * it must be a public concrete class with a public constructor that is either a junit 3
+ * {@code junit.framework.Test}, is annotated {@literal @RunWith} or has public {@literal @Test}
+ * methods, directly or through its superclasses.  Superclasses outside the scanned roots are
+ * parsed from the class files the given class loader finds for them.
+ */
+final class TestClassScanner {
+
+  private static final String CLASS_SUFFIX = ".class";
+  private static final int FILES_PER_TASK = 256;
+
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_INTERFACE = 0x0200;
+  private static final int ACC_ABSTRACT = 0x0400;
+
+  private static final String JUNIT3_TEST = "junit/framework/Test";
+  private static final String RUN_WITH = "Lorg/junit/runner/RunWith;";
+  private static final String TEST = "Lorg/junit/Test;";
+
+  /**
+   * What matters about a class file for finding test classes.
+   */
+  static final class ClassInfo {
+    private final String name;
+    private final int access;
+    private final String superName;
+    private final List<String> interfaces;
+    private final boolean hasPublicConstructor;
+    private final boolean runWith;
+    private final boolean hasTestMethods;
+
+    private ClassInfo(String name, int access, String superName, List<String> interfaces,
+        boolean hasPublicConstructor, boolean runWith, boolean hasTestMethods) {
+      this.name = name;
+      this.access = access;
+      this.superName = superName;
+      this.interfaces = interfaces;
+      this.hasPublicConstructor = hasPublicConstructor;
+      this.runWith = runWith;
+      this.hasTestMethods = hasTestMethods;
+    }
+
+    /**
+     * Parses the parts of a class file needed to tell test classes apart.
+     *
+     * @param classFile The contents of the class file.
+     * @return The class info.
+     * @throws IOException If there is a problem reading the class file or it is malformed.
+     */
+    static ClassInfo parse(InputStream classFile) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(classFile));
+      if (in.readInt() != 0xCAFEBABE) {
+        throw new IOException("Not a class file");
+      }
+      in.readUnsignedShort(); // minor_version
+      in.readUnsignedShort(); // major_version
+
+      // Only utf8 constants and the class constants referring to them are needed.
+      int constantPoolCount = in.readUnsignedShort();
+      String[] utf8 = new String[constantPoolCount];
+      int[] classNameIndex = new int[constantPoolCount];
+      for (int i = 1; i < constantPoolCount; i++) {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+          case 1: // Utf8
+            utf8[i] = in.readUTF();
+            break;
+          case 7: // Class
+            classNameIndex[i] = in.readUnsignedShort();
+            break;
+          case 8: // String
+          case 16: // MethodType
+          case 19: // Module
+          case 20: // Package
+            skip(in, 2);
+            break;
+          case 15: // MethodHandle
+            skip(in, 3);
+            break;
+          case 3: // Integer
+          case 4: // Float
+          case 9: // Fieldref
+          case 10: // Methodref
+          case 11: // InterfaceMethodref
+          case 12: // NameAndType
+          case 17: // Dynamic
+          case 18: // InvokeDynamic
+            skip(in, 4);
+            break;
+          case 5: // Long
+          case 6: // Double
+            skip(in, 8);
+            i++; // These take up two constant pool entries.
+            break;
+          default:
+            throw new IOException("Unknown constant pool tag " + tag);
+        }
+      }
+
+      int access = in.readUnsignedShort();
+      String name = utf8[classNameIndex[in.readUnsignedShort()]];
+      int superClass = in.readUnsignedShort();
+      String superName = superClass == 0 ? null : utf8[classNameIndex[superClass]];
+      int interfacesCount = in.readUnsignedShort();
+      List<String> interfaces = Lists.newArrayListWithCapacity(interfacesCount);
+      for (int i = 0; i < interfacesCount; i++) {
+        interfaces.add(utf8[classNameIndex[in.readUnsignedShort()]]);
+      }
+
+      int fieldsCount = in.readUnsignedShort();
+      for (int i = 0; i < fieldsCount; i++) {
+        skip(in, 6); // access_flags, name_index, descriptor_index
+        skipAttributes(in);
+      }
+
+      boolean hasPublicConstructor = false;
+      boolean hasTestMethods = false;
+      int methodsCount = in.readUnsignedShort();
+      for (int i = 0; i < methodsCount; i++) {
+        int methodAccess = in.readUnsignedShort();
+        String methodName = utf8[in.readUnsignedShort()];
+        in.readUnsignedShort(); // descriptor_index
+        boolean isPublic = (methodAccess & ACC_PUBLIC) != 0;
+        if (isPublic && "<init>".equals(methodName)) {
+          hasPublicConstructor = true;
+        }
+        List<String> annotations = readAnnotations(in, utf8);
+        if (isPublic && annotations.contains(TEST)) {
+          hasTestMethods = true;
+        }
+      }
+      boolean runWith = readAnnotations(in, utf8).contains(RUN_WITH);
+
+      return new ClassInfo(name, access, superName, interfaces, hasPublicConstructor, runWith,
+          hasTestMethods);
+    }
+
+    /**
+     * Reads an attributes table, returning the types of the runtime visible annotations in it.
+     */
+    private static List<String> readAnnotations(DataInputStream in, String[] utf8)
+        throws IOException {
+
+      List<String> annotations = Collections.emptyList();
+      int attributesCount = in.readUnsignedShort();
+      for (int i = 0; i < attributesCount; i++) {
+        String attributeName = utf8[in.readUnsignedShort()];
+        int length = in.readInt();
+        if ("RuntimeVisibleAnnotations".equals(attributeName)) {
+          int annotationsCount = in.readUnsignedShort();
+          annotations = Lists.newArrayListWithCapacity(annotationsCount);
+          for (int j = 0; j < annotationsCount; j++) {
+            annotations.add(utf8[in.readUnsignedShort()]);
+            skipElementValuePairs(in);
+          }
+        } else {
+          skip(in, length);
+        }
+      }
+      return annotations;
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+      int attributesCount = in.readUnsignedShort();
+      for (int i = 0; i < attributesCount; i++) {
+        in.readUnsignedShort(); // attribute_name_index
+        skip(in, in.readInt());
+      }
+    }
+
+    private static void skipElementValuePairs(DataInputStream in) throws IOException {
+      int pairsCount = in.readUnsignedShort();
+      for (int i = 0; i < pairsCount; i++) {
+        in.readUnsignedShort(); // element_name_index
+        skipElementValue(in);
+      }
+    }
+
+    private static void skipElementValue(DataInputStream in) throws IOException {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 'e': // enum constant
+          skip(in, 4);
+          break;
+        case '@': // nested annotation
+          in.readUnsignedShort(); // type_index
+          skipElementValuePairs(in);
+          break;
+        case '[': // array
+          int valuesCount = in.readUnsignedShort();
+          for (int i = 0; i < valuesCount; i++) {
+            skipElementValue(in);
+          }
+          break;
+        default: // constants and classes
+          skip(in, 2);
+      }
+    }
+
+    private static void skip(DataInputStream in, int bytes) throws IOException {
+      in.readFully(new byte[bytes]);
+    }
+  }
+
+  /**
+   * Returns the names of the test classes found in the given classpath roots, sorted.
+   *
+   * @param roots Directories and jars to scan, which must also be on the classpath of
+   *     {@code classLoader}.
+   * @param classLoader The class loader to find the class files of superclasses outside the roots
+   *     with.
+   * @param numThreads The number of threads to parse class files with.
+   * @return The test class names.
+   * @throws IOException If there is a problem reading the roots.
+   */
+  static List<String> scan(List<File> roots, ClassLoader classLoader, int numThreads)
+      throws IOException {
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("junit-scan-%d").build());
+    try {
+      List<Future<List<ClassInfo>>> tasks = Lists.newArrayList();
+      for (File root : roots) {
+        if (root.isDirectory()) {
+          List<File> classFiles = Lists.newArrayList();
+          for (File file : Files.fileTreeTraverser().preOrderTraversal(root)) {
+            if (file.isFile() && file.getName().endsWith(CLASS_SUFFIX)) {
+              classFiles.add(file);
+            }
+          }
+          for (List<File> batch : Lists.partition(classFiles, FILES_PER_TASK)) {
+            tasks.add(executor.submit(parseFiles(batch)));
+          }
+        } else if (root.isFile()) {
+          tasks.add(executor.submit(parseJar(root)));
+        }
+      }
+
+      List<ClassInfo> scanned = Lists.newArrayList();
+      for (Future<List<ClassInfo>> task : tasks) {
+        try {
+          scanned.addAll(task.get());
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause(), IOException.class);
+          throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted scanning for test classes", e);
+        }
+      }
+      Map<String, ClassInfo> classes = Maps.newLinkedHashMap();
+      for (ClassInfo info : scanned) {
+        // The first root wins, as on the classpath.
+        if (!classes.containsKey(info.name)) {
+          classes.put(info.name, info);
+        }
+      }
+
+      Resolver resolver = new Resolver(classes, classLoader);
+      List<String> tests = Lists.newArrayList();
+      for (ClassInfo info : classes.values()) {
+        if (resolver.isTest(info)) {
+          tests.add(info.name.replace('/', '.'));
+        }
+      }
+      Collections.sort(tests);
+      return tests;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Callable<List<ClassInfo>> parseFiles(final List<File> classFiles) {
+    return new Callable<List<ClassInfo>>() {
+      @Override public List<ClassInfo> call() throws IOException {
+        List<ClassInfo> infos = Lists.newArrayListWithCapacity(classFiles.size());
+        for (File classFile : classFiles) {
+          infos.add(parse(new FileInputStream(classFile)));
+        }
+        return infos;
+      }
+    };
+  }
+
+  private static Callable<List<ClassInfo>> parseJar(final File jar) {
+    return new Callable<List<ClassInfo>>() {
+      @Override public List<ClassInfo> call() throws IOException {
+        List<ClassInfo> infos = Lists.newArrayList();
+        JarFile jarFile = new JarFile(jar);
+        try {
+          Enumeration<JarEntry> entries = jarFile.entries();
+          while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && entry.getName().endsWith(CLASS_SUFFIX)
+                && !entry.getName().startsWith("META-INF/")) {
+              infos.add(parse(jarFile.getInputStream(entry)));
+            }
+          }
+        } finally {
+          jarFile.close();
+        }
+        return infos;
+      }
+    };
+  }
+
+  private static ClassInfo parse(InputStream classFile) throws IOException {
+    Closer closer = Closer.create();
+    try {
+      return ClassInfo.parse(closer.register(classFile));
+    } catch (Throwable e) {
+      throw closer.rethrow(e);
+    } finally {
+      closer.close();
+    }
+  }
+
+  /**
+   * Answers questions about class hierarchies, parsing classes outside of the scanned roots on
+   * demand.
+   */
+  private static final class Resolver {
+    private final Map<String, ClassInfo> classes;
+    private final Map<String, ClassInfo> external = Maps.newHashMap();
+    private final Set<String> missing = Sets.newHashSet();
+    private final ClassLoader classLoader;
+
+    Resolver(Map<String, ClassInfo> classes, ClassLoader classLoader) {
+      this.classes = classes;
+      this.classLoader = classLoader;
+    }
+
+    boolean isTest(ClassInfo info) throws IOException {
+      // Must be a public concrete class to be a runnable junit Test.
+      if ((info.access & ACC_PUBLIC) == 0
+          || (info.access & (ACC_INTERFACE | ACC_ABSTRACT)) != 0
+          || !info.hasPublicConstructor) {
+        return false;
+      }
+      // Support junit 3.x Test hierarchy.
+      if (isSubtypeOf(info, JUNIT3_TEST)) {
+        return true;
+      }
+      // Both @RunWith and public methods are inherited.
+      for (ClassInfo clazz = info; clazz != null; clazz = get(clazz.superName)) {
+        if (clazz.runWith || clazz.hasTestMethods) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean isSubtypeOf(ClassInfo info, String type) throws IOException {
+      if (info.name.equals(type)) {
+        return true;
+      }
+      for (String supertype : Iterables.concat(Collections.singleton(info.superName),
+          info.interfaces)) {
+        ClassInfo supertypeInfo = get(supertype);
+        if (supertypeInfo != null && isSubtypeOf(supertypeInfo, type)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private ClassInfo get(String name) throws IOException {
+      if (name == null || "java/lang/Object".equals(name) || missing.contains(name)) {
+        return null;
+      }
+      ClassInfo info = classes.get(name);
+      if (info == null) {
+        info = external.get(name);
+      }
+      if (info == null) {
+        InputStream classFile = classLoader.getResourceAsStream(name + CLASS_SUFFIX);
+        if (classFile == null) {
+          missing.add(name);
+          return null;
+        }
+        info = parse(classFile);
+        external.put(name, info);
+      }
+      return info;
+    }
+  }
+
+  private TestClassScanner() {
+    // utility
+  }
+}
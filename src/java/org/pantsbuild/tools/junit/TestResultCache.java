@@ -0,0 +1,235 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import com.google.common.primitives.Longs;
+
+/**
+ * Caches the results of test classes that passed, so that a test class need not be run again
+ * until any of the class files and resources it loaded change.
+ * <p>
+ * Results are keyed by {@link #key(Iterable, Iterable)}, a digest of the tests run and the options
+ * they were run with.  Each result is stored in a directory of its own named by the key, holding a
+ * {@code fingerprint} file with one line per class file or resource the tests loaded in the form
+ * {@code [sha1] [resource path]}, the console output of the run in {@code console.txt} and copies
+ * of the reports written in {@code reports/}.  A result is only replayed if all the files listed
+ * in its fingerprint still have the same sha1 on the classpath.
+ * <p>
+ * Once the results stored take more than the given number of bytes, the least recently replayed
+ * or stored ones are evicted by {@link #evict()}.  Results are moved into place once complete, so
+ * that runs sharing the cache directory never see partial results.
+ */
+final class TestResultCache {
+
+  static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  private static final String FINGERPRINT = "fingerprint";
+  private static final String CONSOLE = "console.txt";
+  private static final String REPORTS = "reports";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  /**
+   * Returns the key of the result of running the given tests with the given options.  Includes the
+   * Java version, since the outcome of tests may depend on it.
+   *
+   * @param tests The test classes or test methods run.
+   * @param args The options the tests are run with, apart from those that do not affect the
+   *     outcome, like the output directory.
+   */
+  static String key(Iterable<String> tests, Iterable<String> args) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(System.getProperty("java.version"), Charsets.UTF_8).putByte((byte) 0);
+    for (String test : tests) {
+      hasher.putString(test, Charsets.UTF_8).putByte((byte) 0);
+    }
+    hasher.putByte((byte) 1);
+    for (String arg : args) {
+      hasher.putString(arg, Charsets.UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+  private final File dir;
+  private final ClassLoader classpath;
+  private final long maxBytes;
+  private final Map<String, String> currentDigests = Maps.newHashMap();
+
+  /**
+   * @param dir The directory to store results in; created as needed.
+   * @param classpath A class loader to find the current versions of the files fingerprinted.
+   * @param maxBytes The most bytes the stored results may take after {@link #evict()}.
+   */
+  TestResultCache(File dir, ClassLoader classpath, long maxBytes) {
+    Preconditions.checkArgument(maxBytes >= 0, "Size cannot be negative, given %s", maxBytes);
+    this.dir = Preconditions.checkNotNull(dir);
+    this.classpath = Preconditions.checkNotNull(classpath);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Replays a stored result if none of the files it was fingerprinted with have changed, copying
+   * its reports to {@code outdir}.
+   *
+   * @param key The key of the result.
+   * @param outdir The directory to copy the reports of the result to.
+   * @return The console output of the result; {@code null} if there is no result to replay.
+   * @throws IOException If there is a problem reading the result or copying its reports.
+   */
+  byte[] replay(String key, File outdir) throws IOException {
+    File entry = new File(dir, key);
+    File fingerprint = new File(entry, FINGERPRINT);
+    if (!fingerprint.isFile()) {
+      return null;
+    }
+    for (String line : Files.readLines(fingerprint, Charsets.UTF_8)) {
+      // A malformed line means the entry was corrupted; treat it as a miss.
+      int space = line.indexOf(' ');
+      if (space <= 0) {
+        return null;
+      }
+      String digest = line.substring(0, space);
+      if (!digest.equals(currentDigest(line.substring(space + 1)))) {
+        return null;
+      }
+    }
+    File[] reports = new File(entry, REPORTS).listFiles();
+    if (reports != null) {
+      for (File report : reports) {
+        File copy = new File(outdir, report.getName());
+        Files.createParentDirs(copy);
+        Files.copy(report, copy);
+      }
+    }
+    byte[] console = Files.toByteArray(new File(entry, CONSOLE));
+    fingerprint.setLastModified(System.currentTimeMillis());
+    return console;
+  }
+
+  // The sha1 of a resource as currently found on the classpath; null if not found.
+  private synchronized String currentDigest(String path) throws IOException {
+    if (!currentDigests.containsKey(path)) {
+      URL resource = classpath.getResource(path);
+      currentDigests.put(path, resource == null
+          ? null
+          : Hashing.sha1().hashBytes(Resources.toByteArray(resource)).toString());
+    }
+    return currentDigests.get(path);
+  }
+
+  /**
+   * Stores a result, replacing any stored under the same key.
+   *
+   * @param key The key of the result.
+   * @param resources The paths of the class files and resources loaded mapped to their sha1.
+   * @param console The console output of the run.
+   * @param reports The reports written by the run; those that do not exist are skipped.
+   * @throws IOException If there is a problem writing the result.
+   */
+  void store(String key, Map<String, String> resources, byte[] console, Iterable<File> reports)
+      throws IOException {
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create the result cache directory " + dir);
+    }
+    File tmp = File.createTempFile(key, TMP_SUFFIX, dir);
+    if (!tmp.delete() || !tmp.mkdir()) {
+      throw new IOException("Failed to create " + tmp);
+    }
+    try {
+      Closer closer = Closer.create();
+      try {
+        Writer out = closer.register(
+            Files.newWriter(new File(tmp, FINGERPRINT), Charsets.UTF_8));
+        for (Map.Entry<String, String> resource
+            : ImmutableSortedMap.copyOf(resources).entrySet()) {
+          out.write(resource.getValue() + " " + resource.getKey() + "\n");
+        }
+      } catch (IOException e) {
+        throw closer.rethrow(e);
+      } finally {
+        closer.close();
+      }
+      Files.write(console, new File(tmp, CONSOLE));
+      for (File report : reports) {
+        if (report.isFile()) {
+          File copy = new File(new File(tmp, REPORTS), report.getName());
+          Files.createParentDirs(copy);
+          Files.copy(report, copy);
+        }
+      }
+      invalidate(key);
+      if (!tmp.renameTo(new File(dir, key))) {
+        throw new IOException("Failed to move " + tmp + " into place");
+      }
+    } finally {
+      delete(tmp);
+    }
+  }
+
+  /**
+   * Drops the result stored under the given key, if any.
+   */
+  void invalidate(String key) {
+    delete(new File(dir, key));
+  }
+
+  /**
+   * Evicts the least recently used results until the rest take at most the maximum size.
+   */
+  void evict() {
+    File[] entries = dir.listFiles();
+    if (entries == null) {
+      return;
+    }
+    final Map<File, Long> lastUsed = Maps.newHashMap();
+    long size = 0;
+    for (File entry : entries) {
+      File fingerprint = new File(entry, FINGERPRINT);
+      lastUsed.put(entry, (fingerprint.isFile() ? fingerprint : entry).lastModified());
+      for (File file : Files.fileTreeTraverser().preOrderTraversal(entry)) {
+        size += file.isFile() ? file.length() : 0;
+      }
+    }
+    List<File> leastRecentlyUsedFirst = Lists.newArrayList(lastUsed.keySet());
+    Collections.sort(leastRecentlyUsedFirst, new Comparator<File>() {
+      @Override public int compare(File a, File b) {
+        return Longs.compare(lastUsed.get(a), lastUsed.get(b));
+      }
+    });
+    for (File entry : leastRecentlyUsedFirst) {
+      if (size <= maxBytes) {
+        break;
+      }
+      for (File file : Files.fileTreeTraverser().preOrderTraversal(entry)) {
+        size -= file.isFile() ? file.length() : 0;
+      }
+      delete(entry);
+    }
+  }
+
+  private static void delete(File file) {
+    for (File contained : Files.fileTreeTraverser().postOrderTraversal(file)) {
+      contained.delete();
+    }
+  }
+}
@@ -0,0 +1,180 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
+
+/**
+ * Durations observed for test classes and tests in previous runs, used to plan future runs.
+ * <p>
+ * Durations are keyed by test class name or test display name and stored in a plain text file
+ * with one {@code [millis] [name]} pair per line.  Each newly observed duration is averaged with
+ * the previously recorded one to smooth out noisy runs.
+ * <p>
+ * Runs may share the file, like the shards of a test run do.  A run only stores the durations it
+ * observed, merging them into the file under a lock, so that runs storing at the same time keep
+ * each other's durations.
+ */
+final class TimingHistory {
+
+  /**
+   * Returns an empty timing history that is not persisted.
+   */
+  static TimingHistory none() {
+    return new TimingHistory(null);
+  }
+
+  /**
+   * Loads the timing history stored at {@code file}, if any.
+   *
+   * @param file The file the history is stored in.
+   * @return The loaded history; empty if there was none stored yet.
+   * @throws IOException If there is a problem reading the history.
+   */
+  static TimingHistory load(File file) throws IOException {
+    TimingHistory history = new TimingHistory(file);
+    read(file, history.durations);
+    return history;
+  }
+
+  private static void read(File file, Map<String, Long> durations) throws IOException {
+    if (file.isFile()) {
+      for (String line : Files.readLines(file, Charsets.UTF_8)) {
+        int space = line.indexOf(' ');
+        if (space > 0) {
+          try {
+            durations.put(line.substring(space + 1), Long.parseLong(line.substring(0, space)));
+          } catch (NumberFormatException e) {
+            // Skip the malformed line; the entry will be re-recorded on the next run.
+          }
+        }
+      }
+    }
+  }
+
+  private final File file;
+  private final ConcurrentMap<String, Long> durations = new ConcurrentHashMap<String, Long>();
+  private final Set<String> recorded =
+      Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private TimingHistory(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Returns the expected duration of the named test class or test in milliseconds; {@code null} if
+   * it has never been recorded.
+   */
+  Long getMillis(String name) {
+    return durations.get(name);
+  }
+
+  /**
+   * Records an observed duration for the named test class or test.  Safe to call concurrently.
+   *
+   * @param name A test class name or test display name.
+   * @param millis The observed duration in milliseconds.
+   */
+  void record(String name, long millis) {
+    Preconditions.checkArgument(millis >= 0);
+    recorded.add(name);
+    while (true) {
+      Long previous = durations.putIfAbsent(name, millis);
+      if (previous == null
+          || durations.replace(name, previous, (previous + millis) / 2)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns a comparator that orders names longest expected duration first.  Names without a
+   * recorded duration sort ahead of all others since they may be arbitrarily long.
+   *
+   * @param <T> The type of the items being compared.
+   * @param nameOf Extracts the name to look up from an item.
+   */
+  <T> Comparator<T> longestFirst(final Function<T, String> nameOf) {
+    return new Comparator<T>() {
+      @Override
+      public int compare(T o1, T o2) {
+        Long millis1 = getMillis(nameOf.apply(o1));
+        Long millis2 = getMillis(nameOf.apply(o2));
+        if (millis1 == null || millis2 == null) {
+          return millis1 == null ? (millis2 == null ? 0 : -1) : 1;
+        }
+        return millis2.compareTo(millis1);
+      }
+    };
+  }
+
+  /**
+   * Merges the durations recorded since loading into the file the history was loaded from, if
+   * any.  Durations stored in the file meanwhile for other tests are kept.
+   *
+   * @throws IOException If there is a problem writing the history.
+   */
+  void store() throws IOException {
+    if (file == null) {
+      return;
+    }
+    Files.createParentDirs(file);
+    Closer closer = Closer.create();
+    try {
+      RandomAccessFile lockFile =
+          closer.register(new RandomAccessFile(new File(file.getPath() + ".lock"), "rw"));
+      FileLock lock = lockFile.getChannel().lock();
+      try {
+        Map<String, Long> merged = Maps.newHashMap();
+        read(file, merged);
+        for (String name : recorded) {
+          merged.put(name, durations.get(name));
+        }
+        write(ImmutableSortedMap.copyOf(merged));
+      } finally {
+        lock.release();
+      }
+    } catch (IOException e) {
+      throw closer.rethrow(e);
+    } finally {
+      closer.close();
+    }
+  }
+
+  private void write(SortedMap<String, Long> sorted) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    Closer closer = Closer.create();
+    try {
+      Writer out = closer.register(Files.newWriter(tmp, Charsets.UTF_8));
+      for (Map.Entry<String, Long> entry : sorted.entrySet()) {
+        out.write(entry.getValue() + " " + entry.getKey() + "\n");
+      }
+    } catch (IOException e) {
+      throw closer.rethrow(e);
+    } finally {
+      closer.close();
+    }
+    file.delete();
+    Files.move(tmp, file);
+  }
+}
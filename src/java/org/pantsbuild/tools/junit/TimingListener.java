@@ -0,0 +1,53 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * A run listener that records the duration of each test in a {@link TimingHistory} under its
+ * display name.  Safe to register with an {@link AsyncListener} or to call from many test threads.
+ */
+class TimingListener extends RunListener {
+
+  private final TimingHistory timingHistory;
+  private final Ticker ticker;
+  private final ConcurrentMap<Description, Long> startNs =
+      new ConcurrentHashMap<Description, Long>();
+
+  TimingListener(TimingHistory timingHistory) {
+    this(timingHistory, AsyncListener.EVENT_TICKER);
+  }
+
+  /**
+   * Creates a listener that times tests with {@code ticker}, which should read when the event
+   * being handled happened rather than when it is handled.
+   */
+  TimingListener(TimingHistory timingHistory, Ticker ticker) {
+    this.timingHistory = Preconditions.checkNotNull(timingHistory);
+    this.ticker = Preconditions.checkNotNull(ticker);
+  }
+
+  @Override
+  public void testStarted(Description description) {
+    startNs.put(description, ticker.read());
+  }
+
+  @Override
+  public void testFinished(Description description) {
+    Long start = startNs.remove(description);
+    if (start != null) {
+      timingHistory.record(description.getDisplayName(),
+          TimeUnit.NANOSECONDS.toMillis(ticker.read() - start));
+    }
+  }
+}
@@ -0,0 +1,265 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+import org.junit.runner.Description;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.manipulation.Filter;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+
+/**
+ * The main class of the worker JVMs launched by a {@link WorkerPool}.
+ * <p>
+ * A worker reads {@link Item items} from stdin one at a time, runs the tests of each and sends
+ * back {@link Event events} for the test progress and output on stdout.  Since stdout carries the
+ * protocol, the test output is sent as events as well.  The worker exits when stdin is closed.
+ */
+public final class Worker {
+
+  /**
+   * A test class to run in a worker, restricted to some of its tests.
+   */
+  static final class Item implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final Class<?> testClass;
+    final ArrayList<String> testNames = new ArrayList<String>();
+
+    // Only available in the parent.
+    final transient List<Description> tests;
+
+    Item(Class<?> testClass, List<Description> tests) {
+      this.testClass = Preconditions.checkNotNull(testClass);
+      this.tests = Preconditions.checkNotNull(tests);
+      for (Description test : tests) {
+        testNames.add(test.getDisplayName());
+      }
+    }
+
+    Request toRequest(int numRetries, PrintStream err) {
+      return new AnnotatedClassRequest(testClass, numRetries, err).filterWith(new Filter() {
+        @Override
+        public boolean shouldRun(Description description) {
+          return description.isSuite() || testNames.contains(description.getDisplayName());
+        }
+
+        @Override
+        public String describe() {
+          return "Filters the tests assigned to a worker";
+        }
+      });
+    }
+  }
+
+  /**
+   * A notification sent by a worker about the item it is running.
+   */
+  static final class Event implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    enum Kind {
+      STARTED,
+      FINISHED,
+      FAILURE,
+      ASSUMPTION_FAILURE,
+      IGNORED,
+      OUT,
+      ERR,
+      DONE
+    }
+
+    final Kind kind;
+    final Description description;
+    final Failure failure;
+    final byte[] output;
+
+    private Event(Kind kind, Description description, Failure failure, byte[] output) {
+      this.kind = kind;
+      this.description = description;
+      this.failure = failure;
+      this.output = output;
+    }
+  }
+
+  /**
+   * Writes a length prefixed serialized object.
+   */
+  static void write(DataOutputStream out, Serializable object) throws IOException {
+    write(out, serialize(object));
+  }
+
+  private static void write(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    out.flush();
+  }
+
+  private static byte[] serialize(Serializable object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+    objectOut.writeObject(object);
+    objectOut.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Reads an object written by {@link #write(DataOutputStream, Serializable)}.
+   *
+   * @throws EOFException If {@code in} is at its end.
+   */
+  static Object read(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+    try {
+      return objectIn.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Failed to read a worker message: " + e);
+    }
+  }
+
+  private final DataOutputStream out;
+
+  private Worker(DataOutputStream out) {
+    this.out = out;
+  }
+
+  private synchronized void send(Event event) throws IOException {
+    byte[] bytes;
+    try {
+      bytes = serialize(event);
+    } catch (IOException e) {
+      // The exception of a failure is not serializable; send a plain copy instead.
+      bytes = serialize(plain(event));
+    }
+    write(out, bytes);
+  }
+
+  // Replaces the exception of a failure, the part of an event that may not be serializable, with a
+  // copy of its message and stack trace.
+  private static Event plain(Event event) {
+    Failure failure = null;
+    if (event.failure != null) {
+      Throwable original = event.failure.getException();
+      RuntimeException exception = new RuntimeException(original.toString());
+      exception.setStackTrace(original.getStackTrace());
+      failure = new Failure(event.failure.getDescription(), exception);
+    }
+    return new Event(event.kind, event.description, failure, event.output);
+  }
+
+  private void send(Event.Kind kind, Description description) throws IOException {
+    send(new Event(kind, description, null, null));
+  }
+
+  private void send(Event.Kind kind, Failure failure) throws IOException {
+    send(new Event(kind, failure.getDescription(), failure, null));
+  }
+
+  private class EventSender extends RunListener {
+    @Override
+    public void testStarted(Description description) throws IOException {
+      send(Event.Kind.STARTED, description);
+    }
+
+    @Override
+    public void testFinished(Description description) throws IOException {
+      send(Event.Kind.FINISHED, description);
+    }
+
+    @Override
+    public void testFailure(Failure failure) throws IOException {
+      send(Event.Kind.FAILURE, failure);
+    }
+
+    @Override
+    public void testAssumptionFailure(Failure failure) {
+      try {
+        send(Event.Kind.ASSUMPTION_FAILURE, failure);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void testIgnored(Description description) throws IOException {
+      send(Event.Kind.IGNORED, description);
+    }
+  }
+
+  private class OutputSender extends OutputStream {
+    private final Event.Kind kind;
+
+    OutputSender(Event.Kind kind) {
+      this.kind = kind;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      byte[] output = new byte[len];
+      System.arraycopy(b, off, output, 0, len);
+      send(new Event(kind, null, null, output));
+    }
+  }
+
+  /**
+   * Runs a worker.
+   *
+   * @param args The number of retries for failing tests.
+   */
+  public static void main(String[] args) throws IOException {
+    int numRetries = Integer.parseInt(args[0]);
+
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    Worker worker = new Worker(out);
+    System.setOut(new PrintStream(worker.new OutputSender(Event.Kind.OUT), true));
+    System.setErr(new PrintStream(worker.new OutputSender(Event.Kind.ERR), true));
+
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    JUnitCore core = new JUnitCore();
+    core.addListener(worker.new EventSender());
+    while (true) {
+      Item item;
+      try {
+        item = (Item) read(in);
+      } catch (EOFException e) {
+        break;
+      }
+      core.run(item.toRequest(numRetries, System.err));
+      worker.send(new Event(Event.Kind.DONE, null, null, null));
+    }
+
+    // Tests may have left non-daemon threads behind.
+    // SUPPRESS CHECKSTYLE RegexpSinglelineJava
+    System.exit(0);
+  }
+}
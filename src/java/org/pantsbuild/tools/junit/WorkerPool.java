@@ -0,0 +1,369 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunNotifier;
+
+import org.pantsbuild.tools.junit.Worker.Event;
+import org.pantsbuild.tools.junit.Worker.Item;
+
+/**
+ * Runs test classes in a pool of forked worker JVMs, for tests that cannot share a JVM with
+ * other tests running concurrently.
+ * <p>
+ * Each worker runs one test class at a time, handed out as workers become free.  The events the
+ * workers send back are replayed to a single {@link RunNotifier}, so the usual listeners report
+ * on the run as if it ran in this JVM.  A worker that dies fails the test it was running, along
+ * with the tests of the test class that had yet to finish, and is replaced by a new worker for the
+ * remaining test classes.  A worker running a test class for longer than the class timeout, if
+ * any, is killed.
+ */
+class WorkerPool {
+
+  /**
+   * Receives the output of the tests run in workers.
+   */
+  interface OutputSink {
+    /**
+     * Called with output of the given test class.
+     *
+     * @param testClass The test class that was running when the output was written.
+     * @param stderr {@code true} for output to stderr, {@code false} for stdout.
+     * @param output The output bytes.
+     * @throws IOException If there is a problem writing the output.
+     */
+    void write(Class<?> testClass, boolean stderr, byte[] output) throws IOException;
+  }
+
+  /**
+   * Returns the command to launch a worker JVM with the same classpath and JVM arguments as this
+   * JVM, except for debugger options which would clash.
+   *
+   * @param numRetries The number of retries for failing tests.
+   * @param extraClasspath Classpath entries to append to that of this JVM.
+   */
+  static List<String> workerCommand(int numRetries, List<File> extraClasspath) {
+    List<String> command = Lists.newArrayList();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (!arg.startsWith("-agentlib:jdwp")
+          && !arg.startsWith("-Xrunjdwp")
+          && !arg.equals("-Xdebug")) {
+        command.add(arg);
+      }
+    }
+    command.add("-cp");
+    List<String> classpath = Lists.newArrayList(System.getProperty("java.class.path"));
+    for (File entry : extraClasspath) {
+      classpath.add(entry.getPath());
+    }
+    command.add(Joiner.on(File.pathSeparatorChar).join(classpath));
+    command.add(Worker.class.getName());
+    command.add(Integer.toString(numRetries));
+    return command;
+  }
+
+  private final int numWorkers;
+  private final List<String> workerCommand;
+  private final PrintStream err;
+  private final long classTimeoutMs;
+  private final Set<Process> processes = Sets.newHashSet();
+  private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("junit-worker-timeout").build());
+
+  /**
+   * @param numWorkers The number of worker JVMs to run at once.
+   * @param workerCommand The command to launch a worker.
+   * @param err The stream to copy the workers' own stderr to, for example JVM crash messages.
+   * @param classTimeoutMs The most time a worker may spend running a test class before it is
+   *     killed; 0 for no limit.
+   */
+  WorkerPool(int numWorkers, List<String> workerCommand, PrintStream err, long classTimeoutMs) {
+    Preconditions.checkArgument(numWorkers > 0);
+    Preconditions.checkArgument(classTimeoutMs >= 0);
+    this.numWorkers = numWorkers;
+    this.workerCommand = Lists.newArrayList(workerCommand);
+    this.err = Preconditions.checkNotNull(err);
+    this.classTimeoutMs = classTimeoutMs;
+  }
+
+  /**
+   * Runs the given items in order of the list, returning once all have completed.  Only test
+   * events are fired on {@code notifier}; the caller is responsible for firing the run events.
+   *
+   * @param items The test classes to run.
+   * @param notifier The notifier to replay the test events of the workers to.
+   * @param outputSink The destination of the test output.
+   * @param timingHistory The history to record the duration of each test class in.
+   * @throws InterruptedException If interrupted while waiting for the workers.
+   */
+  void run(List<Item> items, final RunNotifier notifier, final OutputSink outputSink,
+      final TimingHistory timingHistory) throws InterruptedException {
+
+    final Queue<Item> queue = new ConcurrentLinkedQueue<Item>(items);
+    Thread killWorkers = new Thread() {
+      @Override public void run() {
+        destroyAll();
+      }
+    };
+    Runtime.getRuntime().addShutdownHook(killWorkers);
+
+    ExecutorService executor = Executors.newFixedThreadPool(numWorkers,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("junit-worker-%d").build());
+    try {
+      List<Future<?>> slots = Lists.newArrayList();
+      for (int i = 0; i < Math.min(numWorkers, items.size()); i++) {
+        slots.add(executor.submit(new Runnable() {
+          @Override public void run() {
+            new Slot(notifier, outputSink, timingHistory).runAll(queue);
+          }
+        }));
+      }
+      for (Future<?> slot : slots) {
+        try {
+          slot.get();
+        } catch (ExecutionException e) {
+          throw Throwables.propagate(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      timeouts.shutdownNow();
+      destroyAll();
+      Runtime.getRuntime().removeShutdownHook(killWorkers);
+    }
+  }
+
+  private void destroyAll() {
+    synchronized (processes) {
+      for (Process process : processes) {
+        process.destroy();
+      }
+      processes.clear();
+    }
+  }
+
+  /**
+   * Runs items one at a time in a worker, replacing the worker if it dies.
+   */
+  private class Slot {
+    private final RunNotifier notifier;
+    private final OutputSink outputSink;
+    private final TimingHistory timingHistory;
+
+    private Process process;
+    private DataOutputStream toWorker;
+    private DataInputStream fromWorker;
+    private volatile boolean timedOut;
+
+    Slot(RunNotifier notifier, OutputSink outputSink, TimingHistory timingHistory) {
+      this.notifier = notifier;
+      this.outputSink = outputSink;
+      this.timingHistory = timingHistory;
+    }
+
+    void runAll(Queue<Item> queue) {
+      try {
+        for (Item item = queue.poll(); item != null; item = queue.poll()) {
+          long start = System.nanoTime();
+          run(item);
+          timingHistory.record(item.testClass.getName(),
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+      } finally {
+        if (process != null) {
+          // Closing stdin tells the worker to exit.
+          try {
+            toWorker.close();
+            process.waitFor();
+          } catch (IOException e) {
+            process.destroy();
+          } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+          }
+          forget(process);
+        }
+      }
+    }
+
+    private void run(Item item) {
+      Description current = null;
+      Set<Description> done = Sets.newHashSet();
+      ScheduledFuture<?> timeout = null;
+      try {
+        if (process == null) {
+          start();
+        }
+        if (classTimeoutMs > 0) {
+          final Process running = process;
+          timeout = timeouts.schedule(new Runnable() {
+            @Override public void run() {
+              // Killing the worker ends the wait for its events.
+              timedOut = true;
+              running.destroy();
+            }
+          }, classTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+        Worker.write(toWorker, item);
+        while (true) {
+          Event event = (Event) Worker.read(fromWorker);
+          switch (event.kind) {
+            case STARTED:
+              current = event.description;
+              notifier.fireTestStarted(event.description);
+              break;
+            case FINISHED:
+              current = null;
+              done.add(event.description);
+              notifier.fireTestFinished(event.description);
+              break;
+            case FAILURE:
+              notifier.fireTestFailure(event.failure);
+              break;
+            case ASSUMPTION_FAILURE:
+              notifier.fireTestAssumptionFailed(event.failure);
+              break;
+            case IGNORED:
+              done.add(event.description);
+              notifier.fireTestIgnored(event.description);
+              break;
+            case OUT:
+            case ERR:
+              outputSink.write(item.testClass, event.kind == Event.Kind.ERR, event.output);
+              break;
+            case DONE:
+              return;
+            default:
+              throw new IllegalStateException("Unexpected worker event " + event.kind);
+          }
+        }
+      } catch (IOException e) {
+        crashed(item, current, done, e);
+      } finally {
+        if (timeout != null && !timeout.cancel(false) && process != null) {
+          // The worker was killed just as it finished the class, so start afresh for the next one.
+          process.destroy();
+          try {
+            process.waitFor();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          forget(process);
+          timedOut = false;
+        }
+      }
+    }
+
+    private void start() throws IOException {
+      process = new ProcessBuilder(workerCommand).start();
+      synchronized (processes) {
+        processes.add(process);
+      }
+      toWorker = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      fromWorker = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+      final InputStream workerErr = process.getErrorStream();
+      Thread copyErr = new Thread("junit-worker-stderr") {
+        @Override public void run() {
+          try {
+            ByteStreams.copy(workerErr, err);
+          } catch (IOException e) {
+            // The worker has gone away.
+          }
+        }
+      };
+      copyErr.setDaemon(true);
+      copyErr.start();
+    }
+
+    private void forget(Process dead) {
+      synchronized (processes) {
+        processes.remove(dead);
+      }
+      process = null;
+    }
+
+    private void crashed(Item item, Description current, Set<Description> done, IOException e) {
+      String reason;
+      if (process == null) {
+        reason = "Failed to start a worker JVM: " + e;
+      } else {
+        process.destroy();
+        int exitCode;
+        try {
+          exitCode = process.waitFor();
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          exitCode = -1;
+        }
+        forget(process);
+        if (timedOut) {
+          reason = String.format("Worker JVM killed after running %s for more than %d ms",
+              item.testClass.getName(), classTimeoutMs);
+        } else {
+          reason = String.format("Worker JVM exited with status %d while running %s: %s",
+              exitCode, item.testClass.getName(), e);
+        }
+      }
+      timedOut = false;
+
+      // Fail the test that was running and all tests that have yet to run.
+      boolean failed = false;
+      if (current != null) {
+        fail(current, reason);
+        done.add(current);
+        failed = true;
+      }
+      for (Description test : item.tests) {
+        if (!done.contains(test)) {
+          notifier.fireTestStarted(test);
+          fail(test, failed ? "Not run: " + reason : reason);
+          failed = true;
+        }
+      }
+      if (!failed) {
+        // All tests have finished, so the worker died in class level teardown.
+        notifier.fireTestFailure(
+            new Failure(Iterables.getLast(item.tests), new RuntimeException(reason)));
+      }
+    }
+
+    private void fail(Description test, String reason) {
+      notifier.fireTestFailure(new Failure(test, new RuntimeException(reason)));
+      notifier.fireTestFinished(test);
+    }
+  }
+}
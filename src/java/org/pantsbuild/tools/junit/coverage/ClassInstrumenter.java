@@ -0,0 +1,742 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit.coverage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Adds line coverage probes to a class file.
+ * <p>
+ * A probe is inserted ahead of the first instruction of each line in the line number table of a
+ * method.  It calls {@link CoverageRuntime#hit(int, int)} with the id of the class and the index of
+ * the probe, and changes no locals, so the stack map frames of the method hold for it as they
+ * stand.  Jumps and exception handlers targeting the first instruction of a line land on its probe
+ * instead, so that the line is counted however it is reached; all other code offsets of the method
+ * are moved along with the instructions they refer to.  Probes are a multiple of four bytes long,
+ * which keeps the padding of switch instructions intact.
+ * <p>
+ * The probe constants are appended to the constant pool, so existing constant pool indexes stay
+ * valid.  Methods that cannot be instrumented safely, such as those whose code would grow too large
+ * or that carry code attributes not known here, are left as they are, and noted in
+ * {@link #getNotes()} along with methods whose type annotations in code were dropped.
+ */
+final class ClassInstrumenter {
+
+  private static final int MAGIC = 0xCAFEBABE;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_FLOAT = 4;
+  private static final int CONSTANT_LONG = 5;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+  private static final int CONSTANT_METHOD_HANDLE = 15;
+  private static final int CONSTANT_METHOD_TYPE = 16;
+  private static final int CONSTANT_DYNAMIC = 17;
+  private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+  private static final int CONSTANT_MODULE = 19;
+  private static final int CONSTANT_PACKAGE = 20;
+
+  private static final int ACC_BRIDGE = 0x0040;
+
+  private static final int NOP = 0x00;
+  private static final int SIPUSH = 0x11;
+  private static final int LDC_W = 0x13;
+  private static final int GOTO_W = 0xc8;
+  private static final int JSR_W = 0xc9;
+  private static final int TABLESWITCH = 0xaa;
+  private static final int LOOKUPSWITCH = 0xab;
+  private static final int INVOKESTATIC = 0xb8;
+  private static final int WIDE = 0xc4;
+  private static final int IINC = 0x84;
+
+  private static final int ITEM_UNINITIALIZED = 8;
+  private static final int ITEM_OBJECT = 7;
+
+  // ldc_w classId, sipush probe, invokestatic hit, padded with nops to a multiple of four.
+  private static final int PROBE_LENGTH = 12;
+  private static final int PROBE_STACK = 2;
+  private static final int MAX_PROBES = Short.MAX_VALUE;
+  private static final int MAX_CODE_LENGTH = 65535;
+
+  // Named rather than referred to, so that instrumenting does not load the runtime.
+  private static final String RUNTIME_CLASS = "org/pantsbuild/tools/junit/coverage/CoverageRuntime";
+
+  // The length of each instruction by opcode; 0 for variable length or invalid opcodes.
+  private static final int[] INSTRUCTION_LENGTHS = new int[256];
+  static {
+    Arrays.fill(INSTRUCTION_LENGTHS, 0x00, 0x10, 1);
+    INSTRUCTION_LENGTHS[0x10] = 2; // bipush
+    INSTRUCTION_LENGTHS[0x11] = 3; // sipush
+    INSTRUCTION_LENGTHS[0x12] = 2; // ldc
+    Arrays.fill(INSTRUCTION_LENGTHS, 0x13, 0x15, 3); // ldc_w, ldc2_w
+    Arrays.fill(INSTRUCTION_LENGTHS, 0x15, 0x1a, 2); // loads
+    Arrays.fill(INSTRUCTION_LENGTHS, 0x1a, 0x36, 1);
+    Arrays.fill(INSTRUCTION_LENGTHS, 0x36, 0x3b, 2); // stores
+    Arrays.fill(INSTRUCTION_LENGTHS, 0x3b, 0x84, 1);
+    INSTRUCTION_LENGTHS[0x84] = 3; // iinc
+    Arrays.fill(INSTRUCTION_LENGTHS, 0x85, 0x99, 1);
+    Arrays.fill(INSTRUCTION_LENGTHS, 0x99, 0xa9, 3); // if*, goto, jsr
+    INSTRUCTION_LENGTHS[0xa9] = 2; // ret
+    Arrays.fill(INSTRUCTION_LENGTHS, 0xac, 0xb2, 1); // returns
+    Arrays.fill(INSTRUCTION_LENGTHS, 0xb2, 0xb9, 3); // field access, invokes
+    Arrays.fill(INSTRUCTION_LENGTHS, 0xb9, 0xbb, 5); // invokeinterface, invokedynamic
+    INSTRUCTION_LENGTHS[0xbb] = 3; // new
+    INSTRUCTION_LENGTHS[0xbc] = 2; // newarray
+    INSTRUCTION_LENGTHS[0xbd] = 3; // anewarray
+    Arrays.fill(INSTRUCTION_LENGTHS, 0xbe, 0xc0, 1); // arraylength, athrow
+    Arrays.fill(INSTRUCTION_LENGTHS, 0xc0, 0xc2, 3); // checkcast, instanceof
+    Arrays.fill(INSTRUCTION_LENGTHS, 0xc2, 0xc4, 1); // monitorenter, monitorexit
+    INSTRUCTION_LENGTHS[0xc5] = 4; // multianewarray
+    Arrays.fill(INSTRUCTION_LENGTHS, 0xc6, 0xc8, 3); // ifnull, ifnonnull
+    Arrays.fill(INSTRUCTION_LENGTHS, 0xc8, 0xca, 5); // goto_w, jsr_w
+  }
+
+  /**
+   * Thrown for class files that cannot be instrumented.
+   */
+  static final class InstrumentationException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    InstrumentationException(String message) {
+      super(message);
+    }
+  }
+
+  private static final class Method {
+    private final int start;
+    private final int end;
+    private final byte[] instrumented;
+
+    Method(int start, int end, byte[] instrumented) {
+      this.start = start;
+      this.end = end;
+      this.instrumented = instrumented;
+    }
+  }
+
+  /**
+   * Prepares the instrumentation of the given class file.
+   *
+   * @param classFile The class file to instrument.
+   * @return An instrumenter for the class file.
+   * @throws InstrumentationException If the class file is malformed or cannot take any more
+   *     constants.
+   */
+  static ClassInstrumenter parse(byte[] classFile) throws InstrumentationException {
+    ClassInstrumenter instrumenter = new ClassInstrumenter(classFile);
+    try {
+      instrumenter.parse();
+    } catch (BufferUnderflowException e) {
+      throw new InstrumentationException("Truncated class file");
+    } catch (IndexOutOfBoundsException e) {
+      throw new InstrumentationException("Malformed class file: " + e);
+    } catch (IllegalArgumentException e) {
+      throw new InstrumentationException("Malformed class file: " + e);
+    }
+    return instrumenter;
+  }
+
+  private final byte[] classFile;
+  private final ByteBuffer in;
+  private int constantPoolCount;
+  private int constantPoolEnd;
+  private int[] constantOffsets;
+  private String className;
+  private final List<Integer> probeLines = new ArrayList<Integer>();
+  private final List<Method> methods = new ArrayList<Method>();
+  private final List<String> notes = new ArrayList<String>();
+
+  private ClassInstrumenter(byte[] classFile) {
+    this.classFile = classFile;
+    this.in = ByteBuffer.wrap(classFile);
+  }
+
+  /**
+   * Returns the internal name of the class, like {@code java/lang/Object}.
+   */
+  String getClassName() {
+    return className;
+  }
+
+  /**
+   * Returns the line number of each probe, in the order of the probe indexes; empty if there is
+   * nothing to instrument, for example for classes compiled without line numbers.
+   */
+  int[] getProbeLines() {
+    int[] lines = new int[probeLines.size()];
+    for (int i = 0; i < lines.length; i++) {
+      lines[i] = probeLines.get(i);
+    }
+    return lines;
+  }
+
+  /**
+   * Returns a note for each method left out of the instrumentation, or instrumented with less than
+   * all of its code attributes, saying why.
+   */
+  List<String> getNotes() {
+    return notes;
+  }
+
+  /**
+   * Returns the instrumented class file.
+   *
+   * @param classId The id the class is registered under with {@link CoverageRuntime}.
+   */
+  byte[] instrument(int classId) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(classFile.length + 1024);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      // Magic and version.
+      out.write(classFile, 0, 8);
+      out.writeShort(constantPoolCount + 7);
+      out.write(classFile, 10, constantPoolEnd - 10);
+      int base = constantPoolCount;
+      out.writeByte(CONSTANT_UTF8);
+      out.writeUTF(RUNTIME_CLASS);
+      out.writeByte(CONSTANT_CLASS);
+      out.writeShort(base);
+      out.writeByte(CONSTANT_UTF8);
+      out.writeUTF("hit");
+      out.writeByte(CONSTANT_UTF8);
+      out.writeUTF("(II)V");
+      out.writeByte(CONSTANT_NAME_AND_TYPE);
+      out.writeShort(base + 2);
+      out.writeShort(base + 3);
+      out.writeByte(CONSTANT_METHODREF);
+      out.writeShort(base + 1);
+      out.writeShort(base + 4);
+      out.writeByte(CONSTANT_INTEGER);
+      out.writeInt(classId);
+
+      int copied = constantPoolEnd;
+      for (Method method : methods) {
+        out.write(classFile, copied, method.start - copied);
+        out.write(method.instrumented);
+        copied = method.end;
+      }
+      out.write(classFile, copied, classFile.length - copied);
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to memory cannot fail", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private int probeMethodIndex() {
+    return constantPoolCount + 5;
+  }
+
+  private int classIdIndex() {
+    return constantPoolCount + 6;
+  }
+
+  private void parse() throws InstrumentationException {
+    if (in.getInt() != MAGIC) {
+      throw new InstrumentationException("Not a class file");
+    }
+    in.getShort(); // minor version
+    in.getShort(); // major version
+    constantPoolCount = u2();
+    if (constantPoolCount + 7 > 65535) {
+      throw new InstrumentationException("No room in the constant pool");
+    }
+    constantOffsets = new int[constantPoolCount];
+    for (int i = 1; i < constantPoolCount; i++) {
+      constantOffsets[i] = in.position();
+      int tag = u1();
+      switch (tag) {
+        case CONSTANT_UTF8:
+          skip(u2());
+          break;
+        case CONSTANT_CLASS:
+        case CONSTANT_STRING:
+        case CONSTANT_METHOD_TYPE:
+        case CONSTANT_MODULE:
+        case CONSTANT_PACKAGE:
+          skip(2);
+          break;
+        case CONSTANT_METHOD_HANDLE:
+          skip(3);
+          break;
+        case CONSTANT_INTEGER:
+        case CONSTANT_FLOAT:
+        case CONSTANT_FIELDREF:
+        case CONSTANT_METHODREF:
+        case CONSTANT_INTERFACE_METHODREF:
+        case CONSTANT_NAME_AND_TYPE:
+        case CONSTANT_DYNAMIC:
+        case CONSTANT_INVOKE_DYNAMIC:
+          skip(4);
+          break;
+        case CONSTANT_LONG:
+        case CONSTANT_DOUBLE:
+          skip(8);
+          // These take up two entries.
+          i++;
+          break;
+        default:
+          throw new InstrumentationException("Unknown constant pool tag " + tag);
+      }
+    }
+    constantPoolEnd = in.position();
+
+    in.getShort(); // access flags
+    className = classNameAt(u2());
+    in.getShort(); // super class
+    skip(2 * u2()); // interfaces
+    int fieldCount = u2();
+    for (int i = 0; i < fieldCount; i++) {
+      skip(6);
+      skipAttributes();
+    }
+    int methodCount = u2();
+    for (int i = 0; i < methodCount; i++) {
+      int accessFlags = u2();
+      int methodNameIndex = u2();
+      int descriptorIndex = u2();
+      int attributeCount = u2();
+      for (int j = 0; j < attributeCount; j++) {
+        int start = in.position();
+        String name = utf8At(u2());
+        int length = in.getInt();
+        int end = in.position() + length;
+        if ("Code".equals(name) && (accessFlags & ACC_BRIDGE) == 0) {
+          String method = utf8At(methodNameIndex) + utf8At(descriptorIndex);
+          try {
+            byte[] instrumented = instrumentCode(method, start, end);
+            if (instrumented != null) {
+              methods.add(new Method(start, end, instrumented));
+            }
+          } catch (InvalidCodeException e) {
+            notes.add("left out " + method + ": " + e.getMessage());
+          } catch (IllegalArgumentException e) {
+            // Leave code we cannot decode as it is.
+            notes.add("left out " + method + ", cannot decode its code: " + e);
+          } catch (IndexOutOfBoundsException e) {
+            notes.add("left out " + method + ", cannot decode its code: " + e);
+          }
+        }
+        in.position(end);
+      }
+    }
+  }
+
+  // Returns the instrumented Code attribute between the given offsets; null if it has no lines to
+  // measure.
+  private byte[] instrumentCode(String method, int start, int end) throws InvalidCodeException {
+    int nameIndex = in.getShort(start) & 0xffff;
+    in.position(start + 6);
+    int maxStack = u2();
+    int maxLocals = u2();
+    int codeLength = in.getInt();
+    int codeStart = in.position();
+    skip(codeLength);
+    int exceptionTableStart = in.position();
+    int exceptionTableLength = u2();
+    skip(8 * exceptionTableLength);
+
+    // Attribute offsets by name, in order.
+    List<int[]> lineNumberTables = new ArrayList<int[]>();
+    List<int[]> localVariableTables = new ArrayList<int[]>();
+    List<int[]> otherAttributes = new ArrayList<int[]>();
+    int[] stackMapTable = null;
+    boolean typeAnnotations = false;
+    int attributeCount = u2();
+    for (int i = 0; i < attributeCount; i++) {
+      int attributeStart = in.position();
+      String name = utf8At(u2());
+      int attributeEnd = in.getInt() + in.position();
+      int[] attribute = {attributeStart, attributeEnd};
+      if ("LineNumberTable".equals(name)) {
+        lineNumberTables.add(attribute);
+      } else if ("LocalVariableTable".equals(name) || "LocalVariableTypeTable".equals(name)) {
+        localVariableTables.add(attribute);
+      } else if ("StackMapTable".equals(name)) {
+        stackMapTable = attribute;
+      } else if ("RuntimeVisibleTypeAnnotations".equals(name)
+          || "RuntimeInvisibleTypeAnnotations".equals(name)) {
+        // Type annotations in code are dropped rather than moved, since they are not visible to
+        // reflection.
+        typeAnnotations = true;
+      } else {
+        // The attribute may refer to code offsets we do not know to move.
+        throw new InvalidCodeException("unknown code attribute " + name);
+      }
+      in.position(attributeEnd);
+    }
+    if (lineNumberTables.isEmpty()) {
+      return null;
+    }
+
+    // Find the instruction boundaries and the first instruction of each line.
+    boolean[] instructionStarts = new boolean[codeLength + 1];
+    for (int pc = 0; pc < codeLength; pc += instructionLength(codeStart, pc)) {
+      instructionStarts[pc] = true;
+    }
+    instructionStarts[codeLength] = true;
+    TreeMap<Integer, Integer> lineStarts = new TreeMap<Integer, Integer>();
+    for (int[] table : lineNumberTables) {
+      in.position(table[0] + 6);
+      int length = u2();
+      for (int i = 0; i < length; i++) {
+        int pc = u2();
+        int line = u2();
+        if (pc < codeLength && instructionStarts[pc] && !lineStarts.containsKey(pc)) {
+          lineStarts.put(pc, line);
+        }
+      }
+    }
+    if (lineStarts.isEmpty()) {
+      return null;
+    }
+    if (probeLines.size() + lineStarts.size() > MAX_PROBES) {
+      throw new InvalidCodeException("the class has more than " + MAX_PROBES + " lines");
+    }
+    int[] points = new int[lineStarts.size()];
+    int index = 0;
+    for (int pc : lineStarts.keySet()) {
+      points[index++] = pc;
+    }
+    Offsets offsets = new Offsets(points);
+    if (codeLength + PROBE_LENGTH * points.length > MAX_CODE_LENGTH) {
+      throw new InvalidCodeException(
+          "its code would grow larger than " + MAX_CODE_LENGTH + " bytes");
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start + PROBE_LENGTH * index);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(nameIndex);
+      out.writeInt(0); // attribute length, filled in below
+      out.writeShort(Math.min(65535, maxStack + PROBE_STACK));
+      out.writeShort(maxLocals);
+      out.writeInt(codeLength + PROBE_LENGTH * points.length);
+
+      int firstProbe = probeLines.size();
+      int nextPoint = 0;
+      for (int pc = 0; pc < codeLength; pc += instructionLength(codeStart, pc)) {
+        if (nextPoint < points.length && points[nextPoint] == pc) {
+          writeProbe(out, firstProbe + nextPoint);
+          nextPoint++;
+        }
+        writeInstruction(out, codeStart, pc, offsets);
+      }
+
+      out.writeShort(exceptionTableLength);
+      in.position(exceptionTableStart + 2);
+      for (int i = 0; i < exceptionTableLength; i++) {
+        out.writeShort(offsets.label(u2())); // start
+        out.writeShort(offsets.label(u2())); // end
+        out.writeShort(offsets.label(u2())); // handler
+        out.writeShort(u2()); // catch type
+      }
+
+      int attributes = lineNumberTables.size() + localVariableTables.size()
+          + (stackMapTable == null ? 0 : 1);
+      out.writeShort(attributes);
+      for (int[] table : lineNumberTables) {
+        out.write(classFile, table[0], 6);
+        in.position(table[0] + 6);
+        int length = u2();
+        out.writeShort(length);
+        for (int i = 0; i < length; i++) {
+          out.writeShort(offsets.label(u2()));
+          out.writeShort(u2());
+        }
+      }
+      for (int[] table : localVariableTables) {
+        out.write(classFile, table[0], 6);
+        in.position(table[0] + 6);
+        int length = u2();
+        out.writeShort(length);
+        for (int i = 0; i < length; i++) {
+          int startPc = u2();
+          int endPc = startPc + u2();
+          out.writeShort(offsets.label(startPc));
+          out.writeShort(offsets.label(endPc) - offsets.label(startPc));
+          out.write(classFile, in.position(), 6); // name, descriptor or signature, and slot
+          skip(6);
+        }
+      }
+      if (stackMapTable != null) {
+        writeStackMapTable(out, stackMapTable, offsets);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to memory cannot fail", e);
+    }
+
+    if (typeAnnotations) {
+      notes.add("dropped the type annotations in the code of " + method);
+    }
+    for (int pc : points) {
+      probeLines.add(lineStarts.get(pc));
+    }
+    byte[] instrumented = bytes.toByteArray();
+    ByteBuffer.wrap(instrumented).putInt(2, instrumented.length - 6);
+    return instrumented;
+  }
+
+  private void writeProbe(DataOutputStream out, int probe) throws IOException {
+    out.writeByte(LDC_W);
+    out.writeShort(classIdIndex());
+    out.writeByte(SIPUSH);
+    out.writeShort(probe);
+    out.writeByte(INVOKESTATIC);
+    out.writeShort(probeMethodIndex());
+    for (int i = 9; i < PROBE_LENGTH; i++) {
+      out.writeByte(NOP);
+    }
+  }
+
+  /**
+   * Thrown for code that cannot be instrumented.
+   */
+  private static final class InvalidCodeException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    InvalidCodeException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Maps the code offsets of a method to those in the instrumented method.
+   */
+  private static final class Offsets {
+    private final int[] points;
+
+    Offsets(int[] points) {
+      this.points = points;
+    }
+
+    // The new offset of a jump target, which lands on the probe of a line start.
+    int label(int pc) {
+      return pc + PROBE_LENGTH * countBelow(pc, false);
+    }
+
+    // The new offset of the instruction at pc itself.
+    int instruction(int pc) {
+      return pc + PROBE_LENGTH * countBelow(pc, true);
+    }
+
+    private int countBelow(int pc, boolean inclusive) {
+      int index = Arrays.binarySearch(points, pc);
+      if (index >= 0) {
+        return inclusive ? index + 1 : index;
+      }
+      return -index - 1;
+    }
+  }
+
+  private int instructionLength(int codeStart, int pc) {
+    int opcode = classFile[codeStart + pc] & 0xff;
+    int length = INSTRUCTION_LENGTHS[opcode];
+    if (length > 0) {
+      return length;
+    }
+    switch (opcode) {
+      case WIDE:
+        return (classFile[codeStart + pc + 1] & 0xff) == IINC ? 6 : 4;
+      case TABLESWITCH: {
+        int base = codeStart + pc + 1 + padding(pc);
+        int low = in.getInt(base + 4);
+        int high = in.getInt(base + 8);
+        return 1 + padding(pc) + 12 + 4 * (high - low + 1);
+      }
+      case LOOKUPSWITCH: {
+        int base = codeStart + pc + 1 + padding(pc);
+        int pairs = in.getInt(base + 4);
+        return 1 + padding(pc) + 8 + 8 * pairs;
+      }
+      default:
+        throw new IllegalArgumentException("Invalid opcode " + opcode + " at " + pc);
+    }
+  }
+
+  private static int padding(int pc) {
+    return (4 - (pc + 1) % 4) % 4;
+  }
+
+  // Copies the instruction at pc, moving its jump offsets.
+  private void writeInstruction(DataOutputStream out, int codeStart, int pc, Offsets offsets)
+      throws IOException, InvalidCodeException {
+    int offset = codeStart + pc;
+    int opcode = classFile[offset] & 0xff;
+    int length = instructionLength(codeStart, pc);
+    int newPc = offsets.instruction(pc);
+    if ((opcode >= 0x99 && opcode <= 0xa8) || opcode == 0xc6 || opcode == 0xc7) {
+      int jump = offsets.label(pc + in.getShort(offset + 1)) - newPc;
+      if (jump < Short.MIN_VALUE || jump > Short.MAX_VALUE) {
+        throw new InvalidCodeException("a jump at " + pc + " would no longer fit");
+      }
+      out.writeByte(opcode);
+      out.writeShort(jump);
+    } else if (opcode == GOTO_W || opcode == JSR_W) {
+      out.writeByte(opcode);
+      out.writeInt(offsets.label(pc + in.getInt(offset + 1)) - newPc);
+    } else if (opcode == TABLESWITCH || opcode == LOOKUPSWITCH) {
+      // Probes keep offsets aligned the same, so the padding stays as it is.
+      int padding = padding(pc);
+      out.write(classFile, offset, 1 + padding);
+      int base = offset + 1 + padding;
+      out.writeInt(offsets.label(pc + in.getInt(base)) - newPc);
+      int jumps;
+      if (opcode == TABLESWITCH) {
+        out.writeInt(in.getInt(base + 4));
+        out.writeInt(in.getInt(base + 8));
+        jumps = in.getInt(base + 8) - in.getInt(base + 4) + 1;
+        for (int i = 0; i < jumps; i++) {
+          out.writeInt(offsets.label(pc + in.getInt(base + 12 + 4 * i)) - newPc);
+        }
+      } else {
+        jumps = in.getInt(base + 4);
+        out.writeInt(jumps);
+        for (int i = 0; i < jumps; i++) {
+          out.writeInt(in.getInt(base + 8 + 8 * i));
+          out.writeInt(offsets.label(pc + in.getInt(base + 12 + 8 * i)) - newPc);
+        }
+      }
+    } else {
+      out.write(classFile, offset, length);
+    }
+  }
+
+  private void writeStackMapTable(DataOutputStream out, int[] attribute, Offsets offsets)
+      throws IOException, InvalidCodeException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(attribute[1] - attribute[0]);
+    DataOutputStream frames = new DataOutputStream(bytes);
+    in.position(attribute[0] + 6);
+    int count = u2();
+    frames.writeShort(count);
+    int previous = -1;
+    int newPrevious = -1;
+    for (int i = 0; i < count; i++) {
+      int type = u1();
+      int delta;
+      if (type < 64) {
+        delta = type;
+      } else if (type < 128) {
+        delta = type - 64;
+      } else if (type >= 247) {
+        delta = u2();
+      } else {
+        throw new InvalidCodeException("Unknown stack map frame type " + type);
+      }
+      int pc = previous + delta + 1;
+      previous = pc;
+      int newPc = offsets.label(pc);
+      int newDelta = newPc - newPrevious - 1;
+      newPrevious = newPc;
+
+      if (type < 64 || type == 251) {
+        // same_frame
+        if (newDelta < 64) {
+          frames.writeByte(newDelta);
+        } else {
+          frames.writeByte(251);
+          frames.writeShort(newDelta);
+        }
+      } else if (type < 128 || type == 247) {
+        // same_locals_1_stack_item_frame
+        if (newDelta < 64) {
+          frames.writeByte(64 + newDelta);
+        } else {
+          frames.writeByte(247);
+          frames.writeShort(newDelta);
+        }
+        copyVerificationTypes(frames, 1, offsets);
+      } else if (type < 251) {
+        // chop_frame
+        frames.writeByte(type);
+        frames.writeShort(newDelta);
+      } else if (type < 255) {
+        // append_frame
+        frames.writeByte(type);
+        frames.writeShort(newDelta);
+        copyVerificationTypes(frames, type - 251, offsets);
+      } else {
+        // full_frame
+        frames.writeByte(type);
+        frames.writeShort(newDelta);
+        int locals = u2();
+        frames.writeShort(locals);
+        copyVerificationTypes(frames, locals, offsets);
+        int stack = u2();
+        frames.writeShort(stack);
+        copyVerificationTypes(frames, stack, offsets);
+      }
+    }
+    out.write(classFile, attribute[0], 2);
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+  }
+
+  private void copyVerificationTypes(DataOutputStream out, int count, Offsets offsets)
+      throws IOException {
+    for (int i = 0; i < count; i++) {
+      int tag = u1();
+      out.writeByte(tag);
+      if (tag == ITEM_OBJECT) {
+        out.writeShort(u2());
+      } else if (tag == ITEM_UNINITIALIZED) {
+        // The offset of the new instruction that created the object.
+        out.writeShort(offsets.instruction(u2()));
+      }
+    }
+  }
+
+  private void skipAttributes() {
+    int count = u2();
+    for (int i = 0; i < count; i++) {
+      skip(2);
+      skip(in.getInt());
+    }
+  }
+
+  private String classNameAt(int index) {
+    return utf8At(in.getShort(constantOffsets[index] + 1) & 0xffff);
+  }
+
+  private String utf8At(int index) {
+    int offset = constantOffsets[index];
+    if (classFile[offset] != CONSTANT_UTF8) {
+      throw new IllegalArgumentException("Constant " + index + " is not a Utf8 entry");
+    }
+    try {
+      int length = in.getShort(offset + 1) & 0xffff;
+      return new DataInputStream(new ByteArrayInputStream(classFile, offset + 1, length + 2))
+          .readUTF();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed Utf8 constant " + index, e);
+    }
+  }
+
+  private int u1() {
+    return in.get() & 0xff;
+  }
+
+  private int u2() {
+    return in.getShort() & 0xffff;
+  }
+
+  private void skip(int length) {
+    in.position(in.position() + length);
+  }
+}
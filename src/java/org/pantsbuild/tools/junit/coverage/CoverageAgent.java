@@ -0,0 +1,220 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit.coverage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * A java agent measuring the line coverage of the classes loaded while it is active, as an
+ * alternative to instrumenting class files ahead of running tests.
+ * <p>
+ * The agent is started with {@code -javaagent:junit-runner.jar=FILE[,PATTERN...]}.  Classes are
+ * instrumented by {@link ClassInstrumenter} as they load, and the coverage measured is merged into
+ * {@code FILE} when the JVM exits, so that JVMs sharing the file, like those of
+ * {@code -worker-processes}, add up.  Patterns are class name prefixes in dotted form; a class is
+ * measured if it matches any pattern not prefixed with {@code -}, or there are none, and matches no
+ * pattern prefixed with {@code -}.  The JDK, junit, the runner and the libraries it uses are never
+ * measured.  Methods left out of the measurement are noted on stderr, as are classes that cannot
+ * be instrumented at all.
+ * <p>
+ * The agent only uses the JDK, so that it does not load classes of the tests it instruments.
+ * {@link CoverageRuntime} is loaded by the bootstrap class loader, so that it is shared by all
+ * class loaders.  Use {@link CoverageTool} to merge and summarize coverage files.
+ */
+public final class CoverageAgent implements ClassFileTransformer {
+
+  // The JDK, junit, and the runner with the libraries it uses.
+  private static final String[] EXCLUDED = {
+    "java/", "javax/", "jdk/", "sun/", "com/sun/", "junit/", "org/junit/", "org/hamcrest/",
+    "org/pantsbuild/tools/junit/", "org/pantsbuild/json/", "org/pantsbuild/args4j/",
+    "com/google/common/", "org/kohsuke/args4j/"
+  };
+
+  /**
+   * A class registered with the runtime.
+   */
+  private static final class MeasuredClass {
+    private final int id;
+    private final String name;
+    private final long fingerprint;
+    private final int[] lines;
+
+    MeasuredClass(int id, String name, long fingerprint, int[] lines) {
+      this.id = id;
+      this.name = name;
+      this.fingerprint = fingerprint;
+      this.lines = lines;
+    }
+  }
+
+  /**
+   * Starts the agent.
+   *
+   * @param args The coverage file, optionally followed by class name patterns, comma separated.
+   * @param instrumentation The instrumentation to register with.
+   */
+  public static void premain(String args, Instrumentation instrumentation) {
+    if (args == null || args.isEmpty()) {
+      System.err.println("No coverage file given, measuring no coverage. Usage: "
+          + "-javaagent:junit-runner.jar=FILE[,PATTERN...]");
+      return;
+    }
+    String[] options = args.split(",");
+    File file = new File(options[0]);
+    List<String> includes = new ArrayList<String>();
+    List<String> excludes = new ArrayList<String>();
+    for (int i = 1; i < options.length; i++) {
+      String pattern = options[i].trim();
+      if (pattern.startsWith("-")) {
+        excludes.add(pattern.substring(1).replace('.', '/'));
+      } else if (!pattern.isEmpty()) {
+        includes.add(pattern.replace('.', '/'));
+      }
+    }
+    try {
+      instrumentation.appendToBootstrapClassLoaderSearch(runtimeJar());
+    } catch (IOException e) {
+      System.err.printf("Failed to load the coverage runtime, measuring no coverage: %s\n", e);
+      return;
+    }
+    final CoverageAgent agent = new CoverageAgent(includes, excludes);
+    instrumentation.addTransformer(agent);
+
+    final File coverageFile = file.getAbsoluteFile();
+    Runtime.getRuntime().addShutdownHook(new Thread("junit-coverage-dump") {
+      @Override public void run() {
+        try {
+          CoverageData.mergeInto(coverageFile, agent.getCoverage());
+        } catch (IOException e) {
+          System.err.printf("Failed to write coverage to %s: %s\n", coverageFile, e);
+        }
+      }
+    });
+  }
+
+  // Writes a jar with just the runtime class, to be loaded by the bootstrap class loader.
+  private static JarFile runtimeJar() throws IOException {
+    String path = "org/pantsbuild/tools/junit/coverage/CoverageRuntime.class";
+    InputStream in = CoverageAgent.class.getClassLoader().getResourceAsStream(path);
+    if (in == null) {
+      throw new IOException("Missing " + path);
+    }
+    File jar = File.createTempFile("junit-coverage-runtime", ".jar");
+    jar.deleteOnExit();
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      out.putNextEntry(new JarEntry(path));
+      byte[] buffer = new byte[8192];
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+        out.write(buffer, 0, read);
+      }
+      out.closeEntry();
+    } finally {
+      in.close();
+      out.close();
+    }
+    return new JarFile(jar);
+  }
+
+  private final List<String> includes;
+  private final List<String> excludes;
+  private final List<MeasuredClass> measured = new ArrayList<MeasuredClass>();
+  private final ClassLoader jdkClassLoader = ClassLoader.getSystemClassLoader().getParent();
+
+  CoverageAgent(List<String> includes, List<String> excludes) {
+    this.includes = includes;
+    this.excludes = excludes;
+  }
+
+  @Override
+  public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+      ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+    // Classes of the JDK class loaders are not measured, and cannot call the runtime anyway.
+    if (loader == null || loader == jdkClassLoader || className == null
+        || classBeingRedefined != null || !isMeasured(className)) {
+      return null;
+    }
+    try {
+      return instrument(classfileBuffer);
+    // Failing to instrument a class must not fail loading it.
+    // SUPPRESS CHECKSTYLE RegexpSinglelineJava
+    } catch (Throwable t) {
+      System.err.printf("Measuring no coverage of %s: %s\n", className.replace('/', '.'), t);
+      return null;
+    }
+  }
+
+  /**
+   * Instruments a class file, registering the class with {@link CoverageRuntime}.
+   *
+   * @return The instrumented class file; {@code null} if there is nothing to measure.
+   */
+  byte[] instrument(byte[] classFile) throws ClassInstrumenter.InstrumentationException {
+    ClassInstrumenter instrumenter = ClassInstrumenter.parse(classFile);
+    for (String note : instrumenter.getNotes()) {
+      System.err.printf("Measuring coverage of %s: %s\n",
+          instrumenter.getClassName().replace('/', '.'), note);
+    }
+    int[] lines = instrumenter.getProbeLines();
+    if (lines.length == 0) {
+      return null;
+    }
+    CRC32 fingerprint = new CRC32();
+    fingerprint.update(classFile);
+    int id = CoverageRuntime.register(lines.length);
+    synchronized (measured) {
+      measured.add(
+          new MeasuredClass(id, instrumenter.getClassName(), fingerprint.getValue(), lines));
+    }
+    return instrumenter.instrument(id);
+  }
+
+  private boolean isMeasured(String className) {
+    for (String excluded : EXCLUDED) {
+      if (className.startsWith(excluded)) {
+        return false;
+      }
+    }
+    for (String excluded : excludes) {
+      if (className.startsWith(excluded)) {
+        return false;
+      }
+    }
+    if (includes.isEmpty()) {
+      return true;
+    }
+    for (String included : includes) {
+      if (className.startsWith(included)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the coverage measured so far.
+   */
+  CoverageData getCoverage() {
+    CoverageData data = new CoverageData();
+    synchronized (measured) {
+      for (MeasuredClass clazz : measured) {
+        data.add(new CoverageData.ClassCoverage(
+            clazz.name, clazz.fingerprint, clazz.lines, CoverageRuntime.getProbes(clazz.id)));
+      }
+    }
+    return data;
+  }
+}
@@ -0,0 +1,265 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit.coverage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The probes hit in one or more runs, by class.
+ * <p>
+ * Classes are identified by name along with a fingerprint of their class file, so that the
+ * coverage of different builds of a class is never mixed up.  Coverage is merged by marking the
+ * probes hit in either.
+ * <p>
+ * The data is stored in a compact binary format: a magic number and version, followed by the
+ * number of classes and for each class its name, fingerprint, the number of probes, the line number
+ * of each probe and a bit set of the probes hit.
+ */
+final class CoverageData {
+
+  private static final int MAGIC = 0x50434F56; // PCOV
+  private static final int VERSION = 1;
+
+  /**
+   * The coverage of a class.
+   */
+  static final class ClassCoverage {
+    private final String name;
+    private final long fingerprint;
+    private final int[] lines;
+    private final boolean[] hits;
+
+    /**
+     * @param name The internal name of the class.
+     * @param fingerprint A fingerprint of the class file.
+     * @param lines The line number of each probe.
+     * @param hits Whether each probe was hit.
+     */
+    ClassCoverage(String name, long fingerprint, int[] lines, boolean[] hits) {
+      if (lines.length != hits.length) {
+        throw new IllegalArgumentException(
+            "Got " + hits.length + " hits for " + lines.length + " probes of " + name);
+      }
+      this.name = name;
+      this.fingerprint = fingerprint;
+      this.lines = lines.clone();
+      this.hits = hits.clone();
+    }
+
+    String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the number of distinct lines with probes.
+     */
+    int getLineCount() {
+      return countLines(false);
+    }
+
+    /**
+     * Returns the number of distinct lines with a probe hit.
+     */
+    int getCoveredLineCount() {
+      return countLines(true);
+    }
+
+    private int countLines(boolean hitOnly) {
+      int[] counted = new int[lines.length];
+      int count = 0;
+      for (int i = 0; i < lines.length; i++) {
+        if (!hitOnly || hits[i]) {
+          counted[count++] = lines[i];
+        }
+      }
+      Arrays.sort(counted, 0, count);
+      int distinct = 0;
+      for (int i = 0; i < count; i++) {
+        if (i == 0 || counted[i] != counted[i - 1]) {
+          distinct++;
+        }
+      }
+      return distinct;
+    }
+
+    private String key() {
+      return name + ' ' + Long.toHexString(fingerprint);
+    }
+  }
+
+  /**
+   * Loads the coverage stored in a file.
+   *
+   * @param file The file to load.
+   * @return The coverage; empty if the file does not exist.
+   * @throws IOException If the file cannot be read or is not a coverage file.
+   */
+  static CoverageData load(File file) throws IOException {
+    CoverageData data = new CoverageData();
+    if (file.exists()) {
+      InputStream in = new BufferedInputStream(new FileInputStream(file));
+      try {
+        data.read(in);
+      } finally {
+        in.close();
+      }
+    }
+    return data;
+  }
+
+  /**
+   * Merges the coverage into a file, which may be shared with other JVMs, for example those of
+   * other test shards.  The file is locked while it is merged into.
+   *
+   * @param file The file to merge into; created if it does not exist.
+   * @param data The coverage to merge.
+   * @throws IOException If the file cannot be read or written.
+   */
+  static void mergeInto(File file, CoverageData data) throws IOException {
+    RandomAccessFile access = new RandomAccessFile(file, "rw");
+    try {
+      FileLock lock = access.getChannel().lock();
+      try {
+        byte[] stored = new byte[(int) access.length()];
+        access.readFully(stored);
+        CoverageData merged = new CoverageData();
+        if (stored.length > 0) {
+          merged.read(new ByteArrayInputStream(stored));
+        }
+        merged.merge(data);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        merged.write(bytes);
+        access.seek(0);
+        access.write(bytes.toByteArray());
+        access.setLength(bytes.size());
+      } finally {
+        lock.release();
+      }
+    } finally {
+      access.close();
+    }
+  }
+
+  private final Map<String, ClassCoverage> classes = new TreeMap<String, ClassCoverage>();
+
+  /**
+   * Adds the coverage of a class, merging it with that of the same class added before.
+   */
+  void add(ClassCoverage coverage) {
+    ClassCoverage existing = classes.get(coverage.key());
+    if (existing == null) {
+      classes.put(coverage.key(), coverage);
+    } else if (!Arrays.equals(existing.lines, coverage.lines)) {
+      throw new IllegalArgumentException("Got different probes for the same build of "
+          + coverage.name);
+    } else {
+      boolean[] hits = existing.hits.clone();
+      for (int i = 0; i < hits.length; i++) {
+        hits[i] |= coverage.hits[i];
+      }
+      classes.put(coverage.key(),
+          new ClassCoverage(coverage.name, coverage.fingerprint, coverage.lines, hits));
+    }
+  }
+
+  /**
+   * Merges the given coverage into this one.
+   */
+  void merge(CoverageData other) {
+    for (ClassCoverage coverage : other.classes.values()) {
+      add(coverage);
+    }
+  }
+
+  /**
+   * Returns the coverage of all classes, ordered by name.
+   */
+  Collection<ClassCoverage> getClasses() {
+    return Collections.unmodifiableCollection(classes.values());
+  }
+
+  /**
+   * Stores the coverage to a file, replacing its contents.
+   *
+   * @param file The file to store to.
+   * @throws IOException If the file cannot be written.
+   */
+  void store(File file) throws IOException {
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+    try {
+      write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void read(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a coverage file");
+    }
+    int version = in.readShort();
+    if (version != VERSION) {
+      throw new IOException("Unsupported coverage file version " + version);
+    }
+    int classCount = in.readInt();
+    for (int i = 0; i < classCount; i++) {
+      String name = in.readUTF();
+      long fingerprint = in.readLong();
+      int probeCount = in.readInt();
+      int[] lines = new int[probeCount];
+      for (int j = 0; j < probeCount; j++) {
+        lines[j] = in.readUnsignedShort();
+      }
+      byte[] bits = new byte[(probeCount + 7) / 8];
+      in.readFully(bits);
+      boolean[] hits = new boolean[probeCount];
+      for (int j = 0; j < probeCount; j++) {
+        hits[j] = (bits[j / 8] & (1 << (j % 8))) != 0;
+      }
+      add(new ClassCoverage(name, fingerprint, lines, hits));
+    }
+  }
+
+  private void write(OutputStream stream) throws IOException {
+    DataOutputStream out = new DataOutputStream(stream);
+    out.writeInt(MAGIC);
+    out.writeShort(VERSION);
+    out.writeInt(classes.size());
+    for (ClassCoverage coverage : classes.values()) {
+      out.writeUTF(coverage.name);
+      out.writeLong(coverage.fingerprint);
+      out.writeInt(coverage.lines.length);
+      for (int line : coverage.lines) {
+        out.writeShort(line);
+      }
+      byte[] bits = new byte[(coverage.hits.length + 7) / 8];
+      for (int j = 0; j < coverage.hits.length; j++) {
+        if (coverage.hits[j]) {
+          bits[j / 8] |= 1 << (j % 8);
+        }
+      }
+      out.write(bits);
+    }
+    out.flush();
+  }
+}
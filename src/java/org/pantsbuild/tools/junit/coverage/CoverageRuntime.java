@@ -0,0 +1,64 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit.coverage;
+
+/**
+ * Records the probes hit by instrumented classes.
+ * <p>
+ * Each instrumented class is registered with an array of probes, one per line start, and its
+ * probes call {@link #hit(int, int)} with the id of the class.  Hitting a probe takes no locks; it
+ * only marks the probe in the array of its class.  Registering, which happens far less often as
+ * classes are loaded, publishes a copy of the arrays grown as needed.
+ * <p>
+ * This class is loaded by the bootstrap class loader so that classes of all class loaders can call
+ * it, and so must only use the JDK.
+ */
+public final class CoverageRuntime {
+
+  private static final Object LOCK = new Object();
+  private static volatile boolean[][] probes = new boolean[256][];
+  private static int classCount;
+
+  private CoverageRuntime() {
+    // Utility class.
+  }
+
+  /**
+   * Marks a probe of an instrumented class as hit.
+   *
+   * @param classId The id the class was registered under.
+   * @param probe The index of the probe.
+   */
+  public static void hit(int classId, int probe) {
+    probes[classId][probe] = true;
+  }
+
+  /**
+   * Registers an instrumented class.
+   *
+   * @param probeCount The number of probes of the class.
+   * @return The id of the class.
+   */
+  public static int register(int probeCount) {
+    synchronized (LOCK) {
+      boolean[][] current = probes;
+      if (classCount == current.length) {
+        boolean[][] grown = new boolean[current.length * 2][];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        current = grown;
+      }
+      current[classCount] = new boolean[probeCount];
+      // Publish the new class before its probes can be hit.
+      probes = current;
+      return classCount++;
+    }
+  }
+
+  /**
+   * Returns a copy of the probes of a registered class.
+   */
+  public static boolean[] getProbes(int classId) {
+    return probes[classId].clone();
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit.coverage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges and summarizes the coverage files written by {@link CoverageAgent}.
+ * <p>
+ * {@code merge OUT IN...} merges the coverage of all {@code IN} files, for example those of the
+ * shards of a test run, into {@code OUT}, replacing it.  {@code summary IN...} prints the line
+ * coverage of each class and in total of the merged {@code IN} files.
+ */
+public final class CoverageTool {
+
+  private CoverageTool() {
+    // Utility class.
+  }
+
+  public static void main(String[] args) {
+    // We're a main - its fine to exit.
+    // SUPPRESS CHECKSTYLE RegexpSinglelineJava
+    System.exit(run(Arrays.asList(args), System.out, System.err));
+  }
+
+  /**
+   * Runs the command given by {@code args}.
+   *
+   * @return The exit status of the command.
+   */
+  static int run(List<String> args, PrintStream out, PrintStream err) {
+    if (args.size() < 2
+        || !(args.get(0).equals("merge") && args.size() >= 3 || args.get(0).equals("summary"))) {
+      err.println("Usage: merge OUT IN... | summary IN...");
+      return 1;
+    }
+    boolean merge = args.get(0).equals("merge");
+    CoverageData data = new CoverageData();
+    for (String in : args.subList(merge ? 2 : 1, args.size())) {
+      try {
+        data.merge(CoverageData.load(new File(in)));
+      } catch (IOException e) {
+        err.printf("Failed to load coverage from %s: %s\n", in, e);
+        return 1;
+      }
+    }
+    if (merge) {
+      try {
+        data.store(new File(args.get(1)));
+      } catch (IOException e) {
+        err.printf("Failed to store coverage to %s: %s\n", args.get(1), e);
+        return 1;
+      }
+    } else {
+      printSummary(data, out);
+    }
+    return 0;
+  }
+
+  private static void printSummary(CoverageData data, PrintStream out) {
+    int lines = 0;
+    int covered = 0;
+    for (CoverageData.ClassCoverage coverage : data.getClasses()) {
+      int classLines = coverage.getLineCount();
+      int classCovered = coverage.getCoveredLineCount();
+      out.printf("%s %s\n", percentage(classCovered, classLines),
+          coverage.getName().replace('/', '.'));
+      lines += classLines;
+      covered += classCovered;
+    }
+    out.printf("%s total\n", percentage(covered, lines));
+  }
+
+  private static String percentage(int covered, int lines) {
+    return String.format("%3d%% (%d/%d lines)",
+        lines == 0 ? 100 : (int) (100L * covered / lines), covered, lines);
+  }
+}
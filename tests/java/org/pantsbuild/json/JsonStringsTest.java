@@ -0,0 +1,24 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.json;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonStringsTest {
+
+  @Test
+  public void testQuote() {
+    assertEquals("\"\"", JsonStrings.quote(""));
+    assertEquals("\"org/pantsbuild/A.class\"", JsonStrings.quote("org/pantsbuild/A.class"));
+    assertEquals("\"say \\\"42\\\" \\\\ \\u000a\\u0009done\"",
+        JsonStrings.quote("say \"42\" \\ \n\tdone"));
+  }
+
+  @Test
+  public void testQuoteNull() {
+    assertEquals("null", JsonStrings.quote(null));
+  }
+}
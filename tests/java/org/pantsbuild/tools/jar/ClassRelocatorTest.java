@@ -0,0 +1,109 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.jar.JarFile;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+
+import org.junit.Test;
+
+import org.pantsbuild.tools.jar.JarBuilder.Relocation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ClassRelocatorTest extends JarBuilderTest.WriteTestBase {
+
+  public static class Fixture implements Callable<String> {
+    static String resource() {
+      return "org/pantsbuild/tools/jar/data.txt";
+    }
+
+    @Override
+    public String call() {
+      return Fixture.class.getName() + " " + resource();
+    }
+  }
+
+  private static final String FIXTURE_PATH =
+      "org/pantsbuild/tools/jar/ClassRelocatorTest$Fixture.class";
+
+  private static final ImmutableList<Relocation> RELOCATIONS =
+      ImmutableList.of(Relocation.packagePrefix("org.pantsbuild.tools.jar", "shaded"));
+
+  private static final ClassRelocator RELOCATOR = new ClassRelocator(RELOCATIONS);
+
+  private static byte[] fixtureBytes() throws IOException {
+    return Resources.toByteArray(Resources.getResource(FIXTURE_PATH));
+  }
+
+  private static class DefiningClassLoader extends ClassLoader {
+    DefiningClassLoader() {
+      super(ClassRelocatorTest.class.getClassLoader());
+    }
+
+    Class<?> define(byte[] classFile) {
+      return defineClass(null, classFile, 0, classFile.length);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static String callRelocated(byte[] classFile) throws Exception {
+    Class<?> relocated = new DefiningClassLoader().define(classFile);
+    assertEquals("shaded.ClassRelocatorTest$Fixture", relocated.getName());
+    return ((Callable<String>) relocated.getDeclaredConstructor().newInstance()).call();
+  }
+
+  @Test
+  public void testRelocatePath() {
+    assertEquals("shaded/a/B.class", RELOCATOR.relocatePath("org/pantsbuild/tools/jar/a/B.class"));
+    assertEquals("org/pantsbuild/tools/jarjar/B.class",
+        RELOCATOR.relocatePath("org/pantsbuild/tools/jarjar/B.class"));
+    assertEquals("META-INF/MANIFEST.MF", RELOCATOR.relocatePath("META-INF/MANIFEST.MF"));
+  }
+
+  @Test
+  public void testRelocateClass() throws Exception {
+    assertEquals("shaded.ClassRelocatorTest$Fixture shaded/data.txt",
+        callRelocated(RELOCATOR.relocateClass(fixtureBytes())));
+
+    byte[] notAClass = {1, 2, 3};
+    assertArrayEquals(notAClass, RELOCATOR.relocateClass(notAClass));
+  }
+
+  @Test
+  public void testWriteRelocated() throws Exception {
+    File destinationJar = jarBuilder()
+        .add(ByteSource.wrap(fixtureBytes()), FIXTURE_PATH)
+        .add(content("42"), "org/pantsbuild/tools/jar/data.txt")
+        .add(content("1/137"), "org/pantsbuild/tools/jarjar/data.txt")
+        .relocate(RELOCATIONS)
+        .write(true /* compress */);
+
+    JarFile jar = new JarFile(destinationJar);
+    try {
+      assertNull(jar.getEntry(FIXTURE_PATH));
+      assertNotNull(jar.getEntry("org/pantsbuild/tools/jarjar/data.txt"));
+      assertEquals("42", new String(read(jar, "shaded/data.txt"), Charsets.UTF_8));
+      byte[] relocated = read(jar, "shaded/ClassRelocatorTest$Fixture.class");
+      assertEquals("shaded.ClassRelocatorTest$Fixture shaded/data.txt", callRelocated(relocated));
+    } finally {
+      jar.close();
+    }
+  }
+
+  private static byte[] read(JarFile jar, String path) throws IOException {
+    return ByteStreams.toByteArray(jar.getInputStream(jar.getEntry(path)));
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+
+import org.junit.Test;
+
+import org.pantsbuild.tools.jar.ClasspathIndex.Location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClasspathIndexTest extends JarBuilderTest.WriteTestBase {
+
+  @Test
+  public void testQueries() throws IOException {
+    File a = jarBuilder()
+        .add(content("foo"), "com/example/Foo.class")
+        .add(content("bar"), "com/example/Bar.class")
+        .write();
+    File b = jarBuilder()
+        .add(content("foo"), "com/example/Foo.class")
+        .add(content("baz"), "com/example/Bar.class")
+        .add(content("license"), "LICENSE")
+        .write();
+    File c = jarBuilder().add(content("license"), "LICENSE").write();
+    List<File> classpath = ImmutableList.of(a, b, c);
+
+    ClasspathIndex index = ClasspathIndex.load(newFile("index"));
+    assertEquals(3, index.refresh(classpath));
+
+    ListMultimap<String, Location> duplicates =
+        index.duplicates(classpath, Predicates.<CharSequence>alwaysFalse());
+    assertEquals(3, duplicates.keySet().size());
+
+    List<Location> foo = duplicates.get("com/example/Foo.class");
+    assertEquals(2, foo.size());
+    assertEquals(a, foo.get(0).getJar());
+    assertEquals(b, foo.get(1).getJar());
+    assertTrue(foo.get(0).sameContents(foo.get(1)));
+
+    List<Location> bar = duplicates.get("com/example/Bar.class");
+    assertFalse(bar.get(0).sameContents(bar.get(1)));
+
+    duplicates = index.duplicates(classpath,
+        JarBuilder.pathSelector(ImmutableList.of(Pattern.compile("^LICENSE$"))));
+    assertFalse(duplicates.containsKey("LICENSE"));
+
+    List<Location> license = index.locate(classpath, "LICENSE");
+    assertEquals(2, license.size());
+    assertEquals(b, license.get(0).getJar());
+    assertEquals(c, license.get(1).getJar());
+    assertTrue(index.locate(ImmutableList.of(a), "LICENSE").isEmpty());
+  }
+
+  @Test
+  public void testIncrementalRefresh() throws IOException {
+    File a = jarBuilder().add(content("foo"), "com/example/Foo.class").write();
+    File b = jarBuilder().add(content("bar"), "com/example/Bar.class").write();
+    List<File> classpath = ImmutableList.of(a, b);
+
+    File indexFile = newFile("index");
+    ClasspathIndex index = ClasspathIndex.load(indexFile);
+    assertEquals(2, index.refresh(classpath));
+    index.store();
+
+    index = ClasspathIndex.load(indexFile);
+    assertEquals(0, index.refresh(classpath));
+    assertEquals(1, index.locate(classpath, "com/example/Bar.class").size());
+
+    jarBuilder(b).add(content("foo"), "com/example/Foo.class").write();
+    // Ensure the modification is visible even on file systems with coarse timestamps.
+    assertTrue(b.setLastModified(b.lastModified() + 2000));
+
+    assertEquals(1, index.refresh(classpath));
+    assertEquals(2, index.locate(classpath, "com/example/Foo.class").size());
+  }
+}
@@ -6,6 +6,7 @@ package org.pantsbuild.tools.jar;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -23,6 +24,7 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closer;
@@ -515,6 +517,21 @@ public class JarBuilderTest {
       });
     }
 
+    @Test
+    public void testWriteTwice() throws IOException {
+      File sourceJar = jarBuilder().add(content("1/137"), "meaning/of/the/universe").write();
+
+      JarBuilder jarBuilder = jarBuilder().addJar(sourceJar);
+      jarBuilder.write();
+      File destinationJar = jarBuilder.write();
+
+      doWithJar(destinationJar, new ExceptionalClosure<JarFile, IOException>() {
+        @Override public void execute(JarFile jar) throws IOException {
+          assertStoredContents(jar, "meaning/of/the/universe", "1/137");
+        }
+      });
+    }
+
     @Test
     public void testSkip() throws IOException {
       File dir = newFolder("life/of/brian");
@@ -689,6 +706,88 @@ public class JarBuilderTest {
         assertEquals("!", content(e.getSource()));
       }
     }
+
+    @Test
+    public void testDigests() throws IOException {
+      File destinationJar = jarBuilder().add(content("42"), "meaning/of/life").write();
+      File sidecar = JarBuilder.digestsFile(destinationJar);
+      assertFalse(sidecar.exists());
+
+      destinationJar =
+          jarBuilder(destinationJar).recordDigests(false).write(true /* compress */);
+
+      String digests = Files.toString(sidecar, Charsets.UTF_8);
+      assertTrue(digests.contains(
+          "\"digest\":\"" + Files.hash(destinationJar, Hashing.sha256()) + "\""));
+      assertTrue(digests.contains("\"size\":" + destinationJar.length() + ","));
+      assertFalse(digests.contains("\"entries\""));
+
+      // A subsequent write that does not record digests must not leave a stale sidecar behind.
+      jarBuilder(destinationJar).write();
+      assertFalse(sidecar.exists());
+    }
+
+    @Test
+    public void testEntryDigests() throws IOException {
+      File sourceJar =
+          jarBuilder().add(content("1/137"), "meaning/of/the/universe").write(true /* compress */);
+
+      File destinationJar =
+          jarBuilder()
+              .add(content("42"), "meaning/of/life")
+              .addJar(sourceJar)
+              .recordDigests(true)
+              .write();
+
+      String digests = Files.toString(JarBuilder.digestsFile(destinationJar), Charsets.UTF_8);
+      assertTrue(digests.contains(
+          "\"digest\":\"" + Files.hash(destinationJar, Hashing.sha256()) + "\""));
+      assertTrue(digests.contains(
+          "\"meaning/of/life\":\"" + content("42").hash(Hashing.sha256()) + "\""));
+      assertTrue(digests.contains(
+          "\"meaning/of/the/universe\":\"" + content("1/137").hash(Hashing.sha256()) + "\""));
+    }
+
+    @Test
+    public void testAnalyze() throws IOException {
+      File first = jarBuilder()
+          .add(content("1"), "a/b")
+          .add(content("foo"), "META-INF/services/Foo")
+          .write();
+      File second = jarBuilder()
+          .add(content("22"), "a/b")
+          .add(content("bar"), "META-INF/services/Foo")
+          .add(content("skip me"), "c/d")
+          .write();
+
+      File destinationJar = newFile();
+      DuplicateHandler handler = DuplicateHandler.skipDuplicatesConcatWellKnownMetadata();
+      StringWriter report = new StringWriter();
+      assertTrue(jarBuilder(destinationJar)
+          .addJar(first)
+          .addJar(second)
+          .analyze(false, handler, ImmutableList.of(Pattern.compile("^c/")), report));
+
+      String json = report.toString();
+      assertTrue(json.contains("{\"path\":\"a/b\",\"action\":\"SKIP\",\"sources\":[\""
+          + first.getPath() + "!a/b\",\"" + second.getPath() + "!a/b\"]}"));
+      assertTrue(json.contains("\"path\":\"META-INF/services/Foo\",\"action\":\"CONCAT\""));
+      assertTrue(json.contains("\"skipped\":[\"c/d\"]"));
+      assertTrue(json.contains(
+          "{\"name\":\"" + first.getPath() + "\",\"entries\":2,\"size\":4}"));
+      // The manifest, a/b and the concatenated services file.
+      assertTrue(json.contains("\"entries\":3,"));
+      assertTrue(json.contains("\"fails\":false}"));
+      assertEquals(0, destinationJar.length());
+
+      report = new StringWriter();
+      assertFalse(jarBuilder(destinationJar)
+          .addJar(first)
+          .addJar(second)
+          .analyze(false, DuplicateHandler.always(DuplicateAction.THROW),
+              ImmutableList.<Pattern>of(), report));
+      assertTrue(report.toString().contains("\"fails\":true}"));
+    }
   }
 
   public static class ListenerTest extends WriteTestBase {
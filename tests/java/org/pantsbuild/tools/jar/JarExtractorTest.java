@@ -0,0 +1,93 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JarExtractorTest extends JarBuilderTest.WriteTestBase {
+
+  private static final ImmutableList<Pattern> NO_PATTERNS = ImmutableList.of();
+
+  private static void assertContents(File file, String expectedContent) throws IOException {
+    assertTrue(file.isFile());
+    assertEquals(expectedContent, Files.toString(file, Charsets.UTF_8));
+  }
+
+  @Test
+  public void testExtract() throws IOException {
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      big.append(i);
+    }
+    File storedJar =
+        jarBuilder()
+            .add(content("42"), "meaning/of/life")
+            .add(content(""), "empty")
+            .write(false /* compress */);
+    File compressedJar =
+        jarBuilder()
+            .add(content("1/137"), "meaning/of/the/universe")
+            .add(content(big.toString()), "big/file")
+            .write(true /* compress */);
+
+    File targetDir = newFolder("extracted");
+    int count = new JarExtractor(targetDir, 4)
+        .extract(ImmutableList.of(storedJar, compressedJar), NO_PATTERNS, NO_PATTERNS);
+
+    // Both jars contain a manifest but only the first one is extracted.
+    assertEquals(5, count);
+    assertContents(new File(targetDir, "meaning/of/life"), "42");
+    assertContents(new File(targetDir, "empty"), "");
+    assertContents(new File(targetDir, "meaning/of/the/universe"), "1/137");
+    assertContents(new File(targetDir, "big/file"), big.toString());
+    assertTrue(new File(targetDir, "META-INF/MANIFEST.MF").isFile());
+  }
+
+  @Test
+  public void testExtractFiltered() throws IOException {
+    File jar =
+        jarBuilder()
+            .add(content("42"), "meaning/of/life")
+            .add(content("1/137"), "meaning/of/the/universe")
+            .add(content("foo"), "foo/bar")
+            .write(true /* compress */);
+
+    File targetDir = newFolder("extracted");
+    int count = new JarExtractor(targetDir, 2).extract(
+        ImmutableList.of(jar),
+        ImmutableList.of(Pattern.compile("^meaning/")),
+        ImmutableList.of(Pattern.compile("universe$")));
+
+    assertEquals(1, count);
+    assertContents(new File(targetDir, "meaning/of/life"), "42");
+    assertFalse(new File(targetDir, "meaning/of/the/universe").exists());
+    assertFalse(new File(targetDir, "foo").exists());
+    assertFalse(new File(targetDir, "META-INF").exists());
+  }
+
+  @Test
+  public void testExtractDuplicatesFirstWins() throws IOException {
+    File first = jarBuilder().add(content("1"), "a/b").write(true /* compress */);
+    File second = jarBuilder().add(content("2"), "a/b").add(content("3"), "c").write();
+
+    File targetDir = newFolder("extracted");
+    new JarExtractor(targetDir, 2).extract(
+        ImmutableList.of(first, second), NO_PATTERNS, NO_PATTERNS);
+
+    assertContents(new File(targetDir, "a/b"), "1");
+    assertContents(new File(targetDir, "c"), "3");
+  }
+}
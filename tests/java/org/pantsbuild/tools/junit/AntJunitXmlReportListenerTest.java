@@ -0,0 +1,99 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.RunListener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AntJunitXmlReportListenerTest {
+
+  private static final Pattern TESTCASE_TIME =
+      Pattern.compile("<testcase [^>]*time=\"([0-9.]+)\"");
+
+  private static final StreamSource NO_OUTPUT = new StreamSource() {
+    @Override public InputStream openOut(Class<?> testClass) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override public InputStream openErr(Class<?> testClass) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+  };
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  private final Description test =
+      Description.createTestDescription(AntJunitXmlReportListenerTest.class, "test");
+
+  private void run(RunListener listener) throws Exception {
+    Description suite = Description.createSuiteDescription(AntJunitXmlReportListenerTest.class);
+    suite.addChild(test);
+    listener.testRunStarted(suite);
+    listener.testStarted(test);
+    listener.testFinished(test);
+    listener.testRunFinished(new Result());
+  }
+
+  private double testCaseTime() throws Exception {
+    String report = Files.toString(
+        new File(temporary.getRoot(), "TEST-" + getClass().getName() + ".xml"), Charsets.UTF_8);
+    Matcher matcher = TESTCASE_TIME.matcher(report);
+    assertTrue(report, matcher.find());
+    return Double.parseDouble(matcher.group(1));
+  }
+
+  @Test
+  public void testTimesWithTicker() throws Exception {
+    final long[] nanoTimes = {
+      TimeUnit.SECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(2500)
+    };
+    Ticker ticker = new Ticker() {
+      private int reads;
+
+      @Override public long read() {
+        return nanoTimes[reads++];
+      }
+    };
+    run(new AntJunitXmlReportListener(
+        temporary.getRoot(), NO_OUTPUT, null, ticker));
+    assertEquals(1.5, testCaseTime(), 0.0);
+  }
+
+  @Test
+  public void testTimesEventsRatherThanTheirDispatch() throws Exception {
+    AsyncListener asyncListener = AsyncListener.start(AsyncListener.DEFAULT_CAPACITY);
+    // Holds up the dispatch of the end of the test.
+    asyncListener.addListener(new RunListener() {
+      @Override public void testFinished(Description description) throws Exception {
+        Thread.sleep(1000);
+      }
+    });
+    asyncListener.addListener(new AntJunitXmlReportListener(temporary.getRoot(), NO_OUTPUT));
+    try {
+      run(asyncListener);
+    } finally {
+      asyncListener.close();
+    }
+    assertTrue(testCaseTime() < 0.5);
+  }
+}
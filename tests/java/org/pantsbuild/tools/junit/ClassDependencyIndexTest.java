@@ -0,0 +1,74 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClassDependencyIndexTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  @Test
+  public void testStoreAndLoad() throws Exception {
+    File file = new File(temporary.getRoot(), "deps/index");
+    ClassDependencyIndex index = ClassDependencyIndex.load(file);
+    index.record("a.ATest", ImmutableMap.of("a.ATest", "01", "a.A", "02", "c.C", "03"));
+    index.record("b.BTest", ImmutableMap.of("b.BTest", "04", "c.C", "03"));
+    index.store();
+
+    // The shared c.C is stored once.
+    assertEquals("01 a.ATest\n02 a.A\n03 c.C\n04 b.BTest\n\n",
+        Files.toString(file, Charsets.UTF_8).replaceAll("(?m)^[ab]\\..*$\n", ""));
+
+    index = ClassDependencyIndex.load(file);
+    assertEquals(ImmutableMap.of("b.BTest", "04", "c.C", "03"), index.getDependencies("b.BTest"));
+
+    // Records are updated incrementally.
+    index.record("b.BTest", ImmutableMap.of("b.BTest", "05"));
+    index.store();
+    index = ClassDependencyIndex.load(file);
+    assertEquals(ImmutableMap.of("b.BTest", "05"), index.getDependencies("b.BTest"));
+    assertEquals(3, index.getDependencies("a.ATest").size());
+  }
+
+  @Test
+  public void testIsAffected() throws Exception {
+    ClassDependencyIndex index = ClassDependencyIndex.load(temporary.newFile("index"));
+    index.record("a.ATest", ImmutableMap.of("a.ATest", "01", "a.A$Inner", "02"));
+
+    assertTrue(index.isAffected("a.ATest", changes("a.A")));
+    assertTrue(index.isAffected("a.ATest", changes("a.A$Inner")));
+    assertFalse(index.isAffected("a.ATest", changes("a.B,a.AT")));
+    assertTrue(index.isAffected("a.ATest", changes("a.A$Inner=03")));
+    assertFalse(index.isAffected("a.ATest", changes("a.A$Inner=02 a.ATest=01")));
+    assertTrue(index.isAffected("b.BTest", changes("a.A")));
+  }
+
+  @Test
+  public void testParseChangesFile() throws Exception {
+    File changes = temporary.newFile("changes");
+    Files.write("a.A\nb.B=04\n", changes, Charsets.UTF_8);
+
+    assertEquals(ImmutableMap.of("a.A", "", "b.B", "04"),
+        ClassDependencyIndex.parseChanges("@" + changes.getPath()));
+  }
+
+  private static Map<String, String> changes(String changes) throws Exception {
+    return ClassDependencyIndex.parseChanges(changes);
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.Closeable;
+import java.io.File;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ClassLoaderCacheTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  @Test
+  public void testReusedUntilChanged() throws Exception {
+    File classes = temporary.newFolder("classes");
+    File resource = new File(classes, "org/pantsbuild/resource.txt");
+    Files.createParentDirs(resource);
+    Files.write("1", resource, Charsets.UTF_8);
+    File jar = temporary.newFile("lib.jar");
+    String classpath = classes.getPath() + File.pathSeparator + jar.getPath();
+
+    ClassLoaderCache cache = ClassLoaderCache.forJvmClasspath();
+    ClassLoader classLoader = cache.get(classpath);
+    assertNotNull(classLoader.getResource("org/pantsbuild/resource.txt"));
+    assertNotSame(ConsoleRunner.class, classLoader.loadClass(ConsoleRunner.class.getName()));
+    assertSame(classLoader, cache.get(classpath));
+    assertNotSame(classLoader, cache.get(classes.getPath()));
+
+    Files.write("42", resource, Charsets.UTF_8);
+    ClassLoader changed = cache.get(classpath);
+    assertNotSame(classLoader, changed);
+    assertSame(changed, cache.get(classpath));
+    // The replaced class loader is closed where class loaders can be.
+    if (classLoader instanceof Closeable) {
+      assertNull(classLoader.getResource("org/pantsbuild/resource.txt"));
+    }
+  }
+
+  @Test
+  public void testClosesEvicted() throws Exception {
+    File classes = temporary.newFolder("classes");
+    File resource = new File(classes, "org/pantsbuild/resource.txt");
+    Files.createParentDirs(resource);
+    Files.write("1", resource, Charsets.UTF_8);
+
+    ClassLoaderCache cache = ClassLoaderCache.forJvmClasspath();
+    ClassLoader eldest = cache.get(classes.getPath());
+    for (int i = 0; i < ClassLoaderCache.MAX_CLASS_LOADERS; i++) {
+      cache.get(temporary.newFolder("classes" + i).getPath());
+    }
+    assertNotSame(eldest, cache.get(classes.getPath()));
+    if (eldest instanceof Closeable) {
+      assertNull(eldest.getResource("org/pantsbuild/resource.txt"));
+    }
+  }
+}
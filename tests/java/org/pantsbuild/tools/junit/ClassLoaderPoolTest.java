@@ -0,0 +1,64 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ClassLoaderPoolTest {
+
+  @Test
+  public void testSpreadsClassesOverClassLoaders() throws Exception {
+    List<URL> classpath = Lists.newArrayList();
+    for (String entry
+        : Splitter.on(File.pathSeparatorChar).split(System.getProperty("java.class.path"))) {
+      classpath.add(new File(entry).toURI().toURL());
+    }
+    List<URL> shared = Lists.newArrayList();
+    for (Class<?> runnerClass : Arrays.asList(ConsoleRunner.class, JUnitCore.class)) {
+      shared.add(runnerClass.getProtectionDomain().getCodeSource().getLocation());
+    }
+    ClassLoaderPool pool = new ClassLoaderPool(classpath.toArray(new URL[classpath.size()]),
+        shared, ConsoleRunner.class.getClassLoader(), 2);
+
+    Class<?> test1 = pool.loadClass(MockTest1.class.getName());
+    Class<?> test2 = pool.loadClass(MockTest2.class.getName());
+    Class<?> test3 = pool.loadClass(MockTest3.class.getName());
+    assertNotSame(MockTest1.class, test1);
+    assertSame(test1, pool.loadClass(MockTest1.class.getName()));
+    assertNotSame(test1.getClassLoader(), test2.getClassLoader());
+    assertSame(test1.getClassLoader(), test3.getClassLoader());
+
+    // Junit and the runner are shared with the tests.
+    assertNotNull(test1.getMethod("testMethod11").getAnnotation(Test.class));
+    assertSame(ConsoleRunner.class,
+        test1.getClassLoader().loadClass(ConsoleRunner.class.getName()));
+    assertNotSame(TestRegistry.class,
+        test1.getClassLoader().loadClass(TestRegistry.class.getName()));
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    URL classes = MockTest1.class.getProtectionDomain().getCodeSource().getLocation();
+    ClassLoaderPool pool = new ClassLoaderPool(new URL[] {classes}, Arrays.<URL>asList(),
+        ConsoleRunner.class.getClassLoader(), 1);
+    Class<?> test1 = pool.loadClass(MockTest1.class.getName());
+    pool.close();
+
+    // Classes are loaded afresh once closed.
+    assertNotSame(test1, pool.loadClass(MockTest1.class.getName()));
+  }
+}
@@ -0,0 +1,179 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.pantsbuild.junit.annotations.TestParallel;
+import org.pantsbuild.junit.annotations.TestResourceGroup;
+import org.pantsbuild.junit.annotations.TestResourceGroups;
+
+public class ConcurrentRunnerSchedulerTest {
+
+  @TestParallel
+  static class ParallelClass {
+  }
+
+  @TestResourceGroup("database")
+  static class DatabaseClass extends ParallelClass {
+  }
+
+  @TestResourceGroups({@TestResourceGroup("database"), @TestResourceGroup("ports")})
+  static class DatabaseAndPortsClass extends ParallelClass {
+  }
+
+  @TestResourceGroup("database")
+  static class SerialDatabaseClass {
+  }
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  @Test
+  public void testSerialLaneRunsAlongsideParallelClasses() {
+    final CountDownLatch serialStarted = new CountDownLatch(1);
+    final AtomicBoolean overlapped = new AtomicBoolean();
+    ConcurrentRunnerScheduler scheduler = new ConcurrentRunnerScheduler(false, 2);
+    scheduler.schedule(new Runnable() {
+      @Override public void run() {
+        try {
+          overlapped.set(serialStarted.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, ParallelClass.class);
+    scheduler.schedule(new Runnable() {
+      @Override public void run() {
+        serialStarted.countDown();
+      }
+    }, String.class);
+    scheduler.finished();
+
+    Assert.assertTrue(overlapped.get());
+  }
+
+  @Test
+  public void testResourceGroupsLimitClassesRunningAtOnce() throws Exception {
+    final AtomicInteger usingDatabase = new AtomicInteger();
+    final AtomicBoolean sharedDatabase = new AtomicBoolean();
+    final CountDownLatch parallelStarted = new CountDownLatch(1);
+    final AtomicBoolean overlapped = new AtomicBoolean();
+    class UsesDatabase implements Runnable {
+      @Override public void run() {
+        if (usingDatabase.incrementAndGet() > 1) {
+          sharedDatabase.set(true);
+        }
+        try {
+          Thread.sleep(20);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        usingDatabase.decrementAndGet();
+      }
+    }
+    ConcurrentRunnerScheduler scheduler = new ConcurrentRunnerScheduler(false, 4);
+    scheduler.schedule(new UsesDatabase(), DatabaseClass.class);
+    scheduler.schedule(new UsesDatabase(), DatabaseAndPortsClass.class);
+    scheduler.schedule(new UsesDatabase(), SerialDatabaseClass.class);
+    scheduler.schedule(new UsesDatabase(), DatabaseClass.class);
+    // Classes outside the resource group still run alongside.
+    scheduler.schedule(new Runnable() {
+      @Override public void run() {
+        try {
+          overlapped.set(parallelStarted.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, ParallelClass.class);
+    scheduler.schedule(new Runnable() {
+      @Override public void run() {
+        parallelStarted.countDown();
+      }
+    }, String.class);
+    scheduler.finished();
+
+    Assert.assertFalse(sharedDatabase.get());
+    Assert.assertTrue(overlapped.get());
+  }
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+    ThreadFactory threadFactory = ConcurrentRunnerScheduler.newVirtualThreadFactory();
+    Assume.assumeNotNull(threadFactory);
+
+    final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+    ConcurrentRunnerScheduler scheduler = new ConcurrentRunnerScheduler(
+        false, false, 2, TimingHistory.none(), threadFactory);
+    scheduler.schedule(new Runnable() {
+      @Override public void run() {
+        threads.add(Thread.currentThread());
+      }
+    }, ParallelClass.class);
+    scheduler.finished();
+
+    Assert.assertEquals(1, threads.size());
+    Assert.assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(threads.get(0)));
+  }
+
+  @Test
+  public void testFinishedStopsThreads() throws Exception {
+    final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+    ConcurrentRunnerScheduler scheduler = new ConcurrentRunnerScheduler(false, 2);
+    scheduler.schedule(new Runnable() {
+      @Override public void run() {
+        threads.add(Thread.currentThread());
+      }
+    }, ParallelClass.class);
+    scheduler.finished();
+
+    Assert.assertEquals(1, threads.size());
+    threads.get(0).join(TimeUnit.SECONDS.toMillis(10));
+    Assert.assertFalse(threads.get(0).isAlive());
+  }
+
+  @Test
+  public void testLongestExpectedFirst() throws Exception {
+    File historyFile = temporary.newFile("history");
+    Files.write("10 java.lang.Integer\n100 java.lang.Long\n", historyFile, Charsets.UTF_8);
+
+    TimingHistory history = TimingHistory.load(historyFile);
+    ConcurrentRunnerScheduler scheduler = new ConcurrentRunnerScheduler(true, false, 1, history);
+    final List<String> started = new CopyOnWriteArrayList<String>();
+    for (final Class<?> clazz : Arrays.asList(Integer.class, Long.class, String.class)) {
+      scheduler.schedule(new Runnable() {
+        @Override public void run() {
+          started.add(clazz.getSimpleName());
+        }
+      }, clazz);
+    }
+    scheduler.finished();
+
+    // Classes without history may be arbitrarily long, so go first.
+    Assert.assertEquals(Arrays.asList("String", "Long", "Integer"), started);
+
+    history.store();
+    history = TimingHistory.load(historyFile);
+    Assert.assertNotNull(history.getMillis("java.lang.String"));
+    Assert.assertTrue(history.getMillis("java.lang.Long") <= 50);
+  }
+}
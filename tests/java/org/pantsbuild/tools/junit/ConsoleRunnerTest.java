@@ -3,10 +3,21 @@
 
 package org.pantsbuild.tools.junit;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Files;
+
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import org.pantsbuild.junit.annotations.TestSerial;
 
@@ -17,17 +28,22 @@ import org.pantsbuild.junit.annotations.TestSerial;
 @TestSerial
 public class ConsoleRunnerTest {
 
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
   @Before
   public void setUp() {
     ConsoleRunner.setCallSystemExitOnFinish(false);
     ConsoleRunner.setExitStatus(0);
     TestRegistry.reset();
+    FlakyTest.reset();
   }
 
   @After
   public void tearDown() {
     ConsoleRunner.setCallSystemExitOnFinish(true);
     ConsoleRunner.setExitStatus(0);
+    ConsoleRunner.setInterruptGraceMs(HangWatchdog.INTERRUPT_GRACE_MS);
   }
 
   @Test
@@ -57,6 +73,56 @@ public class ConsoleRunnerTest {
     Assert.assertEquals("test13 test31", TestRegistry.getCalledTests());
   }
 
+  @Test
+  public void testBalancedShardedTesting() throws Exception {
+    File history = new File(temporary.getRoot(), "timing-history");
+    ConsoleRunner.main(asArgsArray(
+        "MockTest1 MockTest2 MockTest3 -test-shard 0/2 -timing-history " + history.getPath()));
+    ConsoleRunner.main(asArgsArray(
+        "MockTest1 MockTest2 MockTest3 -test-shard 1/2 -timing-history " + history.getPath()));
+    // Both shards kept the durations of their tests, without -xmlreport.
+    String durations = Files.toString(history, Charsets.UTF_8);
+    for (String test : TestRegistry.getCalledTests().split(" ")) {
+      Assert.assertTrue(durations,
+          durations.contains(" testMethod" + test.substring("test".length()) + "("));
+    }
+
+    // Balance by a snapshot in which testMethod11 dominates, while the live history the shards
+    // record into claims the opposite by the time the second shard starts.
+    File snapshot = new File(temporary.getRoot(), "timing-snapshot");
+    Files.write(recordedDurations(1000, 1), snapshot, Charsets.UTF_8);
+    Files.copy(snapshot, history);
+
+    TestRegistry.reset();
+    ConsoleRunner.main(asArgsArray("MockTest1 MockTest2 MockTest3 -test-shard 0/2 "
+        + "-balance-test-shards " + snapshot.getPath() + " -timing-history " + history.getPath()));
+    Assert.assertEquals("test11", TestRegistry.getCalledTests());
+
+    Files.write(recordedDurations(1, 1000), history, Charsets.UTF_8);
+    TestRegistry.reset();
+    ConsoleRunner.main(asArgsArray("MockTest1 MockTest2 MockTest3 -test-shard 1/2 "
+        + "-balance-test-shards " + snapshot.getPath() + " -timing-history " + history.getPath()));
+    Assert.assertEquals("test12 test13 test21 test22 test31 test32",
+        TestRegistry.getCalledTests());
+  }
+
+  private static String recordedDurations(long test11Millis, long otherMillis) {
+    StringBuilder durations = new StringBuilder();
+    for (String test : new String[] {"11", "12", "13", "21", "22", "31", "32"}) {
+      durations.append(test.equals("11") ? test11Millis : otherMillis)
+          .append(" testMethod").append(test)
+          .append("(org.pantsbuild.tools.junit.MockTest").append(test.charAt(0)).append(")\n");
+    }
+    return durations.toString();
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testBalancedShardedTestingRejectsTimingHistory() throws Exception {
+    File history = new File(temporary.getRoot(), "timing-history");
+    ConsoleRunner.main(asArgsArray("MockTest1 -test-shard 0/2 -balance-test-shards "
+        + history.getPath() + " -timing-history " + history.getPath()));
+  }
+
   @Test
   public void testShardedTesting12WithParallelThreads() throws Exception {
     ConsoleRunner.main(asArgsArray(
@@ -72,6 +138,191 @@ public class ConsoleRunnerTest {
     Assert.assertEquals("test13 test31", TestRegistry.getCalledTests());
   }
 
+  @Test
+  public void testParallelMethods() throws Exception {
+    ConsoleRunner.main(asArgsArray("MockTest1 MockTest4 -parallel-threads 4 -parallel-methods"));
+    Assert.assertEquals("after4 before4 test11 test12 test13 test41 test42 test43 test44",
+        TestRegistry.getCalledTests());
+
+    // The class fixture methods must still bracket all of the test methods.
+    String calledTests = TestRegistry.getCalledTests(false);
+    Assert.assertTrue(calledTests, calledTests.indexOf("before4") < calledTests.indexOf("test4"));
+    Assert.assertTrue(calledTests,
+        calledTests.indexOf("after4") > calledTests.lastIndexOf("test4"));
+  }
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+    // Runs on platform threads if the JVM does not support virtual threads.
+    ConsoleRunner.main(asArgsArray(
+        "MockTest1 MockTest2 MockTest4 -virtual-threads 8 -default-parallel -parallel-methods"));
+    Assert.assertEquals("after4 before4 test11 test12 test13 test21 test22 test41 test42 test43 "
+        + "test44", TestRegistry.getCalledTests());
+  }
+
+  @Test
+  public void testWorkerProcesses() throws Exception {
+    File outdir = temporary.newFolder("reports");
+    ConsoleRunner.main(asArgsArray("MockTest1 MockTest2 MockTest3 -worker-processes 2 "
+        + "-xmlreport -outdir " + outdir.getPath()));
+
+    // The tests ran in the workers, so are only known to have run from the reports.
+    Assert.assertEquals("", TestRegistry.getCalledTests());
+    for (String testClass : new String[] {"MockTest1", "MockTest2", "MockTest3"}) {
+      String report = Files.toString(
+          new File(outdir, "TEST-org.pantsbuild.tools.junit." + testClass + ".xml"),
+          Charsets.UTF_8);
+      Assert.assertTrue(report, report.contains("failures=\"0\""));
+      Assert.assertTrue(report, report.contains("errors=\"0\""));
+    }
+  }
+
+  @Test
+  public void testWorkerCrashes() throws Exception {
+    File outdir = temporary.newFolder("reports");
+    try {
+      ConsoleRunner.main(asArgsArray("MockTest1 MockTest6 MockTest7 -worker-processes 2 "
+          + "-class-timeout-ms 2000 -xmlreport -outdir " + outdir.getPath()));
+      Assert.fail("Should have failed with the workers running MockTest6 and MockTest7 killed");
+    // SUPPRESS CHECKSTYLE RegexpSinglelineJava
+    } catch (RuntimeException e) {
+      // Expected.
+    }
+
+    // All tests of the class are reported, those after the crash as failed.
+    String report = Files.toString(
+        new File(outdir, "TEST-org.pantsbuild.tools.junit.MockTest6.xml"), Charsets.UTF_8);
+    Assert.assertTrue(report, report.contains("tests=\"3\""));
+    Assert.assertTrue(report, report.contains("errors=\"2\""));
+    Assert.assertTrue(report, report.contains("Not run: Worker JVM exited with status 1"));
+
+    report = Files.toString(
+        new File(outdir, "TEST-org.pantsbuild.tools.junit.MockTest7.xml"), Charsets.UTF_8);
+    Assert.assertTrue(report, report.contains("errors=\"1\""));
+    Assert.assertTrue(report, report.contains("for more than 2000 ms"));
+
+    // The worker replacing the one that died ran the remaining classes.
+    report = Files.toString(
+        new File(outdir, "TEST-org.pantsbuild.tools.junit.MockTest1.xml"), Charsets.UTF_8);
+    Assert.assertTrue(report, report.contains("failures=\"0\""));
+  }
+
+  @Test
+  public void testTestTimeout() throws Exception {
+    assertTimedOut("-test-timeout-ms", "Test testMethod81(");
+  }
+
+  @Test
+  public void testClassTimeout() throws Exception {
+    assertTimedOut("-class-timeout-ms", "Test class org.pantsbuild.tools.junit.MockTest8 ");
+  }
+
+  private void assertTimedOut(String timeoutOption, String timedOut) throws Exception {
+    ConsoleRunner.setInterruptGraceMs(100);
+    File outdir = temporary.newFolder("reports");
+    try {
+      ConsoleRunner.main(asArgsArray("MockTest8 " + timeoutOption + " 100 -xmlreport -outdir "
+          + outdir.getPath()));
+      Assert.fail("Should have failed with testMethod81 timed out");
+    // SUPPRESS CHECKSTYLE RegexpSinglelineJava
+    } catch (RuntimeException e) {
+      // Expected.
+    }
+
+    // The run was stopped once the hanging test gave up, rather than the JVM exiting.
+    Assert.assertEquals(1, ConsoleRunner.getExitStatus());
+    Assert.assertEquals("test81", TestRegistry.getCalledTests());
+    String report = Files.toString(
+        new File(outdir, "TEST-org.pantsbuild.tools.junit.MockTest8.xml"), Charsets.UTF_8);
+    Assert.assertTrue(report, report.contains(HangWatchdog.TimedOutException.class.getName()));
+    Assert.assertTrue(report, report.contains(timedOut));
+  }
+
+  @Test
+  public void testIsolateClasses() throws Exception {
+    File outdir = temporary.newFolder("reports");
+    ConsoleRunner.main(asArgsArray("MockTest1 MockTest2 MockTest3 MockTest5 -isolate-classes "
+        + "-parallel-threads 2 -default-parallel -xmlreport -outdir " + outdir.getPath()));
+
+    // The tests registered with their own copies of the registry, so are only known to have run
+    // from the reports.
+    Assert.assertEquals("", TestRegistry.getCalledTests());
+    for (String testClass : new String[] {"MockTest1", "MockTest2", "MockTest3", "MockTest5"}) {
+      String report = Files.toString(
+          new File(outdir, "TEST-org.pantsbuild.tools.junit." + testClass + ".xml"),
+          Charsets.UTF_8);
+      Assert.assertTrue(report, report.contains("failures=\"0\""));
+      Assert.assertTrue(report, report.contains("errors=\"0\""));
+    }
+  }
+
+  @Test
+  public void testIsolateClassesInSerial() throws Exception {
+    File outdir = temporary.newFolder("reports");
+    ConsoleRunner.main(asArgsArray(
+        "MockTest1 MockTest5 -isolate-classes -xmlreport -outdir " + outdir.getPath()));
+
+    Assert.assertEquals("", TestRegistry.getCalledTests());
+    String report = Files.toString(
+        new File(outdir, "TEST-org.pantsbuild.tools.junit.MockTest5.xml"), Charsets.UTF_8);
+    Assert.assertTrue(report, report.contains("tests=\"1\""));
+    Assert.assertTrue(report, report.contains("failures=\"0\""));
+  }
+
+  @Test
+  public void testAsyncListeners() throws Exception {
+    File outdir = temporary.newFolder("reports");
+    ConsoleRunner.main(asArgsArray("MockTest1 MockTest2 -parallel-threads 2 -async-listeners "
+        + "-xmlreport -outdir " + outdir.getPath()));
+    Assert.assertEquals("test11 test12 test13 test21 test22", TestRegistry.getCalledTests());
+
+    // The reports are complete by the time the run returns.
+    String report = Files.toString(
+        new File(outdir, "TEST-org.pantsbuild.tools.junit.MockTest2.xml"), Charsets.UTF_8);
+    Assert.assertTrue(report, report.contains("tests=\"2\""));
+  }
+
+  @Test
+  public void testChangedClasses() throws Exception {
+    File index = new File(temporary.getRoot(), "class-deps");
+    ConsoleRunner.main(asArgsArray("MockTest1 MockTest2 -record-class-deps "
+        + "-class-deps-index " + index.getPath()));
+
+    // Recorded tests run in class loaders of their own.
+    Assert.assertEquals("", TestRegistry.getCalledTests());
+    Map<String, String> loaded =
+        ClassDependencyIndex.load(index).getDependencies(MockTest1.class.getName());
+    Assert.assertTrue(loaded.toString(), loaded.containsKey(TestRegistry.class.getName()));
+    Assert.assertFalse(loaded.toString(), loaded.containsKey(ConsoleRunner.class.getName()));
+
+    ConsoleRunner.main(asArgsArray("MockTest1 MockTest2 MockTest3 -changed-classes MockTest1 "
+        + "-class-deps-index " + index.getPath()));
+    Assert.assertEquals("test11 test12 test13 test31 test32", TestRegistry.getCalledTests());
+  }
+
+  @Test
+  public void testResultCache() throws Exception {
+    File cache = new File(temporary.getRoot(), "result-cache");
+    File outdir = temporary.newFolder("reports");
+    ConsoleRunner.main(asArgsArray("MockTest1 MockTest2 -xmlreport -outdir " + outdir.getPath()
+        + " -result-cache " + cache.getPath()));
+    File report = new File(outdir, "TEST-org.pantsbuild.tools.junit.MockTest1.xml");
+    String firstReport = Files.toString(report, Charsets.UTF_8);
+    Assert.assertEquals(2, cache.list().length);
+
+    // The unchanged classes are not run again, their reports are replayed as they were.
+    File replayed = temporary.newFolder("replayed");
+    ConsoleRunner.main(asArgsArray("MockTest1 MockTest2 -xmlreport -outdir " + replayed.getPath()
+        + " -result-cache " + cache.getPath()));
+    Assert.assertEquals(firstReport, Files.toString(
+        new File(replayed, "TEST-org.pantsbuild.tools.junit.MockTest1.xml"), Charsets.UTF_8));
+    Assert.assertEquals(2, cache.list().length);
+
+    // Results are kept apart by the options that may change the outcome of the tests.
+    ConsoleRunner.main(asArgsArray("MockTest1 -result-cache " + cache.getPath()));
+    Assert.assertEquals(3, cache.list().length);
+  }
+
   @Test
   public void testFlakyTests() throws Exception {
     TestRegistry.consoleRunnerTestRunsFlakyTests = true;
@@ -99,6 +350,60 @@ public class ConsoleRunnerTest {
     Assert.assertEquals(1, FlakyTest.numExpectedExceptionMethodInvocations);
   }
 
+  @Test
+  public void testDeferredRetriesOfFlakyTests() throws Exception {
+    String prefix = FlakyTest.class.getName();
+    File history = temporary.newFile("flaky.history");
+    Files.write("2 1 flakyMethodSucceedsAfter1Retry(" + prefix + ")\n"
+        + "2 1 flakyMethodSucceedsAfter2Retries(" + prefix + ")\n"
+        + "0 3 methodAlwaysFails(" + prefix + ")\n", history, Charsets.UTF_8);
+
+    runFlakyTests("FlakyTest -num-retries 2 -flaky-history " + history.getPath());
+
+    // Only the tests known to be flaky are retried.
+    Assert.assertEquals("flaky1 flaky1 flaky2 flaky2 flaky2 flaky3",
+        TestRegistry.getCalledTests().replaceAll("(expected_ex|notflaky) ?", "").trim());
+    // The retries run once all other tests have finished.
+    List<String> calls = Arrays.asList(TestRegistry.getCalledTests(false).split(" "));
+    Assert.assertEquals(Arrays.asList("flaky1", "flaky2", "flaky2"),
+        Ordering.natural().sortedCopy(calls.subList(calls.size() - 3, calls.size())));
+
+    Assert.assertEquals(
+        Arrays.asList(
+            "0 0 methodAlwaysFails(" + prefix + ")",
+            "0 1 methodWithExpectedException(" + prefix + ")",
+            "0 1 notFlakyMethod(" + prefix + ")",
+            "4 1 flakyMethodSucceedsAfter1Retry(" + prefix + ")",
+            "4 1 flakyMethodSucceedsAfter2Retries(" + prefix + ")"),
+        Ordering.natural().sortedCopy(Files.readLines(history, Charsets.UTF_8)));
+  }
+
+  @Test
+  public void testRetriesOfTestsWithoutFlakyHistory() throws Exception {
+    File history = new File(temporary.getRoot(), "flaky.history");
+    runFlakyTests("FlakyTest -num-retries 2 -flaky-history " + history.getPath());
+
+    // Tests not in the history are retried as usual.
+    Assert.assertEquals("expected_ex flaky1 flaky1 flaky2 flaky2 flaky2 flaky3 flaky3 flaky3 "
+        + "notflaky", TestRegistry.getCalledTests());
+    Assert.assertTrue(FlakyTestHistory.load(history).isFlaky(
+        "flakyMethodSucceedsAfter1Retry(" + FlakyTest.class.getName() + ")"));
+  }
+
+  private void runFlakyTests(String cmdLine) {
+    TestRegistry.consoleRunnerTestRunsFlakyTests = true;
+    try {
+      ConsoleRunner.main(asArgsArray(cmdLine));
+      Assert.fail("Should have failed due to FlakyTest.methodAlwaysFails");
+      // SUPPRESS CHECKSTYLE RegexpSinglelineJava
+    } catch (RuntimeException ex) {
+      // Expected due to FlakyTest.methodAlwaysFails()
+    } finally {
+      TestRegistry.consoleRunnerTestRunsFlakyTests = false;
+    }
+    Assert.assertEquals(1, ConsoleRunner.getExitStatus());
+  }
+
   private String[] asArgsArray(String cmdLine) {
     String[] args = cmdLine.split(" ");
     for (int i = 0; i < args.length; i++) {
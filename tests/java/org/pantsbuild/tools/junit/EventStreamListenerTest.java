@@ -0,0 +1,99 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventStreamListenerTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  @Test
+  public void testStreamsEvents() throws Exception {
+    File file = new File(temporary.getRoot(), "events.json");
+    Description test = Description.createTestDescription(EventStreamListenerTest.class, "fails");
+    Description suite = Description.createSuiteDescription(EventStreamListenerTest.class);
+    suite.addChild(test);
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    EventStreamListener listener = EventStreamListener.start(file, new PrintStream(err, true));
+
+    listener.testRunStarted(suite);
+    listener.testStarted(test);
+    listener.testFailure(new Failure(test, new AssertionError("expected \"a\"\nbut was b")));
+    listener.testFinished(test);
+    listener.testRunFinished(new Result());
+    listener.close();
+
+    List<String> events = Files.readLines(file, Charsets.UTF_8);
+    assertEquals(5, events.size());
+    String thread = "\"thread\":\"" + Thread.currentThread().getName() + "\"";
+    assertTrue(events.get(0), events.get(0).startsWith("{\"event\":\"run_started\",\"nanos\":"));
+    assertTrue(events.get(0), events.get(0).contains(thread));
+    assertTrue(events.get(0), events.get(0).endsWith(",\"tests\":1}"));
+    assertTrue(events.get(1), events.get(1).startsWith("{\"event\":\"test_started\","));
+    assertTrue(events.get(1), events.get(1).endsWith(
+        ",\"test\":\"fails(" + getClass().getName() + ")\",\"class\":\"" + getClass().getName()
+            + "\",\"method\":\"fails\"}"));
+    assertTrue(events.get(2), events.get(2).startsWith("{\"event\":\"test_failed\","));
+    assertTrue(events.get(2),
+        events.get(2).contains(",\"message\":\"expected \\\"a\\\"\\u000abut was b\",\"trace\":"));
+    assertTrue(events.get(3), events.get(3).startsWith("{\"event\":\"test_finished\","));
+    assertTrue(events.get(4), events.get(4).startsWith("{\"event\":\"run_finished\","));
+    assertTrue(events.get(4), events.get(4).contains(",\"failure_count\":0,"));
+    assertEquals("", err.toString("UTF-8"));
+  }
+
+  @Test
+  public void testWarnsOnceWhenWritingFails() throws Exception {
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    EventStreamListener listener =
+        EventStreamListener.start(temporary.getRoot(), new PrintStream(err, true));
+    Description test = Description.createTestDescription(EventStreamListenerTest.class, "test");
+
+    listener.testStarted(test);
+    listener.testFinished(test);
+    listener.close();
+    listener.testStarted(test);
+
+    String warnings = err.toString("UTF-8");
+    assertTrue(warnings, warnings.startsWith("Failed to write test events to "));
+    assertEquals(warnings, warnings.indexOf('\n'), warnings.length() - 1);
+  }
+
+  @Test
+  public void testWarnsOnceWhenFallingBehind() throws Exception {
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    // Not started, so no event is written.
+    EventStreamListener listener = new EventStreamListener(
+        new File(temporary.getRoot(), "events.json"), new PrintStream(err, true), 2);
+    Description test = Description.createTestDescription(EventStreamListenerTest.class, "test");
+
+    listener.testStarted(test);
+    listener.testFinished(test);
+    assertEquals("", err.toString("UTF-8"));
+    listener.testStarted(test);
+    listener.testFinished(test);
+
+    String warnings = err.toString("UTF-8");
+    assertTrue(warnings, warnings.startsWith("Test events are written to "));
+    assertEquals(warnings, warnings.indexOf('\n'), warnings.length() - 1);
+  }
+}
@@ -30,6 +30,14 @@ public class FlakyTest {
     numFlakyTestInstantiations++;
   }
 
+  static void reset() {
+    numFlaky1Invocations = 0;
+    numFlaky2Invocations = 0;
+    numFlaky3Invocations = 0;
+    numExpectedExceptionMethodInvocations = 0;
+    numFlakyTestInstantiations = 0;
+  }
+
   // Checks in Before/After methods ensure that when a flaky test is retried,
   // a test object (an instance of FlakyTest class) is re-instantiated. If that
   // didn't happen, we could have seen numTestMethodInvocationsPerTestInstance
@@ -0,0 +1,57 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlakyTestHistoryTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  @Test
+  public void testFixedTestIsNotFlaky() throws Exception {
+    File file = new File(temporary.getRoot(), "flaky.history");
+    FlakyTestHistory history = FlakyTestHistory.load(file);
+    assertFalse(history.isKnown("test"));
+    history.recordPassed("test");
+    history.recordFailed("test");
+    history.store();
+
+    // Passing once a failure is fixed is no evidence of flakiness on its own.
+    history = FlakyTestHistory.load(file);
+    assertTrue(history.isKnown("test"));
+    history.recordPassed("test");
+    assertFalse(history.isFlaky("test"));
+
+    // Flipping again is.
+    history.recordFailed("test");
+    history.recordPassed("test");
+    assertTrue(history.isFlaky("test"));
+  }
+
+  @Test
+  public void testFlakinessDecays() throws Exception {
+    File file = new File(temporary.getRoot(), "flaky.history");
+    FlakyTestHistory history = FlakyTestHistory.load(file);
+    history.recordFlaky("test");
+    history.store();
+
+    history = FlakyTestHistory.load(file);
+    assertTrue(history.isFlaky("test"));
+    for (int i = 1; i < FlakyTestHistory.DECAY_PASSES; i++) {
+      history.recordPassed("test");
+    }
+    assertTrue(history.isFlaky("test"));
+    history.recordPassed("test");
+    assertFalse(history.isFlaky("test"));
+  }
+}
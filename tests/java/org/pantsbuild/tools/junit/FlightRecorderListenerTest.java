@@ -0,0 +1,62 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class FlightRecorderListenerTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+  private final Description test =
+      Description.createTestDescription(FlightRecorderListenerTest.class, "test");
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+        new ObjectName("com.sun.management:type=DiagnosticCommand")));
+  }
+
+  private void run(FlightRecorderListener listener) {
+    listener.testRunStarted(test);
+    listener.testStarted(test);
+    listener.testFinished(test);
+    listener.testRunFinished(new Result());
+  }
+
+  @Test
+  public void testRecordingKept() throws Exception {
+    run(new FlightRecorderListener(temporary.getRoot(), 0, new PrintStream(err, true)));
+    File recording =
+        new File(temporary.getRoot(), FlightRecorderListenerTest.class.getName() + ".jfr");
+    // The JVM may not support flight recordings, in which case it is only warned about.
+    assertTrue(err.toString(), recording.isFile() || err.size() > 0);
+  }
+
+  @Test
+  public void testFastRecordingDiscarded() throws Exception {
+    run(new FlightRecorderListener(temporary.getRoot(), 60000, new PrintStream(err, true)));
+    assertEquals(0, temporary.getRoot().list().length);
+    assertFalse(err.toString(), err.toString().contains("jfrStop"));
+  }
+}
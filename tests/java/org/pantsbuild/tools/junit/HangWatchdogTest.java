@@ -0,0 +1,70 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HangWatchdogTest {
+
+  private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+  private final WorkerPool.OutputSink outputSink = new WorkerPool.OutputSink() {
+    @Override
+    public void write(Class<?> testClass, boolean stderr, byte[] output) throws IOException {
+      assertEquals(HangWatchdogTest.class, testClass);
+      assertTrue(stderr);
+      written.write(output);
+    }
+  };
+  private final AbortableListener abortableListener = new AbortableListener(false) {
+    @Override protected void abort(Result failureResult) {
+      throw new AssertionError("Unexpected abort");
+    }
+  };
+
+  @Test
+  public void testSlowTestSampled() throws Exception {
+    Description test = Description.createTestDescription(HangWatchdogTest.class, "slow");
+    Description suite = Description.createSuiteDescription(HangWatchdogTest.class);
+    suite.addChild(test);
+
+    HangWatchdog watchdog = new HangWatchdog(/* slowTestThresholdMs */ 1,
+        /* testTimeoutMs */ 0, /* classTimeoutMs */ 0, outputSink, abortableListener);
+    try {
+      watchdog.testRunStarted(suite);
+      watchdog.testStarted(test);
+      Thread.sleep(HangWatchdog.SAMPLE_INTERVAL_MS * 3 / 2);
+      watchdog.testFinished(test);
+    } finally {
+      watchdog.close();
+    }
+
+    String samples = written.toString("UTF-8");
+    assertTrue(samples, samples.contains("stack samples of slow"));
+    assertTrue(samples,
+        samples.contains(HangWatchdogTest.class.getName() + ".testSlowTestSampled"));
+  }
+
+  @Test
+  public void testFastTestNotSampled() throws Exception {
+    Description test = Description.createTestDescription(HangWatchdogTest.class, "fast");
+    HangWatchdog watchdog = new HangWatchdog(/* slowTestThresholdMs */ 60000,
+        /* testTimeoutMs */ 0, /* classTimeoutMs */ 0, outputSink, abortableListener);
+    try {
+      watchdog.testRunStarted(test);
+      watchdog.testStarted(test);
+      watchdog.testFinished(test);
+    } finally {
+      watchdog.close();
+    }
+    assertEquals(0, written.size());
+  }
+}
@@ -0,0 +1,44 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.pantsbuild.junit.annotations.TestParallelMethods;
+
+@TestParallelMethods
+public class MockTest4 {
+
+  @BeforeClass
+  public static void setUpClass() {
+    TestRegistry.registerTestCall("before4");
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    TestRegistry.registerTestCall("after4");
+  }
+
+  @Test
+  public void testMethod41() {
+    TestRegistry.registerTestCall("test41");
+  }
+
+  @Test
+  public void testMethod42() {
+    TestRegistry.registerTestCall("test42");
+  }
+
+  @Test
+  public void testMethod43() {
+    TestRegistry.registerTestCall("test43");
+  }
+
+  @Test
+  public void testMethod44() {
+    TestRegistry.registerTestCall("test44");
+  }
+}
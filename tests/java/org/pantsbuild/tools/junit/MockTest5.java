@@ -0,0 +1,18 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import junit.framework.TestCase;
+
+/**
+ * A junit 3 test, run by the runner without any of its own junit 4 runners.
+ */
+public class MockTest5 extends TestCase {
+
+  public void testMethod51() {
+    TestRegistry.registerTestCall("test51");
+    // Tests find their own copy of classes and resources through the context class loader.
+    assertSame(getClass().getClassLoader(), Thread.currentThread().getContextClassLoader());
+  }
+}
@@ -0,0 +1,38 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Kills the worker JVM running it partway through, when run by a {@link WorkerPool}.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MockTest6 {
+
+  static boolean inWorker() {
+    StackTraceElement[] stack = new Throwable().getStackTrace();
+    return stack[stack.length - 1].getClassName().equals(Worker.class.getName());
+  }
+
+  @Test
+  public void testMethod61() {
+    TestRegistry.registerTestCall("test61");
+  }
+
+  @Test
+  public void testMethod62() {
+    TestRegistry.registerTestCall("test62");
+    if (inWorker()) {
+      Runtime.getRuntime().halt(1);
+    }
+  }
+
+  @Test
+  public void testMethod63() {
+    TestRegistry.registerTestCall("test63");
+  }
+}
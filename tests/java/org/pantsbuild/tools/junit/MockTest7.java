@@ -0,0 +1,20 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import org.junit.Test;
+
+/**
+ * Hangs when run by a {@link WorkerPool}.
+ */
+public class MockTest7 {
+
+  @Test
+  public void testMethod71() throws InterruptedException {
+    TestRegistry.registerTestCall("test71");
+    if (MockTest6.inWorker()) {
+      Thread.sleep(Long.MAX_VALUE);
+    }
+  }
+}
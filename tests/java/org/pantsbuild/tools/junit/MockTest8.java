@@ -0,0 +1,38 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Hangs through interrupts for {@link #HANG_MS} milliseconds in its first test.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class MockTest8 {
+
+  static final long HANG_MS = 3000;
+
+  @Test
+  public void testMethod81() {
+    TestRegistry.registerTestCall("test81");
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HANG_MS);
+    for (long remaining = HANG_MS; remaining > 0;
+        remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) {
+      try {
+        Thread.sleep(remaining);
+      } catch (InterruptedException e) {
+        // Hang on regardless.
+      }
+    }
+  }
+
+  @Test
+  public void testMethod82() {
+    TestRegistry.registerTestCall("test82");
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResourceUsageListenerTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  private static long sink;
+
+  @Test
+  public void testMeasuresTests() throws Exception {
+    Description busy = Description.createTestDescription(ResourceUsageListenerTest.class, "busy");
+    Description idle = Description.createTestDescription(ResourceUsageListenerTest.class, "idle");
+    ResourceUsageListener listener = new ResourceUsageListener();
+
+    listener.testStarted(busy);
+    assertNull(listener.get(busy));
+    for (int i = 0; i < 1000; i++) {
+      sink += new long[1000].length;
+    }
+    listener.testFinished(busy);
+    listener.testStarted(idle);
+    listener.testFinished(idle);
+
+    ResourceUsageListener.Usage usage = listener.get(busy);
+    assertNotNull(usage);
+    // Either measured or not supported by this JVM.
+    assertTrue(usage.getAllocatedBytes() >= 1000 * 1000 * 8 || usage.getAllocatedBytes() == -1);
+    assertTrue(usage.getGcTimeMs() >= 0);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    listener.writeSummary(temporary.getRoot(), new PrintStream(out, true));
+    List<String> summary = Files.readLines(
+        new File(temporary.getRoot(), ResourceUsageListener.SUMMARY_FILE), Charsets.UTF_8);
+    assertEquals(3, summary.size());
+    assertTrue(summary.get(1), summary.get(1).endsWith("\tbusy(" + getClass().getName() + ")"));
+    assertTrue(out.toString("UTF-8"), out.toString("UTF-8").contains(summary.get(2)));
+  }
+}
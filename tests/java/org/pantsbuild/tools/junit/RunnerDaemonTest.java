@@ -0,0 +1,93 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterables;
+import com.google.common.io.CharStreams;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunnerDaemonTest {
+
+  private ExecutorService executor;
+  private RunnerDaemon daemon;
+  private Future<?> serving;
+
+  @Before
+  public void setUp() throws Exception {
+    daemon = RunnerDaemon.create(ClassLoaderCache.forJvmClasspath());
+    executor = Executors.newSingleThreadExecutor();
+    serving = executor.submit(new Callable<Void>() {
+      @Override public Void call() throws IOException {
+        daemon.serve(new PrintStream(new ByteArrayOutputStream()));
+        return null;
+      }
+    });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    daemon.close();
+    serving.get();
+    executor.shutdown();
+  }
+
+  private List<String> run(String... args) throws IOException {
+    Socket socket = new Socket(InetAddress.getByName(null), daemon.getPort());
+    try {
+      Writer request = new OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8);
+      request.write("\n");
+      for (String arg : args) {
+        request.write(arg + "\n");
+      }
+      request.write("\n");
+      request.flush();
+      return CharStreams.readLines(new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testSuccessiveRuns() throws Exception {
+    TestRegistry.reset();
+    List<String> response = run(MockTest2.class.getName());
+    Assert.assertEquals(response.toString(), "0", Iterables.getLast(response));
+    Assert.assertTrue(response.toString(), response.contains("OK (2 tests)"));
+
+    // The tests run in their own copy of the runner, so are only known to have run from the
+    // console output.
+    response = run(MockTest1.class.getName(), MockTest3.class.getName());
+    Assert.assertEquals(response.toString(), "0", Iterables.getLast(response));
+    Assert.assertTrue(response.toString(), response.contains("OK (5 tests)"));
+    Assert.assertEquals("", TestRegistry.getCalledTests());
+  }
+
+  @Test
+  public void testFailedRun() throws Exception {
+    List<String> response = run("-no-such-option");
+    Assert.assertEquals(response.toString(), "1", Iterables.getLast(response));
+
+    response = run(MockTest2.class.getName());
+    Assert.assertEquals(response.toString(), "0", Iterables.getLast(response));
+  }
+}
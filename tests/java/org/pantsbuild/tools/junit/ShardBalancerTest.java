@@ -0,0 +1,55 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class ShardBalancerTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  @Test
+  public void testBalanced() throws Exception {
+    File historyFile = temporary.newFile("history");
+    Files.write("100 a\n60 b\n50 c\n40 d\n10 e\n", historyFile, Charsets.UTF_8);
+
+    Map<String, Integer> assignment = ShardBalancer.assign(
+        Arrays.asList("a", "b", "c", "d", "e"), TimingHistory.load(historyFile), 2);
+
+    // a + d = 140 and b + c + e = 120, rather than 160 and 100 when dealt out in order.
+    assertEquals(ImmutableMap.of("a", 0, "b", 1, "c", 1, "d", 0, "e", 1), assignment);
+  }
+
+  @Test
+  public void testUnknownRoundRobin() throws Exception {
+    File historyFile = temporary.newFile("history");
+    Files.write("100 a\n", historyFile, Charsets.UTF_8);
+
+    Map<String, Integer> assignment = ShardBalancer.assign(
+        Arrays.asList("x", "a", "y", "z"), TimingHistory.load(historyFile), 2);
+
+    assertEquals(ImmutableMap.of("a", 0, "x", 0, "y", 1, "z", 0), assignment);
+  }
+
+  @Test
+  public void testNoHistory() {
+    Map<String, Integer> assignment =
+        ShardBalancer.assign(Arrays.asList("x", "y", "z"), TimingHistory.none(), 3);
+
+    assertEquals(ImmutableMap.of("x", 0, "y", 1, "z", 2), assignment);
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.pantsbuild.tools.junit.ConsoleRunner.CaptureBuffer;
+import org.pantsbuild.tools.junit.ConsoleRunner.SwappableStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamCaptureTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  @Test
+  public void testRoutedPerThread() throws Exception {
+    ByteArrayOutputStream console = new ByteArrayOutputStream();
+    final SwappableStream<ByteArrayOutputStream> stream =
+        new SwappableStream<ByteArrayOutputStream>(console);
+    final ByteArrayOutputStream first = new ByteArrayOutputStream();
+    final ByteArrayOutputStream second = new ByteArrayOutputStream();
+
+    stream.route(first);
+    Thread thread = new Thread() {
+      @Override public void run() {
+        PrintStream out = new PrintStream(stream, true);
+        // Inherited from the starting thread until routed elsewhere.
+        out.print("a");
+        stream.route(second);
+        out.print("b");
+      }
+    };
+    thread.start();
+    thread.join();
+    stream.write('c');
+    stream.route(null);
+    stream.write('d');
+
+    assertEquals("ac", first.toString("UTF-8"));
+    assertEquals("b", second.toString("UTF-8"));
+    assertEquals("d", console.toString("UTF-8"));
+  }
+
+  @Test
+  public void testClosedCaptureNotRouted() throws Exception {
+    ByteArrayOutputStream console = new ByteArrayOutputStream();
+    SwappableStream<ByteArrayOutputStream> stream =
+        new SwappableStream<ByteArrayOutputStream>(console);
+    CaptureBuffer buffer = new CaptureBuffer(new File(temporary.getRoot(), "Test.out.txt"));
+
+    stream.route(buffer);
+    stream.write('a');
+    buffer.close();
+    stream.write('b');
+
+    assertEquals("a", new String(buffer.read(), Charsets.UTF_8));
+    assertEquals("b", console.toString("UTF-8"));
+  }
+
+  @Test
+  public void testQuietCaptureCreatesEmptyFile() throws Exception {
+    File file = new File(temporary.getRoot(), "quiet/Test.out.txt");
+    CaptureBuffer buffer = new CaptureBuffer(file);
+    buffer.close();
+
+    assertTrue(file.exists());
+    assertEquals(0, file.length());
+    assertArrayEquals(new byte[0], buffer.read());
+  }
+
+  @Test
+  public void testCaptureSpills() throws Exception {
+    File file = new File(temporary.getRoot(), "noisy/Test.out.txt");
+    CaptureBuffer buffer = new CaptureBuffer(file);
+    byte[] chunk = new byte[CaptureBuffer.SPILL_THRESHOLD / 2 + 1];
+    Arrays.fill(chunk, (byte) 'x');
+    buffer.write(chunk);
+    assertFalse(file.exists());
+    buffer.write(chunk);
+    assertTrue(file.exists());
+    buffer.close();
+
+    // Writes after close are dropped.
+    buffer.write('y');
+    assertEquals(2 * chunk.length, buffer.read().length);
+  }
+
+  @Test
+  public void testSmallCaptureWrittenOnClose() throws Exception {
+    File file = new File(temporary.getRoot(), "small/Test.out.txt");
+    CaptureBuffer buffer = new CaptureBuffer(file);
+    buffer.write("hello".getBytes(Charsets.UTF_8));
+    assertFalse(file.exists());
+    buffer.close();
+
+    assertTrue(file.exists());
+    assertEquals("hello", new String(buffer.read(), Charsets.UTF_8));
+    InputStream in = buffer.open();
+    try {
+      assertEquals("hello", new String(ByteStreams.toByteArray(in), Charsets.UTF_8));
+    } finally {
+      in.close();
+    }
+  }
+}
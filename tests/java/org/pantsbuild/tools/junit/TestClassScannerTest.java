@@ -0,0 +1,74 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestClassScannerTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  /**
+   * Cannot be instantiated by the runner.
+   */
+  public abstract static class AbstractCase {
+    @Test
+    public void test() {
+    }
+  }
+
+  /**
+   * Inherits its test method.
+   */
+  public static class InheritingCase extends AbstractCase {
+  }
+
+  @Test
+  public void testScanJar() throws Exception {
+    File jar = temporary.newFile("tests.jar");
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      for (Class<?> clazz : ImmutableList.of(MockTest1.class, MockTest2.class,
+          AbstractCase.class, InheritingCase.class, TestRegistry.class)) {
+        String classFile = clazz.getName().replace('.', '/') + ".class";
+        out.putNextEntry(new JarEntry(classFile));
+        out.write(Resources.toByteArray(Resources.getResource(classFile)));
+      }
+    } finally {
+      out.close();
+    }
+
+    List<String> tests = TestClassScanner.scan(
+        ImmutableList.of(jar), getClass().getClassLoader(), /* numThreads */ 2);
+    assertEquals(ImmutableList.of(MockTest1.class.getName(), MockTest2.class.getName(),
+        InheritingCase.class.getName()), tests);
+  }
+
+  @Test
+  public void testScanDirectory() throws Exception {
+    File root = new File(getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
+    List<String> tests = TestClassScanner.scan(
+        ImmutableList.of(root), getClass().getClassLoader(), /* numThreads */ 4);
+    assertTrue(tests.toString(), tests.contains(getClass().getName()));
+    assertTrue(tests.toString(), tests.contains(MockTest4.class.getName()));
+    assertFalse(tests.toString(), tests.contains(AbstractCase.class.getName()));
+    assertFalse(tests.toString(), tests.contains(TestRegistry.class.getName()));
+  }
+}
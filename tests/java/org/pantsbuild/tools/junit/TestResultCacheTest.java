@@ -0,0 +1,134 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestResultCacheTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  private File classes;
+  private File outdir;
+  private File cacheDir;
+
+  @Before
+  public void setUp() throws Exception {
+    classes = temporary.newFolder("classes");
+    outdir = temporary.newFolder("reports");
+    cacheDir = new File(temporary.getRoot(), "cache");
+  }
+
+  private Map<String, String> write(String path, String content) throws Exception {
+    File file = new File(classes, path);
+    Files.createParentDirs(file);
+    Files.write(content, file, Charsets.UTF_8);
+    return ImmutableMap.of(path, Hashing.sha1().hashString(content, Charsets.UTF_8).toString());
+  }
+
+  // A fresh cache for each run, as each run of the runner looks at the classpath once.
+  private TestResultCache cache(long maxBytes) throws Exception {
+    ClassLoader classpath = new URLClassLoader(new URL[] {classes.toURI().toURL()}, null);
+    return new TestResultCache(cacheDir, classpath, maxBytes);
+  }
+
+  @Test
+  public void testReplaysUnchanged() throws Exception {
+    Map<String, String> loaded = ImmutableMap.<String, String>builder()
+        .putAll(write("a/ATest.class", "test"))
+        .putAll(write("a/data.txt", "data"))
+        .build();
+    File report = new File(outdir, "TEST-a.ATest.xml");
+    Files.write("<testsuite/>", report, Charsets.UTF_8);
+    String key = TestResultCache.key(Arrays.asList("a.ATest"), Arrays.asList("-xmlreport"));
+    TestResultCache cache = cache(TestResultCache.DEFAULT_MAX_BYTES);
+    assertNull(cache.replay(key, outdir));
+    cache.store(key, loaded, "OK\n".getBytes(Charsets.UTF_8),
+        Arrays.asList(report, new File(outdir, "a.ATest.out.txt")));
+
+    assertTrue(report.delete());
+    assertArrayEquals("OK\n".getBytes(Charsets.UTF_8), cache(0).replay(key, outdir));
+    assertEquals("<testsuite/>", Files.toString(report, Charsets.UTF_8));
+    assertFalse(new File(outdir, "a.ATest.out.txt").exists());
+
+    // A changed resource invalidates the result, as does one gone missing.
+    write("a/data.txt", "changed");
+    assertNull(cache(0).replay(key, outdir));
+    write("a/data.txt", "data");
+    assertTrue(new File(classes, "a/ATest.class").delete());
+    assertNull(cache(0).replay(key, outdir));
+  }
+
+  @Test
+  public void testMalformedFingerprintIsMiss() throws Exception {
+    Map<String, String> loaded = write("a/ATest.class", "test");
+    List<File> noReports = Collections.emptyList();
+    cache(TestResultCache.DEFAULT_MAX_BYTES).store("key", loaded, new byte[0], noReports);
+    File fingerprint = new File(cacheDir, "key/fingerprint");
+    Files.append("truncated\n", fingerprint, Charsets.UTF_8);
+    assertNull(cache(0).replay("key", outdir));
+
+    Files.write(" a/ATest.class\n", fingerprint, Charsets.UTF_8);
+    assertNull(cache(0).replay("key", outdir));
+  }
+
+  @Test
+  public void testKey() {
+    List<String> args = Arrays.asList("-xmlreport");
+    String key = TestResultCache.key(Arrays.asList("a.ATest"), args);
+    assertEquals(key, TestResultCache.key(Arrays.asList("a.ATest"), args));
+    assertNotEquals(key, TestResultCache.key(Arrays.asList("a.ATest#test1"), args));
+    assertNotEquals(key,
+        TestResultCache.key(Arrays.asList("a.ATest"), Arrays.asList("-fail-fast")));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    Map<String, String> loaded = write("a/ATest.class", "test");
+    List<File> noReports = Collections.emptyList();
+    TestResultCache cache = cache(TestResultCache.DEFAULT_MAX_BYTES);
+    byte[] output = new byte[1000];
+    cache.store("first", loaded, output, noReports);
+    cache.store("second", loaded, output, noReports);
+    cache.store("third", loaded, output, noReports);
+    long now = System.currentTimeMillis();
+    new File(cacheDir, "first/fingerprint").setLastModified(now - 3000);
+    new File(cacheDir, "second/fingerprint").setLastModified(now - 2000);
+    new File(cacheDir, "third/fingerprint").setLastModified(now - 1000);
+    assertTrue(cache(0).replay("first", outdir) != null);
+
+    // Fits two results.
+    cache(2500).evict();
+    assertTrue(new File(cacheDir, "first").exists());
+    assertFalse(new File(cacheDir, "second").exists());
+    assertTrue(new File(cacheDir, "third").exists());
+
+    cache.invalidate("first");
+    assertNull(cache(0).replay("first", outdir));
+  }
+}
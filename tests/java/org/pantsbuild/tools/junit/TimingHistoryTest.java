@@ -0,0 +1,53 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit;
+
+import java.io.File;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TimingHistoryTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  @Test
+  public void testAveragesDurations() throws Exception {
+    TimingHistory history = TimingHistory.none();
+    assertNull(history.getMillis("a"));
+    history.record("a", 100);
+    assertEquals(Long.valueOf(100), history.getMillis("a"));
+    history.record("a", 200);
+    assertEquals(Long.valueOf(150), history.getMillis("a"));
+  }
+
+  @Test
+  public void testMergesRunsSharingTheFile() throws Exception {
+    File file = temporary.newFile("timing-history");
+    Files.write("10 a\n20 b\n30 c\n", file, Charsets.UTF_8);
+
+    // Like two shards, each running some of the tests.
+    TimingHistory first = TimingHistory.load(file);
+    TimingHistory second = TimingHistory.load(file);
+    first.record("a", 30);
+    second.record("b", 40);
+    second.record("d", 50);
+    first.store();
+    second.store();
+
+    TimingHistory merged = TimingHistory.load(file);
+    assertEquals(Long.valueOf(20), merged.getMillis("a"));
+    assertEquals(Long.valueOf(30), merged.getMillis("b"));
+    assertEquals(Long.valueOf(30), merged.getMillis("c"));
+    assertEquals(Long.valueOf(50), merged.getMillis("d"));
+  }
+}
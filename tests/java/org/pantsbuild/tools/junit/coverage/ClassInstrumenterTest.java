@@ -0,0 +1,140 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit.coverage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClassInstrumenterTest {
+
+  private static byte[] classFile(Class<?> clazz) throws Exception {
+    String name = clazz.getName();
+    return ByteStreams.toByteArray(
+        clazz.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class"));
+  }
+
+  private static Class<?> define(final String name, final byte[] classFile) {
+    return new ClassLoader(ClassInstrumenterTest.class.getClassLoader()) {
+      Class<?> define() {
+        return defineClass(name, classFile, 0, classFile.length);
+      }
+    }.define();
+  }
+
+  private static Object call(Object target, String method, Object... args) throws Exception {
+    for (java.lang.reflect.Method candidate : target.getClass().getMethods()) {
+      if (candidate.getName().equals(method)) {
+        return candidate.invoke(target, args);
+      }
+    }
+    throw new NoSuchMethodException(method);
+  }
+
+  @Test
+  public void testMeasuresLinesRun() throws Exception {
+    List<String> none = Collections.emptyList();
+    CoverageAgent agent = new CoverageAgent(none, none);
+    byte[] instrumented = agent.instrument(classFile(CoverageSample.class));
+    assertNotNull(instrumented);
+    Class<?> sampleClass = define(CoverageSample.class.getName(), instrumented);
+
+    CoverageData.ClassCoverage coverage =
+        Iterables.getOnlyElement(agent.getCoverage().getClasses());
+    assertEquals("org/pantsbuild/tools/junit/coverage/CoverageSample", coverage.getName());
+    assertEquals(0, coverage.getCoveredLineCount());
+
+    // The instrumented code passes verification and behaves as before.
+    Object sample = sampleClass.getConstructor(boolean.class).newInstance(true);
+    assertEquals(45, call(sample, "loop", 10));
+    for (int value = 1; value <= 4; value++) {
+      assertEquals(new CoverageSample(false).tableSwitch(value),
+          call(sample, "tableSwitch", value));
+    }
+    for (int value : new int[] {10, 1000, 7}) {
+      assertEquals(new CoverageSample(false).lookupSwitch(value),
+          call(sample, "lookupSwitch", value));
+    }
+    assertEquals("a", call(sample, "handle", " a "));
+    assertEquals("null", call(sample, "handle", (Object) null));
+    assertEquals("abab", call(sample, "construct", "ab").toString());
+    assertEquals("abcd", call(sample, "construct", "abcd").toString());
+    assertEquals(3, call(sample, "locked", 3));
+    assertEquals(3, call(sample, "locked", -3));
+    assertEquals(Arrays.asList("wrapped", "handled", "handled"), call(sample, "getCalls"));
+    sampleClass.getConstructor(boolean.class).newInstance(false);
+
+    // All lines ran apart from the one of neverCalled, and the closing brace of the finally block
+    // of handle, where exceptions other than the one caught are rethrown.
+    coverage = Iterables.getOnlyElement(agent.getCoverage().getClasses());
+    assertEquals(coverage.getLineCount() - 2, coverage.getCoveredLineCount());
+  }
+
+  @Test
+  public void testKeepsLineNumbers() throws Exception {
+    List<String> none = Collections.emptyList();
+    byte[] instrumented =
+        new CoverageAgent(none, none).instrument(classFile(CoverageSample.class));
+    Object sample =
+        define(CoverageSample.class.getName(), instrumented).getConstructor(boolean.class)
+            .newInstance(true);
+    StackTraceElement expected = null;
+    try {
+      new CoverageSample(true).construct(null);
+    } catch (NullPointerException e) {
+      expected = e.getStackTrace()[0];
+    }
+    StackTraceElement actual = null;
+    try {
+      call(sample, "construct", (Object) null);
+    } catch (java.lang.reflect.InvocationTargetException e) {
+      actual = e.getCause().getStackTrace()[0];
+    }
+    assertEquals(expected.getMethodName(), actual.getMethodName());
+    assertEquals(expected.getLineNumber(), actual.getLineNumber());
+  }
+
+  /**
+   * Has no code to measure.
+   */
+  interface Callback {
+    void call();
+  }
+
+  @Test
+  public void testSkipsClassesWithoutCode() throws Exception {
+    byte[] classFile = classFile(CoverageSample.class);
+    ClassInstrumenter instrumenter = ClassInstrumenter.parse(classFile);
+    assertEquals(CoverageSample.class.getName().replace('.', '/'), instrumenter.getClassName());
+
+    List<String> none = Collections.emptyList();
+    assertNull(new CoverageAgent(none, none).instrument(classFile(Callback.class)));
+  }
+
+  @Test
+  public void testNotesMethodsLeftOut() throws Exception {
+    byte[] classFile = classFile(CoverageSample.class);
+    assertEquals(Collections.emptyList(), ClassInstrumenter.parse(classFile).getNotes());
+
+    // Rename the stack map tables of the methods that have one to an attribute not known.
+    String original = new String(classFile, Charsets.ISO_8859_1);
+    int name = original.indexOf("StackMapTable");
+    assertTrue(name > 0);
+    classFile[name + "StackMapTable".length() - 1] = 'X';
+
+    List<String> notes = ClassInstrumenter.parse(classFile).getNotes();
+    assertTrue(notes.contains("left out loop(I)I: unknown code attribute StackMapTablX"));
+  }
+}
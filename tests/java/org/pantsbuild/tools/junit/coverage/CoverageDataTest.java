@@ -0,0 +1,78 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit.coverage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Iterables;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoverageDataTest {
+
+  @Rule
+  public TemporaryFolder temporary = new TemporaryFolder();
+
+  private static CoverageData data(CoverageData.ClassCoverage... classes) {
+    CoverageData data = new CoverageData();
+    for (CoverageData.ClassCoverage coverage : classes) {
+      data.add(coverage);
+    }
+    return data;
+  }
+
+  private static CoverageData.ClassCoverage coverage(
+      String name, long fingerprint, int[] lines, boolean... hits) {
+    return new CoverageData.ClassCoverage(name, fingerprint, lines, hits);
+  }
+
+  @Test
+  public void testMergesShards() throws Exception {
+    int[] lines = {10, 11, 11, 12};
+    File file = new File(temporary.getRoot(), "coverage.bin");
+    CoverageData.mergeInto(file, data(
+        coverage("a/A", 1L, lines, true, false, false, false),
+        coverage("a/A", 2L, lines, true, true, true, true)));
+    CoverageData.mergeInto(file, data(coverage("a/A", 1L, lines, false, false, true, false)));
+
+    List<CoverageData.ClassCoverage> classes =
+        Arrays.asList(Iterables.toArray(CoverageData.load(file).getClasses(),
+            CoverageData.ClassCoverage.class));
+    // Different builds of a class are kept apart.
+    assertEquals(2, classes.size());
+    assertEquals(3, classes.get(0).getLineCount());
+    assertEquals(2, classes.get(0).getCoveredLineCount());
+    assertEquals(3, classes.get(1).getCoveredLineCount());
+  }
+
+  @Test
+  public void testTool() throws Exception {
+    int[] lines = {1, 2, 3, 4};
+    File shard1 = new File(temporary.getRoot(), "shard1.bin");
+    data(coverage("a/A", 1L, lines, true, false, false, false)).store(shard1);
+    File shard2 = new File(temporary.getRoot(), "shard2.bin");
+    data(coverage("a/A", 1L, lines, false, true, false, false), coverage("b/B", 1L, new int[0]))
+        .store(shard2);
+    File merged = new File(temporary.getRoot(), "merged.bin");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream err = new PrintStream(new ByteArrayOutputStream());
+
+    assertEquals(0, CoverageTool.run(
+        Arrays.asList("merge", merged.getPath(), shard1.getPath(), shard2.getPath()),
+        new PrintStream(out), err));
+    assertEquals(0, CoverageTool.run(
+        Arrays.asList("summary", merged.getPath()), new PrintStream(out, true), err));
+    assertEquals(" 50% (2/4 lines) a.A\n100% (0/0 lines) b.B\n 50% (2/4 lines) total\n",
+        out.toString("UTF-8"));
+    assertEquals(1, CoverageTool.run(Arrays.asList("merge", merged.getPath()), System.out, err));
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2015 Pants project contributors (see CONTRIBUTORS.md).
+// Licensed under the Apache License, Version 2.0 (see LICENSE).
+
+package org.pantsbuild.tools.junit.coverage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Code with jumps, switches, exception handlers and objects under construction across lines, for
+ * {@link ClassInstrumenterTest} to instrument.
+ */
+public class CoverageSample {
+
+  private final List<String> calls = new ArrayList<String>();
+
+  public CoverageSample(boolean wrap) {
+    this(wrap
+        ? "wrapped"
+        : "plain");
+  }
+
+  private CoverageSample(String call) {
+    calls.add(call);
+  }
+
+  public List<String> getCalls() {
+    return calls;
+  }
+
+  public int loop(int times) {
+    int sum = 0;
+    for (int i = 0; i < times; i++) {
+      sum += i;
+    }
+    return sum;
+  }
+
+  public String tableSwitch(int value) {
+    switch (value) {
+      case 1:
+        return "one";
+      case 2:
+        return "two";
+      case 3:
+        return "three";
+      default:
+        return "many";
+    }
+  }
+
+  public String lookupSwitch(int value) {
+    switch (value) {
+      case 10:
+        return "ten";
+      case 1000:
+        return "thousand";
+      default:
+        return "other";
+    }
+  }
+
+  public String handle(String value) {
+    try {
+      return value.trim();
+    } catch (NullPointerException e) {
+      return "null";
+    } finally {
+      calls.add("handled");
+    }
+  }
+
+  public StringBuilder construct(String value) {
+    return new StringBuilder(
+        value.length() > 3
+            ? value
+            : value + value);
+  }
+
+  public synchronized int locked(int value) {
+    synchronized (calls) {
+      if (value > 0) {
+        return value;
+      }
+    }
+    return -value;
+  }
+
+  public int neverCalled() {
+    return 42;
+  }
+}